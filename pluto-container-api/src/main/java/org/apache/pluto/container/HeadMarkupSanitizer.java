@@ -0,0 +1,462 @@
+/*  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.apache.pluto.container;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Single pass sanitizer for the markup that portlets contribute to the document head section.
+ * <p>
+ * The markup is tokenized once and the allowed tags are written directly to the output buffer.
+ * Only the <code>meta</code>, <code>link</code>, <code>style</code>, <code>script</code>, and
+ * <code>noscript</code> elements, comments, and white space are allowed at the top level. To avoid
+ * placing a burden on the portlet developer, <code>meta</code> and <code>link</code> tags may be
+ * written with or without closing slash, and the content of <code>script</code> and
+ * <code>style</code> elements is copied unchanged, so that it may contain unescaped angle brackets.
+ * <p>
+ * Disallowed elements and text are removed, or cause an {@link IllegalArgumentException} if
+ * arguments are checked. Markup that cannot be parsed, such as an unterminated tag or an unmatched
+ * end tag, always causes an {@link IllegalArgumentException}.
+ *
+ * @see HeaderData
+ */
+public final class HeadMarkupSanitizer {
+
+   /** Logger. */
+   private static final Logger      LOG          = LoggerFactory.getLogger(HeadMarkupSanitizer.class);
+
+   /** The elements allowed in the head section, in upper case. */
+   public static final Set<String>  ALLOWED_TAGS = Collections.unmodifiableSet(new HashSet<String>(
+         Arrays.asList(new String[] { "META", "LINK", "STYLE", "SCRIPT", "NOSCRIPT" })));
+
+   private final String             src;
+   private final boolean            chkArgs;
+   private final StringBuilder      out;
+   private int                      pos;
+
+   private HeadMarkupSanitizer(String src, boolean chkArgs, StringBuilder out) {
+      this.src = src;
+      this.chkArgs = chkArgs;
+      this.out = out;
+   }
+
+   /**
+    * Parses the input text and returns the tags that are valid for the document head section.
+    *
+    * @param src     the text to parse
+    * @param chkArgs if true, illegal argument exception is thrown when source
+    *                contains invalid tags. Otherwise, invalid tags are silently deleted.
+    * @return        the extracted tags in string form
+    */
+   public static String sanitize(String src, boolean chkArgs) {
+      StringBuilder out = new StringBuilder(src == null ? 0 : src.length());
+      sanitize(src, chkArgs, out);
+      return out.toString();
+   }
+
+   /**
+    * Parses the input text and appends the tags that are valid for the document head section
+    * to the output buffer.
+    *
+    * @param src     the text to parse, may be <code>null</code>
+    * @param chkArgs if true, illegal argument exception is thrown when source
+    *                contains invalid tags. Otherwise, invalid tags are silently deleted.
+    * @param out     the output buffer
+    */
+   public static void sanitize(String src, boolean chkArgs, StringBuilder out) {
+      if (src != null && src.length() > 0) {
+         new HeadMarkupSanitizer(src, chkArgs, out).parse();
+      }
+   }
+
+   /**
+    * Appends the HTML markup for an element created through the DOM API to the output buffer.
+    *
+    * @param element the element
+    * @param out     the output buffer
+    */
+   public static void writeElement(Element element, StringBuilder out) {
+      String name = element.getTagName();
+      out.append('<').append(name);
+      NamedNodeMap attrs = element.getAttributes();
+      for (int ii = 0; ii < attrs.getLength(); ii++) {
+         Node attr = attrs.item(ii);
+         out.append(' ').append(attr.getNodeName()).append("=\"");
+         escape(attr.getNodeValue(), true, out);
+         out.append('"');
+      }
+      out.append('>');
+      if (isVoid(name)) {
+         return;
+      }
+      boolean raw = isRawText(name);
+      for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+         switch (child.getNodeType()) {
+         case Node.ELEMENT_NODE:
+            writeElement((Element) child, out);
+            break;
+         case Node.TEXT_NODE:
+         case Node.CDATA_SECTION_NODE:
+            if (raw) {
+               out.append(child.getNodeValue());
+            } else {
+               escape(child.getNodeValue(), false, out);
+            }
+            break;
+         case Node.COMMENT_NODE:
+            out.append("<!--").append(child.getNodeValue()).append("-->");
+            break;
+         default:
+            break;
+         }
+      }
+      out.append("</").append(name).append('>');
+   }
+
+   private static void escape(String text, boolean attr, StringBuilder out) {
+      for (int ii = 0; ii < text.length(); ii++) {
+         char c = text.charAt(ii);
+         if (c == '&') {
+            out.append("&amp;");
+         } else if (c == '"' && attr) {
+            out.append("&quot;");
+         } else if (c == '<' && !attr) {
+            out.append("&lt;");
+         } else {
+            out.append(c);
+         }
+      }
+   }
+
+   private static boolean isVoid(String name) {
+      return name.equalsIgnoreCase("meta") || name.equalsIgnoreCase("link");
+   }
+
+   private static boolean isRawText(String name) {
+      return name.equalsIgnoreCase("script") || name.equalsIgnoreCase("style");
+   }
+
+   // Tokenizer ---------------------------------------------------------------
+
+   private void parse() {
+      int len = src.length();
+      while (pos < len) {
+         if (src.charAt(pos) != '<') {
+            text();
+         } else if (src.startsWith("<!--", pos)) {
+            int end = indexOf("-->", pos + 4);
+            out.append(src, pos, end + 3).append('\n');
+            pos = end + 3;
+         } else if (src.startsWith("</", pos)) {
+            int start = pos;
+            String name = endTag();
+            if (!isVoid(name)) {
+               throw malformed("Unexpected end tag: " + src.substring(start, pos));
+            }
+            // disappear any link or meta closing tags, since we're generating html
+         } else if (src.startsWith("<!", pos) || src.startsWith("<?", pos)) {
+            int start = pos;
+            pos = src.startsWith("<![CDATA[", pos) ? indexOf("]]>", pos) + 3 : indexOf(">", pos) + 1;
+            invalid("Invalid node: ", src.substring(start, pos));
+         } else {
+            element();
+         }
+      }
+   }
+
+   /**
+    * A text run may only contain white space.
+    */
+   private void text() {
+      int start = pos;
+      int end = src.indexOf('<', pos);
+      pos = (end < 0) ? src.length() : end;
+      for (int ii = start; ii < pos; ii++) {
+         if (!Character.isWhitespace(src.charAt(ii))) {
+            invalid("Invalid text node: ", src.substring(start, pos));
+            return;
+         }
+      }
+   }
+
+   /**
+    * Handles an element from its start tag through its end tag.
+    */
+   private void element() {
+      int start = pos;
+      int mark = out.length();
+      String name = tagName(pos + 1);
+      boolean empty = startTag(name);
+
+      boolean allowed = ALLOWED_TAGS.contains(name.toUpperCase());
+      if (!allowed) {
+         out.setLength(mark);
+      }
+
+      if (isVoid(name)) {
+         // no content
+      } else if (isRawText(name)) {
+         if (!empty) {
+            int end = indexOfEndTag(name, pos);
+            if (allowed) {
+               out.append(src, pos, end);
+            }
+            pos = end;
+            endTag();
+         }
+         if (allowed) {
+            out.append("</").append(name).append('>');
+         }
+      } else {
+         if (!empty) {
+            int contentStart = pos;
+            int end = skipContent(name);
+            if (allowed) {
+               out.append(src, contentStart, end);
+            }
+         }
+         if (allowed) {
+            out.append("</").append(name).append('>');
+         }
+      }
+
+      if (allowed) {
+         out.append('\n');
+      } else {
+         invalid("Invalid tag: ", src.substring(start, pos));
+      }
+   }
+
+   /**
+    * Reads a start tag beginning at the current position and writes it in normalized form.
+    *
+    * @return <code>true</code> if the tag was closed with a slash
+    */
+   private boolean startTag(String name) {
+      out.append('<').append(name);
+      pos += name.length() + 1;
+      int len = src.length();
+      while (true) {
+         skipWhitespace();
+         if (pos >= len) {
+            throw malformed("Unterminated tag: " + name);
+         }
+         char c = src.charAt(pos);
+         if (c == '>') {
+            pos++;
+            out.append('>');
+            return false;
+         } else if (c == '/' && pos + 1 < len && src.charAt(pos + 1) == '>') {
+            pos += 2;
+            out.append('>');
+            return true;
+         }
+         attribute();
+      }
+   }
+
+   private void attribute() {
+      int len = src.length();
+      int start = pos;
+      while (pos < len) {
+         char c = src.charAt(pos);
+         if (Character.isWhitespace(c) || c == '=' || c == '>' || c == '/' || c == '<' || c == '"' || c == '\'') {
+            break;
+         }
+         pos++;
+      }
+      if (pos == start) {
+         throw malformed("Invalid attribute in tag: " + src.substring(start, Math.min(len, start + 32)));
+      }
+      out.append(' ').append(src, start, pos);
+      skipWhitespace();
+      if (pos >= len || src.charAt(pos) != '=') {
+         return;
+      }
+      pos++;
+      skipWhitespace();
+      if (pos >= len) {
+         throw malformed("Missing attribute value: " + src.substring(start));
+      }
+      out.append("=\"");
+      char quote = src.charAt(pos);
+      if (quote == '"' || quote == '\'') {
+         int end = src.indexOf(quote, pos + 1);
+         if (end < 0) {
+            throw malformed("Unterminated attribute value: " + src.substring(start));
+         }
+         for (int ii = pos + 1; ii < end; ii++) {
+            char c = src.charAt(ii);
+            if (c == '"') {
+               out.append("&quot;");
+            } else {
+               out.append(c);
+            }
+         }
+         pos = end + 1;
+      } else {
+         int vstart = pos;
+         while (pos < len) {
+            char c = src.charAt(pos);
+            if (Character.isWhitespace(c) || c == '>' || c == '"' || c == '\'') {
+               break;
+            }
+            if (c == '/' && pos + 1 < len && src.charAt(pos + 1) == '>') {
+               break;
+            }
+            pos++;
+         }
+         out.append(src, vstart, pos);
+      }
+      out.append('"');
+   }
+
+   /**
+    * Reads an end tag beginning at the current position.
+    *
+    * @return the tag name
+    */
+   private String endTag() {
+      String name = tagName(pos + 2);
+      pos += name.length() + 2;
+      skipWhitespace();
+      if (pos >= src.length() || src.charAt(pos) != '>') {
+         throw malformed("Unterminated end tag: " + name);
+      }
+      pos++;
+      return name;
+   }
+
+   /**
+    * Skips the content and end tag of an element that may contain nested elements.
+    *
+    * @return the end of the content, before the end tag
+    */
+   private int skipContent(String name) {
+      int depth = 1;
+      int len = src.length();
+      while (true) {
+         int lt = src.indexOf('<', pos);
+         if (lt < 0) {
+            throw malformed("Missing end tag: " + name);
+         }
+         pos = lt;
+         if (src.startsWith("<!--", pos)) {
+            pos = indexOf("-->", pos + 4) + 3;
+         } else if (src.startsWith("</", pos) && isTagName(name, pos + 2)) {
+            int end = pos;
+            endTag();
+            if (--depth == 0) {
+               return end;
+            }
+         } else if (isTagName(name, pos + 1)) {
+            int end = indexOf(">", pos);
+            if (src.charAt(end - 1) != '/') {
+               depth++;
+            }
+            pos = end + 1;
+         } else if (pos + 1 < len) {
+            pos++;
+         } else {
+            throw malformed("Missing end tag: " + name);
+         }
+      }
+   }
+
+   private int indexOfEndTag(String name, int from) {
+      int len = src.length();
+      int ii = from;
+      while ((ii = src.indexOf("</", ii)) >= 0) {
+         if (isTagName(name, ii + 2)) {
+            return ii;
+         }
+         ii += 2;
+      }
+      throw malformed("Missing end tag: " + name + " after " + src.substring(from, Math.min(len, from + 32)));
+   }
+
+   /**
+    * Checks whether the given name, in any case, is found at the offset and is followed by
+    * a character that terminates a tag name.
+    */
+   private boolean isTagName(String name, int offset) {
+      int end = offset + name.length();
+      if (!src.regionMatches(true, offset, name, 0, name.length())) {
+         return false;
+      }
+      return end >= src.length() || !isNameChar(src.charAt(end));
+   }
+
+   private String tagName(int offset) {
+      int ii = offset;
+      int len = src.length();
+      if (ii < len && Character.isLetter(src.charAt(ii))) {
+         while (ii < len && isNameChar(src.charAt(ii))) {
+            ii++;
+         }
+         return src.substring(offset, ii);
+      }
+      throw malformed("Invalid tag: " + src.substring(offset - 1, Math.min(len, offset + 31)));
+   }
+
+   private static boolean isNameChar(char c) {
+      return Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == ':' || c == '.';
+   }
+
+   private void skipWhitespace() {
+      int len = src.length();
+      while (pos < len && Character.isWhitespace(src.charAt(pos))) {
+         pos++;
+      }
+   }
+
+   private int indexOf(String str, int from) {
+      int ii = src.indexOf(str, from);
+      if (ii < 0) {
+         throw malformed("Missing '" + str + "' after: " + src.substring(pos, Math.min(src.length(), pos + 32)));
+      }
+      return ii;
+   }
+
+   private void invalid(String msg, String markup) {
+      StringBuilder err = new StringBuilder(128);
+      err.append(msg).append(markup);
+      err.append(", allowed tags: ").append(ALLOWED_TAGS.toString());
+      LOG.warn(err.toString());
+      if (chkArgs) {
+         throw new IllegalArgumentException(err.toString());
+      }
+   }
+
+   private IllegalArgumentException malformed(String msg) {
+      StringBuilder err = new StringBuilder(128);
+      err.append("Problem parsing tag data: ").append(msg);
+      return new IllegalArgumentException(err.toString());
+   }
+
+}
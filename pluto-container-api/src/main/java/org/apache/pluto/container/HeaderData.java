@@ -20,27 +20,17 @@ package org.apache.pluto.container;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
-import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.servlet.http.Cookie;
-import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,12 +38,6 @@ import org.w3c.dom.DOMException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.w3c.dom.Text;
-import org.xml.sax.ErrorHandler;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-import org.xml.sax.SAXParseException;
 
 /**
  * This class is a holder for the HTTP header data, cookies, and header section markup provided by the portlet during
@@ -69,17 +53,14 @@ public class HeaderData {
    private static final boolean      isDebug            = LOG.isDebugEnabled();
    private static final boolean      isTrace            = LOG.isTraceEnabled();
 
-   // for document processing
-   private DocumentBuilder           docBuilder         = null;
+   // for document processing; the factory is only used to create documents for portlets
+   // that add elements through the DOM API.
+   private static final DocumentBuilderFactory dbfac    = DocumentBuilderFactory.newInstance();
    private Document                  doc                = null;
    private Element                   root               = null;
    private static final String       ROOT_ELEMENT       = "rootElement";
-   private static final String       ROOT_ELEMENT_START = "<rootElement>";
-   private static final String       ROOT_ELEMENT_END   = "</rootElement>";
-   private static final String       ROOT_ELEMENT_REGEX = "(?:\\s*)</{0,1}" + ROOT_ELEMENT + ">(?:\\s*)";
 
-   private static final Set<String>  allowedTags        = new HashSet<String>(Arrays.asList(new String[] { 
-         "META", "LINK", "STYLE", "SCRIPT", "NOSCRIPT"         }));
+   private static final Set<String>  allowedTags        = HeadMarkupSanitizer.ALLOWED_TAGS;
 
    private List<Cookie>              cookies            = new ArrayList<Cookie>();
    private Map<String, List<String>> httpHeaders        = new HashMap<String, List<String>>();
@@ -101,68 +82,36 @@ public class HeaderData {
     * @throws ParserConfigurationException
     */
    private void setupDoc() throws ParserConfigurationException {
-      DocumentBuilderFactory dbfac = DocumentBuilderFactory.newInstance();
-      dbfac.setExpandEntityReferences(true);
-      docBuilder = dbfac.newDocumentBuilder();
-      
-      // the following avoids cluttering the console log with unwanted messages
-      docBuilder.setErrorHandler(new ErrorHandler() {
-         @Override
-         public void warning(SAXParseException arg0) throws SAXException {
-         }
-         
-         @Override
-         public void fatalError(SAXParseException arg0) throws SAXException {
-         }
-         
-         @Override
-         public void error(SAXParseException arg0) throws SAXException {
-         }
-      });
-      
-      doc = docBuilder.newDocument();
+      synchronized (dbfac) {
+         doc = dbfac.newDocumentBuilder().newDocument();
+      }
       root = doc.createElement(ROOT_ELEMENT);
       doc.appendChild(root);
    }
 
    /**
-    * returns a string containing any tags that should go into the document head section.
+    * Appends any tags that were added through the DOM API and that should go into the document 
+    * head section to the output buffer.
     * 
-    * @return String containing the tags, or the empty string if no tags are available.
+    * @param txt  the output buffer
     */
-   private String getTags(Document doc) {
-      String tags = "";
-      if (doc != null) {
-         DOMSource src = new DOMSource(doc);
-         StringWriter sw = new StringWriter();
-         StreamResult res = new StreamResult(sw);
-         try {
-
-            Transformer trans = TransformerFactory.newInstance().newTransformer();
-            trans.setOutputProperty(OutputKeys.INDENT, "yes");
-            trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-            trans.setOutputProperty(OutputKeys.METHOD, "html");
-
-            trans.transform(src, res);
-
-            tags = sw.toString().replaceAll(ROOT_ELEMENT_REGEX, "");
-
-         } catch (Exception e) {
-            StringBuilder txt = new StringBuilder();
-            txt.append("Error converting tags to string. Exception: ");
-            txt.append(e.toString());
-            LOG.warn(txt.toString());
+   private void getTags(StringBuilder txt) {
+      if (root != null) {
+         int start = txt.length();
+         for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.ELEMENT_NODE) {
+               HeadMarkupSanitizer.writeElement((Element) node, txt);
+               txt.append('\n');
+            }
          }
-      }
 
-      if (isTrace) {
-         StringBuilder sb = new StringBuilder();
-         sb.append("returning tags: ");
-         sb.append((tags.length() > 0) ? "\n" + tags : "");
-         LOG.trace(sb.toString());
+         if (isTrace) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("returning tags: ");
+            sb.append((txt.length() > start) ? "\n" + txt.substring(start) : "");
+            LOG.trace(sb.toString());
+         }
       }
-
-      return tags;
    }
    
    /**
@@ -174,143 +123,7 @@ public class HeaderData {
     * @return        the extracted tags in string form
     */
    private String getTagsFromText(String src, boolean chkArgs) {
-      StringBuilder txt = new StringBuilder(128);
-      
-      if (src != null) {
-         StringBuffer sb = new StringBuffer(128);
-         sb.append(ROOT_ELEMENT_START);
-         
-         // need to do some preprocessing on the input text to avoid placing a burden on the 
-         // portlet developer. Goals:
-         //    * allow meta and link tags with or without a closing slash
-         //    * allow use of unescaped angle brackets within script tag
-
-         // make the parser eat link & meta tags with or without closing slash.
-         src = src.replaceAll("(<(?:meta|link).*?[^/])>", "$1/>");
-
-         // disappear any link or meta closing tags, since we're generating html
-         src = src.replaceAll("</(?:meta|link)>", "");
-         
-         // convert < brackets within script tags to corresponding entities
-         
-         Pattern pat = Pattern.compile(
-               "(?s)" +                     // multiline mode 
-               "(?<=<(script|style))" +     // 0-width lookbehind; start tag
-               "(.*?)" +                    // non-greedy content of tag
-               "(?=</(script|style))");     // 0-width lookahead; end tag
-         Matcher mat = pat.matcher(src);
-         while (mat.find()) {
-            mat.appendReplacement(sb, mat.group().replaceAll("&", "&amp;").replaceAll("<", "&lt;"));
-         }
-         mat.appendTail(sb);
-
-         sb.append(ROOT_ELEMENT_END);
-
-         StringReader sr = new StringReader(sb.toString());
-         InputSource is = new InputSource(sr);
-         Document adoc;
-
-         try {
-            if (docBuilder == null) {
-               setupDoc();
-            }
-            adoc = docBuilder.parse(is);
-
-            // verify that all tags are allowed
-            Element aroot = adoc.getDocumentElement();
-            NodeList nodes = aroot.getChildNodes();
-            for (int ii = 0; ii < nodes.getLength(); ii++) {
-               Node node = nodes.item(ii);
-
-               // check for valid node type
-               int type = node.getNodeType();
-               if (type != Node.COMMENT_NODE && type != Node.TEXT_NODE && type != Node.ELEMENT_NODE) {
-
-                  StringBuilder err = new StringBuilder(128);
-                  err.append("Invalid node type: ");
-                  err.append(type);
-                  err.append(", node name: ").append(node.getNodeName());
-                  LOG.warn(err.toString());
-                  
-                  if (chkArgs) {
-                     throw new IllegalArgumentException(err.toString());
-                  }
-                  
-                  aroot.removeChild(node);
-                  continue;
-               }
-
-               // a text node may only contain white space
-               if (type == Node.TEXT_NODE) {
-                  String text = ((Text) node).getWholeText();
-
-                  if (!text.matches("^\\s*$")) {
-                     StringBuilder err = new StringBuilder(128);
-                     err.append("Invalid text node: ");
-                     err.append(node.getNodeValue());
-                     err.append(", node name: ").append(node.getNodeName());
-                     txt.append(", allowed tags: ").append(allowedTags.toString());
-                     LOG.warn(err.toString());
-                     
-                     if (chkArgs) {
-                        throw new IllegalArgumentException(err.toString());
-                     }
-                     
-                     aroot.removeChild(node);
-                     continue;
-                  }
-
-               }
-
-               // an element node must be one of the allowed tags
-               if (type == Node.ELEMENT_NODE) {
-                  String name = ((Element) node).getTagName();
-
-                  if (!allowedTags.contains(name.toUpperCase())) {
-                     StringBuilder err = new StringBuilder(128);
-                     err.append("Invalid tag: ");
-                     err.append(name);
-                     err.append(", node name: ").append(node.getNodeName());
-                     LOG.warn(err.toString());
-                     
-                     if (chkArgs) {
-                        throw new IllegalArgumentException(err.toString());
-                     }
-                     
-                     aroot.removeChild(node);
-                     continue;
-                  }
-
-               }
-            }
-
-            txt.append(getTags(adoc));
-         } catch (IllegalArgumentException e) {
-            throw e;
-         } catch (SAXParseException e) {
-            StringBuilder err = new StringBuilder();
-            err.append("Problem parsing tag data: ").append(src.replaceAll("&", "&amp;").replaceAll("<", "&lt;"));
-            throw new IllegalArgumentException(err.toString(), e);
-         } catch (Exception e) {
-            
-            // likely resource or config issue, not recoverable and not application's fault
-            
-            StringBuilder err = new StringBuilder();
-            err.append("Problem parsing tag data: ");
-            err.append("\n   Original data: ").append(src);
-            err.append("\n   Modified buffer: ").append(sb.toString());
-            err.append("\nStack trace:\n");
-            StringWriter sw = new StringWriter();
-            PrintWriter pw = new PrintWriter(sw);
-            e.printStackTrace(pw);
-            pw.flush();
-            err.append(sw.toString());
-            LOG.warn(err.toString());
-         }
-
-      }
-      
-      return txt.toString();
+      return HeadMarkupSanitizer.sanitize(src, chkArgs);
    }
 
    /**
@@ -379,7 +192,7 @@ public class HeaderData {
       // output stream.
 
       StringBuilder txt = new StringBuilder(128);
-      txt.append(getTags(doc));
+      getTags(txt);
 
       String src = null;
       if (sWriter != null) {
@@ -388,8 +201,8 @@ public class HeaderData {
          src = baoStream.toString();
       }
       
-      txt.append("\n<!-- markup from portlet output stream -->");
-      txt.append(getTagsFromText(src, false));
+      txt.append("\n<!-- markup from portlet output stream -->\n");
+      HeadMarkupSanitizer.sanitize(src, false, txt);
 
       return txt.toString();
    }
@@ -29,17 +29,78 @@ public class PageResourceId implements Comparable<PageResourceId> {
    private final String name;
    private final String scope;
    private final String version;
+   
+   // the dotted decimal version numbers, or null if the version does not conform
+   private final int[]  decimals;
 
    public PageResourceId(String name, String scope, String version) {
-      this.name    = name;
-      this.scope   = scope;
-      this.version = version;
+      this.name     = name;
+      this.scope    = scope;
+      this.version  = version;
+      this.decimals = parseVersion(version);
    }
    
    public PageResourceId(PageResourceId other) {
-      this.name    = other.name;
-      this.scope   = other.scope;
-      this.version = other.version;
+      this.name     = other.name;
+      this.scope    = other.scope;
+      this.version  = other.version;
+      this.decimals = other.decimals;
+   }
+
+   /**
+    * Extracts the dotted decimal version numbers assuming a format similar to that 
+    * described by the semantic versioning spec (see http://semver.org/).
+    * Format: MAJOR.MINOR.PATCH with decimal numbers, optionally preceded by 'v', 'V', or '='.
+    * Trailing characters are ignored.
+    * 
+    * @param version    the version string
+    * @return           up to three version numbers, or <code>null</code> if the version does not conform
+    */
+   private static int[] parseVersion(String version) {
+      if (version == null) {
+         return null;
+      }
+      int pos = 0;
+      int len = version.length();
+      if (len > 0 && "vV=".indexOf(version.charAt(0)) >= 0) {
+         pos++;
+      }
+      int[] nums = new int[3];
+      int count = 0;
+      while (count < 3 && pos < len && Character.isDigit(version.charAt(pos))) {
+         long num = 0;
+         while (pos < len && Character.isDigit(version.charAt(pos))) {
+            num = num * 10 + Character.digit(version.charAt(pos++), 10);
+            if (num > Integer.MAX_VALUE) {
+               return null;
+            }
+         }
+         nums[count++] = (int) num;
+         if (pos + 1 < len && version.charAt(pos) == '.' && Character.isDigit(version.charAt(pos + 1))) {
+            pos++;
+         } else {
+            break;
+         }
+      }
+      if (count == 0) {
+         return null;
+      }
+      int[] result = new int[count];
+      System.arraycopy(nums, 0, result, 0, count);
+      return result;
+   }
+
+   /**
+    * Compares the dotted decimal version numbers. If the numbers are equal so far,
+    * the version with the most numbers is greater.
+    */
+   private static int compareDecimals(int[] curr, int[] other) {
+      for (int ii = 0; (ii < curr.length) && (ii < other.length); ii++) {
+         if (curr[ii] != other[ii]) {
+            return (curr[ii] < other[ii]) ? -1 : 1;
+         }
+      }
+      return curr.length - other.length;
    }
 
    /**
@@ -88,6 +149,33 @@ public class PageResourceId implements Comparable<PageResourceId> {
       return true;
    }
 
+   /**
+    * Determines whether the other page resource ID, which refers to the same resource,
+    * should replace this one because it has a later version.
+    * <p>
+    * A specified version replaces a missing version. A conforming dotted decimal version 
+    * replaces a non-conforming version. Conforming versions are compared numerically, 
+    * other versions by a simple string compare.
+    * 
+    * @param other   the other page resource ID
+    * @return        <code>true</code> if the other ID should be used
+    */
+   public boolean isSupersededBy(PageResourceId other) {
+      if (equals(other)) {
+         return false;
+      }
+      if (version == null) {
+         return true;
+      }
+      if (other.version == null) {
+         return false;
+      }
+      if (decimals != null) {
+         return (other.decimals != null) && compareDecimals(decimals, other.decimals) < 0;
+      }
+      return (other.decimals != null) || version.compareTo(other.version) > 0;
+   }
+
    @Override
    public String toString() {
       StringBuilder txt = new StringBuilder(128);
@@ -182,50 +270,28 @@ public class PageResourceId implements Comparable<PageResourceId> {
 
          // now they must differ only in version
 
-         String currVersion = null;
-         String newVersion = null;
-         String[] currDecimals = new String[0];
-         String[] newDecimals = new String[0];
-
-         // Extract the dotted decimal version numbers
-         String regex = "^[vV=]{0,1}(\\d+(?:\\.\\d+){0,2}).*$";
-         currVersion = version.replaceFirst(regex, "$1");
-         newVersion = id.version.replaceFirst(regex, "$1");
+         if (version == null || id.version == null) {
+            return (version == null) ? 1 : -1;
+         }
 
-         String dottedDecimalRegex = "^\\d+(?:\\.\\d+)*$";
-         if (currVersion.matches(dottedDecimalRegex)) {
+         if (decimals != null) {
 
             // the current version is conforming dotted decimal.
             // If the new version is also conforming, compare version numbers.
             // otherwise new version is less then this one.
 
-            if (newVersion.matches(dottedDecimalRegex)) {
-               currDecimals = currVersion.split("\\.");
-               newDecimals = newVersion.split("\\.");
-               for (int ii = 0; (ii < currDecimals.length) && (ii < newDecimals.length); ii++) {
-                  int currDigit = Integer.parseInt(currDecimals[ii]);
-                  int newDigit = Integer.parseInt(newDecimals[ii]);
-                  if (newDigit > currDigit) {
-                     return 1;
-                  } else if (newDigit < currDigit) {
-                     return -1;
-                  }
+            if (id.decimals != null) {
+               int cmp = compareDecimals(id.decimals, decimals);
+               if (cmp != 0) {
+                  return (cmp > 0) ? 1 : -1;
                }
-               
-               // they're equal so far, so the one with the most digits is greater
-               
-               if (currDecimals.length > newDecimals.length) {
-                  return -1;
-               } else if (currDecimals.length < newDecimals.length) {
-                  return 1;
-               } 
             }
 
          } else {
 
             // If new version conforms, use it, otherwise string compare
 
-            if (newVersion.matches(dottedDecimalRegex)) {
+            if (id.decimals != null) {
                return 1;
             } else {
                // if neither conform, use string compare
@@ -17,6 +17,7 @@
 package org.apache.pluto.container.driver;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -64,6 +65,7 @@ import org.apache.pluto.container.bean.processor.PortletInvoker;
 import org.apache.pluto.container.bean.processor.PortletRequestScopedBeanHolder;
 import org.apache.pluto.container.bean.processor.PortletSessionBeanHolder;
 import org.apache.pluto.container.bean.processor.PortletStateScopedBeanHolder;
+import org.apache.pluto.container.bean.processor.RenderStateCodec;
 import org.apache.pluto.container.impl.HttpServletPortletRequestWrapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -114,6 +116,12 @@ public class PortletServlet3 extends HttpServlet {
    private PortletContextService  contextService;
 
    private boolean                started = false;
+
+   /**
+    * Whether render state scoped beans use the compact encoding. Determined on first use.
+    */
+   private volatile Boolean       compactRenderState = null;
+
    Timer                          startTimer;
 
    // HttpServlet Impl --------------------------------------------------------
@@ -513,14 +521,20 @@ public class PortletServlet3 extends HttpServlet {
     */
    private void beforeInvoke(PortletRequest req, PortletResponse resp, PortletConfig config) {
 
-      // Set the portlet session bean holder for the thread & session
+      // Set the portlet request bean holder for the thread. The bean storage
+      // is only allocated when the first bean is created.
       PortletRequestScopedBeanHolder.setBeanHolder();
 
-      // Set the portlet session bean holder for the thread & session
-      PortletSessionBeanHolder.setBeanHolder(req, acb.getSessionScopedConfig());
+      // Set the portlet session bean holder for the thread & session. This accesses
+      // the portlet session, so only do it if there are beans to be stored.
+      if (acb.isSessionScopeUsed()) {
+         PortletSessionBeanHolder.setBeanHolder(req, acb.getSessionScopedConfig());
+      }
 
       // Set the render state scoped bean holder
-      PortletStateScopedBeanHolder.setBeanHolder(req, acb.getStateScopedConfig());
+      if (acb.isStateScopeUsed()) {
+         PortletStateScopedBeanHolder.setBeanHolder(req, acb.getStateScopedConfig(), isCompactRenderState(config));
+      }
 
       // Set up the artifact producer with request, response, and portlet config
       PortletArtifactProducer.setPrecursors(req, resp, config);
@@ -528,6 +542,21 @@ public class PortletServlet3 extends HttpServlet {
       LOG.debug("CDI context is now set up.");
    }
 
+   /**
+    * Returns <code>true</code> if the render state scoped beans are to be stored
+    * in a single compact token, as configured through a container runtime option.
+    */
+   private boolean isCompactRenderState(PortletConfig config) {
+      Boolean compact = compactRenderState;
+      if (compact == null) {
+         Map<String, String[]> options = config.getContainerRuntimeOptions();
+         String[] vals = (options == null) ? null : options.get(RenderStateCodec.RUNTIME_OPTION);
+         compact = (vals != null) && (vals.length > 0) && Boolean.parseBoolean(vals[0]);
+         compactRenderState = compact;
+      }
+      return compact;
+   }
+
    /**
     * must be called after all method invocations have taken place, even if an
     * exception occurs.
@@ -34,6 +34,8 @@ public class AnnotatedConfigBean {
    private ConfigSummary summary = null;
    private PortletStateScopedConfig stateScopedConfig = null;
    private PortletSessionScopedConfig sessionScopedConfig = null;
+   private boolean sessionScopeUsed = true;
+   private boolean stateScopeUsed = true;
    
    /**
     * @return the methodStore
@@ -90,6 +92,34 @@ public class AnnotatedConfigBean {
    public void setSessionScopedConfig(PortletSessionScopedConfig sessionScopedConfig) {
       this.sessionScopedConfig = sessionScopedConfig;
    }
+
+   /**
+    * @return <code>true</code> if the application contains portlet session scoped beans
+    */
+   public boolean isSessionScopeUsed() {
+      return sessionScopeUsed;
+   }
+
+   /**
+    * @param sessionScopeUsed whether the application contains portlet session scoped beans
+    */
+   public void setSessionScopeUsed(boolean sessionScopeUsed) {
+      this.sessionScopeUsed = sessionScopeUsed;
+   }
+
+   /**
+    * @return <code>true</code> if the application contains render state scoped beans
+    */
+   public boolean isStateScopeUsed() {
+      return stateScopeUsed;
+   }
+
+   /**
+    * @param stateScopeUsed whether the application contains render state scoped beans
+    */
+   public void setStateScopeUsed(boolean stateScopeUsed) {
+      this.stateScopeUsed = stateScopeUsed;
+   }
    
    
 }
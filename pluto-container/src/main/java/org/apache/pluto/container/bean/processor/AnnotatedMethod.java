@@ -1,20 +1,40 @@
 package org.apache.pluto.container.bean.processor;
 
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.Set;
 
 import javax.enterprise.inject.spi.Bean;
 import javax.enterprise.inject.spi.BeanManager;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 public class AnnotatedMethod {
+   private static final Logger LOG = LoggerFactory.getLogger(AnnotatedMethod.class);
+   private static final boolean isDebug = LOG.isDebugEnabled();
+   
+   // the type all method handles are adapted to: (bean instance, argument array) -> result
+   private static final MethodType INVOKER_TYPE = 
+         MethodType.methodType(Object.class, Object.class, Object[].class);
    
    private final Class<?>           beanClass; 
    private final Method             meth;
    private final Annotation         annotation;
    private final MethodDescription  description;
    
+   // The method bound once at construction. Null if the method is not accessible
+   // through a method handle, in which case reflection is used.
+   private final MethodHandle       handle;
+   
+   // The parameter types, with primitive types replaced by their wrapper types
+   private final Class<?>[]         argTypes;
+   
    // Proxied methods of the same type and for the same portlet name as indicated
    // by the method identifier are stored by ordinal number. Methods that can appear more
    // than once have an ordinal number as annotation element, which lands here.
@@ -25,8 +45,9 @@ public class AnnotatedMethod {
    
    // The specific bean we are using
    private Bean<?> bean;
-   private Object beanInstance;
-   private boolean isPortletClass = false;
+   private boolean isNormalScoped = false;
+   private volatile Object beanInstance;
+   private volatile boolean isPortletClass = false;
 
    /**
     * Constructor.
@@ -41,6 +62,8 @@ public class AnnotatedMethod {
       this.meth = meth;
       this.annotation = anno;
       this.description = desc;
+      this.handle = bind(meth);
+      this.argTypes = argTypes(meth);
       
       try {
          Method ord = anno.getClass().getMethod("ordinal");
@@ -65,9 +88,71 @@ public class AnnotatedMethod {
       this.meth = meth;
       this.annotation = null;
       this.description = desc;
+      this.handle = bind(meth);
+      this.argTypes = argTypes(meth);
       this.isPortletClass = true;
    }
    
+   /**
+    * Binds the method to a method handle that takes the bean instance and the 
+    * arguments as an array, regardless of the signature variant.
+    * 
+    * @param meth    The method
+    * @return        The method handle, or <code>null</code> if the method cannot be accessed
+    */
+   private static MethodHandle bind(Method meth) {
+      MethodHandle mh = null;
+      try {
+         mh = MethodHandles.publicLookup().unreflect(meth);
+         if (Modifier.isStatic(meth.getModifiers())) {
+            mh = MethodHandles.dropArguments(mh, 0, Object.class);
+         }
+         mh = mh.asSpreader(Object[].class, meth.getParameterTypes().length);
+         mh = mh.asType(INVOKER_TYPE);
+      } catch (Exception e) {
+         if (isDebug) {
+            LOG.debug("Could not bind method handle, using reflection for: " + meth.toString());
+         }
+         mh = null;
+      }
+      return mh;
+   }
+   
+   private static Class<?>[] argTypes(Method meth) {
+      Class<?>[] types = meth.getParameterTypes().clone();
+      for (int ii = 0; ii < types.length; ii++) {
+         if (types[ii].isPrimitive()) {
+            types[ii] = MethodType.methodType(types[ii]).wrap().returnType();
+         }
+      }
+      return types;
+   }
+   
+   /**
+    * Checks the target and the arguments before the method handle is invoked,
+    * so that only exceptions thrown by the method itself are wrapped.
+    * Primitive arguments must match the parameter type exactly, since the
+    * method handle does not apply widening conversions.
+    */
+   private boolean accepts(Object target, Object[] args) {
+      if (!Modifier.isStatic(meth.getModifiers()) && !meth.getDeclaringClass().isInstance(target)) {
+         return false;
+      }
+      if (args.length != argTypes.length) {
+         return false;
+      }
+      for (int ii = 0; ii < args.length; ii++) {
+         if (args[ii] == null) {
+            if (meth.getParameterTypes()[ii].isPrimitive()) {
+               return false;
+            }
+         } else if (!argTypes[ii].isInstance(args[ii])) {
+            return false;
+         }
+      }
+      return true;
+   }
+   
    /**
     * @return the annotation
     */
@@ -93,6 +178,10 @@ public class AnnotatedMethod {
       Set<Bean<?>> beans = bm.getBeans(beanClass);
       bean = bm.resolve(beans);
       assert bean != null;
+      
+      // The client proxy for a normal-scoped bean can be reused, as it looks up the 
+      // contextual instance for the current scope on each call.
+      isNormalScoped = bm.isNormalScope(bean.getScope());
    }
    
    /**
@@ -118,12 +207,30 @@ public class AnnotatedMethod {
     */
    public Object invoke(Object... args) 
          throws IllegalAccessException, IllegalArgumentException, InvocationTargetException {
-      if (!isPortletClass) {
+      Object target = beanInstance;
+      if (!isPortletClass && (target == null || !isNormalScoped)) {
          // get the reference for beans other than portlet classes in order to respect the 
          // scope of the bean.
-         beanInstance = beanMgr.getReference(bean, bean.getBeanClass(), beanMgr.createCreationalContext(bean));
+         target = beanMgr.getReference(bean, bean.getBeanClass(), beanMgr.createCreationalContext(bean));
+         if (isNormalScoped) {
+            beanInstance = target;
+         }
+      }
+      
+      if (args == null) {
+         args = new Object[0];
+      }
+      if (handle == null || !accepts(target, args)) {
+         // reflection reports a missing target or wrong arguments as Method.invoke does
+         return meth.invoke(target, args);
+      }
+      
+      try {
+         return (Object) handle.invokeExact(target, args);
+      } catch (Throwable t) {
+         // wrap like Method.invoke does, so that callers handle both paths alike
+         throw new InvocationTargetException(t);
       }
-      return meth.invoke(beanInstance, args);
    }
 
    /**
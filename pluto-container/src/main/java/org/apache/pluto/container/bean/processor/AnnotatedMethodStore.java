@@ -25,6 +25,7 @@ import static org.apache.pluto.container.bean.processor.MethodType.EVENT;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -89,6 +90,20 @@ public class AnnotatedMethodStore {
    // The bean manager for use during config reconciliation
    private BeanManager beanMgr = null;
    
+   /**
+    * The methods for one method type of a portlet, indexed by dispatch ID. 
+    */
+   private static class Dispatch {
+      final Map<Object, List<AnnotatedMethod>> byId = new HashMap<Object, List<AnnotatedMethod>>();
+      List<AnnotatedMethod> byDefault = Collections.emptyList();
+   }
+   
+   // The dispatch table used by the portlet invoker: portlet name -> method type -> dispatch.
+   // It is built from the method map on first use and is immutable afterwards. Since the 
+   // store is modified during config reconciliation after the methods have been activated,
+   // any modification discards the table.
+   private volatile Map<String, Map<MethodType, Dispatch>> dispatchTable = null;
+   
    /**
     * Constructor
     * @param consum
@@ -138,6 +153,7 @@ public class AnnotatedMethodStore {
     *                <code>false</code> if there was a disallowed duplicate entry.
     */
    public boolean addMethod(MethodIdentifier mi, AnnotatedMethod am) {
+      dispatchTable = null;
             
       // First collect the event references, if any
       
@@ -274,6 +290,7 @@ public class AnnotatedMethodStore {
     * @return     The list of annotated methods removed, or <code>null</code> if no list exists
     */
    public List<AnnotatedMethod> removeMethod(MethodIdentifier mi) {
+      dispatchTable = null;
       return methods.remove(mi);
    }
    
@@ -319,6 +336,71 @@ public class AnnotatedMethodStore {
       return aList;
    }
    
+   /**
+    * Returns the methods to be invoked for the given portlet, method type, and dispatch ID.
+    * If no methods are stored for the dispatch ID, the methods stored for the default 
+    * dispatch ID ("") are returned. Methods that can appear more than once are sorted
+    * by ordinal number.
+    * <p>
+    * The returned list is shared and cannot be modified. 
+    * 
+    * @param portletName   The portlet name
+    * @param type          The method type
+    * @param id            The dispatch ID
+    * @return              A list of annotated methods. May be empty.
+    */
+   public List<AnnotatedMethod> getDispatchMethods(String portletName, MethodType type, Object id) {
+      Map<String, Map<MethodType, Dispatch>> table = dispatchTable;
+      if (table == null) {
+         table = buildDispatchTable();
+         dispatchTable = table;
+      }
+      
+      Map<MethodType, Dispatch> types = table.get(portletName);
+      Dispatch dispatch = (types == null) ? null : types.get(type);
+      if (dispatch == null) {
+         return Collections.emptyList();
+      }
+      List<AnnotatedMethod> list = dispatch.byId.get(id);
+      return (list == null) ? dispatch.byDefault : list;
+   }
+   
+   /**
+    * Builds the dispatch table from the method map.
+    */
+   private Map<String, Map<MethodType, Dispatch>> buildDispatchTable() {
+      Map<String, Map<MethodType, Dispatch>> table = new HashMap<String, Map<MethodType, Dispatch>>();
+      for (Map.Entry<MethodIdentifier, List<AnnotatedMethod>> entry : methods.entrySet()) {
+         MethodIdentifier mi = entry.getKey();
+         
+         Map<MethodType, Dispatch> types = table.get(mi.getName());
+         if (types == null) {
+            types = new EnumMap<MethodType, Dispatch>(MethodType.class);
+            table.put(mi.getName(), types);
+         }
+         Dispatch dispatch = types.get(mi.getType());
+         if (dispatch == null) {
+            dispatch = new Dispatch();
+            types.put(mi.getType(), dispatch);
+         }
+         
+         List<AnnotatedMethod> list = new ArrayList<AnnotatedMethod>(entry.getValue());
+         if (list.size() > 1) {
+            Collections.sort(list, new AnnotatedMethodComparator());
+         }
+         list = Collections.unmodifiableList(list);
+         dispatch.byId.put(mi.getId(), list);
+         if ("".equals(mi.getId())) {
+            dispatch.byDefault = list;
+         }
+      }
+      
+      if (isDebug) {
+         LOG.debug("Built dispatch table for portlets: " + table.keySet());
+      }
+      return table;
+   }
+   
    /**
     * Returns a String representation of the stored methods.
     * 
@@ -383,6 +465,7 @@ public class AnnotatedMethodStore {
     * @param   portletName    The portlet name
     */
    public void removeMethodsForPortlet(String portletName) {
+      dispatchTable = null;
       
       Set<MethodIdentifier> meths = new HashSet<MethodIdentifier>();
       for (MethodIdentifier mi : methods.keySet()) {
@@ -406,6 +489,7 @@ public class AnnotatedMethodStore {
     * @param bm
     */
    public void activateMethods(BeanManager bm) {
+      dispatchTable = null;
       beanMgr = bm;
       Collection<List<AnnotatedMethod>> methlists = methods.values();
       for (List<AnnotatedMethod> list : methlists) {
@@ -460,6 +544,7 @@ public class AnnotatedMethodStore {
     */
    public void setDefaultNamespace(String ns) {
       if ((ns != null) && !ns.equals(XMLConstants.NULL_NS_URI)) {
+         dispatchTable = null;
          
          // fix up the invokable event methods
          
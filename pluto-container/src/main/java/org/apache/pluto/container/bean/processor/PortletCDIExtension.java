@@ -21,7 +21,9 @@ package org.apache.pluto.container.bean.processor;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import javax.enterprise.context.spi.CreationalContext;
@@ -37,7 +39,11 @@ import javax.enterprise.inject.spi.BeanManager;
 import javax.enterprise.inject.spi.BeforeBeanDiscovery;
 import javax.enterprise.inject.spi.Extension;
 import javax.enterprise.inject.spi.ProcessAnnotatedType;
+import javax.enterprise.inject.spi.ProcessBean;
 import javax.portlet.PortletConfig;
+import javax.portlet.annotations.PortletRequestScoped;
+import javax.portlet.annotations.PortletSessionScoped;
+import javax.portlet.annotations.RenderStateScoped;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,6 +64,11 @@ public class PortletCDIExtension implements Extension {
    
    private static AnnotatedConfigBean acb = null;
    
+   // The beans in the portlet custom scopes, including producer methods & fields
+   private final List<Bean<?>> requestScopedBeans = new ArrayList<Bean<?>>();
+   private boolean hasSessionScopedBeans = false;
+   private boolean hasStateScopedBeans = false;
+   
    public static AnnotatedConfigBean getConfig() {
       return acb;
    }
@@ -153,6 +164,23 @@ public class PortletCDIExtension implements Extension {
 
    }
    
+   /**
+    * Note the beans in the portlet custom scopes. The portlet servlet only sets up 
+    * the session and render state scope contexts if there are beans to be stored.
+    * 
+    * @param pb
+    */
+   void processBean(@Observes ProcessBean<?> pb) {
+      Class<? extends Annotation> scope = pb.getBean().getScope();
+      if (scope == PortletRequestScoped.class) {
+         requestScopedBeans.add(pb.getBean());
+      } else if (scope == PortletSessionScoped.class) {
+         hasSessionScopedBeans = true;
+      } else if (scope == RenderStateScoped.class) {
+         hasStateScopedBeans = true;
+      }
+   }
+   
    /**
     * Add the context for the custom scope implementations.
     * 
@@ -165,7 +193,7 @@ public class PortletCDIExtension implements Extension {
       PortletStateScopedContext pstsc = new PortletStateScopedContext();
       abd.addContext(pstsc);
       
-      PortletRequestScopedContext prsc = new PortletRequestScopedContext();
+      PortletRequestScopedContext prsc = new PortletRequestScopedContext(requestScopedBeans);
       abd.addContext(prsc);
    }
 
@@ -199,6 +227,8 @@ public class PortletCDIExtension implements Extension {
             acb.setSummary(summary);
             acb.setStateScopedConfig(par.getStateScopedConfig());
             acb.setSessionScopedConfig(par.getSessionScopedConfig());
+            acb.setSessionScopeUsed(hasSessionScopedBeans);
+            acb.setStateScopeUsed(hasStateScopedBeans);
          } catch (Exception e) {
             StringBuilder txt = new StringBuilder(128);
             txt.append("Exception getting AnnotatedConfigBean bean instance: ");
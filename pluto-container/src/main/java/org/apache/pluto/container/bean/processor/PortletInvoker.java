@@ -22,7 +22,7 @@ import static javax.portlet.ActionRequest.ACTION_NAME;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import javax.portlet.ActionRequest;
@@ -77,32 +77,25 @@ public class PortletInvoker implements Portlet, ResourceServingPortlet, EventPor
    // =======================================================================
 
    /**
-    * Returns a list of methods to be invoked for the given method identifier.
+    * Returns a list of methods to be invoked for the given method type and dispatch ID.
+    * If the requested method cannot be found, the methods for the default dispatch 
+    * ID ("") are returned.
     * 
-    * @param mi
-    *           The method identifier
+    * @param type
+    *           The method type
+    * @param id
+    *           The dispatch ID
     * @return A list of methods. may be empty.
     */
-   private List<AnnotatedMethod> getMethods(MethodIdentifier mi) {
-
-      // get the method from the store. If the requested method cannot
-      // be found,
-      // retry with the default dispatch ID ("").
+   private List<AnnotatedMethod> getMethods(MethodType type, Object id) {
+      List<AnnotatedMethod> meths = acb.getMethodStore().getDispatchMethods(portletName, type, id);
 
       if (isDebug) {
-         LOG.debug("Retrieving method for method identifier: " + mi.toString());
-      }
-
-      List<AnnotatedMethod> meths = acb.getMethodStore().getMethods(mi);
-      if (meths.isEmpty()) {
-         Object id = mi.getId();
-         if ((id != null) && (id instanceof String) && ((String) id).length() > 0) {
-            mi.setId("");
-            if (isDebug) {
-               LOG.debug("Retrying retrieval with method identifier: " + mi.toString());
-            }
-            meths = acb.getMethodStore().getMethods(mi);
-         }
+         StringBuilder txt = new StringBuilder(128);
+         txt.append("Retrieved methods for portlet: ").append(portletName);
+         txt.append(", type: ").append(type).append(", dispatch ID: ").append(id);
+         txt.append(", number of methods: ").append(meths.size());
+         LOG.debug(txt.toString());
       }
 
       return meths;
@@ -155,9 +148,7 @@ public class PortletInvoker implements Portlet, ResourceServingPortlet, EventPor
    public void init(PortletConfig config) throws PortletException {
       this.config = config;
 
-      MethodIdentifier mi = new MethodIdentifier(portletName, "", MethodType.INIT);
-
-      List<AnnotatedMethod> meths = getMethods(mi);
+      List<AnnotatedMethod> meths = getMethods(MethodType.INIT, "");
       if (meths.size() == 0) {
 
          // If no init method, log debug trace and return
@@ -185,9 +176,7 @@ public class PortletInvoker implements Portlet, ResourceServingPortlet, EventPor
    @Override
    public void destroy() {
 
-      MethodIdentifier mi = new MethodIdentifier(portletName, "", MethodType.DESTROY);
-
-      List<AnnotatedMethod> meths = getMethods(mi);
+      List<AnnotatedMethod> meths = getMethods(MethodType.DESTROY, "");
       if (meths.size() == 0) {
 
          // If no init method, log debug trace and return
@@ -215,9 +204,8 @@ public class PortletInvoker implements Portlet, ResourceServingPortlet, EventPor
    public void serveResource(ResourceRequest req, ResourceResponse resp) throws PortletException, IOException {
 
       String id = (req.getResourceID() != null) ? req.getResourceID() : "";
-      MethodIdentifier mi = new MethodIdentifier(portletName, id, MethodType.RESOURCE);
 
-      List<AnnotatedMethod> meths = new ArrayList<AnnotatedMethod>();
+      List<AnnotatedMethod> meths;
       if (req.getDispatcherType() == DispatcherType.ASYNC) {
 
          // Handle AsyncContest#dispatch() case
@@ -231,9 +219,9 @@ public class PortletInvoker implements Portlet, ResourceServingPortlet, EventPor
             return;
          }
          LOG.debug("Processing async dispatch. method: " + meth.toString());
-         meths.add(meth);
+         meths = Collections.singletonList(meth);
       } else {
-         meths = getMethods(mi);
+         meths = getMethods(MethodType.RESOURCE, id);
       }
 
       if (meths.size() == 0) {
@@ -313,25 +301,19 @@ public class PortletInvoker implements Portlet, ResourceServingPortlet, EventPor
    public void processEvent(EventRequest req, EventResponse resp) throws PortletException, IOException {
 
       QName qn = req.getEvent().getQName();
-      MethodIdentifier mi = new MethodIdentifier(portletName, qn, MethodType.EVENT);
 
-      List<AnnotatedMethod> meths = getMethods(mi);
+      // falls back to the empty dispatch ID (for portlet class processEvent method, 
+      // for example)
+      List<AnnotatedMethod> meths = getMethods(MethodType.EVENT, qn);
       if (meths.size() == 0) {
 
-         // retry with empty string (for portlet class processEvent method, for
-         // example)
-         mi.setId("");
-         meths = getMethods(mi);
-         if (meths.size() == 0) {
-
-            // If an event to be processed, but event method could not be found,
-            // add appropriate error string.
+         // If an event to be processed, but event method could not be found,
+         // add appropriate error string.
 
-            StringBuilder txt = new StringBuilder(128);
-            txt.append("Event method not found. Event qname=").append(qn);
-            LOG.warn(txt.toString());
-            return;
-         }
+         StringBuilder txt = new StringBuilder(128);
+         txt.append("Event method not found. Event qname=").append(qn);
+         LOG.warn(txt.toString());
+         return;
       }
       assert meths.size() == 1;
       AnnotatedMethod meth = meths.get(0);
@@ -347,9 +329,8 @@ public class PortletInvoker implements Portlet, ResourceServingPortlet, EventPor
 
       String an = req.getActionParameters().getValue(ACTION_NAME);
       String id = (an != null) ? an : "";
-      MethodIdentifier mi = new MethodIdentifier(portletName, id, MethodType.ACTION);
 
-      List<AnnotatedMethod> meths = getMethods(mi);
+      List<AnnotatedMethod> meths = getMethods(MethodType.ACTION, id);
       if (meths.size() == 0) {
 
          // If an action URL was activated, but action method could not be
@@ -376,9 +357,8 @@ public class PortletInvoker implements Portlet, ResourceServingPortlet, EventPor
 
       String pm = req.getPortletMode().toString();
       String id = (pm != null) ? pm.toUpperCase() : "";
-      MethodIdentifier mi = new MethodIdentifier(portletName, id, MethodType.RENDER);
 
-      List<AnnotatedMethod> meths = getMethods(mi);
+      List<AnnotatedMethod> meths = getMethods(MethodType.RENDER, id);
       if (meths.isEmpty()) {
          // No render methods available
          StringBuilder txt = new StringBuilder(128);
@@ -432,9 +412,8 @@ public class PortletInvoker implements Portlet, ResourceServingPortlet, EventPor
 
       String pm = req.getPortletMode().toString();
       String id = (pm != null) ? pm.toUpperCase() : "";
-      MethodIdentifier mi = new MethodIdentifier(portletName, id, MethodType.HEADER);
 
-      List<AnnotatedMethod> meths = getMethods(mi);
+      List<AnnotatedMethod> meths = getMethods(MethodType.HEADER, id);
       if (meths.isEmpty()) {
          // No header methods available
          StringBuilder txt = new StringBuilder(128);
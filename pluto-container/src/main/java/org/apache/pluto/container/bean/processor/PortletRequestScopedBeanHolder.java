@@ -20,8 +20,9 @@
 package org.apache.pluto.container.bean.processor;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 import javax.enterprise.context.spi.Contextual;
 import javax.enterprise.context.spi.CreationalContext;
@@ -32,6 +33,11 @@ import org.slf4j.LoggerFactory;
 
 /**
  * This is a container for PortletRequestScoped CDI beans.
+ * <p>
+ * The bean instances are stored in an array indexed by the ordinal number that the
+ * {@link PortletRequestScopedContext} assigns to each contextual type. The array is only
+ * allocated when the first bean is created, so that a request that does not use 
+ * portlet request scoped beans does not pay for the storage.
  * 
  * @author Scott Nicklous
  *
@@ -48,17 +54,21 @@ public class PortletRequestScopedBeanHolder implements Serializable {
    private static final ThreadLocal<PortletRequestScopedBeanHolder> holders =
          new ThreadLocal<PortletRequestScopedBeanHolder>();
 
-   private class BeanInstance<T> implements Serializable {
+   private static class BeanInstance<T> implements Serializable {
       private static final long serialVersionUID = -4173708394115905180L;
+      Contextual<T>           bean;
       CreationalContext<T>    crco;
       T                       instance;
    }
    
-   // Each instance of the bean holder gets its own map.
-   // Key: Bean Type, Value: Structure containing CreationalContext and the specific
-   // bean instance.
-   private Map<Contextual<?>, BeanInstance<?>> beans = 
-         new ConcurrentHashMap<Contextual<?>, BeanInstance<?>>();
+   // Each instance of the bean holder gets its own storage, allocated on first use.
+   // Index: ordinal number of the contextual type, Value: Structure containing the 
+   // contextual type, the CreationalContext, and the specific bean instance.
+   private BeanInstance<?>[] beans = null;
+   
+   // Holds beans whose slot is taken by a different contextual type. Can only happen
+   // if beans from different bean managers were stored in the same holder.
+   private Map<Contextual<?>, BeanInstance<?>> overflow = null;
    
    /**
     * private constructor
@@ -137,12 +147,13 @@ public class PortletRequestScopedBeanHolder implements Serializable {
    /**
     * Returns existing instance of object, or null if no instance exists.
     * 
+    * @param ordinal The ordinal number of the bean type
     * @param bean    The bean type
     * @return        The bean instance
     */
    @SuppressWarnings("unchecked")
-   public <T> T getBean(Contextual<T> bean) {
-      BeanInstance<?> bi = beans.get(bean);
+   public synchronized <T> T getBean(int ordinal, Contextual<T> bean) {
+      BeanInstance<?> bi = find(ordinal, bean);
       return (bi == null) ? null : (T) bi.instance;
    }
    
@@ -150,27 +161,30 @@ public class PortletRequestScopedBeanHolder implements Serializable {
     * Returns an instance for the contextual type. If no existing bean is available,
     * a new instance is created.
     * 
+    * @param ordinal    The ordinal number of the bean type
     * @param bean       Contextual type (Bean) for which an instance is desired
     * @return           The instance, or null if none exists
     */
    @SuppressWarnings("unchecked")
-   public <T> T getBean(Contextual<T> bean, CreationalContext<T> crco) {
-      BeanInstance<?> bi = beans.get(bean);
+   public synchronized <T> T getBean(int ordinal, Contextual<T> bean, CreationalContext<T> crco) {
+      BeanInstance<?> bi = find(ordinal, bean);
       
       if (bi == null) {
          
          // No bean available, so create one.
          
          BeanInstance<T> newbi = new BeanInstance<T>();
+         newbi.bean = bean;
          newbi.crco = crco;
          newbi.instance = bean.create(crco);
          bi = newbi;
-         beans.put(bean, newbi);
+         store(ordinal, newbi);
 
          if (isTrace) {
             StringBuilder txt = new StringBuilder(80);
             txt.append("Created bean: ");
             txt.append(((Bean<?>) bean).getBeanClass().getSimpleName());
+            txt.append(", ordinal: ").append(ordinal);
             LOG.trace(txt.toString());
          }
 
@@ -179,42 +193,70 @@ public class PortletRequestScopedBeanHolder implements Serializable {
       return (T) bi.instance;
    }
    
+   private BeanInstance<?> find(int ordinal, Contextual<?> bean) {
+      if (beans != null && ordinal < beans.length) {
+         BeanInstance<?> bi = beans[ordinal];
+         if (bi != null && bi.bean.equals(bean)) {
+            return bi;
+         }
+      }
+      return (overflow == null) ? null : overflow.get(bean);
+   }
+   
+   private void store(int ordinal, BeanInstance<?> bi) {
+      if (beans == null) {
+         beans = new BeanInstance<?>[Math.max(8, ordinal + 1)];
+      } else if (ordinal >= beans.length) {
+         beans = Arrays.copyOf(beans, Math.max(2 * beans.length, ordinal + 1));
+      }
+      
+      if (beans[ordinal] == null) {
+         beans[ordinal] = bi;
+      } else {
+         if (overflow == null) {
+            overflow = new HashMap<Contextual<?>, BeanInstance<?>>();
+         }
+         overflow.put(bi.bean, bi);
+      }
+   }
+   
    /**
     * Removes & destroys the given bean
-    * @param bean
+    * @param bi
     */
-   @SuppressWarnings("unchecked")
-   protected <T> void remove(Contextual<T> bean) {
-      BeanInstance<?> bi = beans.get(bean);
+   private <T> void destroy(BeanInstance<T> bi) {
       
       if (isTrace) {
          StringBuilder txt = new StringBuilder(80);
          txt.append("Removing portlet request scoped bean: ");
-         if (bean instanceof Bean<?>) {
-            Bean<?> b = (Bean<?>) bean;
+         if (bi.bean instanceof Bean<?>) {
+            Bean<?> b = (Bean<?>) bi.bean;
             txt.append(b.getBeanClass().getSimpleName());
          }
-         if (bi == null) {
-            txt.append(", instance is null.");
-         }
          LOG.trace(txt.toString());
       }
 
-      if (bi != null) {
-         beans.remove(bean);
-         bi.crco.release();
-         bean.destroy((T)bi.instance, (CreationalContext<T>)bi.crco);
-      }
+      bi.crco.release();
+      bi.bean.destroy(bi.instance, bi.crco);
    }
    
    /**
     * Remove & destroy all beans. 
-    * 
-    * @param   resp     The state aware response
     */
-   protected void removeAll() {
-      for (Contextual<?> bean : beans.keySet()) {
-         remove(bean);
+   protected synchronized void removeAll() {
+      if (beans != null) {
+         for (BeanInstance<?> bi : beans) {
+            if (bi != null) {
+               destroy(bi);
+            }
+         }
+         beans = null;
+      }
+      if (overflow != null) {
+         for (BeanInstance<?> bi : overflow.values()) {
+            destroy(bi);
+         }
+         overflow = null;
       }
    }
 }
@@ -20,6 +20,10 @@
 package org.apache.pluto.container.bean.processor;
 
 import java.lang.annotation.Annotation;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.enterprise.context.ContextNotActiveException;
 import javax.enterprise.context.spi.Context;
@@ -34,10 +38,38 @@ import javax.portlet.annotations.PortletRequestScoped;
  *
  */
 public class PortletRequestScopedContext implements Context {
+   
+   // The ordinal number of each contextual type, used as index into the bean holder storage.
+   private final ConcurrentMap<Contextual<?>, Integer> ordinals = new ConcurrentHashMap<Contextual<?>, Integer>();
+   private final AtomicInteger nextOrdinal = new AtomicInteger();
 
    public PortletRequestScopedContext() {
    }
 
+   /**
+    * Constructor that assigns the ordinal numbers for the portlet request scoped beans 
+    * known at deployment time. Other contextual types get their number on first use.
+    * 
+    * @param beans   The portlet request scoped beans
+    */
+   public PortletRequestScopedContext(Collection<? extends Contextual<?>> beans) {
+      for (Contextual<?> bean : beans) {
+         getOrdinal(bean);
+      }
+   }
+   
+   private int getOrdinal(Contextual<?> bean) {
+      Integer ord = ordinals.get(bean);
+      if (ord == null) {
+         Integer newOrd = nextOrdinal.getAndIncrement();
+         ord = ordinals.putIfAbsent(bean, newOrd);
+         if (ord == null) {
+            ord = newOrd;
+         }
+      }
+      return ord;
+   }
+
    /* (non-Javadoc)
     * @see javax.enterprise.context.spi.Context#get(javax.enterprise.context.spi.Contextual)
     */
@@ -47,7 +79,7 @@ public class PortletRequestScopedContext implements Context {
       if (holder == null) {
          throw new ContextNotActiveException("The portlet request context is not active.");
       }
-      return holder.getBean(bean);
+      return holder.getBean(getOrdinal(bean), bean);
    }
 
    /* (non-Javadoc)
@@ -63,7 +95,7 @@ public class PortletRequestScopedContext implements Context {
       
       // The bean holder will return an existing bean instance or create a new one
       // if no existing instance is available.
-      T inst = holder.getBean(bean, crco);      
+      T inst = holder.getBean(getOrdinal(bean), bean, crco);      
       return inst;
    }
 
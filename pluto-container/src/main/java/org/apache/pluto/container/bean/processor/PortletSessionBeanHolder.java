@@ -25,11 +25,16 @@ import javax.enterprise.context.spi.CreationalContext;
 import javax.portlet.PortletRequest;
 import javax.portlet.PortletSession;
 
+import org.apache.pluto.container.impl.PortletSessionImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * This is a container for PortletSessionScoped CDI beans.
+ * <p>
+ * The portlet session is only accessed when a bean is used. The bean maps used during
+ * the request are set on the session again when the holder is removed, so that session
+ * replication picks up changes to the bean instances. 
  * 
  * @author nick
  * 
@@ -47,53 +52,39 @@ public class PortletSessionBeanHolder implements Serializable {
 
    // ========== Instance vars
 
-   private final PortletSessionScopedBeanMap                  beans;
+   private final transient PortletRequest                     req;
    private final PortletSessionScopedConfig                   config;
-   private final String                                       windowId;
+   
+   // The bean maps for the portlet window and for the application, obtained on first use
+   private PortletSessionScopedBeanMap                        windowBeans;
+   private PortletSessionScopedBeanMap                        appBeans;
 
    /**
     * private constructor ... constructed once per thread
     */
-   private PortletSessionBeanHolder(PortletSessionScopedBeanMap beans, String windowId,
-         PortletSessionScopedConfig config) {
-      this.beans = beans;
-      this.windowId = windowId;
+   private PortletSessionBeanHolder(PortletRequest req, PortletSessionScopedConfig config) {
+      this.req = req;
       this.config = config;
    }
 
    /**
-    * Sets the portlet session bean holder in a ThreadLocal object for the given portlet session. If no bean holder
-    * exists in the session, a new one is created.
+    * Sets the portlet session bean holder in a ThreadLocal object for the given portlet request. 
     * 
-    * @param ps
-    *           The portlet session.
-    * @return The portlet session bean holder
+    * @param req
+    *           The portlet request.
+    * @param config
+    *           The portlet session scoped bean configuration
     */
    public static void setBeanHolder(PortletRequest req, PortletSessionScopedConfig config) {
 
-      PortletSession ps = req.getPortletSession();
-      String windowId = req.getWindowID();
-
-      PortletSessionScopedBeanMap map = (PortletSessionScopedBeanMap) ps.getAttribute(ATTRIBNAME,
-            PortletSession.APPLICATION_SCOPE);
-      
-      boolean createdMap = false;
-      if (map == null) {
-         map = new PortletSessionScopedBeanMap();
-         ps.setAttribute(ATTRIBNAME, map, PortletSession.APPLICATION_SCOPE);
-         createdMap = true;
-      }
-
-      PortletSessionBeanHolder holder = new PortletSessionBeanHolder(map, windowId, config);
+      PortletSessionBeanHolder holder = new PortletSessionBeanHolder(req, config);
       holders.set(holder);
 
       if (isTrace) {
          StringBuilder txt = new StringBuilder(80);
          txt.append("Set portlet session bean holder.");
          txt.append(" ThreadId: ").append(Thread.currentThread().getId());
-         txt.append(", PortletSession: ").append(ps.getId());
-         txt.append(", WindowId: ").append(windowId);
-         txt.append(", Added new BeanMap to session: ").append(createdMap);
+         txt.append(", WindowId: ").append(req.getWindowID());
          LOG.debug(txt.toString());
       }
    }
@@ -102,6 +93,10 @@ public class PortletSessionBeanHolder implements Serializable {
     * Removes the bean holder for the current session.
     */
    public static void removeBeanHolder() {
+      PortletSessionBeanHolder holder = holders.get();
+      if (holder != null) {
+         holder.storeBeanMaps();
+      }
       holders.remove();
 
       if (isTrace) {
@@ -142,6 +137,92 @@ public class PortletSessionBeanHolder implements Serializable {
       holders.set(holder);
    }
 
+   /**
+    * Returns the bean map for the portlet window or for the application. 
+    * 
+    * @param portletScoped    <code>true</code> for the portlet window bean map
+    * @param create           <code>true</code> if the map is to be created if not present
+    * @return                 The bean map, or <code>null</code> if not present
+    */
+   private synchronized PortletSessionScopedBeanMap getBeanMap(boolean portletScoped, boolean create) {
+      PortletSessionScopedBeanMap map = portletScoped ? windowBeans : appBeans;
+      if (map == null) {
+         PortletSession ps = req.getPortletSession(create);
+         if (ps != null) {
+            int scope = portletScoped ? PortletSession.PORTLET_SCOPE : PortletSession.APPLICATION_SCOPE;
+            map = (PortletSessionScopedBeanMap) ps.getAttribute(ATTRIBNAME, scope);
+
+            if (map == null && create) {
+               
+               // only locks when a map is created, which happens once per session & window
+               synchronized (getSessionMutex(ps)) {
+                  map = (PortletSessionScopedBeanMap) ps.getAttribute(ATTRIBNAME, scope);
+                  if (map == null) {
+                     map = new PortletSessionScopedBeanMap();
+                     ps.setAttribute(ATTRIBNAME, map, scope);
+
+                     if (isTrace) {
+                        StringBuilder txt = new StringBuilder(80);
+                        txt.append("Added new BeanMap to session: ").append(ps.getId());
+                        txt.append(", WindowId: ").append(portletScoped ? req.getWindowID() : "application");
+                        LOG.trace(txt.toString());
+                     }
+                  }
+               }
+            }
+
+            if (portletScoped) {
+               windowBeans = map;
+            } else {
+               appBeans = map;
+            }
+         }
+      }
+      return map;
+   }
+
+   /**
+    * Returns the object to lock on while a bean map is added to the session. The
+    * portlet session is created anew for each request, so the underlying HTTP session
+    * is used when it is available.
+    * 
+    * @param ps      The portlet session
+    * @return        The session mutex
+    */
+   private static Object getSessionMutex(PortletSession ps) {
+      if (ps instanceof PortletSessionImpl) {
+         Object mutex = ((PortletSessionImpl) ps).getHttpSession();
+         if (mutex != null) {
+            return mutex;
+         }
+      }
+      return ps;
+   }
+   
+   /**
+    * Sets the bean maps whose beans were used on the session again in order to 
+    * trigger session replication. Bean maps that were not used are left alone.
+    */
+   private synchronized void storeBeanMaps() {
+      if ((windowBeans != null && windowBeans.isDirty()) || (appBeans != null && appBeans.isDirty())) {
+         try {
+            PortletSession ps = req.getPortletSession(false);
+            if (ps != null) {
+               if (windowBeans != null && windowBeans.isDirty()) {
+                  windowBeans.clearDirty();
+                  ps.setAttribute(ATTRIBNAME, windowBeans, PortletSession.PORTLET_SCOPE);
+               }
+               if (appBeans != null && appBeans.isDirty()) {
+                  appBeans.clearDirty();
+                  ps.setAttribute(ATTRIBNAME, appBeans, PortletSession.APPLICATION_SCOPE);
+               }
+            }
+         } catch (IllegalStateException e) {
+            LOG.debug("Could not store bean maps, session was invalidated.");
+         }
+      }
+   }
+
    /**
     * Returns an instance for the contextual type, or null if none available.
     * 
@@ -150,11 +231,8 @@ public class PortletSessionBeanHolder implements Serializable {
     * @return The instance, or null if none exists
     */
    public <T> T getBean(Contextual<T> bean) {
-      String id = null;
-      if (config.isPortletScoped(bean)) {
-         id = windowId;
-      }
-      return beans.getBeanInstance(id, bean);
+      PortletSessionScopedBeanMap map = getBeanMap(config.isPortletScoped(bean), false);
+      return (map == null) ? null : map.getBeanInstance(bean);
    }
 
    /**
@@ -166,12 +244,10 @@ public class PortletSessionBeanHolder implements Serializable {
     *           The creational context
     * @param instance
     *           The bean instance
+    * @return The stored instance. If an instance was stored concurrently, that instance 
+    *         is returned rather than the provided one.
     */
-   public <T> void putBeanInstance(Contextual<T> bean, CreationalContext<T> crco, T instance) {
-      String id = null;
-      if (config.isPortletScoped(bean)) {
-         id = windowId;
-      }
-      beans.putBeanInstance(id, bean, crco, instance);
+   public <T> T putBeanInstance(Contextual<T> bean, CreationalContext<T> crco, T instance) {
+      return getBeanMap(config.isPortletScoped(bean), true).putBeanInstance(bean, crco, instance);
    }
 }
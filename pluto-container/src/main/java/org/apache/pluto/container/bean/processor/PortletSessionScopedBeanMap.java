@@ -16,16 +16,22 @@
  *  under the License.
  */
 
-
 package org.apache.pluto.container.bean.processor;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.enterprise.context.spi.Contextual;
 import javax.enterprise.context.spi.CreationalContext;
 import javax.enterprise.inject.spi.Bean;
+import javax.enterprise.inject.spi.BeanManager;
+import javax.enterprise.inject.spi.CDI;
+import javax.enterprise.inject.spi.PassivationCapable;
 import javax.servlet.http.HttpSessionBindingEvent;
 import javax.servlet.http.HttpSessionBindingListener;
 
@@ -34,65 +40,66 @@ import org.slf4j.LoggerFactory;
 
 
 /**
- * Map for portlet session scoped beans that allows for two keys: the window ID, and the 
- * contextual object whose instance is to be obtained. This map is stored in the portlet
- * session with application scope and contains PortletSessionScoped beans of both portlet
- * scope and application scope.
+ * Map for the portlet session scoped beans of one portlet window, or for the application
+ * scoped portlet session scoped beans. The key is the contextual object whose instance 
+ * is to be obtained. 
+ * <p>
+ * Each map is stored in its own portlet session attribute, the map for a portlet window in
+ * portlet scope and the map for the application scoped beans in application scope. 
+ * The maps are independent of each other, so concurrent requests for different windows
+ * of the same session do not contend, and session replication only needs to send 
+ * the maps that were re-set on the session because their beans were used.
+ * <p>
+ * When serialized, only beans that are passivation capable are written, keyed by 
+ * their passivation ID. They are restored on first access after deserialization.
  * 
  * @author Scott Nicklous
  *
  */
 public class PortletSessionScopedBeanMap implements HttpSessionBindingListener, Serializable {
-   private static final long serialVersionUID = -4770245090803443972L;
+   private static final long serialVersionUID = -4770245090803443973L;
    
    private static final Logger LOG = LoggerFactory.getLogger(PortletSessionScopedBeanMap.class);
    private static final boolean isDebug = LOG.isDebugEnabled();
    private static final boolean isTrace = LOG.isTraceEnabled();
    
-   // Used in the bean map to designate application scoped beans.
-   private static final String WINDOW_ID_APPLICATION = "application";
-   
-
-   private class BeanInstance<T> implements Serializable {
+   private static class BeanInstance<T> implements Serializable {
       private static final long serialVersionUID = -2094530892049932082L;
       CreationalContext<T>    crco;
       T                       instance;
    }
    
-   // Map of window ID to map of contextuals to instances
-   private final Map<String, Map<Contextual<?>, BeanInstance<?>>> beans = 
-         new HashMap<String, Map<Contextual<?>, BeanInstance<?>>>();
+   // Map of contextuals to instances
+   private transient ConcurrentMap<Contextual<?>, BeanInstance<?>> beans = 
+         new ConcurrentHashMap<Contextual<?>, BeanInstance<?>>();
+   
+   // Map of passivation IDs to deserialized instances that have not yet been accessed.
+   private transient ConcurrentMap<String, BeanInstance<?>> passivated = null;
+   
+   // Set when a bean is added or accessed, since the instance may have been modified. 
+   private transient volatile boolean dirty = false;
 
    
    /**
     * Adds a bean instance with associated creational context to the store for the
-    * given contextual object (bean).
+    * given contextual object (bean). If an instance for the bean was added concurrently,
+    * the new instance is not stored. 
     * 
-    * @param id            The window ID
     * @param bean          The bean type
     * @param crco          The creational context
     * @param instance      The bean instance
+    * @return              The stored instance, which is only different from the 
+    *                      provided instance if an instance had already been stored
     */
-   public <T> void putBeanInstance(String id, Contextual<T> bean, CreationalContext<T> crco, T instance) {
+   @SuppressWarnings("unchecked")
+   public <T> T putBeanInstance(Contextual<T> bean, CreationalContext<T> crco, T instance) {
       
       BeanInstance<T> bi = new BeanInstance<T>();
       bi.crco = crco;
       bi.instance = instance;
       
-      if (id == null) {
-         id = WINDOW_ID_APPLICATION;
-      }
-
-      boolean addedMap = false;
-      synchronized (beans) {
-         Map<Contextual<?>, BeanInstance<?>> beanMap = beans.get(id);
-         if (beanMap == null) {
-            beanMap = new HashMap<Contextual<?>, BeanInstance<?>>();
-            beans.put(id, beanMap);
-            addedMap = true;
-         }
-         beanMap.put(bean, bi);
-      }
+      BeanInstance<?> existing = beans.putIfAbsent(bean, bi);
+      dirty = true;
       
       if (isDebug) {
          StringBuilder txt = new StringBuilder(80);
@@ -103,50 +110,64 @@ public class PortletSessionScopedBeanMap implements HttpSessionBindingListener,
          } else {
             txt.append("Contextual");
          }
-         txt.append(", window ID: ").append(id);
-         txt.append(", added new map: ").append(addedMap);
+         txt.append(", already present: ").append(existing != null);
          LOG.debug(txt.toString());
       }
+      
+      return (existing == null) ? instance : (T) existing.instance;
    }
    
+   /**
+    * Returns the instance for the given contextual object (bean). 
+    * 
+    * @param bean          The bean type
+    * @return              The instance, or <code>null</code> if none is stored
+    */
    @SuppressWarnings("unchecked")
-   public <T> T getBeanInstance(String id, Contextual<T> bean) {
-      T instance = null;
+   public <T> T getBeanInstance(Contextual<T> bean) {
+      BeanInstance<?> bi = beans.get(bean);
       
-      if (id == null) {
-         id = WINDOW_ID_APPLICATION;
-      }
-
-      boolean gotMap = false;
-      synchronized(beans) {
-         Map<Contextual<?>, BeanInstance<?>> beanMap = beans.get(id);
-         if (beanMap != null) {
-            gotMap = true;
-            BeanInstance<?> bi = beanMap.get(bean);
-            if (bi != null) {
-               instance = (T) bi.instance;
-            }
+      if (bi == null && passivated != null && bean instanceof PassivationCapable) {
+         bi = passivated.remove(((PassivationCapable) bean).getId());
+         if (bi != null) {
+            BeanInstance<?> existing = beans.putIfAbsent(bean, bi);
+            bi = (existing == null) ? bi : existing;
          }
       }
       
+      if (bi != null) {
+         dirty = true;
+      }
+      
       if (isTrace) {
          StringBuilder txt = new StringBuilder();
-         txt.append("Window ID: ").append(id);
-         txt.append(", retrieved map: ").append(gotMap);
-         txt.append(", instance null: ").append(instance == null);
-         LOG.debug(txt.toString());
+         txt.append("Retrieved bean instance. instance null: ").append(bi == null);
+         LOG.trace(txt.toString());
       }
       
-      return instance;
+      return (bi == null) ? null : (T) bi.instance;
+   }
+   
+   /**
+    * Returns <code>true</code> if beans were added or accessed since the map 
+    * was last stored in the session.
+    */
+   public boolean isDirty() {
+      return dirty;
+   }
+   
+   /**
+    * Marks the map as stored in the session.
+    */
+   public void clearDirty() {
+      dirty = false;
    }
    
    /**
-    * Removes & destroys the given bean from the given bean map
-    * @param bean
+    * Destroys the given bean instance
     */
    @SuppressWarnings("unchecked")
-   private <T> void remove(String id, Map<Contextual<?>, BeanInstance<?>> beanMap, Contextual<T> bean) {
-      BeanInstance<?> bi = beanMap.get(bean);
+   private <T> void destroy(Contextual<T> bean, BeanInstance<?> bi) {
       
       if (isDebug) {
          StringBuilder txt = new StringBuilder(80);
@@ -155,18 +176,11 @@ public class PortletSessionScopedBeanMap implements HttpSessionBindingListener,
             Bean<?> b = (Bean<?>) bean;
             txt.append(b.getBeanClass().getSimpleName());
          }
-         txt.append(", window ID: ").append(id);
-         if (bi == null) {
-            txt.append(", instance is null.");
-         }
          LOG.debug(txt.toString());
       }
 
-      if (bi != null) {
-         beans.remove(bean);
-         bi.crco.release();
-         bean.destroy((T)bi.instance, (CreationalContext<T>)bi.crco);
-      }
+      bi.crco.release();
+      bean.destroy((T)bi.instance, (CreationalContext<T>)bi.crco);
    }
 
    /**
@@ -180,24 +194,98 @@ public class PortletSessionScopedBeanMap implements HttpSessionBindingListener,
 
    /**
     * Session binding listener method - unbinding from session. 
-    * This occurs only when the session times out or is destroyed (in our case).
+    * This occurs only when the session times out or is destroyed, or when 
+    * the portlet window is removed.
     * 
     * @param arg0
     */
    @Override
    public void valueUnbound(HttpSessionBindingEvent evt) {
       if (isTrace) {
-         LOG.trace("PortletSessionBeanHolder unbound from session. ID=" + evt.getName());
+         LOG.trace("PortletSessionScopedBeanMap unbound from session. ID=" + evt.getName());
+      }
+      
+      // Some containers notify when the same map is set again in order to 
+      // replicate it. The beans must not be destroyed in that case.
+      try {
+         if (evt.getSession().getAttribute(evt.getName()) == this) {
+            return;
+         }
+      } catch (IllegalStateException e) {
+         // session was invalidated
       }
       
-      synchronized(beans) {
-         for (String id : beans.keySet()) {
-            Map<Contextual<?>, BeanInstance<?>> beanMap = beans.get(id);
-            for (Contextual<?> bean : beanMap.keySet()) {
-               remove(id, beanMap, bean);
+      for (Map.Entry<Contextual<?>, BeanInstance<?>> entry : beans.entrySet()) {
+         if (beans.remove(entry.getKey(), entry.getValue())) {
+            destroy(entry.getKey(), entry.getValue());
+         }
+      }
+      
+      // Deserialized instances that were never accessed are destroyed through the 
+      // bean resolved by passivation ID. If the bean cannot be resolved, at least 
+      // the dependent objects are released.
+      ConcurrentMap<String, BeanInstance<?>> pending = passivated;
+      passivated = null;
+      if (pending != null && !pending.isEmpty()) {
+         BeanManager bm = getBeanManager();
+         for (Map.Entry<String, BeanInstance<?>> entry : pending.entrySet()) {
+            Contextual<?> bean = (bm == null) ? null : bm.getPassivationCapableBean(entry.getKey());
+            if (bean != null) {
+               destroy(bean, entry.getValue());
+            } else {
+               if (isDebug) {
+                  LOG.debug("Bean not resolved, releasing creational context. ID=" + entry.getKey());
+               }
+               entry.getValue().crco.release();
             }
          }
-         beans.clear();
+      }
+   }
+   
+   /**
+    * Returns the bean manager of the current application, or <code>null</code> if 
+    * it is not available, for example when the application is being stopped.
+    */
+   private BeanManager getBeanManager() {
+      BeanManager bm = null;
+      try {
+         bm = CDI.current().getBeanManager();
+      } catch (RuntimeException e) {
+         if (isDebug) {
+            LOG.debug("Bean manager not available: " + e.getMessage());
+         }
+      }
+      return bm;
+   }
+   
+   private void writeObject(ObjectOutputStream out) throws IOException {
+      out.defaultWriteObject();
+      for (Map.Entry<Contextual<?>, BeanInstance<?>> entry : beans.entrySet()) {
+         BeanInstance<?> bi = entry.getValue();
+         if ((entry.getKey() instanceof PassivationCapable) && (bi.crco instanceof Serializable)
+               && (bi.instance instanceof Serializable)) {
+            out.writeObject(((PassivationCapable) entry.getKey()).getId());
+            out.writeObject(bi);
+         } else if (isDebug) {
+            LOG.debug("Bean is not passivation capable and is not written: " + entry.getKey());
+         }
+      }
+      if (passivated != null) {
+         for (Map.Entry<String, BeanInstance<?>> entry : passivated.entrySet()) {
+            out.writeObject(entry.getKey());
+            out.writeObject(entry.getValue());
+         }
+      }
+      out.writeObject(null);
+   }
+   
+   private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      beans = new ConcurrentHashMap<Contextual<?>, BeanInstance<?>>();
+      passivated = new ConcurrentHashMap<String, BeanInstance<?>>();
+      String id;
+      while ((id = (String) in.readObject()) != null) {
+         passivated.put(id, (BeanInstance<?>) in.readObject());
       }
    }
 }
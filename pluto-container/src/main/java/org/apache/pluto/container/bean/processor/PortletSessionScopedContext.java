@@ -63,8 +63,13 @@ public class PortletSessionScopedContext implements Context {
       
       T inst = holder.getBean(bean);
       if (inst == null) {
-         inst = bean.create(crco);
-         holder.putBeanInstance(bean, crco, inst);
+         T newInst = bean.create(crco);
+         inst = holder.putBeanInstance(bean, crco, newInst);
+         if (inst != newInst) {
+            
+            // a concurrent request for the same session created the bean first
+            bean.destroy(newInst, crco);
+         }
       }
       
       return inst;
@@ -21,13 +21,16 @@ package org.apache.pluto.container.bean.processor;
 
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 
 import javax.enterprise.context.spi.Contextual;
 import javax.enterprise.context.spi.CreationalContext;
 import javax.enterprise.inject.spi.Bean;
 import javax.portlet.PortletRequest;
+import javax.portlet.MutableRenderParameters;
 import javax.portlet.StateAwareResponse;
 import javax.portlet.annotations.PortletSerializable;
 
@@ -36,6 +39,10 @@ import org.slf4j.LoggerFactory;
 
 /**
  * This is a container for RenderStateScoped CDI beans.
+ * <p>
+ * The bean values are stored in render parameters, either one render parameter per 
+ * bean, or, if the compact encoding is enabled, in a single token produced by the
+ * {@link RenderStateCodec}. The stored values are only read when a bean is created.
  * 
  * @author Scott Nicklous
  *
@@ -66,13 +73,18 @@ public class PortletStateScopedBeanHolder implements Serializable {
    
    private final PortletRequest request;
    private final PortletStateScopedConfig config;
+   private final boolean compact;
+   
+   // The bean values decoded from the compact token, decoded on first use
+   private Map<String, String[]> compactState = null;
    
    /**
     * private constructor
     */
-   private PortletStateScopedBeanHolder(PortletRequest req, PortletStateScopedConfig config) {
+   private PortletStateScopedBeanHolder(PortletRequest req, PortletStateScopedConfig config, boolean compact) {
       this.request = req;
       this.config = config;
+      this.compact = compact;
    }
 
    /**
@@ -83,15 +95,29 @@ public class PortletStateScopedBeanHolder implements Serializable {
     * @return        The render state bean holder
     */
    public static void setBeanHolder(PortletRequest req, PortletStateScopedConfig config) {
+      setBeanHolder(req, config, false);
+   }
+   
+   /**
+    * Sets the render state bean holder in a ThreadLocal object for the given 
+    * portlet request.
+    * 
+    * @param  req       The portlet request
+    * @param  config    The render state scoped bean configuration
+    * @param  compact   <code>true</code> if the bean values are to be stored in a single
+    *                   compact token
+    */
+   public static void setBeanHolder(PortletRequest req, PortletStateScopedConfig config, boolean compact) {
       
       if (isTrace) {
          StringBuilder txt = new StringBuilder(80);
          txt.append("Setting render state bean holder.");
          txt.append(" ThreadId=").append(Thread.currentThread().getId());
+         txt.append(", compact: ").append(compact);
          LOG.trace(txt.toString());
       }
 
-      PortletStateScopedBeanHolder holder = new PortletStateScopedBeanHolder(req, config);
+      PortletStateScopedBeanHolder holder = new PortletStateScopedBeanHolder(req, config, compact);
       holders.set(holder);
    }
    
@@ -185,7 +211,13 @@ public class PortletStateScopedBeanHolder implements Serializable {
          
          assert bean instanceof Bean<?>;
          String parmName = config.getParamName((Bean<?>) bean);
-         String[] vals = request.getRenderParameters().getValues(parmName);
+         String[] vals = null;
+         if (compact) {
+            vals = getCompactState().get(parmName);
+         }
+         if (vals == null) {
+            vals = request.getRenderParameters().getValues(parmName);
+         }
          if (vals == null) {
             vals = new String[] {};
          }
@@ -208,6 +240,27 @@ public class PortletStateScopedBeanHolder implements Serializable {
       return (T) bi.instance;
    }
    
+   /**
+    * Returns the bean values stored in the compact token. The token is decoded on first use.
+    * 
+    * @return  Map of render parameter name to bean values. 
+    */
+   private synchronized Map<String, String[]> getCompactState() {
+      if (compactState == null) {
+         compactState = new HashMap<String, String[]>();
+         String token = request.getRenderParameters().getValue(RenderStateCodec.PARAM_NAME);
+         if (token != null) {
+            try {
+               compactState = RenderStateCodec.decode(token);
+            } catch (IllegalArgumentException e) {
+               LOG.warn("Ignoring invalid render state token. Window ID: " + request.getWindowID() 
+                     + ", Problem: " + e.getMessage());
+            }
+         }
+      }
+      return compactState;
+   }
+   
    /**
     * Removes & destroys the given bean
     * @param bean
@@ -242,6 +295,10 @@ public class PortletStateScopedBeanHolder implements Serializable {
     * @param   resp     The state aware response
     */
    protected void removeAll(StateAwareResponse resp) {
+      if (compact && resp != null) {
+         storeCompact(resp);
+         resp = null;
+      }
       for (Contextual<?> bean : beans.keySet()) {
          if (resp != null) {
             PortletSerializable thisBean = (PortletSerializable) beans.get(bean).instance;
@@ -261,4 +318,42 @@ public class PortletStateScopedBeanHolder implements Serializable {
          remove(bean);
       }
    }
+   
+   /**
+    * Stores the values of all beans in a single token. Beans that were not used during 
+    * this request keep the values from the incoming token. 
+    * 
+    * @param   resp     The state aware response
+    */
+   private void storeCompact(StateAwareResponse resp) {
+      if (beans.isEmpty()) {
+         return;
+      }
+      
+      // sorted, so that the same state always results in the same token
+      Map<String, String[]> state = new TreeMap<String, String[]>(getCompactState());
+      MutableRenderParameters parms = resp.getRenderParameters();
+      for (Contextual<?> bean : beans.keySet()) {
+         PortletSerializable thisBean = (PortletSerializable) beans.get(bean).instance;
+         String pn = config.getParamName((Bean<?>) bean);
+         state.put(pn, thisBean.serialize());
+         
+         // the value may have been stored individually before compact encoding was enabled
+         if (parms.getValues(pn) != null) {
+            parms.removeParameter(pn);
+         }
+      }
+      
+      String token = RenderStateCodec.encode(state);
+      parms.setValue(RenderStateCodec.PARAM_NAME, token);
+      
+      if (isTrace) {
+         StringBuilder txt = new StringBuilder(128);
+         txt.append("Stored compact render state for portlet with namespace: ");
+         txt.append(resp.getNamespace());
+         txt.append(", beans: ").append(state.keySet());
+         txt.append(", token length: ").append(token.length());
+         LOG.trace(txt.toString());
+      }
+   }
 }
@@ -0,0 +1,272 @@
+/*  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.apache.pluto.container.bean.processor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Packs the values of all render state scoped beans of a portlet window into a single
+ * URL-safe token, so that the render URLs carry one short parameter instead of one 
+ * parameter per bean.
+ * <p>
+ * The token consists of a version character, a character indicating whether the 
+ * data is compressed, and the data encoded with the URL-safe base64 alphabet without
+ * padding. The compact encoding is enabled per portlet through the container runtime
+ * option {@link #RUNTIME_OPTION}.
+ * 
+ * @see PortletStateScopedBeanHolder
+ */
+public final class RenderStateCodec {
+   
+   /** The container runtime option that enables the compact encoding. */
+   public static final String RUNTIME_OPTION = "org.apache.pluto.compactRenderState";
+   
+   /** The render parameter name used for the token. */
+   public static final String PARAM_NAME = "_rss";
+   
+   private static final char VERSION = '1';
+   private static final char DEFLATED = 'z';
+   private static final char PLAIN = 'p';
+   
+   // upper limit for the decoded data, protects against malicious tokens
+   private static final int MAX_LENGTH = 1024 * 1024;
+   
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   
+   private static final char[] ALPHABET = 
+         "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+   private static final int[] VALUES = new int[128];
+   static {
+      Arrays.fill(VALUES, -1);
+      for (int ii = 0; ii < ALPHABET.length; ii++) {
+         VALUES[ALPHABET[ii]] = ii;
+      }
+   }
+   
+   private RenderStateCodec() {
+   }
+   
+   /**
+    * Encodes the bean values.
+    * 
+    * @param state   Map of render parameter name to the serialized bean values
+    * @return        The token
+    */
+   public static String encode(Map<String, String[]> state) {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+      DataOutputStream out = new DataOutputStream(bos);
+      try {
+         out.writeInt(state.size());
+         for (Map.Entry<String, String[]> entry : state.entrySet()) {
+            writeString(out, entry.getKey());
+            String[] vals = entry.getValue();
+            out.writeInt((vals == null) ? -1 : vals.length);
+            if (vals != null) {
+               for (String val : vals) {
+                  writeString(out, val);
+               }
+            }
+         }
+         out.flush();
+      } catch (IOException e) {
+         // cannot happen with a ByteArrayOutputStream
+         throw new IllegalStateException(e);
+      }
+      byte[] data = bos.toByteArray();
+      
+      Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+      byte[] buf = new byte[data.length];
+      int len;
+      try {
+         deflater.setInput(data);
+         deflater.finish();
+         len = deflater.deflate(buf);
+         if (!deflater.finished()) {
+            len = -1;
+         }
+      } finally {
+         deflater.end();
+      }
+      
+      StringBuilder token = new StringBuilder(2 + (data.length * 4 + 2) / 3);
+      token.append(VERSION);
+      if (len > 0 && len < data.length) {
+         token.append(DEFLATED);
+         toBase64(buf, len, token);
+      } else {
+         token.append(PLAIN);
+         toBase64(data, data.length, token);
+      }
+      return token.toString();
+   }
+   
+   /**
+    * Decodes a token.
+    * 
+    * @param token   The token
+    * @return        Map of render parameter name to the serialized bean values
+    * @throws IllegalArgumentException
+    *                if the token is invalid
+    */
+   public static Map<String, String[]> decode(String token) {
+      if (token.length() < 2 || token.charAt(0) != VERSION) {
+         throw new IllegalArgumentException("Unsupported render state token version.");
+      }
+      byte[] data = fromBase64(token, 2);
+      
+      if (token.charAt(1) == DEFLATED) {
+         Inflater inflater = new Inflater(true);
+         try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length * 4);
+            inflater.setInput(data);
+            byte[] buf = new byte[1024];
+            while (!inflater.finished()) {
+               int len = inflater.inflate(buf);
+               if (len == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                  throw new IllegalArgumentException("Truncated render state token.");
+               }
+               bos.write(buf, 0, len);
+               if (bos.size() > MAX_LENGTH) {
+                  throw new IllegalArgumentException("Render state token too large.");
+               }
+            }
+            data = bos.toByteArray();
+         } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Invalid render state token.", e);
+         } finally {
+            inflater.end();
+         }
+      } else if (token.charAt(1) != PLAIN) {
+         throw new IllegalArgumentException("Invalid render state token.");
+      }
+      
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+      try {
+         int size = in.readInt();
+         if (size < 0 || size > data.length) {
+            throw new IllegalArgumentException("Invalid render state token.");
+         }
+         Map<String, String[]> state = new LinkedHashMap<String, String[]>();
+         for (int ii = 0; ii < size; ii++) {
+            String name = readString(in, data.length);
+            int num = in.readInt();
+            String[] vals = null;
+            if (num >= 0) {
+               if (num > data.length) {
+                  throw new IllegalArgumentException("Invalid render state token.");
+               }
+               vals = new String[num];
+               for (int jj = 0; jj < num; jj++) {
+                  vals[jj] = readString(in, data.length);
+               }
+            }
+            state.put(name, vals);
+         }
+         return state;
+      } catch (IOException e) {
+         throw new IllegalArgumentException("Invalid render state token.", e);
+      }
+   }
+   
+   private static void writeString(DataOutputStream out, String str) throws IOException {
+      if (str == null) {
+         out.writeInt(-1);
+      } else {
+         byte[] bytes = str.getBytes(UTF8);
+         out.writeInt(bytes.length);
+         out.write(bytes);
+      }
+   }
+   
+   private static String readString(DataInputStream in, int max) throws IOException {
+      int len = in.readInt();
+      if (len < 0) {
+         return null;
+      }
+      if (len > max) {
+         throw new IllegalArgumentException("Invalid render state token.");
+      }
+      byte[] bytes = new byte[len];
+      in.readFully(bytes);
+      return new String(bytes, UTF8);
+   }
+   
+   private static void toBase64(byte[] data, int len, StringBuilder out) {
+      int ii = 0;
+      for (; ii + 2 < len; ii += 3) {
+         int bits = ((data[ii] & 0xff) << 16) | ((data[ii + 1] & 0xff) << 8) | (data[ii + 2] & 0xff);
+         out.append(ALPHABET[bits >>> 18]).append(ALPHABET[(bits >>> 12) & 0x3f]);
+         out.append(ALPHABET[(bits >>> 6) & 0x3f]).append(ALPHABET[bits & 0x3f]);
+      }
+      if (ii < len) {
+         int bits = (data[ii] & 0xff) << 16;
+         if (ii + 1 < len) {
+            bits |= (data[ii + 1] & 0xff) << 8;
+         }
+         out.append(ALPHABET[bits >>> 18]).append(ALPHABET[(bits >>> 12) & 0x3f]);
+         if (ii + 1 < len) {
+            out.append(ALPHABET[(bits >>> 6) & 0x3f]);
+         }
+      }
+   }
+   
+   private static byte[] fromBase64(String str, int start) {
+      int chars = str.length() - start;
+      if (chars % 4 == 1) {
+         throw new IllegalArgumentException("Invalid render state token length.");
+      }
+      byte[] data = new byte[chars * 3 / 4];
+      int pos = 0;
+      int bits = 0;
+      int count = 0;
+      for (int ii = start; ii < str.length(); ii++) {
+         char c = str.charAt(ii);
+         int val = (c < 128) ? VALUES[c] : -1;
+         if (val < 0) {
+            throw new IllegalArgumentException("Invalid character in render state token.");
+         }
+         bits = (bits << 6) | val;
+         if (++count == 4) {
+            data[pos++] = (byte) (bits >>> 16);
+            data[pos++] = (byte) (bits >>> 8);
+            data[pos++] = (byte) bits;
+            bits = 0;
+            count = 0;
+         }
+      }
+      if (count == 3) {
+         data[pos++] = (byte) (bits >>> 10);
+         data[pos++] = (byte) (bits >>> 2);
+      } else if (count == 2) {
+         data[pos++] = (byte) (bits >>> 4);
+      }
+      return data;
+   }
+}
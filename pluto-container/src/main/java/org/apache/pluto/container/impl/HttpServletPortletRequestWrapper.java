@@ -490,8 +490,7 @@ public class HttpServletPortletRequestWrapper extends HttpServletRequestWrapper
    @Override
    public String getParameter(String name) {
       if (isClosed) return null;
-      Map<String, String[]> pm = reqctx.getParameterMap();
-      String[] vals = pm.get(name);
+      String[] vals = lookupParameterValues(name);
       return (vals == null) ? null : vals[0];
    }
 
@@ -505,8 +504,15 @@ public class HttpServletPortletRequestWrapper extends HttpServletRequestWrapper
    @Override
    public String[] getParameterValues(String name) {
       if (isClosed) return null;
-      Map<String, String[]> pm = reqctx.getParameterMap();
-      return pm.get(name);
+      String[] vals = lookupParameterValues(name);
+      return (vals == null) ? null : vals.clone();
+   }
+
+   private String[] lookupParameterValues(String name) {
+      if (reqctx instanceof ParameterValuesLookup) {
+         return ((ParameterValuesLookup) reqctx).getParameterValues(name);
+      }
+      return reqctx.getParameterMap().get(name);
    }
 
    @Override
@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.container.impl;
+
+import org.apache.pluto.container.PortletRequestContext;
+
+/**
+ * Optionally implemented by a {@link PortletRequestContext} that can look up a
+ * single parameter without building the parameter map. The container falls
+ * back to {@link PortletRequestContext#getParameterMap()} for request contexts
+ * that do not implement it.
+ */
+public interface ParameterValuesLookup
+{
+    /**
+     * Returns the values of the parameter as contained in the map returned by
+     * {@link PortletRequestContext#getParameterMap()}, without building the map.
+     * 
+     * @param name the parameter name
+     * @return the parameter values, or <code>null</code> if the parameter is
+     *         not set. The array must not be modified.
+     */
+    String[] getParameterValues(String name);
+}
@@ -17,10 +17,14 @@
 package org.apache.pluto.container.impl;
 
 import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 
 import javax.portlet.PortletPreferences;
 import javax.portlet.PortletRequest;
@@ -41,6 +45,12 @@ import org.apache.pluto.container.util.StringManager;
 /**
  * Implementation of the <code>javax.portlet.PortletPreferences</code>
  * interface.
+ * <p>
+ * The preferences share the default and stored preference maps obtained from
+ * the preferences service, which are not modified. The map is copied when the
+ * portlet modifies a preference for the first time. Modified preferences are
+ * replaced by new <code>PortletPreference</code> objects rather than changed in
+ * place. Value arrays are copied when they are handed to the portlet.
  * 
  * @see PortletPreferences
  * @see PortletPreferenceImpl
@@ -73,7 +83,13 @@ public class PortletPreferencesImpl implements PortletPreferences {
      * Current portlet preferences: key is the preference name as a string,
      * value is the PortletPreference instance.
      */
-    private final Map<String, PortletPreference> preferences = new HashMap<String, PortletPreference>();
+    private Map<String, PortletPreference> preferences = Collections.emptyMap();
+
+    /**
+     * True if the preferences map is shared and must be copied before it is
+     * modified.
+     */
+    private boolean shared = true;
 
     // Constructor -------------------------------------------------------------
     
@@ -99,22 +115,29 @@ public class PortletPreferencesImpl implements PortletPreferences {
         }
         
         try {
-            // Put default portlet preferences into preferences map.
+            // Start with the default portlet preferences.
             defaultPreferences = preferencesService.getDefaultPreferences(window, request);
-            if (defaultPreferences != null) {
-                for (PortletPreference p : defaultPreferences.values()) {
-                    preferences.put(p.getName(), p.clone());
-                }
+            if (defaultPreferences == null) {
+                defaultPreferences = Collections.emptyMap();
             }
+            preferences = defaultPreferences;
             if (LOG.isTraceEnabled()) {
                 LOG.trace("Loaded default preferences: " + toString());
             }
             
-            // Merge stored portlet preferences into preferences map.
+            // Merge stored portlet preferences into preferences map. The maps
+            // are shared as long as one of them contains all preferences.
             
             Map<String,PortletPreference> storedPreferences = preferencesService
             		.getStoredPreferences(window, request);
-            preferences.putAll(storedPreferences);
+            if (storedPreferences != null && !storedPreferences.isEmpty()) {
+                if (storedPreferences.keySet().containsAll(defaultPreferences.keySet())) {
+                    preferences = storedPreferences;
+                } else {
+                    preferences = new HashMap<String, PortletPreference>(defaultPreferences);
+                    preferences.putAll(storedPreferences);
+                }
+            }
         	
         } catch (PortletContainerException ex) {
             LOG.error("Error retrieving preferences.", ex);
@@ -138,7 +161,12 @@ public class PortletPreferencesImpl implements PortletPreferences {
     }
 
     public String getValue(String key, String defaultValue) {
-        String[] values = getValues(key, new String[] { defaultValue });
+        if (key == null) {
+            throw new IllegalArgumentException(
+                    EXCEPTIONS.getString("error.null", "Preference key "));
+        }
+        PortletPreference pref = preferences.get(key);
+        String[] values = (pref == null) ? null : pref.getValues();
         String value = defaultValue;
         if (values != null) {
             if (values.length == 0) {
@@ -163,6 +191,8 @@ public class PortletPreferencesImpl implements PortletPreferences {
         }
         if (values == null) {
             values = defaultValues;
+        } else {
+            values = values.clone();
         }
         return values;
     }
@@ -172,14 +202,8 @@ public class PortletPreferencesImpl implements PortletPreferences {
             throw new ReadOnlyException(EXCEPTIONS.getString(
                     "error.preference.readonly", key));
         }
-        PortletPreference pref = preferences.get(key);
         String[] values = value == null ? new String[0] : new String[] { value };
-        if (pref != null) {
-            pref.setValues(values);
-        } else {
-            pref = new PortletPreferenceImpl(key, values);
-            preferences.put(key, pref);
-        }
+        modifiablePreferences().put(key, new PortletPreferenceImpl(key, values));
     }
 
     public void setValues(String key, String... values) throws ReadOnlyException {
@@ -190,26 +214,19 @@ public class PortletPreferencesImpl implements PortletPreferences {
         if (values == null) {
             values = new String[0];
         }
-        PortletPreference pref = preferences.get(key);
-        if (pref != null) {
-            pref.setValues(values);
-        } else {
-            pref = new PortletPreferenceImpl(key, values);
-            preferences.put(key, pref);
-        }
+        modifiablePreferences().put(key, new PortletPreferenceImpl(key, values));
     }
 
     public Enumeration<String> getNames() {
+        // the enumeration must not be affected by later modifications
+        shared = true;
         return Collections.enumeration(preferences.keySet());
     }
 
     public Map<String,String[]> getMap() {
-        Map<String,String[]> map = new HashMap<String,String[]>();
-        for (PortletPreference pref : preferences.values()) {
-            map.put(pref.getName(),
-                    pref.getValues() != null ? pref.getValues().clone() : null);
-        }
-        return Collections.unmodifiableMap(map);
+        // the map must not be affected by later modifications
+        shared = true;
+        return new ValuesMap(preferences);
     }
     
     public void reset(String key) throws ReadOnlyException {
@@ -224,14 +241,16 @@ public class PortletPreferencesImpl implements PortletPreferences {
             if (LOG.isTraceEnabled()) {
                 LOG.trace("Resetting preference for key: " + key);
             }
-            preferences.put(key,p.clone());
+            modifiablePreferences().put(key, p);
         }       
         // Remove preference if default values are not defined (PLT.14.1).
         else {
         	if (LOG.isTraceEnabled()) {
         		LOG.trace("Resetting preference to null for key: " + key);
         	}
-        	preferences.remove(key);
+        	if (preferences.containsKey(key)) {
+        	    modifiablePreferences().remove(key);
+        	}
         }
     }
     
@@ -257,6 +276,17 @@ public class PortletPreferencesImpl implements PortletPreferences {
     
     // Private Methods ---------------------------------------------------------
     
+    /**
+     * Returns the preferences map for modification, copying it if it is shared.
+     */
+    private Map<String, PortletPreference> modifiablePreferences() {
+        if (shared) {
+            preferences = new HashMap<String, PortletPreference>(preferences);
+            shared = false;
+        }
+        return preferences;
+    }
+    
     /**
      * Stores the portlet preferences to a persistent storage. If a preferences
      * validator is defined for this portlet, this method firstly validates the
@@ -278,8 +308,9 @@ public class PortletPreferencesImpl implements PortletPreferences {
         {
             validator.validate(this);
         }
-        // Store the portlet preferences.
+        // Store the portlet preferences. The service may keep the map.
         try {
+        	shared = true;
         	preferencesService.store(window, request, preferences);
         } catch (PortletContainerException ex) {
             LOG.error("Error storing preferences.", ex);
@@ -319,4 +350,68 @@ public class PortletPreferencesImpl implements PortletPreferences {
     	buffer.append("]");
     	return buffer.toString();
     }
+    
+    
+    // Nested Classes ----------------------------------------------------------
+    
+    /**
+     * Unmodifiable view of the preference values by name. The value arrays are
+     * copied when they are retrieved.
+     */
+    private static class ValuesMap extends AbstractMap<String, String[]> {
+        
+        private final Map<String, PortletPreference> prefs;
+        
+        ValuesMap(Map<String, PortletPreference> prefs) {
+            this.prefs = prefs;
+        }
+        
+        @Override
+        public String[] get(Object key) {
+            PortletPreference pref = prefs.get(key);
+            return (pref == null) ? null : copy(pref.getValues());
+        }
+        
+        @Override
+        public boolean containsKey(Object key) {
+            return prefs.containsKey(key);
+        }
+        
+        @Override
+        public int size() {
+            return prefs.size();
+        }
+        
+        @Override
+        public Set<Map.Entry<String, String[]>> entrySet() {
+            return new AbstractSet<Map.Entry<String, String[]>>() {
+                @Override
+                public Iterator<Map.Entry<String, String[]>> iterator() {
+                    final Iterator<Map.Entry<String, PortletPreference>> it = prefs.entrySet().iterator();
+                    return new Iterator<Map.Entry<String, String[]>>() {
+                        public boolean hasNext() {
+                            return it.hasNext();
+                        }
+                        public Map.Entry<String, String[]> next() {
+                            Map.Entry<String, PortletPreference> entry = it.next();
+                            return new SimpleImmutableEntry<String, String[]>(entry.getKey(),
+                                    copy(entry.getValue().getValues()));
+                        }
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+                
+                @Override
+                public int size() {
+                    return prefs.size();
+                }
+            };
+        }
+        
+        private static String[] copy(String[] values) {
+            return (values == null) ? null : values.clone();
+        }
+    }
 }
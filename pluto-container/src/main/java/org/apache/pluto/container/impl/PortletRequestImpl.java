@@ -287,7 +287,7 @@ public abstract class PortletRequestImpl implements PortletRequest
     public String getParameter(String name)
     {
         ArgumentUtility.validateNotNull("parameterName", name);
-        String[] values = requestContext.getParameterMap().get(name);
+        String[] values = lookupParameterValues(name);
         return values != null && values.length > 0 ? values[0] : null;
     }
 
@@ -304,10 +304,19 @@ public abstract class PortletRequestImpl implements PortletRequest
     public String[] getParameterValues(String name)
     {
         ArgumentUtility.validateNotNull("parameterName", name);
-        String[] values =  requestContext.getParameterMap().get(name);
+        String[] values = lookupParameterValues(name);
         return values != null ? values.clone() : null;
     }
 
+    private String[] lookupParameterValues(String name)
+    {
+        if (requestContext instanceof ParameterValuesLookup)
+        {
+            return ((ParameterValuesLookup) requestContext).getParameterValues(name);
+        }
+        return requestContext.getParameterMap().get(name);
+    }
+
     public PortalContext getPortalContext()
     {
         return portalContext;
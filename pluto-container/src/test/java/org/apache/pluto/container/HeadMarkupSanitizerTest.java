@@ -0,0 +1,312 @@
+/*  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.apache.pluto.container;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.Text;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Differential test of the head markup sanitizer against the DOM based processing
+ * that was previously used by {@link HeaderData}.
+ * <p>
+ * The outputs differ in attribute order and indentation, so both outputs are normalized
+ * by running them through the DOM based processing once more and removing the white space
+ * between tags before comparison.
+ */
+public class HeadMarkupSanitizerTest {
+
+   /** Markup that both implementations accept. */
+   private static final String[] VALID = {
+      "",
+      "   \n\t ",
+      "<meta name='description' content='Test'>",
+      "<meta name=\"description\" content=\"Test\"/>",
+      "<meta name=\"description\" content=\"Test\"></meta>",
+      "<link rel=\"stylesheet\" href=\"/pluto/css/a.css\" type=\"text/css\">",
+      "<link rel=\"stylesheet\" href=\"/pluto/css/a.css?x=1&amp;y=2\"/>\n<meta charset=\"UTF-8\">",
+      "<script src=\"/pluto/js/a.js\"></script>",
+      "<script type=\"text/javascript\">if (a < b && c > d) { alert('<b>'); }</script>",
+      "<script>\nvar s = \"</div>\";\n</script>\n<style>a > b { color: red; }</style>",
+      "<style type=\"text/css\">\n  body { margin: 0; }\n</style>",
+      "<!-- a comment -->\n<script src=\"b.js\"></script>",
+      "<noscript><link rel=\"stylesheet\" href=\"nojs.css\"></noscript>",
+      "<noscript><style>.js { display: none; }</style></noscript>",
+      "<meta content=\"q &quot;quoted&quot; q\" name='x'>",
+      "<script src='a.js' ></script>\n\n<script src='b.js'></script>\n<link rel='icon' href='i.png'>",
+   };
+
+   /** Markup with disallowed content that is removed, or rejected when arguments are checked. */
+   private static final String[] INVALID = {
+      "some text",
+      "<title>Title</title>",
+      "<div>content</div><script src=\"a.js\"></script>",
+      "<meta name=\"a\" content=\"b\">text<link rel=\"x\" href=\"y\">",
+      "<base href=\"/\"/><script src=\"a.js\"></script>",
+      "<div><div>nested</div></div><style>p {}</style>",
+      "<?pi data?><script src=\"a.js\"></script>",
+   };
+
+   /**
+    * Markup that the DOM based processing could not parse, with the expected output. The DOM based
+    * processing rewrote a self-closed meta or link tag that is followed by another tag into
+    * invalid markup, and handled lower case tag names only.
+    */
+   private static final String[][] LENIENT = {
+      { "<link rel=\"icon\" href=\"i.png\"/><script src=\"a.js\"></script>",
+        "<link rel=\"icon\" href=\"i.png\">\n<script src=\"a.js\"></script>\n" },
+      { "<META NAME=\"keywords\" CONTENT=\"a, b\">",
+        "<META NAME=\"keywords\" CONTENT=\"a, b\">\n" },
+      { "<SCRIPT>if (a < b) {}</SCRIPT>",
+        "<SCRIPT>if (a < b) {}</SCRIPT>\n" },
+   };
+
+   /** Markup that cannot be parsed. */
+   private static final String[] MALFORMED = {
+      "<script src=\"a.js\">",
+      "<div>",
+      "</script>",
+      "<meta name=\"a\"",
+      "<!-- unterminated",
+      "< script></script>",
+   };
+
+   @Test
+   public void valid() throws Exception {
+      for (String src : VALID) {
+         compare(src, true);
+         compare(src, false);
+      }
+   }
+
+   @Test
+   public void invalid() throws Exception {
+      for (String src : INVALID) {
+         compare(src, false);
+         assertRejected(src, true);
+      }
+   }
+
+   @Test
+   public void malformed() throws Exception {
+      for (String src : MALFORMED) {
+         assertRejected(src, false);
+         assertRejected(src, true);
+      }
+   }
+
+   @Test
+   public void elements() throws Exception {
+      Document doc = DomHeadMarkup.newDocument();
+      Element root = doc.getDocumentElement();
+
+      Element meta = doc.createElement("meta");
+      meta.setAttribute("name", "description");
+      meta.setAttribute("content", "a \"quoted\" & escaped value");
+      root.appendChild(meta);
+
+      Element script = doc.createElement("script");
+      script.setAttribute("type", "text/javascript");
+      script.appendChild(doc.createTextNode("if (a < b && c) { x(); }"));
+      root.appendChild(script);
+
+      Element noscript = doc.createElement("noscript");
+      Element link = doc.createElement("link");
+      link.setAttribute("rel", "stylesheet");
+      link.setAttribute("href", "nojs.css");
+      noscript.appendChild(link);
+      root.appendChild(noscript);
+
+      StringBuilder txt = new StringBuilder();
+      for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+         HeadMarkupSanitizer.writeElement((Element) node, txt);
+      }
+
+      assertEquals(normalize(DomHeadMarkup.getTags(doc)), normalize(txt.toString()));
+   }
+
+   @Test
+   public void lenient() throws Exception {
+      for (String[] test : LENIENT) {
+         try {
+            DomHeadMarkup.getTagsFromText(test[0], true);
+            fail("DOM processing accepted: " + test[0]);
+         } catch (IllegalArgumentException e) {
+         }
+         assertEquals(test[1], HeadMarkupSanitizer.sanitize(test[0], true));
+      }
+   }
+
+   @Test
+   public void scriptContent() {
+      String src = "<script>if (a < b && c) { x('</p>'); }</script>";
+      assertEquals(src + "\n", HeadMarkupSanitizer.sanitize(src, true));
+   }
+
+   @Test
+   public void headerData() {
+      HeaderData hd = new HeaderData();
+      Element meta = hd.createElement("meta");
+      meta.setAttribute("name", "a");
+      hd.addHeaderTag(meta);
+      hd.addHeaderTag(hd.createElement("div"));
+      hd.getWriter().write("<link rel=\"icon\" href=\"i.png\"><p>dropped</p>");
+
+      String markup = hd.getHeadSectionMarkup();
+      assertTrue(markup, markup.startsWith("<meta name=\"a\">\n"));
+      assertTrue(markup, markup.endsWith("-->\n<link rel=\"icon\" href=\"i.png\">\n"));
+   }
+
+   private void compare(String src, boolean chkArgs) throws Exception {
+      String expected = DomHeadMarkup.getTagsFromText(src, chkArgs);
+      String actual = HeadMarkupSanitizer.sanitize(src, chkArgs);
+      assertEquals(src, normalize(expected), normalize(actual));
+   }
+
+   private String normalize(String markup) throws Exception {
+      return DomHeadMarkup.getTagsFromText(markup, true).replaceAll(">\\s+<", "><").trim();
+   }
+
+   private void assertRejected(String src, boolean chkArgs) throws Exception {
+      try {
+         DomHeadMarkup.getTagsFromText(src, chkArgs);
+         fail("DOM processing accepted: " + src);
+      } catch (IllegalArgumentException e) {
+      }
+      try {
+         HeadMarkupSanitizer.sanitize(src, chkArgs);
+         fail("Sanitizer accepted: " + src);
+      } catch (IllegalArgumentException e) {
+      }
+   }
+
+   /**
+    * The DOM based head markup processing as previously implemented by {@link HeaderData}.
+    */
+   private static class DomHeadMarkup {
+
+      private static final String      ROOT_ELEMENT       = "rootElement";
+      private static final String      ROOT_ELEMENT_REGEX = "(?:\\s*)</{0,1}" + ROOT_ELEMENT + ">(?:\\s*)";
+      private static final Set<String> allowedTags        = new HashSet<String>(Arrays.asList(new String[] {
+            "META", "LINK", "STYLE", "SCRIPT", "NOSCRIPT" }));
+
+      static DocumentBuilder newBuilder() throws Exception {
+         DocumentBuilderFactory dbfac = DocumentBuilderFactory.newInstance();
+         dbfac.setExpandEntityReferences(true);
+         DocumentBuilder docBuilder = dbfac.newDocumentBuilder();
+         docBuilder.setErrorHandler(new ErrorHandler() {
+            public void warning(SAXParseException arg0) throws SAXException {
+            }
+
+            public void fatalError(SAXParseException arg0) throws SAXException {
+            }
+
+            public void error(SAXParseException arg0) throws SAXException {
+            }
+         });
+         return docBuilder;
+      }
+
+      static Document newDocument() throws Exception {
+         Document doc = newBuilder().newDocument();
+         doc.appendChild(doc.createElement(ROOT_ELEMENT));
+         return doc;
+      }
+
+      static String getTags(Document doc) throws Exception {
+         StringWriter sw = new StringWriter();
+         Transformer trans = TransformerFactory.newInstance().newTransformer();
+         trans.setOutputProperty(OutputKeys.INDENT, "yes");
+         trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+         trans.setOutputProperty(OutputKeys.METHOD, "html");
+         trans.transform(new DOMSource(doc), new StreamResult(sw));
+         return sw.toString().replaceAll(ROOT_ELEMENT_REGEX, "");
+      }
+
+      static String getTagsFromText(String src, boolean chkArgs) throws Exception {
+         StringBuffer sb = new StringBuffer(128);
+         sb.append("<" + ROOT_ELEMENT + ">");
+         src = src.replaceAll("(<(?:meta|link).*?[^/])>", "$1/>");
+         src = src.replaceAll("</(?:meta|link)>", "");
+         Pattern pat = Pattern.compile("(?s)(?<=<(script|style))(.*?)(?=</(script|style))");
+         Matcher mat = pat.matcher(src);
+         while (mat.find()) {
+            mat.appendReplacement(sb, mat.group().replaceAll("&", "&amp;").replaceAll("<", "&lt;"));
+         }
+         mat.appendTail(sb);
+         sb.append("</" + ROOT_ELEMENT + ">");
+
+         Document adoc;
+         try {
+            adoc = newBuilder().parse(new InputSource(new StringReader(sb.toString())));
+         } catch (SAXParseException e) {
+            throw new IllegalArgumentException("Problem parsing tag data: " + src, e);
+         }
+
+         Element aroot = adoc.getDocumentElement();
+         NodeList nodes = aroot.getChildNodes();
+         for (int ii = 0; ii < nodes.getLength(); ii++) {
+            Node node = nodes.item(ii);
+            int type = node.getNodeType();
+            boolean valid;
+            if (type == Node.TEXT_NODE) {
+               valid = ((Text) node).getWholeText().matches("^\\s*$");
+            } else if (type == Node.ELEMENT_NODE) {
+               valid = allowedTags.contains(((Element) node).getTagName().toUpperCase());
+            } else {
+               valid = (type == Node.COMMENT_NODE);
+            }
+            if (!valid) {
+               if (chkArgs) {
+                  throw new IllegalArgumentException("Invalid node: " + node.getNodeName());
+               }
+               aroot.removeChild(node);
+            }
+         }
+         return getTags(adoc);
+      }
+   }
+}
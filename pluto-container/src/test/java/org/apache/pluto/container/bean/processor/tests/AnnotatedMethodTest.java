@@ -0,0 +1,128 @@
+/*  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.apache.pluto.container.bean.processor.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import org.apache.pluto.container.bean.processor.AnnotatedMethod;
+import org.junit.Test;
+
+/**
+ * Tests invocation through the annotated method independently of CDI. 
+ */
+public class AnnotatedMethodTest {
+
+   public static class Target {
+      public String value;
+      public String render(String a, int b) {
+         return a + b;
+      }
+      public void store(String a) {
+         value = a;
+      }
+      public void fail() throws IOException {
+         throw new IOException("expected");
+      }
+      public void reject(String a) {
+         throw new IllegalArgumentException(a);
+      }
+      String hidden() {
+         return "hidden";
+      }
+   }
+   
+   private AnnotatedMethod meth(Target target, String name, Class<?>... types) throws Exception {
+      Method m = Target.class.getDeclaredMethod(name, types);
+      return new AnnotatedMethod(Target.class, target, m, null);
+   }
+
+   @Test
+   public void invokeTest() throws Exception {
+      Target target = new Target();
+      assertEquals("abc5", meth(target, "render", String.class, int.class).invoke("abc", 5));
+      assertNull(meth(target, "store", String.class).invoke("stored"));
+      assertEquals("stored", target.value);
+   }
+
+   @Test
+   public void exceptionTest() throws Exception {
+      try {
+         meth(new Target(), "fail").invoke();
+         fail("Exception should have been thrown");
+      } catch (InvocationTargetException e) {
+         assertSame(IOException.class, e.getCause().getClass());
+      }
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void argumentCountTest() throws Exception {
+      meth(new Target(), "store", String.class).invoke("a", "b");
+   }
+
+   @Test
+   public void methodArgumentExceptionTest() throws Exception {
+      // an IllegalArgumentException thrown by the method itself is wrapped
+      try {
+         meth(new Target(), "reject", String.class).invoke("a");
+         fail("Exception should have been thrown");
+      } catch (InvocationTargetException e) {
+         assertSame(IllegalArgumentException.class, e.getCause().getClass());
+      }
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void argumentTypeTest() throws Exception {
+      meth(new Target(), "store", String.class).invoke(5);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void nullPrimitiveTest() throws Exception {
+      meth(new Target(), "render", String.class, int.class).invoke("a", null);
+   }
+
+   @Test
+   public void wideningTest() throws Exception {
+      // reflection applies the widening conversion the method handle does not
+      assertEquals("a5", meth(new Target(), "render", String.class, int.class).invoke("a", (short) 5));
+   }
+
+   @Test(expected = NullPointerException.class)
+   public void nullTargetTest() throws Exception {
+      meth(null, "store", String.class).invoke("a");
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void wrongTargetTest() throws Exception {
+      Method m = Target.class.getDeclaredMethod("store", String.class);
+      new AnnotatedMethod(Target.class, "not a target", m, null).invoke("a");
+   }
+
+   @Test(expected = IllegalAccessException.class)
+   public void notAccessibleTest() throws Exception {
+      // falls back to reflection, which reports the access problem
+      meth(new Target(), "hidden").invoke();
+   }
+}
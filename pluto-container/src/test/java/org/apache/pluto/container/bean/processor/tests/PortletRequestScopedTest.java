@@ -0,0 +1,119 @@
+/*  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.apache.pluto.container.bean.processor.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.enterprise.context.ContextNotActiveException;
+import javax.enterprise.context.spi.Contextual;
+import javax.enterprise.context.spi.CreationalContext;
+
+import org.apache.pluto.container.bean.processor.PortletRequestScopedBeanHolder;
+import org.apache.pluto.container.bean.processor.PortletRequestScopedContext;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test class for the PortletRequestScoped context
+ */
+public class PortletRequestScopedTest {
+   
+   private final List<String> destroyed = new ArrayList<String>();
+   
+   private class TestBean implements Contextual<String> {
+      private final String name;
+      TestBean(String name) {
+         this.name = name;
+      }
+      public String create(CreationalContext<String> crco) {
+         return new String(name);
+      }
+      public void destroy(String instance, CreationalContext<String> crco) {
+         destroyed.add(instance);
+      }
+   }
+   
+   private static final CreationalContext<String> crco = new CreationalContext<String>() {
+      public void push(String incompleteInstance) {
+      }
+      public void release() {
+      }
+   };
+   
+   @After
+   public void tearDown() {
+      PortletRequestScopedBeanHolder.removeBeanHolder();
+   }
+
+   @Test(expected = ContextNotActiveException.class)
+   public void notActiveTest() {
+      PortletRequestScopedContext ctx = new PortletRequestScopedContext();
+      assertFalse(ctx.isActive());
+      ctx.get(new TestBean("a"));
+   }
+
+   @Test
+   public void beanTest() {
+      TestBean a = new TestBean("a");
+      TestBean b = new TestBean("b");
+      PortletRequestScopedContext ctx = new PortletRequestScopedContext(Arrays.asList(new TestBean[] {a}));
+      
+      PortletRequestScopedBeanHolder.setBeanHolder();
+      assertTrue(ctx.isActive());
+      assertNull(ctx.get(a));
+      
+      String ia = ctx.get(a, crco);
+      String ib = ctx.get(b, crco);
+      assertEquals("a", ia);
+      assertEquals("b", ib);
+      assertSame(ia, ctx.get(a, crco));
+      assertSame(ib, ctx.get(b));
+      
+      PortletRequestScopedBeanHolder.removeBeanHolder();
+      assertEquals(2, destroyed.size());
+      assertTrue(destroyed.contains("a") && destroyed.contains("b"));
+   }
+
+   @Test
+   public void separateContextsTest() {
+      
+      // contexts of different bean managers assign the same ordinal numbers
+      TestBean a = new TestBean("a");
+      TestBean b = new TestBean("b");
+      PortletRequestScopedContext ctx1 = new PortletRequestScopedContext();
+      PortletRequestScopedContext ctx2 = new PortletRequestScopedContext();
+      
+      PortletRequestScopedBeanHolder.setBeanHolder();
+      String ia = ctx1.get(a, crco);
+      String ib = ctx2.get(b, crco);
+      assertSame(ia, ctx1.get(a));
+      assertSame(ib, ctx2.get(b));
+      
+      PortletRequestScopedBeanHolder.removeBeanHolder();
+      assertEquals(2, destroyed.size());
+   }
+}
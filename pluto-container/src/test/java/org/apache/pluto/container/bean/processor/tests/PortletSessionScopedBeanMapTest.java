@@ -0,0 +1,183 @@
+/*  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.apache.pluto.container.bean.processor.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.enterprise.context.spi.Contextual;
+import javax.enterprise.context.spi.CreationalContext;
+import javax.enterprise.inject.spi.PassivationCapable;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+
+import org.apache.pluto.container.bean.processor.PortletSessionScopedBeanMap;
+import org.junit.Test;
+
+/**
+ * Test class for the portlet session scoped bean map
+ */
+public class PortletSessionScopedBeanMapTest {
+   
+   private static final List<String> destroyed = new ArrayList<String>();
+   private static int released;
+   
+   private static class TestBean implements Contextual<String>, PassivationCapable {
+      private final String name;
+      TestBean(String name) {
+         this.name = name;
+      }
+      public String create(CreationalContext<String> crco) {
+         return new String(name);
+      }
+      public void destroy(String instance, CreationalContext<String> crco) {
+         destroyed.add(instance);
+      }
+      public String getId() {
+         return name;
+      }
+   }
+   
+   private static class TestCreationalContext implements CreationalContext<String>, Serializable {
+      private static final long serialVersionUID = 1L;
+      public void push(String incompleteInstance) {
+      }
+      public void release() {
+         released++;
+      }
+   }
+   
+   private HttpSessionBindingEvent event(final Object value) {
+      HttpSession session = (HttpSession) Proxy.newProxyInstance(getClass().getClassLoader(), 
+            new Class<?>[] {HttpSession.class}, new InvocationHandler() {
+         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("getAttribute")) {
+               return value;
+            }
+            return null;
+         }
+      });
+      return new HttpSessionBindingEvent(session, "beans");
+   }
+
+   @Test
+   public void putTest() {
+      PortletSessionScopedBeanMap map = new PortletSessionScopedBeanMap();
+      TestBean a = new TestBean("a");
+      assertNull(map.getBeanInstance(a));
+      assertFalse(map.isDirty());
+      
+      String ia = map.putBeanInstance(a, new TestCreationalContext(), "a");
+      assertSame(ia, map.getBeanInstance(a));
+      assertTrue(map.isDirty());
+      map.clearDirty();
+      
+      // the first instance wins
+      assertSame(ia, map.putBeanInstance(a, new TestCreationalContext(), new String("a")));
+      assertSame(ia, map.getBeanInstance(a));
+      assertTrue(map.isDirty());
+   }
+
+   @Test
+   public void unboundTest() {
+      destroyed.clear();
+      PortletSessionScopedBeanMap map = new PortletSessionScopedBeanMap();
+      TestBean a = new TestBean("a");
+      map.putBeanInstance(a, new TestCreationalContext(), "a");
+      
+      // set again on the session for replication
+      map.valueUnbound(event(map));
+      assertEquals(0, destroyed.size());
+      assertEquals("a", map.getBeanInstance(a));
+      
+      map.valueUnbound(event(null));
+      assertEquals(1, destroyed.size());
+      assertNull(map.getBeanInstance(a));
+   }
+
+   @Test
+   public void unboundPassivatedTest() throws Exception {
+      PortletSessionScopedBeanMap map = new PortletSessionScopedBeanMap();
+      TestBean a = new TestBean("a");
+      TestBean b = new TestBean("b");
+      map.putBeanInstance(a, new TestCreationalContext(), "a");
+      map.putBeanInstance(b, new TestCreationalContext(), "b");
+      
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(bos);
+      oos.writeObject(map);
+      oos.close();
+      ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+      PortletSessionScopedBeanMap copy = (PortletSessionScopedBeanMap) ois.readObject();
+      assertEquals("a", copy.getBeanInstance(a));
+      
+      // the accessed bean is destroyed, the bean that was never accessed cannot be 
+      // resolved without a bean manager, so its creational context is released
+      destroyed.clear();
+      released = 0;
+      copy.valueUnbound(event(null));
+      assertEquals(1, destroyed.size());
+      assertEquals("a", destroyed.get(0));
+      assertEquals(2, released);
+      assertNull(copy.getBeanInstance(b));
+   }
+
+   @Test
+   public void serializationTest() throws Exception {
+      PortletSessionScopedBeanMap map = new PortletSessionScopedBeanMap();
+      TestBean a = new TestBean("a");
+      TestBean b = new TestBean("b");
+      map.putBeanInstance(a, new TestCreationalContext(), "a");
+      map.putBeanInstance(b, new TestCreationalContext(), "b");
+      
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(bos);
+      oos.writeObject(map);
+      oos.close();
+      ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+      PortletSessionScopedBeanMap copy = (PortletSessionScopedBeanMap) ois.readObject();
+      
+      assertFalse(copy.isDirty());
+      assertEquals("a", copy.getBeanInstance(a));
+      
+      // beans that were not accessed are written again
+      bos = new ByteArrayOutputStream();
+      oos = new ObjectOutputStream(bos);
+      oos.writeObject(copy);
+      oos.close();
+      ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+      copy = (PortletSessionScopedBeanMap) ois.readObject();
+      assertEquals("a", copy.getBeanInstance(new TestBean("a")));
+      assertEquals("b", copy.getBeanInstance(b));
+   }
+}
@@ -168,4 +168,10 @@ public class PortletSessionScopedTest {
       assertNotNull(summary.getSessionBeanErrorString(SessionScopedPortletBad2.class));
       assertNotNull(summary.getSessionBeanErrorString(SessionScopedPortletBad3.class));
    }
+   
+   @Test
+   public void scopeUsedTest() {
+      assertTrue(acb.isSessionScopeUsed());
+      assertTrue(acb.isStateScopeUsed());
+   }
 }
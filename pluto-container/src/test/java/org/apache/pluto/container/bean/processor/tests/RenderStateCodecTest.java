@@ -0,0 +1,95 @@
+/*  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.apache.pluto.container.bean.processor.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.pluto.container.bean.processor.RenderStateCodec;
+import org.junit.Test;
+
+/**
+ * Tests the compact encoding of the render state scoped bean values.
+ */
+public class RenderStateCodecTest {
+
+   @Test
+   public void roundTripTest() throws Exception {
+      Map<String, String[]> state = new TreeMap<String, String[]>();
+      state.put("bean1", new String[] {"value1", "value2"});
+      state.put("bean2", new String[] {"", null, "\u00e4\u00f6\u00fc \u20ac"});
+      state.put("bean3", new String[0]);
+      state.put("bean4", null);
+
+      String token = RenderStateCodec.encode(state);
+      Map<String, String[]> result = RenderStateCodec.decode(token);
+      assertEquals(4, result.size());
+      assertArrayEquals(state.get("bean1"), result.get("bean1"));
+      assertArrayEquals(state.get("bean2"), result.get("bean2"));
+      assertArrayEquals(state.get("bean3"), result.get("bean3"));
+      assertTrue(result.containsKey("bean4"));
+      assertNull(result.get("bean4"));
+
+      // the same state results in the same token
+      assertEquals(token, RenderStateCodec.encode(new TreeMap<String, String[]>(state)));
+
+      assertTrue(RenderStateCodec.decode(RenderStateCodec.encode(new HashMap<String, String[]>())).isEmpty());
+   }
+
+   @Test
+   public void compressionTest() throws Exception {
+      Map<String, String[]> state = new TreeMap<String, String[]>();
+      int length = 0;
+      for (int ii = 0; ii < 20; ii++) {
+         String val = "org.apache.pluto.example.SomeStateBean-" + ii;
+         state.put("bean" + ii, new String[] {val, val});
+         length += 2 * val.length();
+      }
+
+      String token = RenderStateCodec.encode(state);
+      assertTrue(token.startsWith("1z"));
+      assertTrue(token.length() < length);
+      assertTrue(token.matches("[A-Za-z0-9_\\-]+"));
+      assertEquals(20, RenderStateCodec.decode(token).size());
+      assertArrayEquals(state.get("bean7"), RenderStateCodec.decode(token).get("bean7"));
+   }
+
+   @Test
+   public void invalidTokenTest() throws Exception {
+      String token = RenderStateCodec.encode(new HashMap<String, String[]>(
+            Collections.singletonMap("bean", new String[] {"value"})));
+      String[] invalid = {"", "1", "2p" + token.substring(2), "1x" + token.substring(2),
+            "1p!!!!", token.substring(0, token.length() - 2), "1zAAAAAAAA"};
+      for (String tok : invalid) {
+         try {
+            RenderStateCodec.decode(tok);
+            fail("Expected exception for token: " + tok);
+         } catch (IllegalArgumentException e) {
+         }
+      }
+   }
+}
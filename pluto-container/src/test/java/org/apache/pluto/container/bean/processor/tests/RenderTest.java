@@ -21,6 +21,7 @@ package org.apache.pluto.container.bean.processor.tests;
 import static org.apache.pluto.container.bean.processor.MethodType.RENDER;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -372,4 +373,30 @@ public class RenderTest {
       assertEquals(0, qns.size());
    }
 
+   @Test
+   public void scopeNotUsedTest() throws Exception {
+      assertFalse(acb.isSessionScopeUsed());
+      assertFalse(acb.isStateScopeUsed());
+   }
+
+   @Test
+   public void dispatchTest() throws Exception {
+      for (String pn : ams.getPortletNames()) {
+         for (MethodIdentifier mi : ams.getMethodIDsForPortlet(pn)) {
+            List<AnnotatedMethod> list = ams.getDispatchMethods(pn, mi.getType(), mi.getId());
+            assertEquals(ams.getMethods(mi), list);
+         }
+         
+         // unknown dispatch IDs fall back to the default dispatch ID
+         MethodIdentifier mi = new MethodIdentifier(pn, "", RENDER);
+         assertEquals(ams.getMethods(mi), ams.getDispatchMethods(pn, RENDER, "UNKNOWN"));
+      }
+      assertEquals(0, ams.getDispatchMethods("unknown", RENDER, "VIEW").size());
+      
+      List<AnnotatedMethod> list = ams.getDispatchMethods("portlet3", RENDER, "VIEW");
+      assertEquals(3, list.size());
+      assertEquals("render3c", list.get(0).getJavaMethod().getName());
+      assertTrue(list == ams.getDispatchMethods("portlet3", RENDER, "VIEW"));
+   }
+
 }
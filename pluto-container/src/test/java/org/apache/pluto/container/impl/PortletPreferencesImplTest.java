@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.container.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.portlet.PortletRequest;
+import javax.portlet.PreferencesValidator;
+import javax.portlet.ReadOnlyException;
+
+import org.apache.pluto.container.ContainerServices;
+import org.apache.pluto.container.PortletContainer;
+import org.apache.pluto.container.PortletPreference;
+import org.apache.pluto.container.PortletPreferencesService;
+import org.apache.pluto.container.PortletWindow;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.jmock.Mock;
+import org.jmock.cglib.MockObjectTestCase;
+
+/**
+ * Tests that the portlet preferences copy the maps shared with the preferences
+ * service before they are modified.
+ */
+public class PortletPreferencesImplTest extends MockObjectTestCase
+{
+    private TestService service;
+    private PortletContainer container;
+    private PortletWindow window;
+    private PortletRequest request;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        service = new TestService();
+        service.defaults.put("a", new PortletPreferenceImpl("a", new String[] {"default a"}));
+        service.defaults.put("b", new PortletPreferenceImpl("b", new String[] {"default b"}, true));
+        service.stored.put("a", new PortletPreferenceImpl("a", new String[] {"stored a"}));
+        service.stored.put("b", new PortletPreferenceImpl("b", new String[] {"stored b"}));
+        service.stored.put("c", new PortletPreferenceImpl("c", new String[] {"stored c"}));
+
+        Mock mockServices = mock(ContainerServices.class);
+        mockServices.stubs().method("getPortletPreferencesService").will(returnValue(service));
+        Mock mockContainer = mock(PortletContainer.class);
+        mockContainer.stubs().method("getContainerServices").will(returnValue(mockServices.proxy()));
+        container = (PortletContainer) mockContainer.proxy();
+        Mock mockWindow = mock(PortletWindow.class);
+        mockWindow.stubs().method("getPortletDefinition").will(returnValue(null));
+        window = (PortletWindow) mockWindow.proxy();
+        Mock mockRequest = mock(PortletRequest.class);
+        mockRequest.stubs().method("getAttribute").will(returnValue(PortletRequest.ACTION_PHASE));
+        request = (PortletRequest) mockRequest.proxy();
+    }
+
+    public void testMapNotAffectedByWrites() throws Exception
+    {
+        PortletPreferencesImpl prefs = new PortletPreferencesImpl(container, window, request);
+        Map<String, String[]> map = prefs.getMap();
+        prefs.setValue("a", "changed");
+        prefs.setValues("d", "new");
+        prefs.reset("c");
+
+        assertEquals(3, map.size());
+        assertEquals("stored a", map.get("a")[0]);
+        assertEquals("stored c", map.get("c")[0]);
+        assertFalse(map.containsKey("d"));
+        assertEquals("changed", prefs.getValue("a", null));
+
+        // the returned values are copies
+        map.get("a")[0] = "modified";
+        assertEquals("stored a", map.get("a")[0]);
+        try {
+            map.remove("a");
+            fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+        }
+    }
+
+    public void testResetWithoutDefault() throws Exception
+    {
+        PortletPreferencesImpl prefs = new PortletPreferencesImpl(container, window, request);
+        assertEquals("stored c", prefs.getValue("c", null));
+        prefs.reset("c");
+        assertNull(prefs.getValue("c", null));
+        assertFalse(prefs.getMap().containsKey("c"));
+        assertFalse(Collections.list(prefs.getNames()).contains("c"));
+        assertTrue(service.stored.containsKey("c"));
+    }
+
+    public void testResetRestoresDefault() throws Exception
+    {
+        PortletPreferencesImpl prefs = new PortletPreferencesImpl(container, window, request);
+        assertFalse(prefs.isReadOnly("b"));
+        prefs.setValue("b", "changed");
+        prefs.reset("b");
+        assertEquals("default b", prefs.getValue("b", null));
+        assertTrue(prefs.isReadOnly("b"));
+        try {
+            prefs.setValue("b", "changed");
+            fail("Expected ReadOnlyException");
+        } catch (ReadOnlyException e) {
+        }
+
+        prefs.reset("a");
+        assertEquals("default a", prefs.getValue("a", null));
+        assertFalse(prefs.isReadOnly("a"));
+    }
+
+    public void testServiceMapsNotModified() throws Exception
+    {
+        PortletPreferencesImpl prefs = new PortletPreferencesImpl(container, window, request);
+        prefs.setValue("a", "changed");
+        prefs.setValues("b", "x", "y");
+        prefs.setValues("d", "new");
+        prefs.reset("c");
+        prefs.getValues("b", null)[0] = "modified";
+
+        assertDefaults();
+        assertStored();
+        assertEquals(Arrays.asList("x", "y"), Arrays.asList(prefs.getValues("b", null)));
+    }
+
+    public void testWritesAfterStore() throws Exception
+    {
+        service.stored.clear();
+        PortletPreferencesImpl prefs = new PortletPreferencesImpl(container, window, request);
+        prefs.setValue("a", "first");
+        prefs.store();
+        Map<String, PortletPreference> saved = service.saved;
+        assertEquals("first", saved.get("a").getValues()[0]);
+
+        prefs.setValue("a", "second");
+        prefs.setValue("d", "new");
+        prefs.reset("a");
+        assertSame(saved, service.saved);
+        assertEquals(2, saved.size());
+        assertEquals("first", saved.get("a").getValues()[0]);
+        assertFalse(saved.containsKey("d"));
+        assertDefaults();
+
+        prefs.setValue("a", "third");
+        prefs.store();
+        assertNotSame(saved, service.saved);
+        assertEquals("third", service.saved.get("a").getValues()[0]);
+        assertEquals("first", saved.get("a").getValues()[0]);
+    }
+
+    private void assertDefaults()
+    {
+        assertEquals(2, service.defaults.size());
+        assertEquals("default a", service.defaults.get("a").getValues()[0]);
+        assertEquals("default b", service.defaults.get("b").getValues()[0]);
+        assertTrue(service.defaults.get("b").isReadOnly());
+    }
+
+    private void assertStored()
+    {
+        assertEquals(3, service.stored.size());
+        assertEquals("stored a", service.stored.get("a").getValues()[0]);
+        assertEquals("stored b", service.stored.get("b").getValues()[0]);
+        assertEquals("stored c", service.stored.get("c").getValues()[0]);
+        assertFalse(service.stored.get("b").isReadOnly());
+    }
+
+    /**
+     * Hands out its maps as a preferences service would, and keeps the stored
+     * map.
+     */
+    private static class TestService implements PortletPreferencesService
+    {
+        final Map<String, PortletPreference> defaults = new HashMap<String, PortletPreference>();
+        final Map<String, PortletPreference> stored = new HashMap<String, PortletPreference>();
+        Map<String, PortletPreference> saved;
+
+        public Map<String, PortletPreference> getDefaultPreferences(PortletWindow portletWindow,
+                PortletRequest request)
+        {
+            return defaults;
+        }
+
+        public Map<String, PortletPreference> getStoredPreferences(PortletWindow portletWindow,
+                PortletRequest request)
+        {
+            return stored;
+        }
+
+        public void store(PortletWindow portletWindow, PortletRequest request,
+                Map<String, PortletPreference> preferences)
+        {
+            saved = preferences;
+        }
+
+        public PreferencesValidator getPreferencesValidator(PortletDefinition portletDefinition)
+        {
+            return null;
+        }
+    }
+}
@@ -21,16 +21,17 @@ import org.apache.pluto.container.PortletContainer;
 import org.apache.pluto.container.PortletContainerException;
 import org.apache.pluto.container.PortletWindow;
 import org.apache.pluto.container.driver.PortletContextService;
+import org.apache.pluto.container.driver.PortletRegistryEvent;
+import org.apache.pluto.container.driver.PortletRegistryListener;
 import org.apache.pluto.container.driver.PortletRegistryService;
 import org.apache.pluto.container.om.portlet.EventDefinition;
-import org.apache.pluto.container.om.portlet.EventDefinitionReference;
 import org.apache.pluto.container.om.portlet.PortletApplicationDefinition;
-import org.apache.pluto.container.om.portlet.PortletDefinition;
 import org.apache.pluto.driver.AttributeKeys;
 import org.apache.pluto.driver.config.DriverConfiguration;
 import org.apache.pluto.driver.core.PortalRequestContext;
+import org.apache.pluto.driver.core.PortletRenderCache;
 import org.apache.pluto.driver.core.PortletWindowImpl;
-import org.apache.pluto.driver.services.portal.PageConfig;
+import org.apache.pluto.driver.core.ResourceResponseCache;
 import org.apache.pluto.driver.services.portal.PortletWindowConfig;
 import org.apache.pluto.driver.url.PortalURL;
 import org.apache.pluto.driver.url.impl.PortalURLParserImpl;
@@ -42,377 +43,322 @@ import javax.portlet.PortletException;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Unmarshaller;
 import javax.xml.namespace.QName;
-import javax.xml.parsers.FactoryConfigurationError;
-import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.FactoryConfigurationError;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamReader;
 
 import java.io.IOException;
 import java.io.Serializable;
-import java.io.StringReader;
 import java.util.*;
 
-public class EventCoordinationServiceImpl implements EventCoordinationService {
+public class EventCoordinationServiceImpl implements EventCoordinationService, PortletRegistryListener {
    /** Logger. */
    private static final Logger          LOG           = LoggerFactory
                                                             .getLogger(EventCoordinationServiceImpl.class);
 
-   private static final long            WAITING_CYCLE = 100;
-
    /** PortletRegistryService used to obtain PortletApplicationConfig objects */
    private final PortletRegistryService portletRegistry;
 
    /** PortletContextService used to obtain PortletContext objects */
    private final PortletContextService  portletContextService;
 
+   /** Maps event names to the subscribed portlet windows */
+   private final EventRoutingIndex      routingIndex;
+
+   /** Delivers the event generations */
+   private volatile EventDispatcher     dispatcher;
+
+   private int                          eventThreads       = 0;
+   private int                          eventQueueSize     = 64;
+   private long                         eventTimeout       = 10000;
+   private long                         eventCancelTimeout = 2000;
+   private int                          maxGenerations     = 16;
+
    public EventCoordinationServiceImpl(PortletRegistryService portletRegistry,
          PortletContextService portletContextService) {
       this.portletRegistry = portletRegistry;
       this.portletContextService = portletContextService;
+      this.routingIndex = new EventRoutingIndex(portletRegistry);
+      this.dispatcher = new EventDispatcher(this, 0, eventQueueSize, eventTimeout, eventCancelTimeout,
+            maxGenerations);
+      portletRegistry.addPortletRegistryListener(this);
    }
 
-   public void processEvents(PortletContainer container,
-         PortletWindow portletWindow, HttpServletRequest request,
-         HttpServletResponse response, List<Event> events) {
-      ServletContext containerServletContext = PortalRequestContext.getContext(
-            request).getServletContext();
-      DriverConfiguration driverConfig = (DriverConfiguration) containerServletContext
-            .getAttribute(AttributeKeys.DRIVER_CONFIG);
+   /**
+    * Sets the number of threads used to deliver events to the portlet windows
+    * concurrently. If 0, events are delivered on the request thread.
+    */
+   public void setEventThreads(int eventThreads) {
+      this.eventThreads = eventThreads;
+   }
 
-      // PortalURL portalURL = PortalURLParserImpl.getParser().parse(request);
-      PortalURL portalURL = PortalRequestContext.getContext(request)
-            .createPortalURL();
+   /**
+    * Sets the maximum number of portlet windows waiting for an event thread.
+    * When the queue is full, events are delivered on the request thread.
+    */
+   public void setEventQueueSize(int eventQueueSize) {
+      this.eventQueueSize = eventQueueSize;
+   }
 
-      // Map<String, PortletWindowThread> portletWindowThreads = new
-      // HashMap<String, PortletWindowThread>();
+   /**
+    * Sets the time in milliseconds allowed for delivering one event generation
+    * concurrently. Events delivered on the request thread are not timed out.
+    */
+   public void setEventTimeout(long eventTimeout) {
+      this.eventTimeout = eventTimeout;
+   }
 
-      // ThreadGroup threadGroup = new ThreadGroup("FireEventThreads");
+   /**
+    * Sets the maximum time in milliseconds to wait for the portlet windows that
+    * were cancelled after the event timeout before the next event generation
+    * is delivered.
+    */
+   public void setEventCancelTimeout(long eventCancelTimeout) {
+      this.eventCancelTimeout = eventCancelTimeout;
+   }
 
-      for (Event event : events) {
-         List<String> portletNames = getAllPortletsRegisteredForEvent(event,
-               driverConfig, containerServletContext);
+   /**
+    * Sets the maximum number of event generations delivered for a request.
+    * Events published beyond that depth are discarded.
+    */
+   public void setMaxGenerations(int maxGenerations) {
+      this.maxGenerations = maxGenerations;
+   }
 
-         // Deliver events to all portlets in the portal
-         // Collection<PortletWindowConfig> portlets =
-         // getAllPortlets(driverConfig);
+   /**
+    * Creates the event dispatcher according to the configured properties.
+    */
+   public void init() {
+      EventDispatcher old = dispatcher;
+      dispatcher = new EventDispatcher(this, eventThreads, eventQueueSize, eventTimeout, eventCancelTimeout,
+            maxGenerations);
+      old.shutdown();
+   }
 
-         // Limit event delivery to portlets that are on the current page
-         Collection<PortletWindowConfig> portlets = new ArrayList<PortletWindowConfig>();
-         for (String pid : portalURL.getPortletIds()) {
-            portlets.add(PortletWindowConfig.fromId(pid));
-         }
+   /**
+    * Releases the event threads.
+    */
+   public void destroy() {
+      dispatcher.shutdown();
+   }
+
+   /**
+    * Indexes the events processed by the portlets of the registered application.
+    */
+   public void portletApplicationRegistered(PortletRegistryEvent event) {
+      routingIndex.addApplication(event.getPortletApplication());
+   }
+
+   /**
+    * Removes the application from the event routing index and discards the cached
+    * JAXB contexts for payload classes of the removed application.
+    */
+   public void portletApplicationRemoved(PortletRegistryEvent event) {
+      String applicationName = event.getPortletApplication().getName();
+      routingIndex.removeApplication(applicationName);
+      JAXBContextCache.getInstance().invalidate(applicationName);
+   }
+
+   /**
+    * Delivers the events to the subscribed portlet windows on the current page.
+    * Events published while an event is being handled are collected into the
+    * next event generation by the dispatcher.
+    */
+   public void processEvents(PortletContainer container,
+         PortletWindow portletWindow, HttpServletRequest request,
+         HttpServletResponse response, List<Event> events) {
+      if (!EventDispatcher.collect(events)) {
+         dispatcher.dispatch(container, request, response, events);
+      }
+   }
 
-         // iterate all portlets in the portal
+   /**
+    * Determines the portlet windows on the current page that process the given
+    * events.
+    * 
+    * @return the events to be delivered to each window, in publication order
+    */
+   protected Map<PortletWindow, List<Event>> route(PortletContainer container,
+         HttpServletRequest request, List<Event> events) {
+      PortalRequestContext portalRequestContext = PortalRequestContext.getContext(request);
+      DriverConfiguration driverConfig = (DriverConfiguration) portalRequestContext
+            .getServletContext().getAttribute(AttributeKeys.DRIVER_CONFIG);
+      PortalURL portalURL = portalRequestContext.createPortalURL();
+
+      // Limit event delivery to portlets that are on the current page
+      Collection<PortletWindowConfig> portlets = new ArrayList<PortletWindowConfig>();
+      for (String pid : portalURL.getPortletIds()) {
+         portlets.add(PortletWindowConfig.fromId(pid));
+      }
+
+      Map<String, PortletWindow> windows = new HashMap<String, PortletWindow>();
+      Map<PortletWindow, List<Event>> deliveries = new LinkedHashMap<PortletWindow, List<Event>>();
+      for (Event event : events) {
+         Set<String> portletNames = routingIndex.getSubscribedWindows(
+               event.getQName(), driverConfig.getRenderConfigService());
          for (PortletWindowConfig config : portlets) {
-            PortletWindow window = new PortletWindowImpl(container, config,
-                  portalURL);
-            if (portletNames != null) {
-               for (String portlet : portletNames) {
-                  if (portlet.equals(config.getId())) {
-                     /*
-                      * PLUTO-569: multi-threaded (event) request processing
-                      * isn't thread save with the Pluto Portal Driver handling
-                      * of request attributes as they all are stored/managed
-                      * within the single underlying HttpServletRequest.
-                      * Providing proper thread save parallel request processing
-                      * would require extensive enhancements to the Pluto Portal
-                      * Driver and as such is out-of-scope for the purpose of
-                      * the Portal Driver itself.
-                      * 
-                      * // the thread now is a new one, with possible //
-                      * waiting, // for the old to exit
-                      * 
-                      * 
-                      * PortletWindowThread portletWindowThread =
-                      * getPortletWindowThread(portletWindowThreads,
-                      * threadGroup, container, config, window, request,
-                      * response, containerServletContext);
-                      * 
-                      * // is this event portletWindowThread.addEvent(event);
-                      * 
-                      * portletWindowThread.start();
-                      * 
-                      * } } } } waitForEventExecution(threadGroup); try {
-                      * Thread.sleep(WAITING_CYCLE); } catch
-                      * (InterruptedException e) { LOG.warn(e.getMessage(),e); }
-                      * } waitForEventExecution(threadGroup);
-                      */
-                     doEvent(container, window, event, request, response);
-                  }
+            if (portletNames.contains(config.getId())) {
+               PortletWindow window = windows.get(config.getId());
+               if (window == null) {
+                  window = new PortletWindowImpl(container, config, portalURL);
+                  windows.put(config.getId(), window);
+                  deliveries.put(window, new ArrayList<Event>());
                }
+               deliveries.get(window).add(event);
             }
          }
       }
+      return deliveries;
    }
 
    protected void doEvent(PortletContainer container,
          PortletWindow portletWindow, Event event, HttpServletRequest request,
          HttpServletResponse response) {
       try {
-         Object value = event.getValue();
-
-         XMLStreamReader xml = null;
-         try {
-            if (value instanceof String) {
-               String in = (String) value;
-               xml = XMLInputFactory.newInstance().createXMLStreamReader(
-                     new StringReader(in));
-            }
-         } catch (XMLStreamException e1) {
-            throw new IllegalStateException(e1);
-         } catch (FactoryConfigurationError e1) {
-            throw new IllegalStateException(e1);
+         event = getDeliveredEvent(portletWindow, event);
+         if (event != null) {
+            container.doEvent(portletWindow, request, response, event);
          }
-
-         if (xml != null) {
-            // XMLStreamReader xml = (XMLStreamReader) event.getValue();
-
-            // provider.getEventDefinition(event.getQName());
-            try {
-               // now test if object is jaxb
-               EventDefinition eventDefinitionDD = getEventDefintion(
-                     portletWindow, event.getQName());
-
-               ClassLoader loader = portletContextService
-                     .getClassLoader(portletWindow.getPortletDefinition()
-                           .getApplication().getName());
-               Class<? extends Serializable> clazz = loader.loadClass(
-                     eventDefinitionDD.getValueType()).asSubclass(
-                     Serializable.class);
-
-               JAXBContext jc = JAXBContext.newInstance(clazz);
-               Unmarshaller unmarshaller = jc.createUnmarshaller();
-
-               // unmarshaller.setEventHandler(new
-               // javax.xml.bind.helpers.DefaultValidationEventHandler());
-
-               JAXBElement result = unmarshaller.unmarshal(xml, clazz);
-
-               event = new EventImpl(event.getQName(),
-                     (Serializable) result.getValue());
-            } catch (JAXBException e) {
-               throw new IllegalStateException(e);
-            } catch (ClassCastException e) {
-               throw new IllegalStateException(e);
-            } catch (ClassNotFoundException e) {
-               throw new IllegalStateException(e);
-            } catch (PortletContainerException e) {
-               throw new IllegalStateException(e);
-            }
-         }
-         container.doEvent(portletWindow, request, response, event);
       } catch (PortletException e) {
          LOG.warn(e.getMessage(), e);
       } catch (IOException e) {
          LOG.warn(e.getMessage(), e);
       } catch (PortletContainerException e) {
          LOG.warn(e.getMessage(), e);
+      } finally {
+         invalidateCaches(portletWindow, request);
       }
    }
 
-   private EventDefinition getEventDefintion(PortletWindow portletWindow, QName name) {
-      PortletApplicationDefinition appDD = portletWindow.getPortletDefinition().getApplication();
-      
-      for (EventDefinition def : appDD.getEventDefinitions()) {
-         if (def.getQName().equals(name)) {
-            return def;
-         }
-      }
-      
-      throw new IllegalStateException();
-   }
-
-   private List<String> getAllPortletsRegisteredForEvent(Event event,
-         DriverConfiguration driverConfig,
-         ServletContext containerServletContext) {
-      Set<String> resultSet = new HashSet<String>();
-      List<String> resultList = new ArrayList<String>();
-      QName eventName = event.getQName();
-      Collection<PortletWindowConfig> portlets = getAllPortlets(driverConfig);
-
-      for (PortletWindowConfig portlet : portlets) {
-         String contextPath = portlet.getContextPath();
-         String applicationName = contextPath;
-         PortletApplicationDefinition portletAppDD = null;
-         try {
-            portletAppDD = portletRegistry
-                  .getPortletApplication(applicationName);
-            List<? extends PortletDefinition> portletDDs = portletAppDD
-                  .getPortlets();
-            List<QName> aliases = getAllAliases(eventName, portletAppDD);
-            for (PortletDefinition portletDD : portletDDs) {
-               List<? extends EventDefinitionReference> processingEvents = portletDD
-                     .getSupportedProcessingEvents();
-               if (isEventSupported(processingEvents, eventName,
-                     portletAppDD.getDefaultNamespace())) {
-                  if (portletDD.getPortletName().equals(
-                        portlet.getPortletName())) {
-                     resultSet.add(portlet.getId());
-                  }
-               } else {
-
-                  if (processingEvents != null) {
-                     for (EventDefinitionReference ref : processingEvents) {
-                        QName name = ref.getQualifiedName();
-                        if (name == null) {
-                           continue;
-                        }
-                        // add also grouped portlets, that ends with "."
-                        if (name.toString().endsWith(".")
-                              && eventName.toString().startsWith(
-                                    name.toString())
-                              && portletDD.getPortletName().equals(
-                                    portlet.getPortletName())) {
-                           resultSet.add(portlet.getId());
-                        }
-                        // also look for alias names:
-                        if (aliases != null) {
-                           for (QName alias : aliases) {
-                              if (alias.toString().equals(name.toString())
-                                    && portletDD.getPortletName().equals(
-                                          portlet.getPortletName())) {
-                                 resultSet.add(portlet.getId());
-                              }
-                           }
-                        }
-                        // also look for default namespaced events
-                        if (name.getNamespaceURI() == null
-                              || name.getNamespaceURI().equals("")) {
-                           String defaultNamespace = portletAppDD
-                                 .getDefaultNamespace();
-                           QName qname = new QName(defaultNamespace,
-                                 name.getLocalPart());
-                           if (eventName.toString().equals(qname.toString())
-                                 && portletDD.getPortletName().equals(
-                                       portlet.getPortletName())) {
-                              resultSet.add(portlet.getId());
-                           }
-                        }
-                     }
-                  }
-               }
-            }
-         } catch (PortletContainerException e) {
-            LOG.warn(e.getMessage(), e);
-         }
+   /**
+    * Discards the cached render markup and resources of a window that has
+    * processed an event.
+    */
+   private void invalidateCaches(PortletWindow portletWindow, HttpServletRequest request) {
+      ServletContext servletContext = PortalRequestContext.getContext(request).getServletContext();
+      String windowId = portletWindow.getId().getStringId();
+      PortletRenderCache renderCache = (PortletRenderCache) servletContext
+            .getAttribute(AttributeKeys.RENDER_CACHE);
+      if (renderCache != null) {
+         renderCache.invalidate(windowId);
       }
-
-      // make list
-      for (String name : resultSet) {
-         resultList.add(name);
+      ResourceResponseCache resourceCache = (ResourceResponseCache) servletContext
+            .getAttribute(AttributeKeys.RESOURCE_CACHE);
+      if (resourceCache != null) {
+         resourceCache.invalidate(windowId);
       }
-      return resultList;
    }
 
-   private boolean isEventSupported(
-         List<? extends EventDefinitionReference> supportedEvents,
-         QName eventName, String defaultNamespace) {
-      if (supportedEvents != null) {
-         for (EventDefinitionReference ref : supportedEvents) {
-            QName refQName = ref.getQualifiedName();
-            if (refQName != null && refQName.equals(eventName)) {
-               return true;
+   /**
+    * Returns the event as it is to be delivered to the portlet window. Portlet
+    * applications sharing the class loader of the publishing application receive
+    * the published payload instance, so a payload object passed with an event
+    * must not be modified by the receivers. Other applications receive a copy
+    * of the payload created through its XML representation.
+    * 
+    * @return the event, or <code>null</code> if the payload cannot be delivered
+    * @throws PortletContainerException if the class loader of an application
+    *         cannot be determined
+    */
+   Event getDeliveredEvent(PortletWindow portletWindow, Event event) throws PortletContainerException {
+      Object value = event.getValue();
+      String xml = null;
+
+      if (event instanceof EventImpl
+            && ((EventImpl) event).getApplicationName() != null) {
+         // The event carries the payload object as published. It is passed
+         // on directly if the receiving portlet application shares the class
+         // loader of the publishing application.
+         EventImpl publishedEvent = (EventImpl) event;
+         ClassLoader sourceLoader = portletContextService
+               .getClassLoader(publishedEvent.getApplicationName());
+         ClassLoader targetLoader = portletContextService
+               .getClassLoader(portletWindow.getPortletDefinition()
+                     .getApplication().getName());
+         if (sourceLoader == null || sourceLoader != targetLoader) {
+            xml = marshal(publishedEvent);
+            if (xml == null) {
+               return null;
             }
          }
+      } else if (value instanceof String) {
+         xml = (String) value;
       }
-      return false;
-   }
-
-   private List<QName> getAllAliases(QName eventName,
-         PortletApplicationDefinition portletAppDD) {
-      if (portletAppDD.getEventDefinitions() != null) {
 
-         for (EventDefinition def : portletAppDD.getEventDefinitions()) {
-            QName defQName = def.getQName();
-            if (defQName != null && defQName.equals(eventName)) {
-               return def.getAliases();
-            }
+      if (xml != null) {
+         try {
+            // now test if object is jaxb
+            EventDefinition eventDefinitionDD = getEventDefintion(
+                  portletWindow, event.getQName());
+
+            String applicationName = portletWindow.getPortletDefinition()
+                  .getApplication().getName();
+            ClassLoader loader = portletContextService
+                  .getClassLoader(applicationName);
+            Class<? extends Serializable> clazz = loader.loadClass(
+                  eventDefinitionDD.getValueType()).asSubclass(
+                  Serializable.class);
+
+            Serializable result = JAXBContextCache.getInstance().unmarshal(
+                  applicationName, clazz, xml);
+
+            event = new EventImpl(event.getQName(), result);
+         } catch (JAXBException e) {
+            throw new IllegalStateException(e);
+         } catch (XMLStreamException e) {
+            throw new IllegalStateException(e);
+         } catch (FactoryConfigurationError e) {
+            throw new IllegalStateException(e);
+         } catch (ClassCastException e) {
+            throw new IllegalStateException(e);
+         } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+         } catch (PortletContainerException e) {
+            throw new IllegalStateException(e);
          }
       }
-      return null;
+      return event;
    }
 
-   
    /**
-    * gets the right PortletWindowThread or makes a new one, if theres none
+    * Marshals the payload of a published event for delivery across class loaders.
+    * The XML representation is retained in the event, so that it is marshalled
+    * at most once.
     * 
+    * @return the XML representation, or <code>null</code> if the payload has no
+    *         valid JAXB binding
     */
-//   private PortletWindowThread getPortletWindowThread(
-//         Map<String, PortletWindowThread> portletWindowThreads,
-//         ThreadGroup threadGroup, PortletContainer container,
-//         PortletWindowConfig config, PortletWindow window,
-//         HttpServletRequest req, HttpServletResponse res,
-//         ServletContext containerServletContext) {
-//      String windowID = window.getId().getStringId();
-//      PortletWindowThread portletWindowThread = portletWindowThreads
-//            .get(windowID);
-//      if (portletWindowThread == null) {
-//         portletWindowThread = new PortletWindowThread(threadGroup,
-//               config.getId(), container, window, req, res,
-//               portletContextService);
-//         portletWindowThreads.put(windowID, portletWindowThread);
-//      } else {
-//         // a thread could be started twice, so we make a new one,
-//         // after the old thread stopped
-//         // try {
-//         try {
-//            portletWindowThread.join();
-//         } catch (InterruptedException e) {
-//            LOG.warn(e.getMessage(), e);
-//         }
-//         portletWindowThreads.remove(portletWindowThread);
-//         portletWindowThread = new PortletWindowThread(threadGroup,
-//               config.getId(), container, window, req, res,
-//               portletContextService);
-//         portletWindowThreads.put(windowID, portletWindowThread);
-//      }
-//      return portletWindowThread;
-//   }
-
-   /**
-    * Wait for event execution.
-    */
-//   private void waitForEventExecution(ThreadGroup threadGroup) {
-//      long counter = 0;
-//      while (threadGroup.activeCount() > 0) {
-//         try {
-//            counter = +WAITING_CYCLE;
-//            if (counter > 500) {
-//               threadGroup.stop();
-//            }
-//            Thread.sleep(WAITING_CYCLE);
-//         } catch (InterruptedException e) {
-//            LOG.warn(e.getMessage(), e);
-//         }
-//      }
-//   }
+   private String marshal(EventImpl event) {
+      String xml = event.getXml();
+      if (xml == null) {
+         ClassLoader cl = Thread.currentThread().getContextClassLoader();
+         @SuppressWarnings("unchecked")
+         Class<Serializable> clazz = (Class<Serializable>) event.getValue().getClass();
+         try {
+            Thread.currentThread().setContextClassLoader(this.getClass().getClassLoader());
+            xml = JAXBContextCache.getInstance().marshal(event.getApplicationName(),
+                  event.getQName(), clazz, event.getValue());
+            event.setXml(xml);
+         } catch (JAXBException e) {
+            // maybe there is no valid jaxb binding
+            LOG.error("Event handling failed", e);
+         } finally {
+            Thread.currentThread().setContextClassLoader(cl);
+         }
+      }
+      return xml;
+   }
 
-   /**
-	 * 
-	 */
-   private Collection<PortletWindowConfig> getAllPortlets(
-         DriverConfiguration driverConfig) {
-      Collection<PortletWindowConfig> portlets = new ArrayList<PortletWindowConfig>();
-      Collection pages = driverConfig.getPages();
-      if (pages != null) {
-         Iterator iPages = pages.iterator();
-         while (iPages.hasNext()) {
-            PageConfig pageConfig = (PageConfig) iPages.next();
-            Collection portletIDs = pageConfig.getPortletIds();
-            if (portletIDs != null) {
-               Iterator iPortletIDs = portletIDs.iterator();
-               while (iPortletIDs.hasNext()) {
-                  portlets.add(PortletWindowConfig.fromId(iPortletIDs.next()
-                        .toString()));
-               }
-            }
+   private EventDefinition getEventDefintion(PortletWindow portletWindow, QName name) {
+      PortletApplicationDefinition appDD = portletWindow.getPortletDefinition().getApplication();
+      
+      for (EventDefinition def : appDD.getEventDefinitions()) {
+         if (def.getQName().equals(name)) {
+            return def;
          }
       }
-      return portlets;
+      
+      throw new IllegalStateException();
    }
 }
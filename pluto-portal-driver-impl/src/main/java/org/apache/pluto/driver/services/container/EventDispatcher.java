@@ -0,0 +1,392 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.services.container;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.portlet.Event;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.pluto.container.PortletContainer;
+import org.apache.pluto.container.PortletWindow;
+import org.apache.pluto.driver.core.DetachableDelegate;
+import org.apache.pluto.driver.core.PortalRequestContext;
+import org.apache.pluto.driver.core.PortletAggregationRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers events in generations. The events published by an action or event
+ * handler form a generation that is delivered to all subscribed portlet windows.
+ * The events that the event handlers publish in turn are collected into the
+ * next generation, which is delivered once the current generation is complete.
+ * Delivery stops when no more events are published or when the maximum number
+ * of generations has been reached.
+ * <p>
+ * The events of a generation are grouped by portlet window. The events for a
+ * single window are always delivered one after another in the order in which
+ * they were published, and the windows are processed in the order in which they
+ * first receive an event.
+ * <p>
+ * If a thread pool is configured, a generation is delivered to the portlet
+ * windows concurrently. Each window is processed with its own request
+ * attributes and a private copy of the portal URL, and the resulting state
+ * changes are merged into the portal request in window order when the
+ * generation is complete. Windows that do not complete within the generation
+ * timeout are cancelled and their state changes and published events are
+ * discarded. The next generation is not started before the cancelled windows
+ * have finished processing, or until the cancel timeout expires. Windows still
+ * running after that can no longer access the portal request and response.
+ * Events delivered on the request thread are not subject to a timeout.
+ * <p>
+ * An exception thrown while a window processes its events ends the delivery
+ * in both modes. The state changes of the windows before the failed window and
+ * of the failed window itself are kept, the remaining windows are cancelled,
+ * and the exception is passed on to the caller.
+ *
+ * @see EventCoordinationServiceImpl
+ */
+public class EventDispatcher {
+
+   /** Logger. */
+   private static final Logger                   LOG    = LoggerFactory.getLogger(EventDispatcher.class);
+
+   /** Collects the events published on the current thread during delivery. */
+   private static final ThreadLocal<List<Event>> RAISED = new ThreadLocal<List<Event>>();
+
+   private final EventCoordinationServiceImpl    service;
+
+   /** executes the deliveries. null if events are delivered on the request thread. */
+   private final ThreadPoolExecutor              executor;
+
+   private final long                            timeout;
+   private final long                            cancelTimeout;
+   private final int                             maxGenerations;
+
+   /**
+    * Creates the dispatcher.
+    *
+    * @param service
+    *           routes and delivers the individual events
+    * @param threads
+    *           maximum number of worker threads. If 0, events are delivered on
+    *           the request thread.
+    * @param queueSize
+    *           maximum number of windows waiting for a worker thread
+    * @param timeout
+    *           per-generation timeout in milliseconds for concurrent delivery
+    * @param cancelTimeout
+    *           maximum time in milliseconds to wait for cancelled windows to
+    *           finish before the next generation is delivered
+    * @param maxGenerations
+    *           maximum number of generations delivered for a request
+    */
+   public EventDispatcher(EventCoordinationServiceImpl service, int threads, int queueSize, long timeout,
+         long cancelTimeout, int maxGenerations) {
+      this.service = service;
+      this.timeout = timeout;
+      this.cancelTimeout = cancelTimeout;
+      this.maxGenerations = maxGenerations;
+
+      if (threads > 0) {
+         final ClassLoader cl = Thread.currentThread().getContextClassLoader();
+         ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "pluto-event-" + count.incrementAndGet());
+               t.setDaemon(true);
+               t.setContextClassLoader(cl);
+               return t;
+            }
+         };
+         executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+               new ArrayBlockingQueue<Runnable>(queueSize), factory, new ThreadPoolExecutor.CallerRunsPolicy());
+         executor.allowCoreThreadTimeOut(true);
+      } else {
+         executor = null;
+      }
+
+      if (LOG.isDebugEnabled()) {
+         StringBuilder txt = new StringBuilder(128);
+         txt.append("Event dispatcher created. threads: ").append(threads);
+         txt.append(", queue size: ").append(queueSize);
+         txt.append(", timeout: ").append(timeout).append("ms");
+         txt.append(", cancel timeout: ").append(cancelTimeout).append("ms");
+         txt.append(", max generations: ").append(maxGenerations);
+         LOG.debug(txt.toString());
+      }
+   }
+
+   /**
+    * Adds the events to the generation being collected on the current thread.
+    *
+    * @param events
+    *           the published events
+    * @return <code>true</code> if the events were collected, <code>false</code> if
+    *         no delivery is in progress on the current thread
+    */
+   public static boolean collect(List<Event> events) {
+      List<Event> raised = RAISED.get();
+      if (raised == null) {
+         return false;
+      }
+      raised.addAll(events);
+      return true;
+   }
+
+   /**
+    * Delivers the events and all events published while handling them.
+    *
+    * @param container
+    *           the portlet container
+    * @param request
+    *           the portal request
+    * @param response
+    *           the portal response
+    * @param events
+    *           the first generation of events
+    */
+   public void dispatch(PortletContainer container, HttpServletRequest request, HttpServletResponse response,
+         List<Event> events) {
+      List<Event> generation = new ArrayList<Event>(events);
+      for (int depth = 1; !generation.isEmpty(); depth++) {
+         if (depth > maxGenerations) {
+            StringBuilder txt = new StringBuilder(128);
+            txt.append("Maximum event generation depth of ").append(maxGenerations);
+            txt.append(" reached. Discarding ").append(generation.size()).append(" events.");
+            LOG.warn(txt.toString());
+            break;
+         }
+
+         List<Delivery> deliveries = new ArrayList<Delivery>();
+         for (Map.Entry<PortletWindow, List<Event>> entry : service.route(container, request, generation).entrySet()) {
+            deliveries.add(new Delivery(container, entry.getKey(), entry.getValue(), response));
+         }
+
+         if (LOG.isDebugEnabled()) {
+            StringBuilder txt = new StringBuilder(128);
+            txt.append("Delivering event generation: ").append(depth);
+            txt.append(", events: ").append(generation.size());
+            txt.append(", windows: ").append(deliveries.size());
+            LOG.debug(txt.toString());
+         }
+
+         if (executor == null || deliveries.size() < 2) {
+            generation = deliverSequentially(request, deliveries);
+         } else {
+            generation = deliverConcurrently(request, deliveries);
+         }
+      }
+   }
+
+   /**
+    * Releases the worker threads.
+    */
+   public void shutdown() {
+      if (executor != null) {
+         executor.shutdownNow();
+      }
+   }
+
+   private List<Event> deliverSequentially(HttpServletRequest request, List<Delivery> deliveries) {
+      List<Event> next = new ArrayList<Event>();
+      for (Delivery delivery : deliveries) {
+         delivery.request = request;
+         delivery.run();
+         next.addAll(delivery.raised);
+      }
+      return next;
+   }
+
+   private List<Event> deliverConcurrently(HttpServletRequest request, List<Delivery> deliveries) {
+      long deadline = System.currentTimeMillis() + timeout;
+      PortalRequestContext context = PortalRequestContext.getContext(request);
+
+      for (Delivery delivery : deliveries) {
+         delivery.isolate(request, context);
+         try {
+            delivery.future = executor.submit(delivery);
+         } catch (RejectedExecutionException e) {
+            // dispatcher shutting down
+            FutureTask<Object> task = new FutureTask<Object>(delivery, null);
+            delivery.future = task;
+            task.run();
+         }
+      }
+
+      List<Event> next = new ArrayList<Event>();
+      List<Delivery> cancelled = new ArrayList<Delivery>();
+      Throwable failure = null;
+      for (Delivery delivery : deliveries) {
+         if (failure != null) {
+            // as on the request thread, the windows after a failed window do not change the state
+            delivery.future.cancel(true);
+            cancelled.add(delivery);
+            continue;
+         }
+         try {
+            delivery.future.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+         } catch (TimeoutException e) {
+            delivery.future.cancel(true);
+            cancelled.add(delivery);
+            LOG.warn("Event generation timed out. Abandoning event delivery to window: " + delivery.getWindowId());
+            continue;
+         } catch (InterruptedException e) {
+            delivery.future.cancel(true);
+            cancelled.add(delivery);
+            Thread.currentThread().interrupt();
+            continue;
+         } catch (ExecutionException e) {
+            failure = e.getCause();
+         }
+         context.join(delivery.context);
+         next.addAll(delivery.raised);
+      }
+
+      // the cancelled windows must not process events concurrently with the next generation
+      long cancelDeadline = System.currentTimeMillis() + cancelTimeout;
+      for (Delivery delivery : cancelled) {
+         if (!delivery.join(Math.max(cancelDeadline - System.currentTimeMillis(), 0))) {
+            LOG.warn("Event delivery did not end after cancellation. Detached window: " + delivery.getWindowId());
+         }
+      }
+
+      if (failure instanceof RuntimeException) {
+         throw (RuntimeException) failure;
+      } else if (failure instanceof Error) {
+         throw (Error) failure;
+      } else if (failure != null) {
+         throw new IllegalStateException("Event delivery failed for window.", failure);
+      }
+      return next;
+   }
+
+   /**
+    * Delivers the events of one generation to a single portlet window.
+    */
+   private class Delivery implements Runnable {
+
+      /** Processing states */
+      private static final int          NEW       = 0;
+      private static final int          RUNNING   = 1;
+      private static final int          DONE      = 2;
+      private static final int          ABANDONED = 3;
+
+      private final PortletContainer    container;
+      private final PortletWindow       window;
+      private final List<Event>         events;
+      private final List<Event>         raised    = new ArrayList<Event>();
+      private final AtomicInteger       state     = new AtomicInteger(NEW);
+      private final CountDownLatch      done      = new CountDownLatch(1);
+
+      private HttpServletRequest        request;
+      private HttpServletResponse       response;
+      private DetachableDelegate        requestDelegate;
+      private DetachableDelegate        responseDelegate;
+      private PortalRequestContext      context;
+      private Future<?>                 future;
+
+      Delivery(PortletContainer container, PortletWindow window, List<Event> events, HttpServletResponse response) {
+         this.container = container;
+         this.window = window;
+         this.events = events;
+         this.response = response;
+      }
+
+      String getWindowId() {
+         return window.getId().getStringId();
+      }
+
+      /**
+       * Prepares the delivery for a worker thread. The window is processed with
+       * its own request attributes and a forked request context, and accesses the
+       * portal request and response through delegates that can be detached.
+       */
+      void isolate(HttpServletRequest portalRequest, PortalRequestContext portalContext) {
+         requestDelegate = new DetachableDelegate(portalRequest);
+         responseDelegate = new DetachableDelegate(response);
+         request = new PortletAggregationRequest(requestDelegate.proxy(HttpServletRequest.class));
+         response = responseDelegate.proxy(HttpServletResponse.class);
+         context = portalContext.fork(request);
+      }
+
+      /**
+       * Waits for a cancelled delivery to finish. A delivery that has not started
+       * yet is prevented from starting. If the delivery is still running when the
+       * timeout expires, the request and response delegates are detached.
+       *
+       * @return <code>true</code> if the delivery finished or never started
+       */
+      boolean join(long timeout) {
+         boolean finished = false;
+         try {
+            finished = state.compareAndSet(NEW, ABANDONED) || state.get() == ABANDONED
+                  || done.await(timeout, TimeUnit.MILLISECONDS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         } finally {
+            if (!finished) {
+               requestDelegate.detach();
+               responseDelegate.detach();
+            }
+         }
+         return finished;
+      }
+
+      @Override
+      public void run() {
+         if (!state.compareAndSet(NEW, RUNNING)) {
+            // cancelled before it was started
+            return;
+         }
+         List<Event> outer = RAISED.get();
+         RAISED.set(raised);
+         try {
+            for (Event event : events) {
+               if (Thread.currentThread().isInterrupted()) {
+                  break;
+               }
+               service.doEvent(container, window, event, request, response);
+            }
+         } finally {
+            if (outer == null) {
+               RAISED.remove();
+            } else {
+               RAISED.set(outer);
+            }
+            state.set(DONE);
+            done.countDown();
+         }
+      }
+   }
+}
@@ -29,6 +29,12 @@ public class EventImpl implements Event {
 	private QName _qname;
 	private java.io.Serializable _value;
 	
+	/** Name of the publishing application if the value has not been marshalled */
+	private String _applicationName;
+	
+	/** XML representation of the value, created on demand */
+	private volatile String _xml;
+	
 	public EventImpl(QName qname){
 		_qname = qname;
 	}
@@ -37,6 +43,36 @@ public class EventImpl implements Event {
 		this(qname);
 		_value = value;
 	}
+	
+	/**
+	 * Creates an event carrying the payload object as published. The payload is
+	 * only marshalled to XML if the event is delivered to a portlet application
+	 * that uses a different class loader than the publishing application.
+	 * 
+	 * @param qname  the event name
+	 * @param value  the payload
+	 * @param applicationName  name of the publishing portlet application
+	 */
+	public EventImpl(QName qname, java.io.Serializable value, String applicationName){
+		this(qname, value);
+		_applicationName = applicationName;
+	}
+	
+	/**
+	 * @return the name of the publishing portlet application, or <code>null</code>
+	 *         if the value is already in XML form
+	 */
+	public String getApplicationName() {
+		return _applicationName;
+	}
+	
+	String getXml() {
+		return _xml;
+	}
+	
+	void setXml(String xml) {
+		_xml = xml;
+	}
 
 	public QName getQName() {
 		return _qname;
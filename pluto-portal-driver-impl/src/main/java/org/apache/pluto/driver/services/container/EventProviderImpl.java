@@ -17,15 +17,10 @@
 package org.apache.pluto.driver.services.container;
 
 import java.io.Serializable;
-import java.io.StringWriter;
-import java.io.Writer;
 import java.util.List;
 
 import javax.portlet.Event;
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
 import javax.xml.namespace.QName;
 import javax.xml.stream.FactoryConfigurationError;
 
@@ -56,7 +51,6 @@ public class EventProviderImpl implements EventProvider
         this.portletRegistry = portletRegistry;
     }
 
-    @SuppressWarnings("unchecked")
     public Event createEvent(QName qname, Serializable value) throws IllegalArgumentException
     {
         if (isDeclaredAsPublishingEvent(qname))
@@ -67,31 +61,20 @@ public class EventProviderImpl implements EventProvider
                                                    value.getClass().getCanonicalName() +
                                                    ") does not have the right class, check your defined event types in portlet.xml.");
             }
+            if (value == null)
+            {
+                return new EventImpl(qname, value);
+            }
+
+            // The payload is marshalled only if it is delivered across class loaders,
+            // but a payload without a valid JAXB binding is rejected right away
+            String applicationName = portletWindow.getPortletDefinition().getApplication().getName();
+            ClassLoader cl = Thread.currentThread().getContextClassLoader();
             try
             {
-                if (value == null)
-                {
-                    return new EventImpl(qname, value);
-                }
-                else
-                {
-                    ClassLoader cl = Thread.currentThread().getContextClassLoader();
-                    Writer out = new StringWriter();
-                    Class clazz = value.getClass();
-                    try
-                    {
-                        Thread.currentThread().setContextClassLoader(this.getClass().getClassLoader());
-                        JAXBContext jc = JAXBContext.newInstance(clazz);
-                        Marshaller marshaller = jc.createMarshaller();
-                        JAXBElement<Serializable> element = new JAXBElement<Serializable>(qname, clazz, value);
-                        marshaller.marshal(element, out);
-                    }
-                    finally
-                    {
-                        Thread.currentThread().setContextClassLoader(cl);
-                    }
-                    return new EventImpl(qname, out.toString());
-                }
+                Thread.currentThread().setContextClassLoader(this.getClass().getClassLoader());
+                JAXBContextCache.getInstance().checkBinding(applicationName, value.getClass());
+                return new EventImpl(qname, value, applicationName);
             }
             catch (JAXBException e)
             {
@@ -103,6 +86,10 @@ public class EventProviderImpl implements EventProvider
             {
                 LOG.warn(e.getMessage(),e);
             }
+            finally
+            {
+                Thread.currentThread().setContextClassLoader(cl);
+            }
         }
         return null;
     }
@@ -0,0 +1,266 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.services.container;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.namespace.QName;
+
+import org.apache.pluto.container.PortletContainerException;
+import org.apache.pluto.container.driver.PortletRegistryService;
+import org.apache.pluto.container.om.portlet.EventDefinition;
+import org.apache.pluto.container.om.portlet.EventDefinitionReference;
+import org.apache.pluto.container.om.portlet.PortletApplicationDefinition;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.apache.pluto.driver.services.portal.PageConfig;
+import org.apache.pluto.driver.services.portal.PortletWindowConfig;
+import org.apache.pluto.driver.services.portal.RenderConfigService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps event names to the portlet windows that process the event. The
+ * subscriptions of each portlet application are indexed by exact event name,
+ * including alias names and event names in the default namespace, and by
+ * wildcard prefix when the application is registered. The portlet windows on
+ * all pages are indexed by portlet application and portlet name, and the index
+ * is rebuilt when the page configuration changes.
+ * <p>
+ * The windows subscribed to an event are resolved once per event name and
+ * cached until the portlet applications or pages change.
+ *
+ * @see EventCoordinationServiceImpl
+ */
+public class EventRoutingIndex {
+
+   /** Logger. */
+   private static final Logger LOG = LoggerFactory.getLogger(EventRoutingIndex.class);
+
+   /**
+    * The events processed by the portlets of one portlet application.
+    */
+   private static class Subscriptions {
+
+      /** portlet names by event name */
+      final Map<QName, Set<String>>  exact     = new HashMap<QName, Set<String>>();
+
+      /** portlet names by wildcard prefix, which ends with "." */
+      final Map<String, Set<String>> wildcards = new HashMap<String, Set<String>>();
+
+      Subscriptions(PortletApplicationDefinition app) {
+         for (PortletDefinition pd : app.getPortlets()) {
+            List<? extends EventDefinitionReference> refs = pd.getSupportedProcessingEvents();
+            if (refs == null) {
+               continue;
+            }
+            for (EventDefinitionReference ref : refs) {
+               QName name = ref.getQualifiedName();
+               if (name == null) {
+                  continue;
+               }
+               add(exact, name, pd.getPortletName());
+
+               // grouped events, that end with "."
+               String prefix = name.toString();
+               if (prefix.endsWith(".")) {
+                  add(wildcards, prefix, pd.getPortletName());
+               }
+
+               // default namespaced events
+               if (name.getNamespaceURI() == null || name.getNamespaceURI().equals("")) {
+                  add(exact, new QName(app.getDefaultNamespace(), name.getLocalPart()), pd.getPortletName());
+               }
+
+               // events processed through an alias name
+               if (app.getEventDefinitions() != null) {
+                  for (EventDefinition def : app.getEventDefinitions()) {
+                     if (def.getQName() != null && def.getAliases() != null && def.getAliases().contains(name)) {
+                        add(exact, def.getQName(), pd.getPortletName());
+                     }
+                  }
+               }
+            }
+         }
+      }
+
+      /**
+       * Adds the names of the portlets processing the event to the set.
+       */
+      void collect(QName eventName, Set<String> portletNames) {
+         Set<String> names = exact.get(eventName);
+         if (names != null) {
+            portletNames.addAll(names);
+         }
+         if (!wildcards.isEmpty()) {
+            String en = eventName.toString();
+            for (Map.Entry<String, Set<String>> entry : wildcards.entrySet()) {
+               if (en.startsWith(entry.getKey())) {
+                  portletNames.addAll(entry.getValue());
+               }
+            }
+         }
+      }
+
+      private static <K> void add(Map<K, Set<String>> map, K key, String portletName) {
+         Set<String> names = map.get(key);
+         if (names == null) {
+            names = new HashSet<String>();
+            map.put(key, names);
+         }
+         names.add(portletName);
+      }
+   }
+
+   private final PortletRegistryService                 portletRegistry;
+
+   /** subscriptions by portlet application name */
+   private final ConcurrentMap<String, Subscriptions>   subscriptions = new ConcurrentHashMap<String, Subscriptions>();
+
+   /** window IDs by portlet application name and portlet name */
+   private volatile Map<String, Map<String, List<String>>> windows     = Collections.emptyMap();
+
+   /** the page configuration version for which the windows were indexed */
+   private volatile long                                 pageVersion   = -1;
+
+   /** resolved window IDs by event name */
+   private volatile ConcurrentMap<QName, Set<String>>    routes        = new ConcurrentHashMap<QName, Set<String>>();
+
+   public EventRoutingIndex(PortletRegistryService portletRegistry) {
+      this.portletRegistry = portletRegistry;
+   }
+
+   /**
+    * Indexes the event subscriptions of a newly registered portlet application.
+    */
+   public void addApplication(PortletApplicationDefinition app) {
+      subscriptions.put(app.getName(), new Subscriptions(app));
+      routes = new ConcurrentHashMap<QName, Set<String>>();
+   }
+
+   /**
+    * Removes the event subscriptions of a portlet application.
+    */
+   public void removeApplication(String applicationName) {
+      subscriptions.remove(applicationName);
+      routes = new ConcurrentHashMap<QName, Set<String>>();
+   }
+
+   /**
+    * Returns the IDs of all portlet windows on any page that process the given event.
+    *
+    * @param eventName
+    *           the event name
+    * @param renderConfig
+    *           provides the page configuration
+    * @return the set of window IDs
+    */
+   public Set<String> getSubscribedWindows(QName eventName, RenderConfigService renderConfig) {
+      long version = renderConfig.getVersion();
+      if (version != pageVersion) {
+         indexWindows(renderConfig, version);
+      }
+
+      ConcurrentMap<QName, Set<String>> r = routes;
+      Set<String> result = r.get(eventName);
+      if (result == null) {
+         result = resolve(eventName);
+         r.putIfAbsent(eventName, result);
+      }
+      return result;
+   }
+
+   private Set<String> resolve(QName eventName) {
+      Set<String> result = new HashSet<String>();
+      Set<String> portletNames = new HashSet<String>();
+      for (Map.Entry<String, Map<String, List<String>>> app : windows.entrySet()) {
+         Subscriptions subs = getSubscriptions(app.getKey());
+         if (subs == null) {
+            continue;
+         }
+         portletNames.clear();
+         subs.collect(eventName, portletNames);
+         for (String portletName : portletNames) {
+            List<String> ids = app.getValue().get(portletName);
+            if (ids != null) {
+               result.addAll(ids);
+            }
+         }
+      }
+
+      if (LOG.isDebugEnabled()) {
+         LOG.debug("Resolved event " + eventName + " to windows: " + result);
+      }
+      return Collections.unmodifiableSet(result);
+   }
+
+   private synchronized void indexWindows(RenderConfigService renderConfig, long version) {
+      if (version == pageVersion) {
+         return;
+      }
+      Map<String, Map<String, List<String>>> map = new HashMap<String, Map<String, List<String>>>();
+      for (PageConfig page : renderConfig.getPages()) {
+         if (page.getPortletIds() == null) {
+            continue;
+         }
+         for (String pid : page.getPortletIds()) {
+            PortletWindowConfig wcfg = PortletWindowConfig.fromId(pid);
+            Map<String, List<String>> portlets = map.get(wcfg.getContextPath());
+            if (portlets == null) {
+               portlets = new HashMap<String, List<String>>();
+               map.put(wcfg.getContextPath(), portlets);
+            }
+            List<String> ids = portlets.get(wcfg.getPortletName());
+            if (ids == null) {
+               ids = new ArrayList<String>();
+               portlets.put(wcfg.getPortletName(), ids);
+            }
+            ids.add(wcfg.getId());
+         }
+      }
+      windows = map;
+      routes = new ConcurrentHashMap<QName, Set<String>>();
+      pageVersion = version;
+   }
+
+   /**
+    * Returns the subscriptions for the application. Applications registered before
+    * the index was created are indexed on first use.
+    */
+   private Subscriptions getSubscriptions(String applicationName) {
+      Subscriptions subs = subscriptions.get(applicationName);
+      if (subs == null) {
+         try {
+            PortletApplicationDefinition app = portletRegistry.getPortletApplication(applicationName);
+            if (app != null) {
+               subs = new Subscriptions(app);
+               subscriptions.putIfAbsent(applicationName, subs);
+            }
+         } catch (PortletContainerException e) {
+            LOG.warn(e.getMessage(), e);
+         }
+      }
+      return subs;
+   }
+}
@@ -17,11 +17,8 @@
 package org.apache.pluto.driver.services.container;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 
-import javax.enterprise.inject.spi.Bean;
 import javax.enterprise.inject.spi.BeanManager;
 import javax.portlet.ActionRequest;
 import javax.portlet.ActionResponse;
@@ -48,8 +45,6 @@ import javax.portlet.filter.RenderFilter;
 import javax.portlet.filter.ResourceFilter;
 
 import org.apache.pluto.container.om.portlet.Filter;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /**
  * A <code>FilterChain</code> is an object provided by the portlet container to
@@ -62,11 +57,9 @@ import org.slf4j.LoggerFactory;
  * @version 2.0
  */
 public class FilterChainImpl implements FilterChain, HeaderFilterChain {
-   private static final Logger LOG = LoggerFactory.getLogger(FilterChainImpl.class);
-   private static final boolean isDebug = LOG.isDebugEnabled();
-   
 
-   private List<Filter>   filterList      = new ArrayList<Filter>();
+   private final List<Filter>          filterList;
+   private final PortletFilterRegistry registry;
    @SuppressWarnings("unused")
    private String         lifeCycle;
    Portlet                portlet;
@@ -79,8 +72,18 @@ public class FilterChainImpl implements FilterChain, HeaderFilterChain {
 
    private BeanManager    beanmgr;
 
-   public FilterChainImpl(String lifeCycle) {
+   /**
+    * @param lifeCycle
+    *           the lifecycle phase
+    * @param registry
+    *           provides the initialized filter instances
+    * @param filterList
+    *           the filters to be applied, in order
+    */
+   public FilterChainImpl(String lifeCycle, PortletFilterRegistry registry, List<Filter> filterList) {
       this.lifeCycle = lifeCycle;
+      this.registry = registry;
+      this.filterList = filterList;
    }
 
    /** 
@@ -90,37 +93,6 @@ public class FilterChainImpl implements FilterChain, HeaderFilterChain {
       beanmgr = bm;
    }
 
-   private Object loadFilter(Filter filter) throws InstantiationException, IllegalAccessException,
-         ClassNotFoundException {
-      Object obj = null;
-      Class<?> fcls = loader.loadClass(filter.getFilterClass());
-      if (fcls != null) {
-         if (beanmgr == null) {
-            // CDI is not active
-            obj = fcls.newInstance();
-         } else {
-            // CDI active ... instantiate as bean to enable contextual features
-            Set<Bean<?>> beans = beanmgr.getBeans(fcls);
-            Bean<?> bean = beanmgr.resolve(beans);
-            if (bean != null) {
-               obj = beanmgr.getReference(bean, bean.getBeanClass(), beanmgr.createCreationalContext(bean));
-            } else {
-               LOG.warn("Could not get bean reference: " + filter.getFilterClass());
-               obj = fcls.newInstance();
-            }
-         }
-         if (isDebug) {
-            StringBuilder txt = new StringBuilder();
-            txt.append("Loaded filter for: ").append(fcls.getCanonicalName());
-            txt.append(", bean manager active: ").append(beanmgr != null);
-            LOG.debug(txt.toString());
-         }
-      } else {
-         LOG.error("Could not load class: " + filter.getFilterClass());
-      }
-      return obj;
-   }
-
    /**
     * For async processing, the filter chain needs to be executed multiple
     * times.
@@ -169,22 +141,14 @@ public class FilterChainImpl implements FilterChain, HeaderFilterChain {
       doFilter(req, res);
    }
 
-   public void addFilter(Filter filter) {
-      filterList.add(filter);
-   }
-
    @Override
    public void doFilter(ActionRequest request, ActionResponse response) throws IOException, PortletException {
       if (filterListIndex < filterList.size()) {
          Filter filter = filterList.get(filterListIndex);
          filterListIndex++;
          try {
-            ActionFilter actionFilter = (ActionFilter) loadFilter(filter);
-            FilterConfigImpl filterConfig = new FilterConfigImpl(filter.getFilterName(), filter.getInitParams(),
-                  portletContext);
-            actionFilter.init(filterConfig);
+            ActionFilter actionFilter = (ActionFilter) registry.getFilter(filter, loader, beanmgr, portletContext);
             actionFilter.doFilter(request, response, this);
-            actionFilter.destroy();
          } catch (InstantiationException e) {
             e.printStackTrace();
          } catch (IllegalAccessException e) {
@@ -203,12 +167,8 @@ public class FilterChainImpl implements FilterChain, HeaderFilterChain {
          Filter filter = filterList.get(filterListIndex);
          filterListIndex++;
          try {
-            EventFilter eventFilter = (EventFilter) loadFilter(filter);;
-            FilterConfigImpl filterConfig = new FilterConfigImpl(filter.getFilterName(), filter.getInitParams(),
-                  portletContext);
-            eventFilter.init(filterConfig);
+            EventFilter eventFilter = (EventFilter) registry.getFilter(filter, loader, beanmgr, portletContext);
             eventFilter.doFilter(request, response, this);
-            eventFilter.destroy();
          } catch (InstantiationException e) {
             e.printStackTrace();
          } catch (IllegalAccessException e) {
@@ -227,12 +187,8 @@ public class FilterChainImpl implements FilterChain, HeaderFilterChain {
          Filter filter = filterList.get(filterListIndex);
          filterListIndex++;
          try {
-            RenderFilter renderFilter = (RenderFilter) loadFilter(filter);;
-            FilterConfigImpl filterConfig = new FilterConfigImpl(filter.getFilterName(), filter.getInitParams(),
-                  portletContext);
-            renderFilter.init(filterConfig);
+            RenderFilter renderFilter = (RenderFilter) registry.getFilter(filter, loader, beanmgr, portletContext);
             renderFilter.doFilter(request, response, this);
-            renderFilter.destroy();
          } catch (InstantiationException e) {
             e.printStackTrace();
          } catch (IllegalAccessException e) {
@@ -251,12 +207,8 @@ public class FilterChainImpl implements FilterChain, HeaderFilterChain {
          Filter filter = filterList.get(filterListIndex);
          filterListIndex++;
          try {
-            HeaderFilter headerFilter = (HeaderFilter) loadFilter(filter);;
-            FilterConfigImpl filterConfig = new FilterConfigImpl(filter.getFilterName(), filter.getInitParams(),
-                  portletContext);
-            headerFilter.init(filterConfig);
+            HeaderFilter headerFilter = (HeaderFilter) registry.getFilter(filter, loader, beanmgr, portletContext);
             headerFilter.doFilter(request, response, this);
-            headerFilter.destroy();
          } catch (InstantiationException e) {
             e.printStackTrace();
          } catch (IllegalAccessException e) {
@@ -275,12 +227,8 @@ public class FilterChainImpl implements FilterChain, HeaderFilterChain {
          Filter filter = filterList.get(filterListIndex);
          filterListIndex++;
          try {
-            ResourceFilter resourceFilter = (ResourceFilter) loadFilter(filter);;
-            FilterConfigImpl filterConfig = new FilterConfigImpl(filter.getFilterName(), filter.getInitParams(),
-                  portletContext);
-            resourceFilter.init(filterConfig);
+            ResourceFilter resourceFilter = (ResourceFilter) registry.getFilter(filter, loader, beanmgr, portletContext);
             resourceFilter.doFilter(request, response, this);
-            resourceFilter.destroy();
          } catch (InstantiationException e) {
             e.printStackTrace();
          } catch (IllegalAccessException e) {
@@ -40,16 +40,15 @@ import javax.portlet.ResourceServingPortlet;
 import org.apache.pluto.container.FilterManager;
 import org.apache.pluto.container.PortletWindow;
 import org.apache.pluto.container.om.portlet.Filter;
-import org.apache.pluto.container.om.portlet.FilterMapping;
-import org.apache.pluto.container.om.portlet.PortletApplicationDefinition;
 import org.apache.pluto.container.om.portlet.PortletDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
- * Manage the initialization and doFilter {@link FilterChainImpl} for the filter which are
- * declared in the deployment descriptor.
+ * Manage the doFilter {@link FilterChainImpl} for the filter which are
+ * declared in the deployment descriptor. The filter chain and the initialized
+ * filter instances are provided by the {@link PortletFilterRegistry}.
  * @since 05/29/2007
  * @version 2.0
  */
@@ -58,17 +57,16 @@ public class FilterManagerImpl implements FilterManager{
    private static final Logger LOG = LoggerFactory.getLogger(FilterManagerImpl.class);
    
     private FilterChainImpl filterchain;
-    private PortletApplicationDefinition portletApp;
-    private String portletName;
-    private String lifeCycle;
 
-    public FilterManagerImpl(PortletWindow portletWindow, String lifeCycle) {
+    /**
+     * @param registry  the filter registry for the portlet application
+     * @param portletWindow  the portlet window
+     * @param lifeCycle  the lifecycle phase
+     */
+    public FilterManagerImpl(PortletFilterRegistry registry, PortletWindow portletWindow, String lifeCycle) {
         final PortletDefinition pd = portletWindow.getPortletDefinition();
-        this.portletApp = pd.getApplication();
-        this.portletName =  pd.getPortletName();
-        this.lifeCycle = lifeCycle;
-        filterchain = new FilterChainImpl(lifeCycle);
-        initFilterChain();
+        List<Filter> filters = registry.getFilters(pd.getPortletName(), lifeCycle);
+        filterchain = new FilterChainImpl(lifeCycle, registry, filters);
     }
     
     /**
@@ -79,28 +77,6 @@ public class FilterManagerImpl implements FilterManager{
        filterchain.setBeanManager(bm);
     }
 
-    private void initFilterChain(){
-        List<? extends FilterMapping> filterMappingList = portletApp.getFilterMappings();
-        if (filterMappingList!= null){
-            for (FilterMapping filterMapping : filterMappingList) {
-                if (isFilter(filterMapping, portletName)){
-                    //the filter is specified for the portlet, check the filter for the lifecycle
-                    List<? extends Filter> filterList = portletApp.getFilters();
-                    for (Filter filter : filterList) {
-                        //search for the filter in the filter
-                        if (filter.getFilterName().equals(filterMapping.getFilterName())){
-                            //check the lifecycle
-                            if (isLifeCycle(filter, lifeCycle)){
-                                //the filter match to the portlet and has the specified lifecycle -> add to chain
-                                filterchain.addFilter(filter);
-                            }
-                        }
-                    }
-                }
-            }
-        }
-    }
-
     /**
      * @see org.apache.pluto.container.FilterManager#processFilter(javax.portlet.EventRequest, javax.portlet.EventResponse, javax.portlet.EventPortlet, javax.portlet.PortletContext)
      */
@@ -142,35 +118,5 @@ public class FilterManagerImpl implements FilterManager{
         filterchain.processFilter(req, res, portlet, portletContext);
     }
 
-    private boolean isLifeCycle(Filter filter, String lifeCycle){
-        List <String> lifeCyclesList = filter.getLifecycles();
-        for (String string : lifeCyclesList) {
-            if (string.equals(lifeCycle))
-                return true;
-        }
-        return false;
-    }
-
-    private boolean isFilter(FilterMapping filterMapping,String portletName){
-        List <String> portletNamesList = filterMapping.getPortletNames();
-        for (String portletNameFromFilterList : portletNamesList) {
-            if (portletNameFromFilterList.endsWith("*")){
-                if (portletNameFromFilterList.length()==1){
-                    //if name contains only *
-                    return true;
-                }
-                portletNameFromFilterList = portletNameFromFilterList.substring(0, portletNameFromFilterList.length()-1);
-                if (portletName.length()>= portletNameFromFilterList.length()){
-                    if (portletName.substring(0, portletNameFromFilterList.length()).equals(portletNameFromFilterList)){
-                        return true;
-                    }
-                }
-            }
-            else if (portletNameFromFilterList.equals(portletName))
-                return true;
-        }
-        return false;
-    }
-
 
 }
@@ -16,20 +16,96 @@
  */
 package org.apache.pluto.driver.services.container;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.apache.pluto.container.FilterManager;
 import org.apache.pluto.container.FilterManagerService;
 import org.apache.pluto.container.PortletWindow;
+import org.apache.pluto.container.driver.PortletRegistryEvent;
+import org.apache.pluto.container.driver.PortletRegistryListener;
+import org.apache.pluto.container.driver.PortletRegistryService;
+import org.apache.pluto.container.om.portlet.PortletApplicationDefinition;
 
 /**
+ * Provides filter managers backed by a {@link PortletFilterRegistry} per portlet
+ * application. Filter chains are resolved when the portlet application is
+ * registered, and filter instances are initialized once and destroyed when the
+ * portlet application is removed from service.
+ *
  * @version $Id$
  *
  */
-public class FilterManagerServiceImpl implements FilterManagerService {
+public class FilterManagerServiceImpl implements FilterManagerService, PortletRegistryListener {
+
+    /** filter registries, key is the portlet application name */
+    private final ConcurrentMap<String, PortletFilterRegistry> registries =
+          new ConcurrentHashMap<String, PortletFilterRegistry>();
+
+    public FilterManagerServiceImpl() {
+    }
+
+    /**
+     * Constructs the service and registers it for portlet application
+     * registration events.
+     *
+     * @param portletRegistry  the portlet registry service
+     */
+    public FilterManagerServiceImpl(PortletRegistryService portletRegistry) {
+        portletRegistry.addPortletRegistryListener(this);
+    }
 
     /**
      * @see org.apache.pluto.container.FilterManagerService#getFilterManager(org.apache.pluto.container.PortletWindow, java.lang.String)
      */
     public FilterManager getFilterManager(PortletWindow portletWindow, String lifeCycle) {
-        return new FilterManagerImpl(portletWindow, lifeCycle);
+        return new FilterManagerImpl(getRegistry(portletWindow.getPortletDefinition().getApplication()),
+              portletWindow, lifeCycle);
+    }
+
+    public void portletApplicationRegistered(PortletRegistryEvent event) {
+        getRegistry(event.getPortletApplication());
+    }
+
+    public void portletApplicationRemoved(PortletRegistryEvent event) {
+        destroyRegistry(registries.remove(event.getPortletApplication().getName()));
+    }
+
+    /**
+     * Returns the registry for the portlet application. A registry created for
+     * a previous deployment of the application is replaced.
+     */
+    private PortletFilterRegistry getRegistry(PortletApplicationDefinition app) {
+        PortletFilterRegistry registry = registries.get(app.getName());
+        if (registry == null || registry.getPortletApplication() != app) {
+            PortletFilterRegistry newRegistry = new PortletFilterRegistry(app);
+            boolean replaced = (registry == null) ? registries.putIfAbsent(app.getName(), newRegistry) == null
+                  : registries.replace(app.getName(), registry, newRegistry);
+            if (replaced) {
+                destroyRegistry(registry);
+                registry = newRegistry;
+            } else {
+                // another thread won the race
+                registry = registries.get(app.getName());
+                if (registry == null) {
+                    registry = newRegistry;
+                }
+            }
+        }
+        return registry;
+    }
+
+    /**
+     * @param appName  the portlet application name
+     * @return the current registry for the portlet application, or <code>null</code>
+     */
+    PortletFilterRegistry getRegistry(String appName) {
+        return registries.get(appName);
+    }
+
+    private void destroyRegistry(PortletFilterRegistry registry) {
+        if (registry != null) {
+            registry.destroy();
+        }
     }
 }
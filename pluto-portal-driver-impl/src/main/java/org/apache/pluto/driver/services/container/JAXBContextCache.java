@@ -0,0 +1,241 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.services.container;
+
+import java.io.Serializable;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the JAXB contexts used to marshal and unmarshal event payloads.
+ * Creating a JAXB context is expensive, so the contexts are created once per
+ * payload class and portlet application. Since payload classes are loaded through
+ * the portlet application class loader, the cache is partitioned by portlet
+ * application and the partition is discarded when the application is removed
+ * from service.
+ * <p>
+ * Marshallers and unmarshallers are not thread safe. They are pooled per
+ * context and only used by one thread at a time.
+ *
+ * @see EventProviderImpl
+ * @see EventCoordinationServiceImpl
+ */
+public class JAXBContextCache {
+
+   /** Logger. */
+   private static final Logger             LOG      = LoggerFactory.getLogger(JAXBContextCache.class);
+
+   /** maximum number of idle marshallers or unmarshallers retained per context */
+   private static final int                MAX_POOL = 8;
+
+   private static final JAXBContextCache   INSTANCE = new JAXBContextCache();
+
+   /** The StAX factory is thread safe once configured, so it is shared. */
+   private final XMLInputFactory           xmlInputFactory;
+
+   /** The cache, key is the portlet application name */
+   private final ConcurrentMap<String, ConcurrentMap<Class<?>, Entry>> contexts =
+         new ConcurrentHashMap<String, ConcurrentMap<Class<?>, Entry>>();
+
+   private final AtomicLong                hits     = new AtomicLong();
+   private final AtomicLong                misses   = new AtomicLong();
+
+   /**
+    * Holds the context for a payload class together with the idle marshallers
+    * and unmarshallers.
+    */
+   private static class Entry {
+      final JAXBContext         context;
+      final Queue<Marshaller>   marshallers   = new ConcurrentLinkedQueue<Marshaller>();
+      final Queue<Unmarshaller> unmarshallers = new ConcurrentLinkedQueue<Unmarshaller>();
+
+      Entry(JAXBContext context) {
+         this.context = context;
+      }
+   }
+
+   JAXBContextCache() {
+      xmlInputFactory = XMLInputFactory.newInstance();
+   }
+
+   /**
+    * @return the shared cache instance
+    */
+   public static JAXBContextCache getInstance() {
+      return INSTANCE;
+   }
+
+   /**
+    * Marshals an event payload to its XML representation.
+    *
+    * @param applicationName
+    *           name of the portlet application that provides the payload class
+    * @param qname
+    *           the event name
+    * @param clazz
+    *           the payload class
+    * @param value
+    *           the payload
+    * @return the XML string
+    * @throws JAXBException
+    *            if the payload cannot be marshalled
+    */
+   public <T extends Serializable> String marshal(String applicationName, QName qname, Class<T> clazz, T value)
+         throws JAXBException {
+      Entry entry = getEntry(applicationName, clazz);
+      Marshaller marshaller = entry.marshallers.poll();
+      if (marshaller == null) {
+         marshaller = entry.context.createMarshaller();
+      }
+      StringWriter out = new StringWriter();
+      marshaller.marshal(new JAXBElement<T>(qname, clazz, value), out);
+      release(entry.marshallers, marshaller);
+      return out.toString();
+   }
+
+   /**
+    * Unmarshals an event payload from its XML representation.
+    *
+    * @param applicationName
+    *           name of the portlet application that provides the payload class
+    * @param clazz
+    *           the payload class
+    * @param xml
+    *           the XML string
+    * @return the payload
+    * @throws JAXBException
+    *            if the payload cannot be unmarshalled
+    * @throws XMLStreamException
+    *            if the XML cannot be read
+    */
+   public <T extends Serializable> T unmarshal(String applicationName, Class<T> clazz, String xml)
+         throws JAXBException, XMLStreamException {
+      Entry entry = getEntry(applicationName, clazz);
+      Unmarshaller unmarshaller = entry.unmarshallers.poll();
+      if (unmarshaller == null) {
+         unmarshaller = entry.context.createUnmarshaller();
+      }
+      XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(new StringReader(xml));
+      try {
+         JAXBElement<T> result = unmarshaller.unmarshal(reader, clazz);
+         release(entry.unmarshallers, unmarshaller);
+         return result.getValue();
+      } finally {
+         reader.close();
+      }
+   }
+
+   /**
+    * Verifies that the payload class has a valid JAXB binding. The JAXB context
+    * is created and cached if necessary, so that the check is cheap for payload
+    * classes that have been used before.
+    *
+    * @param applicationName
+    *           name of the portlet application that provides the payload class
+    * @param clazz
+    *           the payload class
+    * @throws JAXBException
+    *            if no JAXB context can be created for the class
+    */
+   public void checkBinding(String applicationName, Class<?> clazz) throws JAXBException {
+      getEntry(applicationName, clazz);
+   }
+
+   /**
+    * Discards all contexts for the given portlet application.
+    *
+    * @param applicationName
+    *           the portlet application name
+    */
+   public void invalidate(String applicationName) {
+      if (contexts.remove(applicationName) != null && LOG.isDebugEnabled()) {
+         LOG.debug("Discarded JAXB contexts for portlet application: " + applicationName);
+      }
+   }
+
+   /**
+    * @return number of requests satisfied from the cache
+    */
+   public long getHits() {
+      return hits.get();
+   }
+
+   /**
+    * @return number of requests that required a new JAXB context
+    */
+   public long getMisses() {
+      return misses.get();
+   }
+
+   private Entry getEntry(String applicationName, Class<?> clazz) throws JAXBException {
+      ConcurrentMap<Class<?>, Entry> appContexts = contexts.get(applicationName);
+      if (appContexts == null) {
+         appContexts = new ConcurrentHashMap<Class<?>, Entry>();
+         ConcurrentMap<Class<?>, Entry> existing = contexts.putIfAbsent(applicationName, appContexts);
+         if (existing != null) {
+            appContexts = existing;
+         }
+      }
+
+      Entry entry = appContexts.get(clazz);
+      if (entry != null) {
+         hits.incrementAndGet();
+         return entry;
+      }
+
+      misses.incrementAndGet();
+      entry = new Entry(JAXBContext.newInstance(clazz));
+      Entry existing = appContexts.putIfAbsent(clazz, entry);
+      if (existing != null) {
+         entry = existing;
+      }
+
+      if (LOG.isDebugEnabled()) {
+         StringBuilder txt = new StringBuilder(128);
+         txt.append("Created JAXB context for: ").append(clazz.getName());
+         txt.append(", application: ").append(applicationName);
+         txt.append(", hits: ").append(hits.get());
+         txt.append(", misses: ").append(misses.get());
+         LOG.debug(txt.toString());
+      }
+      return entry;
+   }
+
+   private <T> void release(Queue<T> pool, T obj) {
+      if (pool.size() < MAX_POOL) {
+         pool.offer(obj);
+      }
+   }
+}
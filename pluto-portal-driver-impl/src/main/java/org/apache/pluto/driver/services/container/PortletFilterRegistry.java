@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.services.container;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.enterprise.inject.spi.Bean;
+import javax.enterprise.inject.spi.BeanManager;
+import javax.portlet.PortletContext;
+import javax.portlet.PortletException;
+import javax.portlet.PortletRequest;
+import javax.portlet.filter.PortletFilter;
+
+import org.apache.pluto.container.om.portlet.Filter;
+import org.apache.pluto.container.om.portlet.FilterMapping;
+import org.apache.pluto.container.om.portlet.PortletApplicationDefinition;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the resolved filter chains and the initialized filter instances for a
+ * single portlet application. The filter chain for each portlet and lifecycle
+ * phase is resolved once when the registry is created. Filter instances are
+ * created and initialized on first use within the portlet application context
+ * and are reused for all subsequent requests until the application is removed
+ * from service, at which point {@link #destroy()} is called.
+ *
+ * @see FilterManagerServiceImpl
+ */
+public class PortletFilterRegistry {
+   private static final Logger LOG = LoggerFactory.getLogger(PortletFilterRegistry.class);
+   private static final boolean isDebug = LOG.isDebugEnabled();
+
+   private static final String[] LIFECYCLES = { PortletRequest.ACTION_PHASE, PortletRequest.EVENT_PHASE,
+         PortletRequest.HEADER_PHASE, PortletRequest.RENDER_PHASE, PortletRequest.RESOURCE_PHASE };
+
+   private final PortletApplicationDefinition portletApp;
+
+   /** resolved filter chains, key is portlet name + lifecycle */
+   private final ConcurrentMap<String, List<Filter>> chains = new ConcurrentHashMap<String, List<Filter>>();
+
+   /** initialized filter instances, key is filter name */
+   private final ConcurrentMap<String, PortletFilter> instances = new ConcurrentHashMap<String, PortletFilter>();
+
+   private volatile boolean destroyed = false;
+
+   public PortletFilterRegistry(PortletApplicationDefinition portletApp) {
+      this.portletApp = portletApp;
+      for (PortletDefinition pd : portletApp.getPortlets()) {
+         for (String lifeCycle : LIFECYCLES) {
+            chains.put(getKey(pd.getPortletName(), lifeCycle), resolveChain(pd.getPortletName(), lifeCycle));
+         }
+      }
+   }
+
+   /**
+    * @return the portlet application definition for which the registry was created
+    */
+   public PortletApplicationDefinition getPortletApplication() {
+      return portletApp;
+   }
+
+   /**
+    * Returns the filters to be applied for the given portlet and lifecycle phase,
+    * in the order defined by the filter mappings.
+    */
+   public List<Filter> getFilters(String portletName, String lifeCycle) {
+      String key = getKey(portletName, lifeCycle);
+      List<Filter> filters = chains.get(key);
+      if (filters == null) {
+         filters = resolveChain(portletName, lifeCycle);
+         chains.putIfAbsent(key, filters);
+      }
+      return filters;
+   }
+
+   /**
+    * Returns the initialized instance of the given filter. If the filter has not yet
+    * been used, it is loaded through the given class loader and initialized.
+    */
+   public PortletFilter getFilter(Filter filter, ClassLoader loader, BeanManager beanmgr,
+         PortletContext portletContext) throws InstantiationException, IllegalAccessException,
+         ClassNotFoundException, PortletException {
+      PortletFilter obj = instances.get(filter.getFilterName());
+      if (obj == null) {
+         synchronized (instances) {
+            obj = instances.get(filter.getFilterName());
+            if (obj == null) {
+               obj = loadFilter(filter, loader, beanmgr);
+               FilterConfigImpl filterConfig = new FilterConfigImpl(filter.getFilterName(), filter.getInitParams(),
+                     portletContext);
+               obj.init(filterConfig);
+               if (destroyed) {
+                  // application removed in the meantime; don't retain the instance
+                  obj.destroy();
+               } else {
+                  instances.put(filter.getFilterName(), obj);
+               }
+            }
+         }
+      }
+      return obj;
+   }
+
+   /**
+    * Destroys all filter instances. Called when the portlet application is removed from service.
+    */
+   public void destroy() {
+      synchronized (instances) {
+         destroyed = true;
+         for (PortletFilter filter : instances.values()) {
+            try {
+               filter.destroy();
+            } catch (RuntimeException e) {
+               LOG.warn("Exception destroying filter: " + e.getMessage(), e);
+            }
+         }
+         instances.clear();
+      }
+      if (isDebug) {
+         LOG.debug("Destroyed filters for portlet application: " + portletApp.getName());
+      }
+   }
+
+   private PortletFilter loadFilter(Filter filter, ClassLoader loader, BeanManager beanmgr)
+         throws InstantiationException, IllegalAccessException, ClassNotFoundException {
+      Object obj = null;
+      Class<?> fcls = loader.loadClass(filter.getFilterClass());
+      if (beanmgr == null) {
+         // CDI is not active
+         obj = fcls.newInstance();
+      } else {
+         // CDI active ... instantiate as bean to enable contextual features
+         Set<Bean<?>> beans = beanmgr.getBeans(fcls);
+         Bean<?> bean = beanmgr.resolve(beans);
+         if (bean != null) {
+            obj = beanmgr.getReference(bean, bean.getBeanClass(), beanmgr.createCreationalContext(bean));
+         } else {
+            LOG.warn("Could not get bean reference: " + filter.getFilterClass());
+            obj = fcls.newInstance();
+         }
+      }
+      if (isDebug) {
+         StringBuilder txt = new StringBuilder();
+         txt.append("Loaded filter for: ").append(fcls.getCanonicalName());
+         txt.append(", bean manager active: ").append(beanmgr != null);
+         LOG.debug(txt.toString());
+      }
+      return (PortletFilter) obj;
+   }
+
+   private List<Filter> resolveChain(String portletName, String lifeCycle) {
+      List<Filter> filters = new ArrayList<Filter>();
+      List<? extends FilterMapping> filterMappingList = portletApp.getFilterMappings();
+      if (filterMappingList != null) {
+         for (FilterMapping filterMapping : filterMappingList) {
+            if (isFilter(filterMapping, portletName)) {
+               // the filter is specified for the portlet, check the filter for the lifecycle
+               for (Filter filter : portletApp.getFilters()) {
+                  // search for the filter in the filter
+                  if (filter.getFilterName().equals(filterMapping.getFilterName())) {
+                     // check the lifecycle
+                     if (isLifeCycle(filter, lifeCycle)) {
+                        // the filter match to the portlet and has the specified lifecycle -> add to chain
+                        filters.add(filter);
+                     }
+                  }
+               }
+            }
+         }
+      }
+      return filters.isEmpty() ? Collections.<Filter> emptyList() : Collections.unmodifiableList(filters);
+   }
+
+   private static String getKey(String portletName, String lifeCycle) {
+      return portletName + "/" + lifeCycle;
+   }
+
+   private boolean isLifeCycle(Filter filter, String lifeCycle) {
+      List<String> lifeCyclesList = filter.getLifecycles();
+      for (String string : lifeCyclesList) {
+         if (string.equals(lifeCycle))
+            return true;
+      }
+      return false;
+   }
+
+   private boolean isFilter(FilterMapping filterMapping, String portletName) {
+      List<String> portletNamesList = filterMapping.getPortletNames();
+      for (String portletNameFromFilterList : portletNamesList) {
+         if (portletNameFromFilterList.endsWith("*")) {
+            if (portletNameFromFilterList.length() == 1) {
+               // if name contains only *
+               return true;
+            }
+            portletNameFromFilterList = portletNameFromFilterList.substring(0, portletNameFromFilterList.length() - 1);
+            if (portletName.length() >= portletNameFromFilterList.length()) {
+               if (portletName.substring(0, portletNameFromFilterList.length()).equals(portletNameFromFilterList)) {
+                  return true;
+               }
+            }
+         } else if (portletNameFromFilterList.equals(portletName))
+            return true;
+      }
+      return false;
+   }
+}
@@ -28,6 +28,7 @@ import org.apache.pluto.container.PortletRenderResponseContext;
 import org.apache.pluto.container.PortletRequestContext;
 import org.apache.pluto.container.PortletWindow;
 import org.apache.pluto.driver.AttributeKeys;
+import org.apache.pluto.driver.core.PortalRequestContext;
 
 /**
  * @version $Id$
@@ -36,11 +37,33 @@ import org.apache.pluto.driver.AttributeKeys;
 public class PortletRenderResponseContextImpl extends PortletMimeResponseContextImpl implements
                 PortletRenderResponseContext
 {
+    /** <code>true</code> if the portal caches the render markup */
+    private final boolean renderCache;
+
     public PortletRenderResponseContextImpl(PortletContainer container, HttpServletRequest containerRequest,
           HttpServletResponse containerResponse, PortletWindow window, PortletRequestContext requestContext)
     {
         super(container, containerRequest, containerResponse, window, requestContext);
         setLifecycle(PortletRequest.RENDER_PHASE);
+        renderCache = PortalRequestContext.getContext(containerRequest).getServletContext()
+              .getAttribute(AttributeKeys.RENDER_CACHE) != null;
+
+        // the ETag of the markup cached by the portal
+        String eTag = (String) containerRequest.getAttribute(AttributeKeys.RENDER_CACHE_ETAG);
+        if (eTag != null)
+        {
+            getCacheControl().setETag(eTag);
+        }
+    }
+
+    public void close()
+    {
+        if (renderCache && !isClosed())
+        {
+            // make the cache control available to the portal render cache
+            getContainerRequest().setAttribute(AttributeKeys.RENDER_CACHE_CONTROL, getCacheControl());
+        }
+        super.close();
     }
 
     public void setNextPossiblePortletModes(Collection<PortletMode> portletModes)
@@ -42,6 +42,7 @@ import org.apache.pluto.container.impl.ActionParametersImpl;
 import org.apache.pluto.container.impl.MutableActionParametersImpl;
 import org.apache.pluto.container.impl.MutableRenderParametersImpl;
 import org.apache.pluto.container.impl.MutableResourceParametersImpl;
+import org.apache.pluto.container.impl.ParameterValuesLookup;
 import org.apache.pluto.container.impl.PortletURLImpl;
 import org.apache.pluto.container.impl.RenderParametersImpl;
 import org.apache.pluto.container.impl.ResourceParametersImpl;
@@ -55,7 +56,7 @@ import org.slf4j.LoggerFactory;
  * @version $Id$
  *
  */
-public class PortletRequestContextImpl implements PortletRequestContext {
+public class PortletRequestContextImpl implements PortletRequestContext, ParameterValuesLookup {
    private static final Logger LOG = LoggerFactory.getLogger(PortletRequestContextImpl.class);
    private static final boolean isTrace = LOG.isTraceEnabled();
    
@@ -313,6 +314,11 @@ public class PortletRequestContextImpl implements PortletRequestContext {
       return paramFactory.getParameterMap(window.getId().getStringId());
    }
 
+   @Override
+   public String[] getParameterValues(String name) {
+      return paramFactory.getMergedParameterValues(window.getId().getStringId(), name);
+   }
+
    @Override
    public Map<String, String[]> getPrivateParameterMap() {
       return paramFactory.getPrivateParameterMap(window.getId().getStringId());
@@ -26,6 +26,8 @@ import org.apache.pluto.container.PortletContainer;
 import org.apache.pluto.container.PortletRequestContext;
 import org.apache.pluto.container.PortletResourceResponseContext;
 import org.apache.pluto.container.PortletWindow;
+import org.apache.pluto.driver.AttributeKeys;
+import org.apache.pluto.driver.core.PortalRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,12 +40,34 @@ public class PortletResourceResponseContextImpl extends PortletMimeResponseConte
 {
    private static final Logger    LOGGER  = LoggerFactory.getLogger(PortletResourceResponseContextImpl.class);
    private static final boolean   isTrace = LOGGER.isTraceEnabled();
+
+    /** <code>true</code> if the portal caches the resource responses */
+    private final boolean resourceCache;
     
     public PortletResourceResponseContextImpl(PortletContainer container, HttpServletRequest containerRequest,
           HttpServletResponse containerResponse, PortletWindow window, PortletRequestContext requestContext)
     {        
         super(container, containerRequest, containerResponse, window, requestContext);
         setLifecycle(PortletRequest.RESOURCE_PHASE);
+        resourceCache = PortalRequestContext.getContext(containerRequest).getServletContext()
+              .getAttribute(AttributeKeys.RESOURCE_CACHE) != null;
+
+        // the ETag of the cached response or of the client copy
+        String eTag = (String) containerRequest.getAttribute(AttributeKeys.RESOURCE_CACHE_ETAG);
+        if (eTag != null)
+        {
+            getCacheControl().setETag(eTag);
+        }
+    }
+
+    public void close()
+    {
+        if (resourceCache && !isClosed())
+        {
+            // make the cache control available to the portal resource cache
+            getContainerRequest().setAttribute(AttributeKeys.RESOURCE_CACHE_CONTROL, getCacheControl());
+        }
+        super.close();
     }
 
     public void setCharacterEncoding(String charset)
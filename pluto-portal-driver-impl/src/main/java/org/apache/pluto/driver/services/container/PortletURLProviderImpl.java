@@ -265,27 +265,11 @@ public class PortletURLProviderImpl implements PortletURLProvider {
    }
 
    public void write(Writer out, boolean escapeXML) throws IOException {
-      String result = apply().toURL(false);
-      if (escapeXML) {
-         result = result.replaceAll("&", "&amp;");
-         result = result.replaceAll("<", "&lt;");
-         result = result.replaceAll(">", "&gt;");
-         result = result.replaceAll("\'", "&#039;");
-         result = result.replaceAll("\"", "&#034;");
-      }
-      out.write(result);
+      apply().write(out, escapeXML);
    }
 
    public Appendable append(Appendable out, boolean escapeXML) throws IOException {
-      String result = apply().toURL(false);
-      if (escapeXML) {
-         result = result.replaceAll("&", "&amp;");
-         result = result.replaceAll("<", "&lt;");
-         result = result.replaceAll(">", "&gt;");
-         result = result.replaceAll("\'", "&#039;");
-         result = result.replaceAll("\"", "&#034;");
-      }
-      out.append(result);
+      apply().write(out, escapeXML);
       return out;
    }
 
@@ -21,6 +21,7 @@ import java.util.Set;
 
 import org.apache.pluto.container.PageResourceId;
 import org.apache.pluto.driver.services.portal.PageConfig;
+import org.apache.pluto.driver.services.portal.PageDependencies;
 import org.apache.pluto.driver.services.portal.PageResources;
 import org.apache.pluto.driver.services.portal.RenderConfigService;
 import org.apache.pluto.driver.services.portal.admin.RenderConfigAdminService;
@@ -40,6 +41,11 @@ public class RenderConfigServiceImpl
 
     public RenderConfigServiceImpl(ResourceConfig config) {
         this.config = config;
+        if (config.getRenderConfig() != null) {
+            for (PageConfig pageConfig : getPages()) {
+                getPageDependencies(pageConfig);
+            }
+        }
     }
 
     public String getPortalName() {
@@ -86,6 +92,11 @@ public class RenderConfigServiceImpl
     public void removePage(PageConfig pageConfig){
         config.getRenderConfig().removePage(pageConfig);
     }
+
+    @Override
+    public long getVersion() {
+        return config.getRenderConfig().getVersion();
+    }
     
     @Override
     public PageResources getPageResources() {
@@ -96,4 +107,15 @@ public class RenderConfigServiceImpl
     public List<PageResourceId> getDefaultPageDependencies() {
        return config.getDefaultPageDependencies();
     }
+    
+    @Override
+    public PageDependencies getPageDependencies(PageConfig pageConfig) {
+       PageDependencies deps = pageConfig.getDependencies();
+       if (deps == null) {
+          deps = new PageDependencies(config.getDefaultPageDependencies());
+          deps.addAll(pageConfig.getPageResources());
+          pageConfig.setDependencies(deps);
+       }
+       return deps;
+    }
 }
@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.pluto.driver.config.DriverConfiguration;
+import org.apache.pluto.driver.services.portal.PortletWindowConfig;
+import org.apache.pluto.driver.services.portal.PublicRenderParameterMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The portal URL state that depends only on the page: the public render
+ * parameter mapper, the IDs of the portlets on the page, and the portlet
+ * application versions. The template is created once per page and is not
+ * modified. Each parsed portal URL shares the portlet IDs and versions until it
+ * modifies them, and receives a clone of the public render parameter mapper.
+ * <p>
+ * The template also contains the parts of the URL string that depend only on
+ * the page: the encoded render path followed by the portlet ID table, and the
+ * index of each portlet ID within the table.
+ * <p>
+ * A template is valid for a given page configuration version and portlet
+ * registry version.
+ *
+ * @see PortalURLParserImpl
+ * @see RelativePortalURLImpl#setPageTemplate(PageURLTemplate)
+ */
+class PageURLTemplate {
+
+   /** Logger. */
+   private static final Logger               LOG     = LoggerFactory.getLogger(PageURLTemplate.class);
+   private static final boolean              isTrace = LOG.isTraceEnabled();
+
+   private final long                        pageVersion;
+   private final long                        registryVersion;
+
+   private final PublicRenderParameterMapper prpMapper;
+   private final Set<String>                 portletIds;
+   private final Map<String, String>         versions;
+   private final Map<String, Boolean>        v3;
+
+   private final String                      renderPath;
+   private final String                      prefix;
+   private final boolean                     prefixXMLSafe;
+   private final Map<String, Integer>        indexes;
+
+   /**
+    * Computes the template for a page.
+    *
+    * @param dc
+    *           the driver configuration
+    * @param page
+    *           the page name, or <code>null</code> for the default page
+    * @param registryVersion
+    *           the portlet registry version the template is computed for
+    */
+   PageURLTemplate(DriverConfiguration dc, String page, long registryVersion) {
+      // read the version first, so that concurrent changes cause recomputation
+      this.pageVersion = dc.getRenderConfigService().getVersion();
+      this.registryVersion = registryVersion;
+
+      prpMapper = dc.getPublicRenderParameterService().getPRPMapper(page);
+      Set<String> pids = new HashSet<String>(dc.getPageConfig(page).getPortletIds());
+
+      // Extract the version info for the portlets on the page
+      Map<String, String> vmap = new HashMap<String, String>();
+      Map<String, Boolean> v3map = new HashMap<String, Boolean>();
+      StringBuilder vstr = new StringBuilder();
+      if (isTrace) {
+         vstr.append("Portlet Versions: ");
+      }
+      for (String pid : pids) {
+         String appName = PortletWindowConfig.fromId(pid).getContextPath();
+         try {
+            String pv = dc.getPortletRegistryService().getPortletApplication(appName).getVersion();
+            vmap.put(pid, pv);
+            v3map.put(pid, pv.equals("3.0"));
+            if (isTrace) {
+               vstr.append(pid).append(" = ").append(pv).append(", ");
+            }
+         } catch (Exception e) {
+            LOG.error("Portlet application definition could not be retrieved for " + appName);
+         }
+      }
+      if (isTrace) {
+         LOG.debug(vstr.toString());
+      }
+
+      portletIds = Collections.unmodifiableSet(pids);
+      versions = Collections.unmodifiableMap(vmap);
+      v3 = Collections.unmodifiableMap(v3map);
+
+      // Encode the render path and the portlet ID table in the order in which
+      // the portlet IDs are iterated by the URLs sharing the set
+      renderPath = (page == null) ? "" : page;
+      StringBuilder buf = new StringBuilder(renderPath.length() + 64 * pids.size());
+      Map<String, Integer> imap = new HashMap<String, Integer>();
+      try {
+         PortalURLEncoder.appendPath(renderPath, buf, false);
+         for (String pid : portletIds) {
+            PortalURLParserImpl.appendPortletId(pid, imap.size(), buf);
+            imap.put(pid, imap.size());
+         }
+      } catch (IOException e) {
+         // cannot happen with a StringBuilder
+      }
+      prefix = buf.toString();
+      prefixXMLSafe = PortalURLEncoder.isXMLSafe(renderPath);
+      indexes = Collections.unmodifiableMap(imap);
+   }
+
+   /**
+    * Returns <code>true</code> if the template reflects the given page
+    * configuration and portlet registry versions.
+    */
+   boolean isCurrent(long pageVersion, long registryVersion) {
+      return this.pageVersion == pageVersion && this.registryVersion == registryVersion;
+   }
+
+   /**
+    * @return the prototype mapper, which must be cloned before use
+    */
+   PublicRenderParameterMapper getPRPMapper() {
+      return prpMapper;
+   }
+
+   /**
+    * @return the unmodifiable set of portlet IDs on the page
+    */
+   Set<String> getPortletIds() {
+      return portletIds;
+   }
+
+   /**
+    * @return the unmodifiable map of portlet versions by portlet ID
+    */
+   Map<String, String> getVersions() {
+      return versions;
+   }
+
+   /**
+    * @return the unmodifiable map of version 3 flags by portlet ID
+    */
+   Map<String, Boolean> getV3Flags() {
+      return v3;
+   }
+
+   /**
+    * @return the render path for which the template was computed
+    */
+   String getRenderPath() {
+      return renderPath;
+   }
+
+   /**
+    * Returns the encoded render path followed by the portlet ID table.
+    *
+    * @param escapeXML
+    *           <code>true</code> if the prefix is to be XML-escaped
+    * @return the prefix, or <code>null</code> if the prefix must be XML-escaped
+    *         but contains XML special characters
+    */
+   String getPrefix(boolean escapeXML) {
+      return (!escapeXML || prefixXMLSafe) ? prefix : null;
+   }
+
+   /**
+    * @return the unmodifiable map of portlet ID table indexes by portlet ID
+    */
+   Map<String, Integer> getIndexes() {
+      return indexes;
+   }
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Writes the parts of a portal URL directly to the output. URL encoding
+ * produces the same result as <code>URLEncoder.encode(str, "UTF-8")</code>,
+ * but strings that need no encoding are appended without copying.
+ *
+ * @see PortalURLParserImpl
+ */
+final class PortalURLEncoder {
+
+   private static final Charset UTF8    = Charset.forName("UTF-8");
+
+   private static final char[]  HEX     = "0123456789ABCDEF".toCharArray();
+
+   /** The characters that are not encoded by the URLEncoder, except for the space. */
+   private static final boolean[] SAFE  = new boolean[128];
+   static {
+      for (char c = 'a'; c <= 'z'; c++) {
+         SAFE[c] = true;
+      }
+      for (char c = 'A'; c <= 'Z'; c++) {
+         SAFE[c] = true;
+      }
+      for (char c = '0'; c <= '9'; c++) {
+         SAFE[c] = true;
+      }
+      SAFE['-'] = true;
+      SAFE['_'] = true;
+      SAFE['.'] = true;
+      SAFE['*'] = true;
+   }
+
+   private PortalURLEncoder() {
+   }
+
+   /**
+    * URL-encodes the string.
+    */
+   static String encode(String str) {
+      StringBuilder buf = new StringBuilder(str.length() + 16);
+      try {
+         encode(str, buf);
+      } catch (IOException e) {
+         // cannot happen with a StringBuilder
+      }
+      return buf.toString();
+   }
+
+   /**
+    * Appends the URL-encoded string to the output.
+    */
+   static void encode(String str, Appendable out) throws IOException {
+      int len = str.length();
+      int ii = 0;
+      while (ii < len && isSafe(str.charAt(ii))) {
+         ii++;
+      }
+      if (ii == len) {
+         out.append(str);
+         return;
+      }
+
+      out.append(str, 0, ii);
+      while (ii < len) {
+         char c = str.charAt(ii);
+         if (isSafe(c)) {
+            out.append(c);
+            ii++;
+         } else if (c == ' ') {
+            out.append('+');
+            ii++;
+         } else {
+            // encode the run of characters up to the next character that is
+            // not encoded, so that surrogate pairs stay together
+            int start = ii;
+            do {
+               ii++;
+            } while (ii < len && !isSafe(str.charAt(ii)) && str.charAt(ii) != ' ');
+            for (byte b : str.substring(start, ii).getBytes(UTF8)) {
+               out.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+            }
+         }
+      }
+   }
+
+   /**
+    * Appends a path to the output. Spaces are replaced by "%20", and the XML
+    * special characters are escaped if requested.
+    */
+   static void appendPath(String path, Appendable out, boolean escapeXML) throws IOException {
+      append(path, out, escapeXML, true);
+   }
+
+   /**
+    * Appends the string to the output, escaping the XML special characters if
+    * requested.
+    */
+   static void appendText(String str, Appendable out, boolean escapeXML) throws IOException {
+      append(str, out, escapeXML, false);
+   }
+
+   /**
+    * Returns <code>true</code> if the string contains no XML special characters.
+    */
+   static boolean isXMLSafe(String str) {
+      for (int ii = 0; ii < str.length(); ii++) {
+         if (escape(str.charAt(ii)) != null) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static void append(String str, Appendable out, boolean escapeXML, boolean encodeSpace)
+         throws IOException {
+      int start = 0;
+      for (int ii = 0; ii < str.length(); ii++) {
+         char c = str.charAt(ii);
+         String rep = null;
+         if (c == ' ' && encodeSpace) {
+            rep = "%20";
+         } else if (escapeXML) {
+            rep = escape(c);
+         }
+         if (rep != null) {
+            out.append(str, start, ii).append(rep);
+            start = ii + 1;
+         }
+      }
+      if (start == 0) {
+         out.append(str);
+      } else {
+         out.append(str, start, str.length());
+      }
+   }
+
+   private static String escape(char c) {
+      switch (c) {
+      case '&':
+         return "&amp;";
+      case '<':
+         return "&lt;";
+      case '>':
+         return "&gt;";
+      case '\'':
+         return "&#039;";
+      case '"':
+         return "&#034;";
+      default:
+         return null;
+      }
+   }
+
+   private static boolean isSafe(char c) {
+      return c < 128 && SAFE[c];
+   }
+}
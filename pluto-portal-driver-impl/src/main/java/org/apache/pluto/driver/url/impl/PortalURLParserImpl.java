@@ -16,12 +16,15 @@
  */
 package org.apache.pluto.driver.url.impl;
 
-import java.net.URLDecoder;
-import java.net.URLEncoder;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.portlet.PortletMode;
 import javax.portlet.ResourceURL;
@@ -31,9 +34,11 @@ import javax.servlet.http.HttpServletRequest;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.apache.pluto.container.driver.PortletRegistryEvent;
+import org.apache.pluto.container.driver.PortletRegistryListener;
+import org.apache.pluto.container.driver.PortletRegistryService;
 import org.apache.pluto.driver.AttributeKeys;
 import org.apache.pluto.driver.config.DriverConfiguration;
-import org.apache.pluto.driver.services.portal.PortletWindowConfig;
 import org.apache.pluto.driver.services.portal.PublicRenderParameterMapper;
 import org.apache.pluto.driver.url.PortalURL;
 import org.apache.pluto.driver.url.PortalURL.URLType;
@@ -45,7 +50,7 @@ import org.apache.pluto.driver.url.PortalURLPublicParameter;
  * @version 1.0
  * @since Sep 30, 2004
  */
-public class PortalURLParserImpl implements PortalURLParser {
+public class PortalURLParserImpl implements PortalURLParser, PortletRegistryListener {
 
    /** Logger. */
    private static final Logger LOG = LoggerFactory.getLogger(PortalURLParserImpl.class);
@@ -55,6 +60,15 @@ public class PortalURLParserImpl implements PortalURLParser {
    /** The singleton parser instance. */
    private static final PortalURLParser PARSER = new PortalURLParserImpl();
 
+   /** Page templates by page name. The default page has the empty name. */
+   private final ConcurrentMap<String, PageURLTemplate> templates = new ConcurrentHashMap<String, PageURLTemplate>();
+
+   /** Changed whenever a portlet application is registered or removed. */
+   private final AtomicLong registryVersion = new AtomicLong();
+
+   /** The registry for which the parser is registered as listener. */
+   private volatile PortletRegistryService registeredWith;
+
 
    // Constants used for Encoding/Decoding ------------------------------------
 
@@ -125,9 +139,8 @@ public class PortalURLParserImpl implements PortalURLParser {
       }
 
 
-      String urlBase = request.getScheme()+"://" + request.getServerName() + ":" + request.getServerPort();
-      // Construct portal URL using info retrieved from servlet request.
-      RelativePortalURLImpl portalURL =  new RelativePortalURLImpl(urlBase, contextPath, servletName, this, request);
+      // The URL base is only needed for absolute URLs, so it is determined on demand.
+      RelativePortalURLImpl portalURL =  new RelativePortalURLImpl(null, contextPath, servletName, this, request);
 
       // Support added for filter.  Should we separate into a different impl?
       String pathInfo = request.getPathInfo();
@@ -136,7 +149,7 @@ public class PortalURLParserImpl implements PortalURLParser {
             int idx = servletName.indexOf(".jsp")+".jsp".length();
             pathInfo = servletName.substring(idx);
             servletName = servletName.substring(0, idx);
-            portalURL = new RelativePortalURLImpl(urlBase, contextPath, servletName, this, request);
+            portalURL = new RelativePortalURLImpl(null, contextPath, servletName, this, request);
             if (isDebug) {
                LOG.debug("Constructed new URL due to JSP processing. pathInfo: " + pathInfo);
             }
@@ -145,260 +158,189 @@ public class PortalURLParserImpl implements PortalURLParser {
       
       // we want to work with the untranslated path info, so extract it from the URI.
       // chop off query string.
-      String prefix = contextPath + servletName;
-      int qi = reqURI.indexOf("?");
+      int qi = reqURI.indexOf('?');
       qi = (qi < 0) ? reqURI.length() : qi;
-      pathInfo = reqURI.substring(prefix.length(), qi);
+      pathInfo = reqURI.substring(contextPath.length() + servletName.length(), qi);
 
       if (isTrace) {
          LOG.debug("Parsing request pathInfo: " + pathInfo);
       }
 
       // Need to set the render path (= page) and PRP mapper before the rest of the URL is parsed
-      StringBuilder renderPath = new StringBuilder();
-      if (pathInfo.length() > 0 && pathInfo.charAt(0) != '/') {
-         renderPath.append('/');
-      }
-
+      PortalURLTokenizer tokens = new PortalURLTokenizer(pathInfo, 0);
       int ind = pathInfo.indexOf(TOKEN_DELIM + PREFIX);
-      if (ind < 0) {
-         // there are no parameters to process
-         renderPath.append(urlDecode(pathInfo));
-         pathInfo = "";
-      } else {
-         // parameters, etc. remain to be processed
-         renderPath.append(urlDecode(pathInfo.substring(0, ind)));
-         pathInfo = pathInfo.substring(ind);
+      String renderPath = tokens.decode(0, (ind < 0) ? pathInfo.length() : ind);
+      if (pathInfo.length() > 0 && pathInfo.charAt(0) != '/') {
+         renderPath = '/' + renderPath;
       }
 
-      portalURL.setRenderPath(renderPath.toString());
+      portalURL.setRenderPath(renderPath);
       if (isTrace) {
-         LOG.debug("Parse: renderPath: " + renderPath.toString() + ",  pathInfo: " + pathInfo);
+         LOG.debug("Parse: renderPath: " + renderPath + ",  pathInfo: " + pathInfo);
       }
 
-      // Set up public render parameter mapper & portlet ID list
+      // Set up public render parameter mapper, portlet ID list, and portlet versions
+      // from the page template
       
       ServletContext sc = request.getServletContext();
       DriverConfiguration dc = (DriverConfiguration) sc.getAttribute(AttributeKeys.DRIVER_CONFIG);
       // special handling for default page
-      String rp = (renderPath.length() > 0) ? renderPath.toString() : null;
-      PublicRenderParameterMapper prpm = dc.getPublicRenderParameterService()
-            .getPRPMapper(rp);
-      portalURL.setPublicRenderParameterMapper(prpm);
-      Collection<String> pids = dc.getPageConfig(rp).getPortletIds();
-      portalURL.setPortletIds(pids);
-
-      // Extract the version info for the portlets on the page and store in URL
-      
-      StringBuilder vstr = new StringBuilder();
-      if (isTrace) {
-         vstr.append("Portlet Versions: ");
-      }
-      for (String pid : pids) {
-         String appName = PortletWindowConfig.fromId(pid).getContextPath();
-         try {
-            String pv = dc.getPortletRegistryService().getPortletApplication(appName).getVersion();
-            portalURL.setVersion(pid, pv);
-            if (isTrace) {
-               vstr.append(pid).append(" = ").append(pv).append(", ");
-            }
-         } catch (Exception e) {
-            LOG.error("Portlet application definition could not be retrieved for " + appName);
-         }
-      }
-      if (isTrace) {
-         LOG.debug(vstr.toString());
-      }
+      String rp = (renderPath.length() > 0) ? renderPath : null;
+      portalURL.setPageTemplate(getPageTemplate(dc, rp));
 
       // Tokenize the rest and process the tokens
       ArrayList<String> portletIds = new ArrayList<String>();
-      if (pathInfo.length() > 2) {
-         String[] tokens = pathInfo.split(TOKEN_DELIM + PREFIX);
-         for (String t : tokens) {
-
-            // vals contains the component values of the token after the type
-            String type, val;
-            String[] vals;
-            if (t.length() < 3) {
-               // LOG.warn("Token >>" + t + "<< is too short!! ");
-               continue;
-            } else {
-               type = t.substring(0, 2);
-               val = t.substring(2);
-               vals = val.split(DELIM);
-            }
+      while (tokens.next()) {
+
+         // If the first value is numeric, attempt to dereference the index to obtain the portlet ID.
+         // The code assumes that the portlet ID table in the URL appears directly after the render path. 
+         String pid = null;
+         int index = tokens.getIndex(0);
+         if ((index >= 0) && (index < portletIds.size())) {
+            pid = portletIds.get(index);
+         }
 
-            // If the first value is numeric, attempt to dereference the index to obtain the portlet ID.
-            // The code assumes that the portlet ID table in the URL appears directly after the render path. 
-            int index = -1;
-            String pid = null;
-            if ((vals[0].length() > 0) && vals[0].matches("\\d+")) {
-               try {
-                  index = Integer.parseInt(vals[0]);
-                  if ((index >= 0) && (index < portletIds.size())) {
-                     pid = portletIds.get(index);
-                  }
-               } catch (Exception e) {
-                  LOG.error("error parsing URL pid reference token. Token: " + vals[0] + ", exception: " + e.toString());
-               }
+         // Get the portlet IDs & reference numbers. The portlet IDs are URL encoded.
+         if (tokens.isType(PORTLET_ID)) {
+            int pos = tokens.getIndex(1);
+            if (pos < 0 || pos > portletIds.size()) {
+               LOG.warn("Bad portlet ID token: " + tokens.getToken());
+            } else {
+               portletIds.add(pos, tokens.decode(0));
             }
+            continue;
+         } 
 
-            // Get the portlet IDs & reference numbers. The portlet IDs are URL encoded.
-            if (type.equals(PORTLET_ID)) {
-               portletIds.add(Integer.parseInt(vals[1]), urlDecode(vals[0]));
-               continue;
-            } 
+         // Cacheability definition: portalURL.setCacheability().
+         if (tokens.isType(CACHE_LEVEL)) {
+            portalURL.setCacheability(tokens.decode(0));
+            continue;
+         }
 
-            // Cacheability definition: portalURL.setCacheability().
-            if (type.equals(CACHE_LEVEL)) {
-               portalURL.setCacheability(urlDecode(vals[0]));
-               continue;
-            }
+         // ResourceID definition: portalURL.setResourceID().
+         if (tokens.isType(RESOURCE_ID)) {
+            portalURL.setResourceID(tokens.decode(0));
+            continue;
+         }
 
-            // ResourceID definition: portalURL.setResourceID().
-            if (type.equals(RESOURCE_ID)) {
-               portalURL.setResourceID(urlDecode(vals[0]));
-               continue;
-            }
+         // Authenticate definition: portalURL.setAuthenticated().
+         if (tokens.isType(AUTHENTICATE)) {
+            portalURL.setAuthenticated(Boolean.valueOf(tokens.decode(0)));
+            continue;
+         }
 
-            // Authenticate definition: portalURL.setAuthenticated().
-            if (type.equals(AUTHENTICATE)) {
-               portalURL.setAuthenticated(Boolean.valueOf(urlDecode(vals[0])));
-               continue;
-            }
+         // Resource window definition: portalURL.setResourceWindow().
+         if (tokens.isType(RESOURCE)) {
+            portalURL.setTargetWindow(pid);
+            portalURL.setType(URLType.Resource);
+            continue;
+         }
 
-            // Resource window definition: portalURL.setResourceWindow().
-            if (type.equals(RESOURCE)) {
-               portalURL.setTargetWindow(pid);
-               portalURL.setType(URLType.Resource);
-               continue;
-            }
+         // Render window definition: portalURL.setResourceWindow().
+         if (tokens.isType(RENDER)) {
+            portalURL.setTargetWindow(pid);
+            portalURL.setType(URLType.Render);
+            continue;
+         }
 
-            // Render window definition: portalURL.setResourceWindow().
-            if (type.equals(RENDER)) {
-               portalURL.setTargetWindow(pid);
-               portalURL.setType(URLType.Render);
-               continue;
-            }
+         // Action window definition: portalURL.setActionWindow().
+         if (tokens.isType(ACTION)) {
+            portalURL.setTargetWindow(pid);
+            portalURL.setType(URLType.Action);
+            continue;
+         }
 
-            // Action window definition: portalURL.setActionWindow().
-            if (type.equals(ACTION)) {
-               portalURL.setTargetWindow(pid);
-               portalURL.setType(URLType.Action);
-               continue;
-            }
+         // Ajax Action window definition: portalURL.setActionWindow().
+         if (tokens.isType(AJAX_ACTION)) {
+            portalURL.setTargetWindow(pid);
+            portalURL.setType(URLType.AjaxAction);
+            continue;
+         }
 
-            // Ajax Action window definition: portalURL.setActionWindow().
-            if (type.equals(AJAX_ACTION)) {
-               portalURL.setTargetWindow(pid);
-               portalURL.setType(URLType.AjaxAction);
-               continue;
-            }
+         // Partial Action window definition: portalURL.setActionWindow().
+         if (tokens.isType(PARTIAL_ACTION)) {
+            portalURL.setTargetWindow(pid);
+            portalURL.setType(URLType.PartialAction);
+            continue;
+         }
 
-            // Partial Action window definition: portalURL.setActionWindow().
-            if (type.equals(PARTIAL_ACTION)) {
-               portalURL.setTargetWindow(pid);
-               portalURL.setType(URLType.PartialAction);
-               continue;
-            }
+         // The remaining types need a second field
+         if (tokens.getFieldCount() < 2) {
+            LOG.warn("Bad token: " + tokens.getToken());
+            continue;
+         }
 
-            // Window state definition: portalURL.setWindowState().
-            if (type.equals(WINDOW_STATE)) {
-               portalURL.setWindowState(pid, new WindowState(urlDecode(vals[1])));
-               continue;
-            }
+         // Window state definition: portalURL.setWindowState().
+         if (tokens.isType(WINDOW_STATE)) {
+            portalURL.setWindowState(pid, new WindowState(tokens.decode(1)));
+            continue;
+         }
 
-            // Portlet mode definition: portalURL.setPortletMode().
-            if (type.equals(PORTLET_MODE)) {
-               portalURL.setPortletMode(pid, new PortletMode(urlDecode(vals[1])));
-               continue;
-            }
+         // Portlet mode definition: portalURL.setPortletMode().
+         if (tokens.isType(PORTLET_MODE)) {
+            portalURL.setPortletMode(pid, new PortletMode(tokens.decode(1)));
+            continue;
+         }
 
-            // The remaining types deal with parameters, so extract the
-            // parameter name and values.
-            StringBuilder dbgstr = new StringBuilder();
-            if (isTrace) {
-               dbgstr.append("Decoding parameter: window ID=").append(pid)
-                     .append(", name/value=").append(vals[1]);
+         // The remaining types deal with parameters, so extract the
+         // parameter name and values.
+         int field = 1;
+         if (tokens.isType(PUBLIC_RENDER_PARAM)) {
+            if (tokens.getFieldCount() != 3) {
+               LOG.warn("Bad PRP Token: " + tokens.getToken());  
+            } else {
+               field = 2;
             }
+         }
 
-            String values = vals[1];
-            if (type.equals(PUBLIC_RENDER_PARAM)) {
-               if (vals.length != 3) {
-                  LOG.warn("Bad PRP Token: " + val);  
-               } else {
-                  values = vals[2];
-               }
-            }
+         if (!tokens.parseValues(field)) {
+            LOG.warn("Bad parameter token: " + tokens.getToken());
+         }
+         String paramName = tokens.getParamName();
+         String[] paramValues = tokens.getParamValues();
 
-            String[] pVals = values.split(VALUE_DELIM, -1);
-            String[] paramValues = new String[0];
-            String paramName = "";
-            boolean isEmptyArray = false;
-            if (pVals.length > 1) {
-               if (pVals.length == 2 && pVals[1].equals(VALUE_ARRAY_EMPTY)) {
-                  isEmptyArray = true;
-               }
-               for (int i = 0; i < pVals.length; i++){
-                  if (pVals[i].equals(VALUE_NULL)) {
-                     pVals[i] = null;
-                  } else {
-                     pVals[i] = urlDecode(pVals[i]);
-                  }
-               }
-            }
-            
-            if (pVals.length == 0 || pVals[0] == null) {
-               LOG.warn("Bad parameter token: " + values);
-            } else {
-               paramName = pVals[0];
-               if (isEmptyArray) {
-                  paramValues = new String[0];
-               } else {
-                  paramValues = Arrays.copyOfRange(pVals, 1, pVals.length);
-               }
-            }
-            
-            if (isTrace) {
-               dbgstr.append(", paramName=").append(paramName);
-               dbgstr.append(", Values length=").append(paramValues.length);
-               dbgstr.append(", paramValues=").append(Arrays.toString(paramValues));
-               LOG.debug(dbgstr.toString());
-            }
+         if (isTrace) {
+            StringBuilder dbgstr = new StringBuilder();
+            dbgstr.append("Decoding parameter: window ID=").append(pid)
+                  .append(", token=").append(tokens.getToken());
+            dbgstr.append(", paramName=").append(paramName);
+            dbgstr.append(", Values length=").append(paramValues.length);
+            dbgstr.append(", paramValues=").append(Arrays.toString(paramValues));
+            LOG.debug(dbgstr.toString());
+         }
 
-            // Portal URL parameter: portalURL.addParameter().
-            if(type.equals(RENDER_PARAM)) {
-               portalURL.addParameter(new PortalURLParameter(pid, paramName, paramValues));
-               continue;
-            }
+         // Portal URL parameter: portalURL.addParameter().
+         if (tokens.isType(RENDER_PARAM)) {
+            portalURL.addParameter(new PortalURLParameter(pid, paramName, paramValues));
+            continue;
+         }
 
-            // Portal URL parameter: portalURL.addParameter().
-            if(type.equals(ACTION_PARAM)) {
-               portalURL.addParameter(new PortalURLParameter(pid, paramName, paramValues, 
-                     PortalURLParameter.PARAM_TYPE_ACTION));
-               continue;
-            }
+         // Portal URL parameter: portalURL.addParameter().
+         if (tokens.isType(ACTION_PARAM)) {
+            portalURL.addParameter(new PortalURLParameter(pid, paramName, paramValues, 
+                  PortalURLParameter.PARAM_TYPE_ACTION));
+            continue;
+         }
 
-            // Portal URL parameter: portalURL.addParameter().
-            if(type.equals(RESOURCE_PARAM)) {
-               portalURL.addParameter(new PortalURLParameter(pid, paramName, paramValues,
-                     PortalURLParameter.PARAM_TYPE_RESOURCE));
-               continue;
-            }
+         // Portal URL parameter: portalURL.addParameter().
+         if (tokens.isType(RESOURCE_PARAM)) {
+            portalURL.addParameter(new PortalURLParameter(pid, paramName, paramValues,
+                  PortalURLParameter.PARAM_TYPE_RESOURCE));
+            continue;
+         }
 
-            //set public parameter in portalURL
-            if (type.equals(PUBLIC_RENDER_PARAM)){
-               PublicRenderParameterMapper mapper = portalURL.getPublicRenderParameterMapper();
-               int prpGroup = mapper.getIndex(pid, paramName);
-               if (prpGroup >= 0) {
-                  mapper.setValues(prpGroup, paramValues);
-               } else {
-                  StringBuilder sb = new StringBuilder("Could not find public render parameter group for portlet ID=");
-                  sb.append(pid).append(", parameter name=").append(paramName);
-                  LOG.warn(sb.toString());
-               }
-               continue;
+         //set public parameter in portalURL
+         if (tokens.isType(PUBLIC_RENDER_PARAM)) {
+            PublicRenderParameterMapper mapper = portalURL.getPublicRenderParameterMapper();
+            int prpGroup = mapper.getIndex(pid, paramName);
+            if (prpGroup >= 0) {
+               mapper.setValues(prpGroup, paramValues);
+            } else {
+               StringBuilder sb = new StringBuilder("Could not find public render parameter group for portlet ID=");
+               sb.append(pid).append(", parameter name=").append(paramName);
+               LOG.warn(sb.toString());
             }
+            continue;
          }
       }
 
@@ -417,110 +359,177 @@ public class PortalURLParserImpl implements PortalURLParser {
    }
 
 
+   /**
+    * Returns the template for the page, computing it if the page configuration or
+    * the registered portlet applications have changed.
+    */
+   private PageURLTemplate getPageTemplate(DriverConfiguration dc, String page) {
+      PortletRegistryService registry = dc.getPortletRegistryService();
+      if (registry != registeredWith) {
+         synchronized (this) {
+            if (registry != registeredWith) {
+               registry.addPortletRegistryListener(this);
+               registeredWith = registry;
+               registryVersion.incrementAndGet();
+            }
+         }
+      }
+
+      String key = (page == null) ? "" : page;
+      long regVersion = registryVersion.get();
+      PageURLTemplate template = templates.get(key);
+      if (template == null || !template.isCurrent(dc.getRenderConfigService().getVersion(), regVersion)) {
+         template = new PageURLTemplate(dc, page, regVersion);
+         templates.put(key, template);
+         if (isDebug) {
+            LOG.debug("Computed page template for page: " + key);
+         }
+      }
+      return template;
+   }
+
+   /**
+    * Invalidates the page templates, as the portlet versions and public render
+    * parameters may have changed.
+    */
+   public void portletApplicationRegistered(PortletRegistryEvent event) {
+      registryVersion.incrementAndGet();
+   }
+
+   /**
+    * Invalidates the page templates.
+    */
+   public void portletApplicationRemoved(PortletRegistryEvent event) {
+      registryVersion.incrementAndGet();
+   }
+
    /**
     * Converts a portal URL to a URL string.
     * @param portalURL  the portal URL to convert.
     * @return a URL string representing the portal URL.
     */
    public String toString(RelativePortalURLImpl portalURL) {
+      StringBuilder buffer = new StringBuilder(256);
+      try {
+         write(portalURL, buffer, false);
+      } catch (IOException e) {
+         // cannot happen with a StringBuilder
+      }
+      return buffer.toString();
+   }
+
+   /**
+    * Writes a portal URL to the output. The render path and portlet ID table
+    * are taken from the page template if the URL still shares the portlet IDs
+    * with it.
+    * @param portalURL  the portal URL to write.
+    * @param out        the output
+    * @param escapeXML  <code>true</code> if XML special characters are to be escaped
+    */
+   public void write(RelativePortalURLImpl portalURL, Appendable out, boolean escapeXML) throws IOException {
 
-      StringBuilder buffer = new StringBuilder();
       String targetWindow = portalURL.getTargetWindow();
       
       // Make sure the servlet parameters have been processed
       portalURL.handleServletRequestParams();
 
       // Append the server URI and the servlet path.
-      buffer.append(portalURL.getServletPath().startsWith(TOKEN_DELIM)?"":TOKEN_DELIM)
-      .append(portalURL.getServletPath());
-
-      // Start the pathInfo with the path to the render URL (page).
-      if (portalURL.getRenderPath() != null) {
-         String p = portalURL.getRenderPath().replaceAll(" ", "%20");
-         buffer.append(p);
+      String servletPath = portalURL.getServletPath();
+      if (!servletPath.startsWith(TOKEN_DELIM)) {
+         out.append(TOKEN_DELIM);
       }
-
-      // Add the portletIds with references
-      ArrayList<String> pids = new ArrayList<String>();
-      for (String pid : portalURL.getPortletIds()) {
-         pids.add(pid);
-         buffer.append(TOKEN_DELIM).append(PREFIX).append(PORTLET_ID);
-         try {
-            buffer.append(URLEncoder.encode(pid, "UTF-8"));
-         } catch(Exception e) {
-            LOG.warn("Could not encode pid=" + pid);
-         }
-         buffer.append(DELIM).append(String.valueOf(pids.indexOf(pid)));
+      PortalURLEncoder.appendText(servletPath, out, escapeXML);
+
+      // Start the pathInfo with the path to the render URL (page), followed by
+      // the portletIds with references
+      Map<String, Integer> pids = null;
+      String renderPath = portalURL.getRenderPath();
+      PageURLTemplate template = portalURL.getPageTemplate();
+      if (template != null) {
+         String prefix = template.getPrefix(escapeXML);
+         if (prefix != null && renderPath != null && renderPath.equals(template.getRenderPath())) {
+            out.append(prefix);
+            pids = template.getIndexes();
+         }
+      }
+      if (pids == null) {
+         if (renderPath != null) {
+            PortalURLEncoder.appendPath(renderPath, out, escapeXML);
+         }
+         pids = new HashMap<String, Integer>();
+         for (String pid : portalURL.getPortletIds()) {
+            appendPortletId(pid, pids.size(), out);
+            pids.put(pid, pids.size());
+         }
       }
 
       //Append the resource window definition, if it exists.
       if (portalURL.getType() == URLType.Resource) {
-         int index = pids.indexOf(targetWindow);
+         int index = indexOf(pids, targetWindow);
          if (index < 0) {
             StringBuilder txt = new StringBuilder();
             txt.append("Resource Window not found in portlet ID list. PID = ")
                .append(targetWindow)
                .append(", Portlet IDs in map: ")
-               .append(Arrays.toString(pids.toArray()));
+               .append(pids.keySet());
             LOG.warn(txt.toString());
          } else {
-            buffer.append(TOKEN_DELIM);
-            buffer.append(PREFIX).append(RESOURCE).append(String.valueOf(index));
+            out.append(TOKEN_DELIM);
+            out.append(PREFIX).append(RESOURCE).append(String.valueOf(index));
          }
       }
 
       //Append the render window definition, if it exists.
       if (portalURL.getType() == URLType.Render) {
-         int index = pids.indexOf(targetWindow);
+         int index = indexOf(pids, targetWindow);
          if (index < 0) {
             StringBuilder txt = new StringBuilder();
             txt.append("Render Window not found in portlet ID list. PID = ")
                .append(targetWindow)
                .append(", Portlet IDs in map: ")
-               .append(Arrays.toString(pids.toArray()));
+               .append(pids.keySet());
             LOG.warn(txt.toString());
          } else {
-            buffer.append(TOKEN_DELIM);
-            buffer.append(PREFIX).append(RENDER).append(String.valueOf(index));
+            out.append(TOKEN_DELIM);
+            out.append(PREFIX).append(RENDER).append(String.valueOf(index));
          }
       }
       
       // Append the action window definition, if it exists.
       if (portalURL.getType() == URLType.Action) {
-         int index = pids.indexOf(targetWindow);
+         int index = indexOf(pids, targetWindow);
          if (index < 0) {
             StringBuilder txt = new StringBuilder();
             txt.append("Action Window not found in portlet ID list. PID = ")
                .append(targetWindow)
                .append(", Portlet IDs in map: ")
-               .append(Arrays.toString(pids.toArray()));
+               .append(pids.keySet());
             LOG.warn(txt.toString());
          } else {
-            buffer.append(TOKEN_DELIM);
-            buffer.append(PREFIX).append(ACTION).append(String.valueOf(index));
+            out.append(TOKEN_DELIM);
+            out.append(PREFIX).append(ACTION).append(String.valueOf(index));
          }
       }
       
       // Add authenticate token if the URL requires authentication
       
       if (portalURL.getAuthenticated()) {
-         buffer.append(TOKEN_DELIM);
-         buffer.append(PREFIX).append(AUTHENTICATE)
-               .append(urlEncode(String.valueOf(portalURL.getAuthenticated())));
+         out.append(TOKEN_DELIM);
+         out.append(PREFIX).append(AUTHENTICATE).append(String.valueOf(true));
       }
 
       String reswin = null;
       boolean isCacheabilityFull = false;
       if (portalURL.getType() == URLType.Resource) {
          if (portalURL.getCacheability() != null) {
-            buffer.append(TOKEN_DELIM);
-            buffer.append(PREFIX).append(CACHE_LEVEL)
-                  .append(urlEncode(portalURL.getCacheability()));
+            out.append(TOKEN_DELIM);
+            out.append(PREFIX).append(CACHE_LEVEL);
+            PortalURLEncoder.encode(portalURL.getCacheability(), out);
          }
          if (portalURL.getResourceID() != null) {
-            buffer.append(TOKEN_DELIM);
-            buffer.append(PREFIX).append(RESOURCE_ID)
-                  .append(urlEncode(portalURL.getResourceID()));
+            out.append(TOKEN_DELIM);
+            out.append(PREFIX).append(RESOURCE_ID);
+            PortalURLEncoder.encode(portalURL.getResourceID(), out);
          }
          
          // Set up cacheability processing. For PORTLET, set
@@ -543,16 +552,17 @@ public class PortalURLParserImpl implements PortalURLParser {
             continue;
          }
          
-         int index = pids.indexOf(pid);
+         int index = indexOf(pids, pid);
          PortletMode pm = portalURL.getPortletMode(pid);
          if (index < 0) {
             StringBuilder txt = new StringBuilder("Window not found in portlet ID list. PID = ");
             txt.append(pid).append(", PM = ").append(pm.toString())
-               .append(", Portlet IDs in map: ").append(Arrays.toString(pids.toArray()));
+               .append(", Portlet IDs in map: ").append(pids.keySet());
             LOG.warn(txt.toString());
          } else {
-            buffer.append(TOKEN_DELIM).append(PREFIX).append(PORTLET_MODE)
-            .append(String.valueOf(index)).append(DELIM).append(urlEncode(pm.toString()));
+            out.append(TOKEN_DELIM).append(PREFIX).append(PORTLET_MODE)
+            .append(String.valueOf(index)).append(DELIM);
+            PortalURLEncoder.encode(pm.toString(), out);
          }
       }
 
@@ -564,16 +574,17 @@ public class PortalURLParserImpl implements PortalURLParser {
             continue;
          }
          
-         int index = pids.indexOf(pid);
+         int index = indexOf(pids, pid);
          WindowState ws = portalURL.getWindowState(pid);
          if (index < 0) {
             StringBuilder txt = new StringBuilder("Window not found in portlet ID list. PID = ");
             txt.append(pid).append(", WS = ").append(ws.toString())
-               .append(", Portlet IDs in map: ").append(Arrays.toString(pids.toArray()));
+               .append(", Portlet IDs in map: ").append(pids.keySet());
             LOG.warn(txt.toString());
          } else {
-            buffer.append(TOKEN_DELIM).append(PREFIX).append(WINDOW_STATE)
-            .append(String.valueOf(index)).append(DELIM).append(urlEncode(ws.toString()));
+            out.append(TOKEN_DELIM).append(PREFIX).append(WINDOW_STATE)
+            .append(String.valueOf(index)).append(DELIM);
+            PortalURLEncoder.encode(ws.toString(), out);
          }
       }
 
@@ -585,7 +596,7 @@ public class PortalURLParserImpl implements PortalURLParser {
             continue;
          }
 
-         int index = pids.indexOf(param.getWindowId());
+         int index = indexOf(pids, param.getWindowId());
          if (index < 0) {
             LOG.warn("Window not found in portlet ID list. PID = " + param.getWindowId() + ", Param name = " + param.getName());
             continue;
@@ -593,7 +604,6 @@ public class PortalURLParserImpl implements PortalURLParser {
 
          // Encode render params as a part of the URL.
          if (param.getName() != null && param.getValues() != null) {
-            String valueString = encodeMultiValues(param.getValues());
             String ptype = RENDER_PARAM;
             if (param.getType().equals(PortalURLParameter.PARAM_TYPE_ACTION)) {
                ptype = ACTION_PARAM;
@@ -601,10 +611,12 @@ public class PortalURLParserImpl implements PortalURLParser {
                ptype = RESOURCE_PARAM;
             }
             if (!isCacheabilityFull || ptype.equals(RESOURCE_PARAM)) {
-               buffer.append(TOKEN_DELIM).append(PREFIX).append(ptype)
+               out.append(TOKEN_DELIM).append(PREFIX).append(ptype)
                      .append(String.valueOf(index))
-                     .append(DELIM).append(urlEncode(param.getName()))
-                     .append(VALUE_DELIM).append(valueString);
+                     .append(DELIM);
+               PortalURLEncoder.encode(param.getName(), out);
+               out.append(VALUE_DELIM);
+               encodeMultiValues(param.getValues(), out);
             }
          }
       }
@@ -625,20 +637,19 @@ public class PortalURLParserImpl implements PortalURLParser {
          }
 
          for (int i : activeIndexes) {
-            String[] values = mapper.getValues(i);
-            String valstr = encodeMultiValues(values);
 
             // the values for the PRP group need only appear in the URL once
             List<PortalURLPublicParameter> prplist = mapper.getPublicParameterGroup(i);
             if (prplist.size() > 0) {
                PortalURLPublicParameter prp = prplist.get(0);
-               int index = pids.indexOf(prp.getWindowId());
+               int index = indexOf(pids, prp.getWindowId());
                if (index >= 0) {
-                  buffer.append(TOKEN_DELIM).append(PREFIX).append(PUBLIC_RENDER_PARAM)
+                  out.append(TOKEN_DELIM).append(PREFIX).append(PUBLIC_RENDER_PARAM)
                   .append(String.valueOf(index)).append(DELIM)
-                  .append(String.valueOf(i)).append(DELIM)
-                  .append(urlEncode(prp.getName())).append(VALUE_DELIM)
-                  .append(valstr);
+                  .append(String.valueOf(i)).append(DELIM);
+                  PortalURLEncoder.encode(prp.getName(), out);
+                  out.append(VALUE_DELIM);
+                  encodeMultiValues(mapper.getValues(i), out);
                } else {
                   LOG.warn("window ID not on page for public render parameter: " + prp.toString());
                }
@@ -653,73 +664,56 @@ public class PortalURLParserImpl implements PortalURLParser {
             if (isTrace) {
                LOG.debug("Adding fragment identifier: " + frag);
             }
-            buffer.append('#').append(frag);
+            out.append('#');
+            PortalURLEncoder.appendText(frag, out, escapeXML);
          }
       }
-
-      // Construct the string representing the portal URL.
-      return buffer.toString();
    }
 
    // Private Encoding/Decoding Methods ---------------------------------------
 
    /**
-    * Wrapper for URLEncoder
-    * @param str
-    * @return
+    * Appends the portlet ID table entry for a portlet ID.
+    * @param pid     the portlet ID
+    * @param index   the position of the portlet ID in the table
+    * @param out     the output
     */
-   private String urlEncode(String str) {
-      String out = str;
-      if (str != null) {
-         try {
-            out = URLEncoder.encode(str, "UTF-8");
-         } catch(Exception e) {
-            LOG.warn("Error URL encoding string: " + str);
-         }
-      }
-      return out;
+   static void appendPortletId(String pid, int index, Appendable out) throws IOException {
+      out.append(TOKEN_DELIM).append(PREFIX).append(PORTLET_ID);
+      PortalURLEncoder.encode(pid, out);
+      out.append(DELIM).append(String.valueOf(index));
    }
 
    /**
-    * Wrapper for URLDecoder
-    * @param str
-    * @return
+    * Returns the position of the portlet ID in the portlet ID table, or -1 if
+    * it is not on the page.
     */
-   private String urlDecode(String str) {
-      String out = str;
-      if (str != null) {
-         try {
-            out = URLDecoder.decode(str, "UTF-8");
-         } catch(Exception e) {
-            LOG.warn("Error URL decoding string: " + str);
-         }
-      }
-      return out;
+   private int indexOf(Map<String, Integer> pids, String pid) {
+      Integer index = (pid == null) ? null : pids.get(pid);
+      return (index == null) ? -1 : index;
    }
 
    /**
     * Encode a string array containing multiple values into a single string.
     * This method is used to encode multiple render parameter values.
     * @param values  the string array to encode.
-    * @return a single string containing all the values.
+    * @param out     the output
     */
-   private String encodeMultiValues(String[] values) {
-      StringBuilder buffer = new StringBuilder();
+   private void encodeMultiValues(String[] values, Appendable out) throws IOException {
       if (values.length == 0) {
-         buffer.append(VALUE_ARRAY_EMPTY);
+         out.append(VALUE_ARRAY_EMPTY);
       } else {
          for (int i = 0; i < values.length; i++) {
             if (values[i] == null) {
-               buffer.append(VALUE_NULL);
+               out.append(VALUE_NULL);
             } else {
-               buffer.append(urlEncode(values[i]));
+               PortalURLEncoder.encode(values[i], out);
             }
             if (i + 1 < values.length) {
-               buffer.append(VALUE_DELIM);
+               out.append(VALUE_DELIM);
             }
          }
       }
-      return buffer.toString();
    }
 
    /**
@@ -730,5 +724,8 @@ public class PortalURLParserImpl implements PortalURLParser {
       return toString((RelativePortalURLImpl) portalURL);
    }
 
-}
+   public void write(PortalURL portalURL, Appendable out, boolean escapeXML) throws IOException {
+      write((RelativePortalURLImpl) portalURL, out, escapeXML);
+   }
 
+}
@@ -0,0 +1,310 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tokenizes the path info of a portal URL in a single pass without the use of
+ * regular expressions. The path info consists of tokens that start with the
+ * token prefix "/__", followed by a two-character token type and a list of
+ * fields separated by ";". The tokenizer only records the field boundaries.
+ * Field values are URL-decoded on demand through a buffer that is reused for
+ * all tokens, and fields that contain no escaped characters are returned
+ * without copying.
+ * <p>
+ * The tokenizer is not thread safe. A new instance is used for each URL.
+ *
+ * @see PortalURLParserImpl
+ */
+class PortalURLTokenizer {
+
+   /** Logger. */
+   private static final Logger  LOG         = LoggerFactory.getLogger(PortalURLTokenizer.class);
+
+   private static final Charset UTF8        = Charset.forName("UTF-8");
+
+   private static final String  TOKEN_START = "/__";
+   private static final char    DELIM       = ';';
+   private static final char    VALUE_DELIM = ':';
+   private static final String  VALUE_NULL  = ",";
+   private static final String  VALUE_ARRAY_EMPTY = "@";
+
+   private static final String[] NO_VALUES  = new String[0];
+
+   private final String         path;
+
+   /** start of the next token prefix, or -1 if there are no more tokens */
+   private int                  next;
+
+   // the current token, excluding the prefix
+   private int                  tokenStart;
+   private int                  tokenEnd;
+
+   // the field boundaries within the current token
+   private int[]                fieldStart  = new int[4];
+   private int[]                fieldEnd    = new int[4];
+   private int                  fieldCount;
+
+   // the parameter name and values decoded by parseValues()
+   private String               paramName;
+   private String[]             paramValues;
+
+   // buffers for URL decoding
+   private final StringBuilder  chars       = new StringBuilder(64);
+   private byte[]               bytes       = new byte[16];
+
+   /**
+    * Creates a tokenizer for the given path info.
+    *
+    * @param path
+    *           the path info
+    * @param offset
+    *           the position of the first token prefix
+    */
+   PortalURLTokenizer(String path, int offset) {
+      this.path = path;
+      this.next = path.indexOf(TOKEN_START, offset);
+   }
+
+   /**
+    * Advances to the next token. Tokens that consist only of a token type
+    * are skipped.
+    *
+    * @return <code>true</code> if a token is available
+    */
+   boolean next() {
+      while (next >= 0) {
+         tokenStart = next + TOKEN_START.length();
+         next = path.indexOf(TOKEN_START, tokenStart);
+         tokenEnd = (next < 0) ? path.length() : next;
+         if (tokenEnd - tokenStart >= 3) {
+            splitFields();
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Returns <code>true</code> if the current token has the given type.
+    */
+   boolean isType(String type) {
+      return path.regionMatches(tokenStart, type, 0, 2);
+   }
+
+   /**
+    * Returns the current token without the prefix. Used for diagnostic messages.
+    */
+   String getToken() {
+      return path.substring(tokenStart, tokenEnd);
+   }
+
+   /**
+    * Returns the number of fields in the current token. As with
+    * <code>String.split()</code>, trailing empty fields are not counted.
+    */
+   int getFieldCount() {
+      return fieldCount;
+   }
+
+   /**
+    * Returns the field as a non-negative number, or -1 if the field does not
+    * consist of decimal digits.
+    */
+   int getIndex(int field) {
+      if (field >= fieldCount) {
+         return -1;
+      }
+      int start = fieldStart[field], end = fieldEnd[field];
+      if (start == end) {
+         return -1;
+      }
+      long val = 0;
+      for (int ii = start; ii < end; ii++) {
+         char c = path.charAt(ii);
+         if (c < '0' || c > '9') {
+            return -1;
+         }
+         val = val * 10 + (c - '0');
+         if (val > Integer.MAX_VALUE) {
+            LOG.error("error parsing URL pid reference token. Token: " + getToken());
+            return -1;
+         }
+      }
+      return (int) val;
+   }
+
+   /**
+    * Returns the URL-decoded field value.
+    */
+   String decode(int field) {
+      return decode(fieldStart[field], fieldEnd[field]);
+   }
+
+   /**
+    * Decodes the parameter name and values contained in the given field. The
+    * name and values are separated by ":". A "," designates a <code>null</code>
+    * value and a single "@" value designates an empty values array.
+    *
+    * @return <code>false</code> if the parameter name is missing
+    */
+   boolean parseValues(int field) {
+      int start = fieldStart[field], end = fieldEnd[field];
+
+      int count = 1;
+      for (int ii = start; ii < end; ii++) {
+         if (path.charAt(ii) == VALUE_DELIM) {
+            count++;
+         }
+      }
+
+      paramName = "";
+      paramValues = NO_VALUES;
+      if (count == 1) {
+         // no values, the name is taken as is
+         paramName = path.substring(start, end);
+         return true;
+      }
+
+      String[] vals = new String[count];
+      boolean isEmptyArray = false;
+      int ind = 0;
+      for (int ii = start; ii <= end; ii++) {
+         if (ii == end || path.charAt(ii) == VALUE_DELIM) {
+            if (isChar(start, ii, VALUE_NULL)) {
+               vals[ind] = null;
+            } else {
+               if (count == 2 && ind == 1) {
+                  isEmptyArray = isChar(start, ii, VALUE_ARRAY_EMPTY);
+               }
+               vals[ind] = decode(start, ii);
+            }
+            ind++;
+            start = ii + 1;
+         }
+      }
+
+      if (vals[0] == null) {
+         return false;
+      }
+      paramName = vals[0];
+      if (!isEmptyArray) {
+         paramValues = Arrays.copyOfRange(vals, 1, count);
+      }
+      return true;
+   }
+
+   /**
+    * @return the parameter name decoded by {@link #parseValues(int)}
+    */
+   String getParamName() {
+      return paramName;
+   }
+
+   /**
+    * @return the parameter values decoded by {@link #parseValues(int)}
+    */
+   String[] getParamValues() {
+      return paramValues;
+   }
+
+   /**
+    * URL-decodes a region of the path info. Returns the region undecoded if it
+    * contains an invalid escape sequence.
+    */
+   String decode(int start, int end) {
+      int ii = start;
+      while (ii < end) {
+         char c = path.charAt(ii);
+         if (c == '%' || c == '+') {
+            break;
+         }
+         ii++;
+      }
+      if (ii == end) {
+         return path.substring(start, end);
+      }
+
+      chars.setLength(0);
+      chars.append(path, start, ii);
+      while (ii < end) {
+         char c = path.charAt(ii);
+         if (c == '+') {
+            chars.append(' ');
+            ii++;
+         } else if (c == '%') {
+            int len = 0;
+            while (ii < end && path.charAt(ii) == '%') {
+               int hi = (ii + 2 < end) ? Character.digit(path.charAt(ii + 1), 16) : -1;
+               int lo = (ii + 2 < end) ? Character.digit(path.charAt(ii + 2), 16) : -1;
+               if (hi < 0 || lo < 0) {
+                  LOG.warn("Error URL decoding string: " + path.substring(start, end));
+                  return path.substring(start, end);
+               }
+               if (len == bytes.length) {
+                  bytes = Arrays.copyOf(bytes, len * 2);
+               }
+               bytes[len++] = (byte) ((hi << 4) + lo);
+               ii += 3;
+            }
+            chars.append(new String(bytes, 0, len, UTF8));
+         } else {
+            chars.append(c);
+            ii++;
+         }
+      }
+      return chars.toString();
+   }
+
+   /**
+    * Returns <code>true</code> if the region consists of the given single character.
+    */
+   private boolean isChar(int start, int end, String str) {
+      return end - start == 1 && path.charAt(start) == str.charAt(0);
+   }
+
+   /**
+    * Records the field boundaries of the current token. The fields start after
+    * the two-character token type.
+    */
+   private void splitFields() {
+      fieldCount = 0;
+      int start = tokenStart + 2;
+      for (int ii = start; ii <= tokenEnd; ii++) {
+         if (ii == tokenEnd || path.charAt(ii) == DELIM) {
+            if (fieldCount == fieldStart.length) {
+               fieldStart = Arrays.copyOf(fieldStart, fieldCount * 2);
+               fieldEnd = Arrays.copyOf(fieldEnd, fieldCount * 2);
+            }
+            fieldStart[fieldCount] = start;
+            fieldEnd[fieldCount] = ii;
+            fieldCount++;
+            start = ii + 1;
+         }
+      }
+
+      // drop trailing empty fields
+      while (fieldCount > 0 && fieldStart[fieldCount - 1] == fieldEnd[fieldCount - 1]) {
+         fieldCount--;
+      }
+   }
+}
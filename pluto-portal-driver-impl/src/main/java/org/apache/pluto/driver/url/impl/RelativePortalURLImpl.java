@@ -18,12 +18,15 @@ package org.apache.pluto.driver.url.impl;
 
 import static org.apache.pluto.driver.url.PortalURLParameter.PARAM_TYPE_PUBLIC;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.portlet.PortletMode;
 import javax.portlet.WindowState;
@@ -45,6 +48,11 @@ import org.slf4j.LoggerFactory;
 
 /**
  * The portal URL.
+ * <p>
+ * A clone shares the parameters, window states, portlet modes and page state
+ * with the URL it was cloned from. Each of these is copied by the URL that
+ * modifies it first, so that cloning a URL that is then changed in a single
+ * place only copies the modified part of the state.
  * 
  * @since 1.0
  */
@@ -64,15 +72,18 @@ public class RelativePortalURLImpl implements PortalURL {
    private boolean                     isAuthenticated = false;
 
    private int                         cloneId        = 0;
-   private static int                  cloneCtr       = 0;
+   private static final AtomicInteger  cloneCtr       = new AtomicInteger();
 
    // provides the defined public render parameters and their relationships to
    // one another for the current page
    private PublicRenderParameterMapper prpMapper          = null;
 
-   private HashSet<String>             portletIds         = new HashSet<String>();
-   private HashMap<String, String>     versionMap         = new HashMap<String, String>();
-   private HashMap<String, Boolean>    v3Map              = new HashMap<String, Boolean>();
+   // The page state. Shared with the page template and other clones until modified.
+   private Set<String>                 portletIds         = new HashSet<String>();
+   private Map<String, String>         versionMap         = new HashMap<String, String>();
+   private Map<String, Boolean>        v3Map              = new HashMap<String, Boolean>();
+   private boolean                     pageStateShared    = false;
+   private PageURLTemplate             template           = null;
 
    /**
     * PortalURLParser used to construct the string representation of this portal
@@ -90,9 +101,21 @@ public class RelativePortalURLImpl implements PortalURL {
 
    private Map<String, PortletMode>    portletModes       = new HashMap<String, PortletMode>();
 
+   // The window states and portlet modes are shared with other clones until modified.
+   private boolean                     statesShared       = false;
+
    /** Parameters of the portlet windows. */
    private HashSet<PortalURLParameter> parameters         = new HashSet<PortalURLParameter>();
 
+   // The parameters are shared with other clones until modified. The
+   // parameter objects themselves are never modified once added.
+   private boolean                     parametersShared   = false;
+
+   // The parameters indexed by window ID, type and name. Built when first
+   // needed, discarded when the parameters change and shared along with them.
+   private Map<String, Map<String, Map<String, PortalURLParameter>>> parameterIndex = null;
+   private int                         parameterModCount  = 0;
+
    // Target window & type of URL
    URLType                             type               = URLType.Portal;                             // initially
    String                              targetWindow       = null;
@@ -102,7 +125,9 @@ public class RelativePortalURLImpl implements PortalURL {
     * Constructs a PortalURLImpl instance using customized port.
     * 
     * @param urlBase
-    *           the absolute (protocol://domain:port) request url base
+    *           the absolute (protocol://domain:port) request url base. If
+    *           <code>null</code>, it is determined from the servlet request when
+    *           an absolute URL is needed.
     * @param contextPath
     *           the servlet context path.
     * @param servletName
@@ -120,7 +145,7 @@ public class RelativePortalURLImpl implements PortalURL {
       servletPath = buffer.toString();
       this.urlParser = urlParser;
       this.servletRequest = req;
-      this.cloneId = (++cloneCtr) + 10000;
+      this.cloneId = cloneCtr.incrementAndGet() + 10000;
       if (isDebug) {
          LOG.debug("Constructed URL, clone ID: " + cloneId);
       }
@@ -180,6 +205,7 @@ public class RelativePortalURLImpl implements PortalURL {
                   int index = prpMapper.getIndex(targetWindow, parm);
                   if (index >= 0) {
                      prpMapper.setValues(index, parms.get(parm));
+                     parametersChanged();
                      if (isTrace) {
                         StringBuilder txt = new StringBuilder("Added public parameter: ");
                         txt.append(parm).append(", Values: ")
@@ -195,10 +221,12 @@ public class RelativePortalURLImpl implements PortalURL {
 
                PortalURLParameter pup = new PortalURLParameter(targetWindow,
                      parm, parms.get(parm), ptype);
+               unshareParameters();
                if (parameters.contains(pup)) {
                   parameters.remove(pup); // remove the old values
                }
                parameters.add(pup); // add the new values
+               parametersChanged();
                if (isTrace) {
                   StringBuilder txt = new StringBuilder("Added private parameter: ");
                   txt.append(parm).append(", Values: ").append(Arrays.toString(parms.get(parm)));
@@ -223,7 +251,24 @@ public class RelativePortalURLImpl implements PortalURL {
 
    public Collection<PortalURLParameter> getParameters() {
       handleServletRequestParams();
-      return parameters;
+      // the set may be shared with other clones
+      return Collections.unmodifiableSet(parameters);
+   }
+
+   public Map<String, PortalURLParameter> getParameters(String windowId, String type) {
+      handleServletRequestParams();
+      Map<String, Map<String, Map<String, PortalURLParameter>>> index = getParameterIndex();
+      Map<String, Map<String, PortalURLParameter>> windowParams = index.get(windowId);
+      Map<String, PortalURLParameter> params = (windowParams == null) ? null : windowParams.get(type);
+      if (params == null) {
+         return Collections.emptyMap();
+      }
+      return params;
+   }
+
+   public int getParameterModCount() {
+      handleServletRequestParams();
+      return parameterModCount;
    }
 
    public Map<String, PortletMode> getPortletModes() {
@@ -239,6 +284,7 @@ public class RelativePortalURLImpl implements PortalURL {
    }
 
    public void setPortletMode(String windowId, PortletMode portletMode) {
+      unshareStates();
       portletModes.put(windowId, portletMode);
    }
 
@@ -270,6 +316,7 @@ public class RelativePortalURLImpl implements PortalURL {
     *           the window state.
     */
    public void setWindowState(String windowId, WindowState windowState) {
+      unshareStates();
       this.windowStates.put(windowId, windowState);
    }
 
@@ -307,10 +354,23 @@ public class RelativePortalURLImpl implements PortalURL {
     * @see PortalURLParserImpl#toString(org.apache.pluto.driver.url.PortalURL)
     */
    public String toURL(boolean absolute) {
-      String result = urlParser.toString(this);
       if (absolute) {
-         return urlBase + result;
+         if (urlBase == null && servletRequest != null) {
+            StringBuilder base = new StringBuilder(64);
+            base.append(servletRequest.getScheme()).append("://").append(servletRequest.getServerName())
+                .append(':').append(servletRequest.getServerPort());
+            urlBase = base.toString();
+         }
+         StringBuilder buf = new StringBuilder(256);
+         buf.append(urlBase);
+         try {
+            urlParser.write(this, buf, false);
+         } catch (IOException e) {
+            // cannot happen with a StringBuilder
+         }
+         return buf.toString();
       }
+      String result = urlParser.toString(this);
       if (isTrace) {
          StringBuilder txt = new StringBuilder();
          txt.append("Clone ID: ").append(cloneId)
@@ -356,25 +416,30 @@ public class RelativePortalURLImpl implements PortalURL {
       portalURL.resourceID = resourceID;
 
       portalURL.prpMapper = (prpMapper == null) ? null : prpMapper.clone();
-      portalURL.portletIds = new HashSet<String>(portletIds);
-      portalURL.versionMap = new HashMap<String, String>(versionMap);
-      portalURL.v3Map = new HashMap<String, Boolean>(v3Map);
+
+      // share the state, both URLs copy it before modifying it
+      portalURL.portletIds = portletIds;
+      portalURL.versionMap = versionMap;
+      portalURL.v3Map = v3Map;
+      portalURL.pageStateShared = pageStateShared = true;
+      portalURL.template = template;
 
       portalURL.urlParser = urlParser;
       portalURL.servletRequest = servletRequest;
       portalURL.reqParamsProcessed = reqParamsProcessed;
 
-      portalURL.windowStates = new HashMap<String, WindowState>(windowStates);
-      portalURL.portletModes = new HashMap<String, PortletMode>(portletModes);
+      portalURL.windowStates = windowStates;
+      portalURL.portletModes = portletModes;
+      portalURL.statesShared = statesShared = true;
 
-      for (PortalURLParameter p : parameters) {
-         portalURL.parameters.add(p.clone());
-      }
+      portalURL.parameters = parameters;
+      portalURL.parametersShared = parametersShared = true;
+      portalURL.parameterIndex = parameterIndex;
 
       portalURL.type = type;
       portalURL.targetWindow = targetWindow;
 
-      portalURL.cloneId = ++cloneCtr;
+      portalURL.cloneId = cloneCtr.incrementAndGet();
 
       if (isTrace) {
          long tid = Thread.currentThread().getId();
@@ -387,6 +452,15 @@ public class RelativePortalURLImpl implements PortalURL {
       return portalURL;
    }
 
+   /**
+    * Writes the relative portal URL to the output.
+    * 
+    * @see PortalURLParserImpl#write(PortalURL, Appendable, boolean)
+    */
+   public void write(Appendable out, boolean escapeXML) throws IOException {
+      urlParser.write(this, out, escapeXML);
+   }
+
    public PageConfig getPageConfig(ServletContext servletContext) {
       String requestedPageId = getRenderPath();
       if (isTrace) {
@@ -404,7 +478,99 @@ public class RelativePortalURLImpl implements PortalURL {
       return paco;
    }
 
+   /**
+    * Sets up the page state from the page template. The portlet IDs and versions
+    * are shared with the template until they are modified.
+    */
+   void setPageTemplate(PageURLTemplate template) {
+      this.template = template;
+      prpMapper = template.getPRPMapper().clone();
+      portletIds = template.getPortletIds();
+      versionMap = template.getVersions();
+      v3Map = template.getV3Flags();
+      pageStateShared = true;
+   }
+
+   /**
+    * Returns the page template if the portlet IDs are still those of the
+    * template, otherwise <code>null</code>.
+    */
+   PageURLTemplate getPageTemplate() {
+      return (template != null && portletIds == template.getPortletIds()) ? template : null;
+   }
+
+   /**
+    * Copies the page state before it is modified, if it is shared.
+    */
+   private synchronized void unsharePageState() {
+      if (pageStateShared) {
+         portletIds = new HashSet<String>(portletIds);
+         versionMap = new HashMap<String, String>(versionMap);
+         v3Map = new HashMap<String, Boolean>(v3Map);
+         pageStateShared = false;
+      }
+   }
+
+   /**
+    * Copies the window states and portlet modes before they are modified, if
+    * they are shared.
+    */
+   private synchronized void unshareStates() {
+      if (statesShared) {
+         windowStates = new HashMap<String, WindowState>(windowStates);
+         portletModes = new HashMap<String, PortletMode>(portletModes);
+         statesShared = false;
+      }
+   }
+
+   /**
+    * Copies the parameter set before it is modified, if it is shared.
+    */
+   private synchronized void unshareParameters() {
+      if (parametersShared) {
+         parameters = new HashSet<PortalURLParameter>(parameters);
+         parametersShared = false;
+      }
+   }
+
+   /**
+    * Discards the parameter index. Called after the parameters or the
+    * public render parameters have been changed.
+    */
+   private void parametersChanged() {
+      parameterIndex = null;
+      parameterModCount++;
+   }
+
+   private synchronized Map<String, Map<String, Map<String, PortalURLParameter>>> getParameterIndex() {
+      if (parameterIndex == null) {
+         Map<String, Map<String, Map<String, PortalURLParameter>>> index = 
+               new HashMap<String, Map<String, Map<String, PortalURLParameter>>>();
+         for (PortalURLParameter pup : parameters) {
+            Map<String, Map<String, PortalURLParameter>> windowParams = index.get(pup.getWindowId());
+            if (windowParams == null) {
+               windowParams = new HashMap<String, Map<String, PortalURLParameter>>(4);
+               index.put(pup.getWindowId(), windowParams);
+            }
+            Map<String, PortalURLParameter> params = windowParams.get(pup.getType());
+            if (params == null) {
+               params = new HashMap<String, PortalURLParameter>();
+               windowParams.put(pup.getType(), params);
+            }
+            params.put(pup.getName(), pup);
+         }
+         for (Map<String, Map<String, PortalURLParameter>> windowParams : index.values()) {
+            for (Map.Entry<String, Map<String, PortalURLParameter>> entry : windowParams.entrySet()) {
+               entry.setValue(Collections.unmodifiableMap(entry.getValue()));
+            }
+         }
+         parameterIndex = index;
+      }
+      return parameterIndex;
+   }
+
    public void setPortletIds(Collection<String> portletIds) {
+      unsharePageState();
       this.portletIds.addAll(portletIds);
       if (isTrace) {
          LOG.debug("Stored " + this.portletIds.size() + " IDs: "
@@ -417,6 +583,7 @@ public class RelativePortalURLImpl implements PortalURL {
    }
 
    public void setVersion(String portletId, String version) {
+      unsharePageState();
       versionMap.put(portletId, version);
       v3Map.put(portletId, (version.equals("3.0")));
    }
@@ -499,6 +666,9 @@ public class RelativePortalURLImpl implements PortalURL {
             prpMapper.setRemoved(prpMapper.getIndex(prp), true);
             removed++;
          }
+         if (removed > 0) {
+            parametersChanged();
+         }
       } else  {
          HashSet<PortalURLParameter> rem = new HashSet<PortalURLParameter>();
          for (PortalURLParameter pup : parameters) {
@@ -508,7 +678,11 @@ public class RelativePortalURLImpl implements PortalURL {
             }
          }
          removed = rem.size();
-         parameters.removeAll(rem);
+         if (removed > 0) {
+            unshareParameters();
+            parameters.removeAll(rem);
+            parametersChanged();
+         }
       }
       if (isTrace) {
          StringBuilder txt = new StringBuilder("Removing ");
@@ -534,10 +708,12 @@ public class RelativePortalURLImpl implements PortalURL {
       }
       
       // If present, remove old value before adding new
+      unshareParameters();
       if (parameters.contains(param)) {
          parameters.remove(param);
       }
       parameters.add(param);
+      parametersChanged();
    }
 
    public void setParameter(PortalURLParameter param) {
@@ -556,10 +732,12 @@ public class RelativePortalURLImpl implements PortalURL {
       }
       
       // If present, remove old value before adding new
+      unshareParameters();
       if (parameters.contains(param)) {
          parameters.remove(param);
       }
       parameters.add(param);
+      parametersChanged();
    }
 
    public PortletParameterFactory getPortletParameterFactory(PortletRequestContext reqctx) {
@@ -569,6 +747,7 @@ public class RelativePortalURLImpl implements PortalURL {
 
    public void setPublicRenderParameterMapper(PublicRenderParameterMapper prpm) {
       prpMapper = prpm;
+      parameterModCount++;
    }
 
    public PublicRenderParameterMapper getPublicRenderParameterMapper() {
@@ -589,7 +768,10 @@ public class RelativePortalURLImpl implements PortalURL {
          }
          LOG.debug(txt.toString());
       }
-      parameters.remove(param);
+      unshareParameters();
+      if (parameters.remove(param)) {
+         parametersChanged();
+      }
    }
 
    public String getFragmentIdentifier() {
@@ -0,0 +1,548 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.services.container;
+
+import static org.apache.pluto.driver.url.PortalURLParameter.PARAM_TYPE_RENDER;
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import javax.portlet.Event;
+import javax.portlet.PortletMode;
+import javax.portlet.WindowState;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.namespace.QName;
+
+import org.apache.pluto.container.PortletContainer;
+import org.apache.pluto.container.PortletWindow;
+import org.apache.pluto.container.PortletWindowID;
+import org.apache.pluto.container.driver.PortletContextService;
+import org.apache.pluto.container.driver.PortletRegistryService;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.apache.pluto.container.om.portlet.impl.PortletApplicationDefinitionImpl;
+import org.apache.pluto.container.om.portlet.impl.PortletDefinitionImpl;
+import org.apache.pluto.container.om.portlet.impl.PublicRenderParameterImpl;
+import org.apache.pluto.driver.core.PortalRequestContext;
+import org.apache.pluto.driver.services.portal.PageConfig;
+import org.apache.pluto.driver.services.portal.PublicRenderParameterMapper;
+import org.apache.pluto.driver.services.portal.PublicRenderParameterQNameMapper;
+import org.apache.pluto.driver.url.PortalURL;
+import org.apache.pluto.driver.url.PortalURLParameter;
+import org.apache.pluto.driver.url.impl.RelativePortalURLImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the delivery of event generations by the event dispatcher, and the
+ * merging of the state changes made by concurrently processed portlet windows.
+ */
+public class EventDispatcherTest {
+
+   /** The event processing of the stub portlet windows. */
+   private interface Handler {
+      void handle(String windowId, Event event, HttpServletRequest request, HttpServletResponse response)
+            throws Exception;
+   }
+
+   private static final String W1    = "app.w1!";
+   private static final String W2    = "app.w2!";
+   private static final String W3    = "app.w3!";
+   private static final QName  COLOR = new QName("urn:test", "color");
+
+   private final Map<String, List<String>>   subscriptions = new HashMap<String, List<String>>();
+   private final Map<String, Handler>        handlers      = new HashMap<String, Handler>();
+   private final Map<String, PortletWindow>  windows       = new HashMap<String, PortletWindow>();
+   private final List<String>                log           = Collections.synchronizedList(new ArrayList<String>());
+   private final List<Throwable>             errors        = Collections.synchronizedList(new ArrayList<Throwable>());
+   private final Map<String, Object>         attributes    = Collections.synchronizedMap(new HashMap<String, Object>());
+   private final List<String>                headers       = Collections.synchronizedList(new ArrayList<String>());
+
+   private PortletApplicationDefinitionImpl  app;
+   private PortletRegistryService            registry;
+   private HttpServletRequest                request;
+   private HttpServletResponse               response;
+   private RelativePortalURLImpl             url;
+   private EventCoordinationServiceImpl      service;
+
+   /** Routes the events by local name and delivers them to the handlers. */
+   private class TestService extends EventCoordinationServiceImpl {
+
+      TestService(PortletContextService contexts) {
+         super(registry, contexts);
+      }
+
+      @Override
+      protected Map<PortletWindow, List<Event>> route(PortletContainer container, HttpServletRequest request,
+            List<Event> events) {
+         Map<PortletWindow, List<Event>> deliveries = new LinkedHashMap<PortletWindow, List<Event>>();
+         for (Event event : events) {
+            List<String> ids = subscriptions.get(event.getName());
+            if (ids == null) {
+               continue;
+            }
+            for (String id : ids) {
+               PortletWindow window = window(id);
+               if (!deliveries.containsKey(window)) {
+                  deliveries.put(window, new ArrayList<Event>());
+               }
+               deliveries.get(window).add(event);
+            }
+         }
+         return deliveries;
+      }
+
+      @Override
+      protected void doEvent(PortletContainer container, PortletWindow portletWindow, Event event,
+            HttpServletRequest request, HttpServletResponse response) {
+         String id = portletWindow.getId().getStringId();
+         try {
+            Handler handler = handlers.get(id);
+            if (handler != null) {
+               handler.handle(id, event, request, response);
+            }
+            log.add(id + ":" + event.getName());
+         } catch (RuntimeException e) {
+            // passed on like an exception from the portlet container
+            throw e;
+         } catch (Throwable t) {
+            errors.add(t);
+         }
+      }
+   }
+
+   @Before
+   public void setUp() {
+      app = new PortletApplicationDefinitionImpl();
+      app.setName("/app");
+      app.addPublicRenderParameter(new PublicRenderParameterImpl(COLOR, "color"));
+      for (String name : new String[] {"w1", "w2", "w3"}) {
+         PortletDefinition pd = new PortletDefinitionImpl(name, app);
+         pd.addSupportedPublicRenderParameter("color");
+         app.addPortlet(pd);
+      }
+      registry = (PortletRegistryService) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {PortletRegistryService.class}, new InvocationHandler() {
+         public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getPortletApplication")) {
+               return app;
+            } else if (method.getName().equals("getPortlet")) {
+               return app.getPortlet((String) args[1]);
+            }
+            return null;
+         }
+      });
+      PortletContextService contexts = (PortletContextService) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {PortletContextService.class}, new InvocationHandler() {
+         public Object invoke(Object proxy, Method method, Object[] args) {
+            return null;
+         }
+      });
+      service = new TestService(contexts);
+
+      request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {HttpServletRequest.class}, new InvocationHandler() {
+         public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("getAttribute")) {
+               return attributes.get(args[0]);
+            } else if (name.equals("setAttribute")) {
+               attributes.put((String) args[0], args[1]);
+            } else if (name.equals("removeAttribute")) {
+               attributes.remove(args[0]);
+            } else if (name.equals("getAttributeNames")) {
+               return Collections.enumeration(new ArrayList<String>(attributes.keySet()));
+            }
+            return null;
+         }
+      });
+      response = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {HttpServletResponse.class}, new InvocationHandler() {
+         public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("setHeader")) {
+               headers.add(args[0] + ": " + args[1]);
+            }
+            return null;
+         }
+      });
+
+      PageConfig page = new PageConfig();
+      page.setPortletIds(new ArrayList<String>(Arrays.asList(W1, W2, W3)));
+      url = new RelativePortalURLImpl(null, "/pluto", "/portal", null, null);
+      url.setPublicRenderParameterMapper(new PublicRenderParameterQNameMapper(page, registry));
+      PortalRequestContext context = new PortalRequestContext(null, request, response);
+      context.mergePortalURL(url, null);
+   }
+
+   @After
+   public void tearDown() {
+      service.destroy();
+   }
+
+   @Test
+   public void orderTest() throws Exception {
+      subscribe("e1", W1);
+      subscribe("e2", W2, W1);
+      subscribe("e3", W1);
+
+      // the events are grouped by window, in the order of the first event for each window
+      dispatch("e1", "e2", "e3");
+      assertEquals("[app.w1!:e1, app.w1!:e2, app.w1!:e3, app.w2!:e2]", log.toString());
+
+      // concurrent delivery keeps the order within each window
+      for (int ii = 0; ii < 10; ii++) {
+         log.clear();
+         configure(4, 10000, 2000, 16);
+         dispatch("e1", "e2", "e3");
+         List<String> w1 = new ArrayList<String>();
+         for (String entry : new ArrayList<String>(log)) {
+            if (entry.startsWith(W1)) {
+               w1.add(entry);
+            }
+         }
+         assertEquals("[app.w1!:e1, app.w1!:e2, app.w1!:e3]", w1.toString());
+         assertEquals(4, log.size());
+      }
+      assertTrue(errors.isEmpty());
+   }
+
+   @Test
+   public void generationTest() throws Exception {
+      subscribe("e1", W1, W3);
+      subscribe("e2", W2);
+      handlers.put(W1, new Handler() {
+         public void handle(String windowId, Event event, HttpServletRequest req, HttpServletResponse resp) {
+            publish(req, resp, "e2");
+         }
+      });
+
+      // the published events form the next generation
+      dispatch("e1");
+      assertEquals("[app.w1!:e1, app.w3!:e1, app.w2!:e2]", log.toString());
+
+      // each event handler publishes the next event
+      log.clear();
+      configure(0, 10000, 2000, 3);
+      subscribe("ping", W3);
+      handlers.put(W3, new Handler() {
+         public void handle(String windowId, Event event, HttpServletRequest req, HttpServletResponse resp) {
+            publish(req, resp, "ping");
+         }
+      });
+      dispatch("ping");
+      assertEquals("[app.w3!:ping, app.w3!:ping, app.w3!:ping]", log.toString());
+      assertTrue(errors.isEmpty());
+   }
+
+   @Test
+   public void sequentialTimeoutTest() throws Exception {
+      configure(0, 10, 10, 16);
+      subscribe("e1", W1, W2);
+      handlers.put(W1, new Handler() {
+         public void handle(String windowId, Event event, HttpServletRequest req, HttpServletResponse resp)
+               throws Exception {
+            Thread.sleep(100);
+         }
+      });
+
+      // delivery on the request thread is not timed out
+      dispatch("e1");
+      assertEquals("[app.w1!:e1, app.w2!:e1]", log.toString());
+   }
+
+   @Test
+   public void deadlineTest() throws Exception {
+      configure(4, 200, 5000, 16);
+      subscribe("e1", W1, W2);
+      subscribe("e2", W3);
+      subscribe("e3", W3);
+      handlers.put(W1, new Handler() {
+         public void handle(String windowId, Event event, HttpServletRequest req, HttpServletResponse resp) {
+            setParameter(req, W1, "a", "1");
+            publish(req, resp, "e2");
+         }
+      });
+      handlers.put(W2, new Handler() {
+         public void handle(String windowId, Event event, HttpServletRequest req, HttpServletResponse resp)
+               throws Exception {
+            setParameter(req, W2, "b", "2");
+            publish(req, resp, "e3");
+            try {
+               Thread.sleep(10000);
+            } catch (InterruptedException e) {
+               // finishes some time after the cancellation
+               Thread.sleep(100);
+               log.add("app.w2!:cancelled");
+            }
+         }
+      });
+
+      dispatch("e1");
+
+      // the next generation is delivered after the cancelled window has finished
+      assertTrue(log.toString(), log.indexOf("app.w2!:cancelled") >= 0);
+      assertTrue(log.toString(), log.indexOf("app.w2!:cancelled") < log.indexOf("app.w3!:e2"));
+
+      // the state changes and events of the cancelled window are discarded
+      assertFalse(log.contains("app.w3!:e3"));
+      assertEquals("1", value(W1, "a"));
+      assertNull(value(W2, "b"));
+      assertTrue(errors.isEmpty());
+   }
+
+   @Test
+   public void detachTest() throws Exception {
+      configure(2, 100, 100, 16);
+      subscribe("e1", W1, W2);
+      final CountDownLatch release = new CountDownLatch(1);
+      final CountDownLatch finished = new CountDownLatch(1);
+      final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+      handlers.put(W2, new Handler() {
+         public void handle(String windowId, Event event, HttpServletRequest req, HttpServletResponse resp) {
+            // ignores the interrupt
+            while (true) {
+               try {
+                  release.await();
+                  break;
+               } catch (InterruptedException e) {
+               }
+            }
+            try {
+               req.getAttribute("a");
+            } catch (Throwable t) {
+               failures.add(t);
+            }
+            try {
+               resp.setHeader("Set-Cookie", "x=y");
+            } catch (Throwable t) {
+               failures.add(t);
+            }
+            finished.countDown();
+         }
+      });
+
+      long start = System.nanoTime();
+      dispatch("e1");
+      assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 150);
+      assertEquals("[app.w1!:e1]", log.toString());
+
+      // the abandoned window can no longer reach the portal request and response
+      release.countDown();
+      assertTrue(finished.await(5, TimeUnit.SECONDS));
+      assertEquals(2, failures.size());
+      assertTrue(failures.get(0) instanceof IllegalStateException);
+      assertTrue(failures.get(1) instanceof IllegalStateException);
+      assertTrue(headers.isEmpty());
+   }
+
+   @Test
+   public void forkJoinTest() throws Exception {
+      configure(2, 10000, 2000, 16);
+      subscribe("e1", W1, W2);
+      url.setParameter(new PortalURLParameter(W1, "old", new String[] {"x"}, PARAM_TYPE_RENDER));
+      url.setParameter(new PortalURLParameter(W2, "kept", new String[] {"y"}, PARAM_TYPE_RENDER));
+      attributes.put("shared", "portal");
+
+      // both windows are processed at the same time
+      final CyclicBarrier barrier = new CyclicBarrier(2);
+      handlers.put(W1, new Handler() {
+         public void handle(String windowId, Event event, HttpServletRequest req, HttpServletResponse resp)
+               throws Exception {
+            barrier.await(5, TimeUnit.SECONDS);
+            PortalRequestContext context = PortalRequestContext.getContext(req);
+            PortalURL portalURL = context.getRequestedPortalURL().clone();
+            portalURL.removeParameter(new PortalURLParameter(W1, "old", null, PARAM_TYPE_RENDER));
+            portalURL.setParameter(new PortalURLParameter(W1, "a", new String[] {"1"}, PARAM_TYPE_RENDER));
+            portalURL.setPortletMode(W1, PortletMode.EDIT);
+            PublicRenderParameterMapper prpm = portalURL.getPublicRenderParameterMapper();
+            prpm.setValues(prpm.getIndex(COLOR), new String[] {"red"});
+            context.mergePortalURL(portalURL, W1);
+            req.setAttribute("shared", "w1");
+            barrier.await(5, TimeUnit.SECONDS);
+            barrier.await(5, TimeUnit.SECONDS);
+         }
+      });
+      handlers.put(W2, new Handler() {
+         public void handle(String windowId, Event event, HttpServletRequest req, HttpServletResponse resp)
+               throws Exception {
+            barrier.await(5, TimeUnit.SECONDS);
+            PortalRequestContext context = PortalRequestContext.getContext(req);
+            PortalURL portalURL = context.getRequestedPortalURL().clone();
+            portalURL.setWindowState(W2, WindowState.MAXIMIZED);
+            context.mergePortalURL(portalURL, W2);
+            barrier.await(5, TimeUnit.SECONDS);
+
+            // the changes of the other window are not visible
+            portalURL = context.getRequestedPortalURL();
+            assertEquals("portal", req.getAttribute("shared"));
+            assertNull(parameter(portalURL, W1, "a"));
+            assertNotNull(parameter(portalURL, W1, "old"));
+            PublicRenderParameterMapper prpm = portalURL.getPublicRenderParameterMapper();
+            assertNull(prpm.getValues(prpm.getIndex(COLOR)));
+            barrier.await(5, TimeUnit.SECONDS);
+         }
+      });
+
+      dispatch("e1");
+      assertTrue(errors.toString(), errors.isEmpty());
+      assertEquals(2, log.size());
+
+      // the changes of both windows are merged into the portal request
+      PortalURL merged = PortalRequestContext.getContext(request).getRequestedPortalURL();
+      assertEquals("1", value(W1, "a"));
+      assertNull(value(W1, "old"));
+      assertEquals("y", value(W2, "kept"));
+      assertEquals(PortletMode.EDIT, merged.getPortletModes().get(W1));
+      assertEquals(WindowState.MAXIMIZED, merged.getWindowStates().get(W2));
+      PublicRenderParameterMapper prpm = merged.getPublicRenderParameterMapper();
+      assertArrayEquals(new String[] {"red"}, prpm.getValues(prpm.getIndex(COLOR)));
+
+      // the request attributes set by the windows are not
+      assertEquals("portal", attributes.get("shared"));
+   }
+
+   @Test
+   public void failureTest() throws Exception {
+      subscribe("e1", W1, W2, W3);
+      subscribe("e2", W3);
+      handlers.put(W1, new Handler() {
+         public void handle(String windowId, Event event, HttpServletRequest req, HttpServletResponse resp) {
+            setParameter(req, W1, "a", "1");
+            publish(req, resp, "e2");
+         }
+      });
+      handlers.put(W2, new Handler() {
+         public void handle(String windowId, Event event, HttpServletRequest req, HttpServletResponse resp) {
+            setParameter(req, W2, "b", "2");
+            throw new IllegalStateException("failed");
+         }
+      });
+
+      // the exception ends the delivery on the request thread and on the worker threads alike
+      for (int threads : new int[] {0, 4}) {
+         log.clear();
+         configure(threads, 10000, 2000, 16);
+         try {
+            dispatch("e1");
+            fail("Expected IllegalStateException");
+         } catch (IllegalStateException e) {
+            assertEquals("failed", e.getMessage());
+         }
+         assertEquals("1", value(W1, "a"));
+         assertEquals("2", value(W2, "b"));
+         assertTrue(log.contains("app.w1!:e1"));
+         assertFalse(log.contains("app.w3!:e2"));
+         assertTrue(errors.isEmpty());
+         setParameter(request, W1, "a", "0");
+         setParameter(request, W2, "b", "0");
+      }
+   }
+
+   private void configure(int threads, long timeout, long cancelTimeout, int maxGenerations) {
+      service.setEventThreads(threads);
+      service.setEventTimeout(timeout);
+      service.setEventCancelTimeout(cancelTimeout);
+      service.setMaxGenerations(maxGenerations);
+      service.init();
+   }
+
+   private void subscribe(String name, String... ids) {
+      subscriptions.put(name, Arrays.asList(ids));
+   }
+
+   private void dispatch(String... names) {
+      service.processEvents(null, null, request, response, events(names));
+   }
+
+   private void publish(HttpServletRequest req, HttpServletResponse resp, String... names) {
+      service.processEvents(null, null, req, resp, events(names));
+   }
+
+   private List<Event> events(String... names) {
+      List<Event> events = new ArrayList<Event>();
+      for (String name : names) {
+         events.add(new EventImpl(new QName("urn:test", name)));
+      }
+      return events;
+   }
+
+   private void setParameter(HttpServletRequest req, String windowId, String name, String value) {
+      PortalRequestContext context = PortalRequestContext.getContext(req);
+      PortalURL portalURL = context.getRequestedPortalURL().clone();
+      portalURL.setParameter(new PortalURLParameter(windowId, name, new String[] {value}, PARAM_TYPE_RENDER));
+      context.mergePortalURL(portalURL, windowId);
+   }
+
+   private String value(String windowId, String name) {
+      PortalURL merged = PortalRequestContext.getContext(request).getRequestedPortalURL();
+      PortalURLParameter p = parameter(merged, windowId, name);
+      return (p == null) ? null : p.getValues()[0];
+   }
+
+   private PortalURLParameter parameter(PortalURL portalURL, String windowId, String name) {
+      for (PortalURLParameter p : portalURL.getParameters()) {
+         if (windowId.equals(p.getWindowId()) && PARAM_TYPE_RENDER.equals(p.getType())
+               && name.equals(p.getName())) {
+            return p;
+         }
+      }
+      return null;
+   }
+
+   private synchronized PortletWindow window(final String id) {
+      PortletWindow window = windows.get(id);
+      if (window == null) {
+         final PortletWindowID wid = (PortletWindowID) Proxy.newProxyInstance(getClass().getClassLoader(),
+               new Class<?>[] {PortletWindowID.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+               return id;
+            }
+         });
+         window = (PortletWindow) Proxy.newProxyInstance(getClass().getClassLoader(),
+               new Class<?>[] {PortletWindow.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+               String name = method.getName();
+               if (name.equals("getId")) {
+                  return wid;
+               } else if (name.equals("hashCode")) {
+                  return System.identityHashCode(proxy);
+               } else if (name.equals("equals")) {
+                  return proxy == args[0];
+               } else if (name.equals("toString")) {
+                  return id;
+               }
+               return null;
+            }
+         });
+         windows.put(id, window);
+      }
+      return window;
+   }
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.services.container;
+
+import static org.junit.Assert.*;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.portlet.Event;
+import javax.xml.namespace.QName;
+
+import org.apache.pluto.container.PortletWindow;
+import org.apache.pluto.container.PortletWindowID;
+import org.apache.pluto.container.driver.PortletContextService;
+import org.apache.pluto.container.driver.PortletRegistryService;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.apache.pluto.container.om.portlet.impl.EventDefinitionImpl;
+import org.apache.pluto.container.om.portlet.impl.EventDefinitionReferenceImpl;
+import org.apache.pluto.container.om.portlet.impl.PortletApplicationDefinitionImpl;
+import org.apache.pluto.container.om.portlet.impl.PortletDefinitionImpl;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests how event payloads are published and delivered within and across
+ * portlet application class loaders.
+ */
+public class EventPayloadTest {
+
+   /** A payload with a valid JAXB binding. */
+   public static class Payload implements Serializable {
+      private static final long serialVersionUID = 1L;
+      private String text;
+
+      public Payload() {
+      }
+
+      public Payload(String text) {
+         this.text = text;
+      }
+
+      public String getText() {
+         return text;
+      }
+
+      public void setText(String text) {
+         this.text = text;
+      }
+   }
+
+   /** A payload that JAXB cannot bind, since it has an interface property. */
+   public static class Unbound implements Serializable {
+      private static final long serialVersionUID = 1L;
+      private Runnable task;
+
+      public Runnable getTask() {
+         return task;
+      }
+
+      public void setTask(Runnable task) {
+         this.task = task;
+      }
+   }
+
+   private static final QName PAYLOAD_EVENT = new QName("urn:test", "payload");
+   private static final QName UNBOUND_EVENT = new QName("urn:test", "unbound");
+
+   private final Map<String, ClassLoader> loaders = new HashMap<String, ClassLoader>();
+   private final Map<String, PortletDefinition> portlets = new HashMap<String, PortletDefinition>();
+   private EventCoordinationServiceImpl service;
+   private PortletRegistryService registry;
+
+   @Before
+   public void setUp() {
+      registry = (PortletRegistryService) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {PortletRegistryService.class}, new InvocationHandler() {
+         public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getPortlet")) {
+               return portlets.get(args[0] + "." + args[1]);
+            }
+            return null;
+         }
+      });
+      PortletContextService contexts = (PortletContextService) Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class<?>[] {PortletContextService.class}, new InvocationHandler() {
+         public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getClassLoader")) {
+               return loaders.get(args[0]);
+            }
+            return null;
+         }
+      });
+      service = new EventCoordinationServiceImpl(registry, contexts);
+
+      ClassLoader shared = getClass().getClassLoader();
+      loaders.put("/app1", shared);
+      loaders.put("/app2", shared);
+      loaders.put("/app3", new ClassLoader(shared) {
+      });
+   }
+
+   @Test
+   public void sameClassLoaderTest() throws Exception {
+      Payload payload = new Payload("hello");
+      Event published = publish("/app1", PAYLOAD_EVENT, payload);
+      assertSame(payload, published.getValue());
+
+      // receivers sharing the class loader get the published instance itself
+      Event delivered = service.getDeliveredEvent(window("/app1"), published);
+      assertSame(payload, delivered.getValue());
+      delivered = service.getDeliveredEvent(window("/app2"), published);
+      assertSame(payload, delivered.getValue());
+   }
+
+   @Test
+   public void otherClassLoaderTest() throws Exception {
+      Payload payload = new Payload("hello");
+      Event published = publish("/app1", PAYLOAD_EVENT, payload);
+
+      // receivers with another class loader get a copy
+      Event delivered = service.getDeliveredEvent(window("/app3"), published);
+      assertNotSame(payload, delivered.getValue());
+      assertEquals("hello", ((Payload) delivered.getValue()).getText());
+      assertNotNull(((EventImpl) published).getXml());
+
+      // the copy is independent of the published payload
+      payload.setText("changed");
+      assertEquals("hello", ((Payload) service.getDeliveredEvent(window("/app3"), published).getValue()).getText());
+   }
+
+   @Test
+   public void unboundPayloadTest() throws Exception {
+      // a payload without valid JAXB binding is rejected when it is published
+      assertNull(publish("/app1", UNBOUND_EVENT, new Unbound()));
+
+      // a payload of the wrong type is rejected as well
+      try {
+         publish("/app1", UNBOUND_EVENT, new Payload("x"));
+         fail("Expected IllegalArgumentException");
+      } catch (IllegalArgumentException e) {
+      }
+
+      // an event without payload is always delivered
+      Event published = publish("/app1", PAYLOAD_EVENT, null);
+      assertNull(service.getDeliveredEvent(window("/app3"), published).getValue());
+   }
+
+   private Event publish(String context, QName qname, Serializable value) {
+      return new EventProviderImpl(window(context), registry).createEvent(qname, value);
+   }
+
+   private PortletWindow window(String context) {
+      final String id = context.substring(1) + ".portlet!";
+      final PortletDefinition pd = portlet(context);
+      final PortletWindowID wid = (PortletWindowID) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {PortletWindowID.class}, new InvocationHandler() {
+         public Object invoke(Object proxy, Method method, Object[] args) {
+            return id;
+         }
+      });
+      return (PortletWindow) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {PortletWindow.class}, new InvocationHandler() {
+         public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getId")) {
+               return wid;
+            } else if (method.getName().equals("getPortletDefinition")) {
+               return pd;
+            }
+            return null;
+         }
+      });
+   }
+
+   private PortletDefinition portlet(String context) {
+      PortletDefinition pd = portlets.get(context + ".portlet");
+      if (pd == null) {
+         PortletApplicationDefinitionImpl app = new PortletApplicationDefinitionImpl();
+         app.setName(context);
+         EventDefinitionImpl ed = new EventDefinitionImpl(PAYLOAD_EVENT);
+         ed.setValueType(Payload.class.getName());
+         app.addEventDefinition(ed);
+         ed = new EventDefinitionImpl(UNBOUND_EVENT);
+         ed.setValueType(Unbound.class.getName());
+         app.addEventDefinition(ed);
+
+         pd = new PortletDefinitionImpl("portlet", app);
+         pd.addSupportedPublishingEvent(new EventDefinitionReferenceImpl(PAYLOAD_EVENT));
+         pd.addSupportedPublishingEvent(new EventDefinitionReferenceImpl(UNBOUND_EVENT));
+         app.addPortlet(pd);
+         portlets.put(context + ".portlet", pd);
+      }
+      return pd;
+   }
+}
@@ -0,0 +1,261 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.services.container;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.xml.namespace.QName;
+
+import org.apache.pluto.container.driver.PortletRegistryService;
+import org.apache.pluto.container.om.portlet.EventDefinition;
+import org.apache.pluto.container.om.portlet.EventDefinitionReference;
+import org.apache.pluto.container.om.portlet.PortletApplicationDefinition;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.apache.pluto.container.om.portlet.impl.EventDefinitionImpl;
+import org.apache.pluto.container.om.portlet.impl.EventDefinitionReferenceImpl;
+import org.apache.pluto.container.om.portlet.impl.PortletApplicationDefinitionImpl;
+import org.apache.pluto.container.om.portlet.impl.PortletDefinitionImpl;
+import org.apache.pluto.driver.services.portal.PageConfig;
+import org.apache.pluto.driver.services.portal.PortletWindowConfig;
+import org.apache.pluto.driver.services.portal.RenderConfigService;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the event routing index against the routing rules of the former linear
+ * search over all portlets on all pages.
+ */
+public class EventRoutingIndexTest {
+
+   private static final QName EXACT   = new QName("urn:a", "exact");
+   private static final QName GROUP   = new QName("urn:a", "group.");
+   private static final QName PLAIN   = new QName("", "plain");
+   private static final QName OLD     = new QName("urn:old", "name");
+   private static final QName RENAMED = new QName("urn:a", "renamed");
+
+   /** the event names checked against the former routing rules */
+   private static final QName[] EVENTS = {
+      EXACT, new QName("urn:a", "group.one"), new QName("urn:a", "group.two.three"), GROUP,
+      new QName("urn:default", "plain"), PLAIN, RENAMED, OLD, new QName("urn:b", "exact"),
+      new QName("urn:a", "group"), new QName("urn:a", "other")
+   };
+
+   private final Map<String, PortletApplicationDefinition> apps = new HashMap<String, PortletApplicationDefinition>();
+   private final List<PageConfig> pages = new ArrayList<PageConfig>();
+   private long version;
+   private final List<Object> lookups = new ArrayList<Object>();
+   private RenderConfigService renderConfig;
+   private EventRoutingIndex index;
+
+   @Before
+   public void setUp() {
+      PortletRegistryService registry = (PortletRegistryService) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {PortletRegistryService.class}, new InvocationHandler() {
+         public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getPortletApplication")) {
+               lookups.add(args[0]);
+               return apps.get(args[0]);
+            }
+            return null;
+         }
+      });
+      renderConfig = (RenderConfigService) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {RenderConfigService.class}, new InvocationHandler() {
+         public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getVersion")) {
+               return version;
+            } else if (method.getName().equals("getPages")) {
+               return pages;
+            }
+            return null;
+         }
+      });
+      index = new EventRoutingIndex(registry);
+
+      // app1 has a portlet for each kind of route
+      PortletApplicationDefinitionImpl app1 = new PortletApplicationDefinitionImpl();
+      app1.setName("/app1");
+      app1.setDefaultNamespace("urn:default");
+      EventDefinitionImpl renamed = new EventDefinitionImpl(RENAMED);
+      renamed.addAlias(OLD);
+      app1.addEventDefinition(renamed);
+      app1.addPortlet(portlet(app1, "exact", EXACT));
+      app1.addPortlet(portlet(app1, "wild", GROUP));
+      app1.addPortlet(portlet(app1, "local", PLAIN));
+      app1.addPortlet(portlet(app1, "alias", OLD));
+      app1.addPortlet(portlet(app1, "none"));
+      apps.put("/app1", app1);
+      index.addApplication(app1);
+
+      // app2 is not added to the index and is looked up in the registry
+      PortletApplicationDefinitionImpl app2 = new PortletApplicationDefinitionImpl();
+      app2.setName("/app2");
+      app2.setDefaultNamespace("urn:a");
+      app2.addPortlet(portlet(app2, "exact", EXACT));
+      app2.addPortlet(portlet(app2, "local", new QName("", "exact")));
+      apps.put("/app2", app2);
+
+      pages.add(page("app1.exact!a", "app1.wild!b", "app1.local!c", "app1.alias!d", "app1.none!e", "app2.exact!f"));
+      pages.add(page("app1.exact!g", "app2.local!h", "app3.exact!i"));
+   }
+
+   @Test
+   public void routeTest() {
+      assertEquals("[app1.exact!a, app1.exact!g, app2.exact!f, app2.local!h]", route(EXACT));
+      assertEquals("[app1.wild!b]", route(new QName("urn:a", "group.one")));
+      assertEquals("[app1.wild!b]", route(new QName("urn:a", "group.two.three")));
+      assertEquals("[app1.wild!b]", route(GROUP));
+      assertEquals("[]", route(new QName("urn:a", "group")));
+      assertEquals("[app1.local!c]", route(new QName("urn:default", "plain")));
+      assertEquals("[app1.local!c]", route(PLAIN));
+      assertEquals("[app1.alias!d]", route(RENAMED));
+      assertEquals("[app1.alias!d]", route(OLD));
+      assertEquals("[]", route(new QName("urn:b", "exact")));
+      assertEquals("[]", route(new QName("urn:a", "other")));
+   }
+
+   @Test
+   public void legacyTest() {
+      for (QName event : EVENTS) {
+         assertEquals(event.toString(), legacyRoute(event), route(event));
+      }
+   }
+
+   @Test
+   public void cacheTest() {
+      Set<String> windows = index.getSubscribedWindows(EXACT, renderConfig);
+      assertSame(windows, index.getSubscribedWindows(EXACT, renderConfig));
+      try {
+         windows.clear();
+         fail("Expected UnsupportedOperationException");
+      } catch (UnsupportedOperationException e) {
+      }
+
+      // app2 is looked up in the registry once, app1 was added to the index
+      for (QName event : EVENTS) {
+         index.getSubscribedWindows(event, renderConfig);
+      }
+      assertFalse(lookups.contains("/app1"));
+      assertEquals(1, Collections.frequency(lookups, "/app2"));
+   }
+
+   @Test
+   public void pageChangeTest() {
+      assertEquals("[app1.exact!a, app1.exact!g, app2.exact!f, app2.local!h]", route(EXACT));
+
+      // without a new version, the page change is not seen
+      pages.remove(1);
+      pages.add(page("app1.exact!x", "app1.wild!y"));
+      assertEquals("[app1.exact!a, app1.exact!g, app2.exact!f, app2.local!h]", route(EXACT));
+
+      version++;
+      assertEquals("[app1.exact!a, app1.exact!x, app2.exact!f]", route(EXACT));
+      assertEquals("[app1.wild!b, app1.wild!y]", route(new QName("urn:a", "group.one")));
+      for (QName event : EVENTS) {
+         assertEquals(event.toString(), legacyRoute(event), route(event));
+      }
+   }
+
+   @Test
+   public void applicationChangeTest() {
+      assertEquals("[app1.exact!a, app1.exact!g, app2.exact!f, app2.local!h]", route(EXACT));
+
+      // a redeployed application replaces the subscriptions
+      PortletApplicationDefinitionImpl app1 = new PortletApplicationDefinitionImpl();
+      app1.setName("/app1");
+      app1.addPortlet(portlet(app1, "exact"));
+      app1.addPortlet(portlet(app1, "none", EXACT));
+      apps.put("/app1", app1);
+      index.addApplication(app1);
+      assertEquals("[app1.none!e, app2.exact!f, app2.local!h]", route(EXACT));
+      assertEquals("[]", route(RENAMED));
+
+      index.removeApplication("/app2");
+      apps.remove("/app2");
+      assertEquals("[app1.none!e]", route(EXACT));
+   }
+
+   private String route(QName event) {
+      return new TreeSet<String>(index.getSubscribedWindows(event, renderConfig)).toString();
+   }
+
+   /**
+    * Resolves the windows processing an event the way the event coordination
+    * service did before the index was introduced.
+    */
+   private String legacyRoute(QName eventName) {
+      Set<String> result = new HashSet<String>();
+      for (PageConfig page : pages) {
+         for (String pid : page.getPortletIds()) {
+            PortletWindowConfig portlet = PortletWindowConfig.fromId(pid);
+            PortletApplicationDefinition app = apps.get(portlet.getContextPath());
+            if (app == null) {
+               continue;
+            }
+            List<QName> aliases = null;
+            for (EventDefinition def : app.getEventDefinitions()) {
+               if (def.getQName().equals(eventName)) {
+                  aliases = def.getAliases();
+               }
+            }
+            for (PortletDefinition pd : app.getPortlets()) {
+               if (!pd.getPortletName().equals(portlet.getPortletName())) {
+                  continue;
+               }
+               for (EventDefinitionReference ref : pd.getSupportedProcessingEvents()) {
+                  QName name = ref.getQualifiedName();
+                  if (name.equals(eventName)
+                        || (name.toString().endsWith(".") && eventName.toString().startsWith(name.toString()))
+                        || (aliases != null && aliases.contains(name))
+                        || (name.getNamespaceURI().equals("")
+                              && eventName.equals(new QName(app.getDefaultNamespace(), name.getLocalPart())))) {
+                     result.add(portlet.getId());
+                  }
+               }
+            }
+         }
+      }
+      return new TreeSet<String>(result).toString();
+   }
+
+   private PortletDefinition portlet(PortletApplicationDefinition app, String name, QName... events) {
+      PortletDefinition pd = new PortletDefinitionImpl(name, app);
+      for (QName event : events) {
+         pd.addSupportedProcessingEvent(new EventDefinitionReferenceImpl(event));
+      }
+      return pd;
+   }
+
+   private PageConfig page(String... ids) {
+      PageConfig page = new PageConfig();
+      page.setPortletIds(new ArrayList<String>(Arrays.asList(ids)));
+      return page;
+   }
+}
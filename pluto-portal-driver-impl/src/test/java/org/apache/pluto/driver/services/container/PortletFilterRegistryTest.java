@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.services.container;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.portlet.PortletException;
+import javax.portlet.PortletRequest;
+import javax.portlet.RenderRequest;
+import javax.portlet.RenderResponse;
+import javax.portlet.filter.FilterChain;
+import javax.portlet.filter.FilterConfig;
+import javax.portlet.filter.PortletFilter;
+import javax.portlet.filter.RenderFilter;
+
+import org.apache.pluto.container.driver.PortletRegistryEvent;
+import org.apache.pluto.container.om.portlet.Filter;
+import org.apache.pluto.container.om.portlet.impl.FilterImpl;
+import org.apache.pluto.container.om.portlet.impl.FilterMappingImpl;
+import org.apache.pluto.container.om.portlet.impl.PortletApplicationDefinitionImpl;
+import org.apache.pluto.container.om.portlet.impl.PortletDefinitionImpl;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the filter chain resolution and the filter instance lifecycle of the
+ * portlet filter registry and the filter manager service.
+ */
+public class PortletFilterRegistryTest {
+
+   /** Counts the filter lifecycle calls. */
+   public static class CountingFilter implements RenderFilter {
+      static final AtomicInteger inits = new AtomicInteger();
+      static final AtomicInteger destroys = new AtomicInteger();
+
+      public void init(FilterConfig filterConfig) throws PortletException {
+         inits.incrementAndGet();
+      }
+
+      public void destroy() {
+         destroys.incrementAndGet();
+      }
+
+      public void doFilter(RenderRequest request, RenderResponse response, FilterChain chain) {
+      }
+   }
+
+   private final ClassLoader loader = getClass().getClassLoader();
+
+   @Before
+   public void setUp() {
+      CountingFilter.inits.set(0);
+      CountingFilter.destroys.set(0);
+   }
+
+   @Test
+   public void chainTest() throws Exception {
+      PortletFilterRegistry registry = new PortletFilterRegistry(app("app"));
+
+      List<Filter> filters = registry.getFilters("portlet1", PortletRequest.RENDER_PHASE);
+      assertEquals(2, filters.size());
+      assertEquals("f1", filters.get(0).getFilterName());
+      assertEquals("f2", filters.get(1).getFilterName());
+      assertSame(filters, registry.getFilters("portlet1", PortletRequest.RENDER_PHASE));
+
+      // f2 is mapped through the wildcard, f1 only to portlet1
+      filters = registry.getFilters("portlet2", PortletRequest.RENDER_PHASE);
+      assertEquals(1, filters.size());
+      assertEquals("f2", filters.get(0).getFilterName());
+
+      assertTrue(registry.getFilters("portlet1", PortletRequest.ACTION_PHASE).isEmpty());
+   }
+
+   @Test
+   public void reuseTest() throws Exception {
+      PortletFilterRegistry registry = new PortletFilterRegistry(app("app"));
+      Filter f1 = registry.getFilters("portlet1", PortletRequest.RENDER_PHASE).get(0);
+
+      PortletFilter first = registry.getFilter(f1, loader, null, null);
+      assertTrue(first instanceof CountingFilter);
+      for (int ii = 0; ii < 3; ii++) {
+         assertSame(first, registry.getFilter(f1, loader, null, null));
+      }
+      assertEquals(1, CountingFilter.inits.get());
+      assertEquals(0, CountingFilter.destroys.get());
+
+      registry.destroy();
+      assertEquals(1, CountingFilter.destroys.get());
+
+      // an instance requested after destroy is not retained
+      PortletFilter late = registry.getFilter(f1, loader, null, null);
+      assertNotSame(first, late);
+      assertEquals(2, CountingFilter.inits.get());
+      assertEquals(2, CountingFilter.destroys.get());
+      assertNotSame(late, registry.getFilter(f1, loader, null, null));
+      assertEquals(3, CountingFilter.destroys.get());
+   }
+
+   @Test
+   public void lifecycleTest() throws Exception {
+      FilterManagerServiceImpl service = new FilterManagerServiceImpl();
+      PortletApplicationDefinitionImpl app = app("app");
+      service.portletApplicationRegistered(event(app));
+      PortletFilterRegistry registry = service.getRegistry("app");
+      assertNotNull(registry);
+      assertSame(app, registry.getPortletApplication());
+
+      // registering the same deployment again keeps the registry
+      service.portletApplicationRegistered(event(app));
+      assertSame(registry, service.getRegistry("app"));
+
+      Filter f1 = registry.getFilters("portlet1", PortletRequest.RENDER_PHASE).get(0);
+      registry.getFilter(f1, loader, null, null);
+      assertEquals(1, CountingFilter.inits.get());
+
+      // a redeployment replaces the registry and destroys the old filters
+      PortletApplicationDefinitionImpl redeployed = app("app");
+      service.portletApplicationRegistered(event(redeployed));
+      PortletFilterRegistry replaced = service.getRegistry("app");
+      assertNotSame(registry, replaced);
+      assertSame(redeployed, replaced.getPortletApplication());
+      assertEquals(1, CountingFilter.destroys.get());
+
+      replaced.getFilter(f1, loader, null, null);
+      assertEquals(2, CountingFilter.inits.get());
+
+      // removal destroys the filters and drops the registry
+      service.portletApplicationRemoved(event(redeployed));
+      assertNull(service.getRegistry("app"));
+      assertEquals(2, CountingFilter.destroys.get());
+   }
+
+   private PortletApplicationDefinitionImpl app(String name) {
+      PortletApplicationDefinitionImpl app = new PortletApplicationDefinitionImpl();
+      app.setName(name);
+      app.addPortlet(new PortletDefinitionImpl("portlet1", app));
+      app.addPortlet(new PortletDefinitionImpl("portlet2", app));
+
+      for (String fn : new String[] {"f1", "f2"}) {
+         FilterImpl filter = new FilterImpl(fn);
+         filter.setFilterClass(CountingFilter.class.getName());
+         filter.addLifecycle(PortletRequest.RENDER_PHASE);
+         app.addFilter(filter);
+      }
+
+      FilterMappingImpl fm = new FilterMappingImpl("f1");
+      fm.addPortletName("portlet1");
+      app.addFilterMapping(fm);
+      fm = new FilterMappingImpl("f2");
+      fm.addPortletName("port*");
+      app.addFilterMapping(fm);
+      return app;
+   }
+
+   private PortletRegistryEvent event(PortletApplicationDefinitionImpl app) {
+      PortletRegistryEvent event = new PortletRegistryEvent();
+      event.setApplicationName(app.getName());
+      event.setPortletApplication(app);
+      return event;
+   }
+}
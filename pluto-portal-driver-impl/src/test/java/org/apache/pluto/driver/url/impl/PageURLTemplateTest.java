@@ -0,0 +1,224 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.TreeSet;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.xml.namespace.QName;
+
+import org.apache.pluto.container.driver.PortletRegistryEvent;
+import org.apache.pluto.container.driver.PortletRegistryService;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.apache.pluto.container.om.portlet.impl.PortletApplicationDefinitionImpl;
+import org.apache.pluto.container.om.portlet.impl.PortletDefinitionImpl;
+import org.apache.pluto.container.om.portlet.impl.PublicRenderParameterImpl;
+import org.apache.pluto.driver.AttributeKeys;
+import org.apache.pluto.driver.config.DriverConfiguration;
+import org.apache.pluto.driver.services.portal.PageConfig;
+import org.apache.pluto.driver.services.portal.PublicRenderParameterMapper;
+import org.apache.pluto.driver.services.portal.PublicRenderParameterQNameMapper;
+import org.apache.pluto.driver.services.portal.PublicRenderParameterService;
+import org.apache.pluto.driver.services.portal.RenderConfigService;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the page templates computed by the portal URL parser: when they are
+ * recomputed, and how the parsed URLs share their state.
+ */
+public class PageURLTemplateTest {
+
+   private static final QName COLOR = new QName("urn:test", "color");
+
+   private final PortalURLParserImpl parser = (PortalURLParserImpl) PortalURLParserImpl.getParser();
+
+   private PortletApplicationDefinitionImpl app;
+   private PageConfig page;
+   private long version;
+   private int mappers;
+   private HttpServletRequest request;
+   private String pageName;
+
+   @Before
+   public void setUp() {
+      app = new PortletApplicationDefinitionImpl();
+      app.setName("/app");
+      app.setVersion("3.0");
+      app.addPublicRenderParameter(new PublicRenderParameterImpl(COLOR, "color"));
+      for (String name : new String[] {"p1", "p2"}) {
+         PortletDefinition pd = new PortletDefinitionImpl(name, app);
+         pd.addSupportedPublicRenderParameter("color");
+         app.addPortlet(pd);
+      }
+      page = new PageConfig();
+      page.setPortletIds(new ArrayList<String>(Arrays.asList("app.p1!", "app.p2!")));
+
+      final PortletRegistryService registry = (PortletRegistryService) Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class<?>[] {PortletRegistryService.class}, new InvocationHandler() {
+         public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getPortletApplication")) {
+               return app;
+            } else if (method.getName().equals("getPortlet")) {
+               return app.getPortlet((String) args[1]);
+            }
+            return null;
+         }
+      });
+      final RenderConfigService renderConfig = (RenderConfigService) Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class<?>[] {RenderConfigService.class}, new InvocationHandler() {
+         public Object invoke(Object proxy, Method method, Object[] args) {
+            return method.getName().equals("getVersion") ? version : null;
+         }
+      });
+      final PublicRenderParameterService prpService = (PublicRenderParameterService) Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class<?>[] {PublicRenderParameterService.class}, new InvocationHandler() {
+         public Object invoke(Object proxy, Method method, Object[] args) {
+            mappers++;
+            return new PublicRenderParameterQNameMapper(page, registry);
+         }
+      });
+      final DriverConfiguration dc = (DriverConfiguration) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {DriverConfiguration.class}, new InvocationHandler() {
+         public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("getRenderConfigService")) {
+               return renderConfig;
+            } else if (name.equals("getPublicRenderParameterService")) {
+               return prpService;
+            } else if (name.equals("getPortletRegistryService")) {
+               return registry;
+            } else if (name.equals("getPageConfig")) {
+               return page;
+            }
+            return null;
+         }
+      });
+      final ServletContext sc = (ServletContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {ServletContext.class}, new InvocationHandler() {
+         public Object invoke(Object proxy, Method method, Object[] args) {
+            return AttributeKeys.DRIVER_CONFIG.equals(args[0]) ? dc : null;
+         }
+      });
+      request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {HttpServletRequest.class}, new InvocationHandler() {
+         public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("getRequestURI")) {
+               return "/pluto/portal" + pageName;
+            } else if (name.equals("getContextPath")) {
+               return "/pluto";
+            } else if (name.equals("getServletPath")) {
+               return "/portal";
+            } else if (name.equals("getPathInfo")) {
+               return pageName;
+            } else if (name.equals("getServletContext")) {
+               return sc;
+            } else if (name.equals("getParameterMap")) {
+               return Collections.emptyMap();
+            }
+            return null;
+         }
+      });
+   }
+
+   @Test
+   public void reuseTest() {
+      pageName = "/reuse";
+      RelativePortalURLImpl url1 = parse();
+      RelativePortalURLImpl url2 = parse();
+      assertNotNull(url1.getPageTemplate());
+      assertSame(url1.getPageTemplate(), url2.getPageTemplate());
+      assertEquals(1, mappers);
+      assertEquals("[app.p1!, app.p2!]", new TreeSet<String>(url1.getPortletIds()).toString());
+      assertEquals("3.0", url1.getVersion("app.p1!"));
+   }
+
+   @Test
+   public void pageVersionTest() {
+      pageName = "/version";
+      PageURLTemplate template = parse().getPageTemplate();
+
+      // the page change is seen with the next page configuration version
+      page.setPortletIds(new ArrayList<String>(Arrays.asList("app.p1!")));
+      assertSame(template, parse().getPageTemplate());
+      version++;
+      RelativePortalURLImpl url = parse();
+      assertNotSame(template, url.getPageTemplate());
+      assertEquals(2, mappers);
+      assertEquals("[app.p1!]", url.getPortletIds().toString());
+      assertSame(url.getPageTemplate(), parse().getPageTemplate());
+   }
+
+   @Test
+   public void registryEventTest() {
+      pageName = "/registry";
+      PageURLTemplate template = parse().getPageTemplate();
+      assertSame(template, parse().getPageTemplate());
+
+      // a redeployed application may have another version
+      app.setVersion("2.0");
+      parser.portletApplicationRegistered(new PortletRegistryEvent());
+      RelativePortalURLImpl url = parse();
+      assertNotSame(template, url.getPageTemplate());
+      assertEquals("2.0", url.getVersion("app.p1!"));
+      assertFalse(url.isVersion3("app.p1!"));
+
+      template = url.getPageTemplate();
+      parser.portletApplicationRemoved(new PortletRegistryEvent());
+      assertNotSame(template, parse().getPageTemplate());
+      assertEquals(3, mappers);
+   }
+
+   @Test
+   public void prpMapperTest() {
+      pageName = "/prp";
+      RelativePortalURLImpl url1 = parse();
+      RelativePortalURLImpl url2 = parse();
+      PublicRenderParameterMapper prototype = url1.getPageTemplate().getPRPMapper();
+      PublicRenderParameterMapper prpm1 = url1.getPublicRenderParameterMapper();
+      PublicRenderParameterMapper prpm2 = url2.getPublicRenderParameterMapper();
+      assertNotSame(prototype, prpm1);
+      assertNotSame(prpm1, prpm2);
+
+      // setting a value in one URL does not change the other URL or the prototype
+      int index = prpm1.getIndex(COLOR);
+      prpm1.setValues(index, new String[] {"red"});
+      assertArrayEquals(new String[] {"red"}, prpm1.getValues(index));
+      assertNull(prpm2.getValues(index));
+      assertNull(prototype.getValues(index));
+      assertNull(parse().getPublicRenderParameterMapper().getValues(index));
+
+      prpm2.setValues(index, new String[] {"blue"});
+      prpm2.setRemoved(index, true);
+      assertArrayEquals(new String[] {"red"}, prpm1.getValues(index));
+      assertTrue(prototype.getRemoved(index));
+   }
+
+   private RelativePortalURLImpl parse() {
+      return (RelativePortalURLImpl) parser.parse(request);
+   }
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import static org.junit.Assert.*;
+
+import java.net.URLEncoder;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the encoder against the URLEncoder that was previously used to
+ * write portal URLs.
+ */
+public class PortalURLEncoderTest {
+
+   private static final String[] CORPUS = { "", "plain", "a b", "x:y;z", "/path/", "100%", "+plus", "-_.*~!",
+         "\u00e4\u00f6\u00fc", "\u4e2d\u6587", "\u20ac", "\ud83d\ude00", "\ud83d", "x\ude00y", "@,", "a&b<c>'\"" };
+
+   /**
+    * Test method for {@link PortalURLEncoder#encode(String, Appendable)}.
+    */
+   @Test
+   public void testEncode() throws Exception {
+      for (String str : CORPUS) {
+         assertEquals("String: " + str, URLEncoder.encode(str, "UTF-8"), PortalURLEncoder.encode(str));
+      }
+
+      Random rand = new Random(4711);
+      for (int ii = 0; ii < 1000; ii++) {
+         StringBuilder str = new StringBuilder();
+         int len = rand.nextInt(12);
+         for (int jj = 0; jj < len; jj++) {
+            str.append((rand.nextInt(4) == 0) ? (char) rand.nextInt(0x10000) : (char) (32 + rand.nextInt(96)));
+         }
+         String s = str.toString();
+         assertEquals("String: " + s, URLEncoder.encode(s, "UTF-8"), PortalURLEncoder.encode(s));
+      }
+   }
+
+   /**
+    * Test method for {@link PortalURLEncoder#appendPath(String, Appendable, boolean)}.
+    */
+   @Test
+   public void testAppendPath() throws Exception {
+      StringBuilder buf = new StringBuilder();
+      PortalURLEncoder.appendPath("/my page", buf, false);
+      assertEquals("/my%20page", buf.toString());
+
+      buf.setLength(0);
+      PortalURLEncoder.appendPath("/a&b <c>", buf, true);
+      assertEquals("/a&amp;b%20&lt;c&gt;", buf.toString());
+
+      buf.setLength(0);
+      PortalURLEncoder.appendText("'q' \"q\"", buf, true);
+      assertEquals("&#039;q&#039; &#034;q&#034;", buf.toString());
+      assertTrue(PortalURLEncoder.isXMLSafe("/my page"));
+      assertFalse(PortalURLEncoder.isXMLSafe("/a&b"));
+   }
+}
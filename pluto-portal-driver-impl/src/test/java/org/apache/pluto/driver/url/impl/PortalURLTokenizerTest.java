@@ -0,0 +1,235 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import static org.junit.Assert.*;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the tokenizer against the regular expression based decoding that
+ * was previously used by the portal URL parser.
+ */
+public class PortalURLTokenizerTest {
+
+   private static final String[] TYPES  = { "pd", "rp", "sp", "av", "rv", "ws", "pm", "ac", "rs", "cl", "ri" };
+
+   private static final String[] NAMES  = { "name", "a b", "x:y;z", "/path/", "%25", "+plus", "\u00e4\u00f6\u00fc",
+         "\u4e2d\u6587", "@", ",", "" };
+
+   private static final String[] VALUES = { "value", "", "a b", "1:2;3", "/__pd", "100%", "\u20ac", null };
+
+   /**
+    * Test method for {@link PortalURLTokenizer#next()} with a corpus of
+    * well-formed URLs.
+    */
+   @Test
+   public void testWellFormedCorpus() throws Exception {
+      Random rand = new Random(4711);
+      for (int ii = 0; ii < 500; ii++) {
+         StringBuilder path = new StringBuilder("/some%20page");
+         int tokens = rand.nextInt(8);
+         for (int jj = 0; jj < tokens; jj++) {
+            String type = TYPES[rand.nextInt(TYPES.length)];
+            path.append("/__").append(type).append(rand.nextInt(12));
+            if (type.equals("sp")) {
+               path.append(';').append(rand.nextInt(4));
+            }
+            if (!type.equals("ac") && !type.equals("rs")) {
+               path.append(';').append(URLEncoder.encode(NAMES[rand.nextInt(NAMES.length)], "UTF-8"));
+               int vals = rand.nextInt(4);
+               if (vals == 0) {
+                  path.append(":@");
+               }
+               for (int kk = 0; kk < vals; kk++) {
+                  String val = VALUES[rand.nextInt(VALUES.length)];
+                  path.append(':').append((val == null) ? "," : URLEncoder.encode(val, "UTF-8"));
+               }
+            }
+         }
+         compare(path.toString());
+      }
+   }
+
+   /**
+    * Test method for {@link PortalURLTokenizer#next()} with malformed tokens.
+    */
+   @Test
+   public void testMalformedTokens() throws Exception {
+      String[] corpus = {
+            "",
+            "/page",
+            "/__",
+            "/__pd",
+            "/__pd/__rp/__x",
+            "/page/__pd0;;",
+            "/__rp0;",
+            "/__rp0;;;",
+            "/__rp0;name",
+            "/__rp0;name:",
+            "/__rp0;name::",
+            "/__rp0;,:value",
+            "/__rp0;name:,:,",
+            "/__rp0;name:@:@",
+            "/__rp0;name:%40",
+            "/__rp0;name:%4",
+            "/__rp0;name:%zz",
+            "/__rp0;na%E2%82%ACme:%E2%82",
+            "/__rp99999999999;name:value",
+            "/__sp0;name:value",
+            "/__sp0;1;2;name:value",
+            "/__ws0;normal/__pm;view",
+            "/__/__/__rp1;a+b:c+d",
+      };
+      for (String path : corpus) {
+         compare(path);
+      }
+   }
+
+   /**
+    * Test method for {@link PortalURLTokenizer#decode(int, int)}.
+    */
+   @Test
+   public void testDecode() throws Exception {
+      String str = "plain%20text+with%E2%82%AC%2F";
+      PortalURLTokenizer tokens = new PortalURLTokenizer(str, 0);
+      assertEquals(URLDecoder.decode(str, "UTF-8"), tokens.decode(0, str.length()));
+      assertEquals("plain", tokens.decode(0, 5));
+      assertEquals("%2", tokens.decode(str.length() - 3, str.length() - 1));
+   }
+
+   /**
+    * Tokenizes the path with both implementations and compares the results.
+    */
+   private void compare(String path) throws Exception {
+      List<String> expected = reference(path);
+      List<String> actual = new ArrayList<String>();
+      PortalURLTokenizer tokens = new PortalURLTokenizer(path, 0);
+      while (tokens.next()) {
+         actual.add(describe(tokens));
+      }
+      assertEquals("Path: " + path, expected, actual);
+   }
+
+   private String describe(PortalURLTokenizer tokens) {
+      StringBuilder txt = new StringBuilder();
+      txt.append("type=").append(tokens.getToken().substring(0, 2));
+      txt.append(", index=").append(tokens.getIndex(0));
+      txt.append(", fields=[");
+      for (int ii = 0; ii < tokens.getFieldCount(); ii++) {
+         txt.append(tokens.decode(ii)).append("|");
+      }
+      txt.append("]");
+      if (tokens.getFieldCount() > 1) {
+         int field = (tokens.isType("sp") && tokens.getFieldCount() == 3) ? 2 : 1;
+         boolean ok = tokens.parseValues(field);
+         txt.append(", ok=").append(ok);
+         txt.append(", name=").append(tokens.getParamName());
+         txt.append(", values=").append(Arrays.toString(tokens.getParamValues()));
+      }
+      return txt.toString();
+   }
+
+   /**
+    * The decoding previously done by the portal URL parser.
+    */
+   private List<String> reference(String path) {
+      List<String> result = new ArrayList<String>();
+      int ind = path.indexOf("/__");
+      if (ind < 0) {
+         return result;
+      }
+      for (String t : path.substring(ind).split("/__")) {
+         if (t.length() < 3) {
+            continue;
+         }
+         String type = t.substring(0, 2);
+         String[] vals = t.substring(2).split(";");
+
+         int index = -1;
+         if (vals.length > 0 && vals[0].length() > 0 && vals[0].matches("\\d+")) {
+            try {
+               index = Integer.parseInt(vals[0]);
+            } catch (Exception e) {
+            }
+         }
+
+         StringBuilder txt = new StringBuilder();
+         txt.append("type=").append(type);
+         txt.append(", index=").append(index);
+         txt.append(", fields=[");
+         for (String val : vals) {
+            txt.append(urlDecode(val)).append("|");
+         }
+         txt.append("]");
+
+         if (vals.length > 1) {
+            String values = vals[1];
+            if (type.equals("sp") && vals.length == 3) {
+               values = vals[2];
+            }
+
+            String[] pVals = values.split(":", -1);
+            String[] paramValues = new String[0];
+            String paramName = "";
+            boolean isEmptyArray = false;
+            if (pVals.length > 1) {
+               if (pVals.length == 2 && pVals[1].equals("@")) {
+                  isEmptyArray = true;
+               }
+               for (int i = 0; i < pVals.length; i++) {
+                  if (pVals[i].equals(",")) {
+                     pVals[i] = null;
+                  } else {
+                     pVals[i] = urlDecode(pVals[i]);
+                  }
+               }
+            }
+
+            boolean ok = true;
+            if (pVals.length == 0 || pVals[0] == null) {
+               ok = false;
+            } else {
+               paramName = pVals[0];
+               if (!isEmptyArray) {
+                  paramValues = Arrays.copyOfRange(pVals, 1, pVals.length);
+               }
+            }
+            txt.append(", ok=").append(ok);
+            txt.append(", name=").append(paramName);
+            txt.append(", values=").append(Arrays.toString(paramValues));
+         }
+         result.add(txt.toString());
+      }
+      return result;
+   }
+
+   private String urlDecode(String str) {
+      try {
+         return URLDecoder.decode(str, "UTF-8");
+      } catch (Exception e) {
+         return str;
+      }
+   }
+}
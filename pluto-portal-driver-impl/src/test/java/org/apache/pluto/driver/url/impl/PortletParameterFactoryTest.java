@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import static org.apache.pluto.driver.url.PortalURLParameter.PARAM_TYPE_ACTION;
+import static org.apache.pluto.driver.url.PortalURLParameter.PARAM_TYPE_RENDER;
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import org.apache.pluto.container.PortletRequestContext;
+import org.apache.pluto.driver.services.portal.PublicRenderParameterMapper;
+import org.apache.pluto.driver.url.PortalURL.URLType;
+import org.apache.pluto.driver.url.PortalURLParameter;
+import org.apache.pluto.driver.url.PortalURLPublicParameter;
+import org.apache.pluto.driver.url.PortletParameterFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the parameter index of the portal URL and the merged parameter views
+ * of the parameter factory.
+ */
+public class PortletParameterFactoryTest {
+
+   private RelativePortalURLImpl url;
+   private Map<String, List<String>> queryParams;
+   private PortletParameterFactory factory;
+
+   @Before
+   public void setUp() {
+      url = new RelativePortalURLImpl(null, "/pluto", "/portal", null, null);
+      url.setPublicRenderParameterMapper(new SinglePRPMapper());
+      url.setType(URLType.Action);
+      url.setTargetWindow("w1");
+      url.setVersion("w1", "3.0");
+      url.addParameter(new PortalURLParameter("w1", "a", new String[] {"a1"}, PARAM_TYPE_ACTION));
+      url.addParameter(new PortalURLParameter("w1", "a", new String[] {"r1", "r2"}, PARAM_TYPE_RENDER));
+      url.addParameter(new PortalURLParameter("w1", "r", new String[] {"r3"}, PARAM_TYPE_RENDER));
+      url.addParameter(new PortalURLParameter("w2", "a", new String[] {"x"}, PARAM_TYPE_RENDER));
+
+      InvocationHandler handler = new InvocationHandler() {
+         public Object invoke(Object proxy, Method method, Object[] args) {
+            return method.getName().equals("getQueryParams") ? queryParams : null;
+         }
+      };
+      PortletRequestContext reqctx = (PortletRequestContext) Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class<?>[] {PortletRequestContext.class}, handler);
+      factory = url.getPortletParameterFactory(reqctx);
+   }
+
+   /**
+    * Test method for {@link RelativePortalURLImpl#getParameters(String, String)}.
+    */
+   @Test
+   public void testIndex() throws Exception {
+      assertEquals(2, url.getParameters("w1", PARAM_TYPE_RENDER).size());
+      assertEquals("r3", url.getParameters("w1", PARAM_TYPE_RENDER).get("r").getValues()[0]);
+      assertTrue(url.getParameters("w3", PARAM_TYPE_RENDER).isEmpty());
+
+      // the clone shares the index until either URL changes its parameters
+      RelativePortalURLImpl clone = (RelativePortalURLImpl) url.clone();
+      clone.removeParameter(new PortalURLParameter("w1", "r", null, PARAM_TYPE_RENDER));
+      assertEquals(1, clone.getParameters("w1", PARAM_TYPE_RENDER).size());
+      assertEquals(2, url.getParameters("w1", PARAM_TYPE_RENDER).size());
+   }
+
+   /**
+    * Test method for {@link PortletParameterFactory#getParameterMap(String)}.
+    */
+   @Test
+   public void testParameterMap() throws Exception {
+      Map<String, String[]> params = factory.getParameterMap("w1");
+      assertEquals(3, params.size());
+      assertArrayEquals(new String[] {"a1", "r1", "r2"}, params.get("a"));
+      assertArrayEquals(new String[] {"r3"}, params.get("r"));
+      assertArrayEquals(new String[] {"p1"}, params.get("prp"));
+      assertSame(params, factory.getParameterMap("w1"));
+      assertMergedValues(params);
+
+      // changing a parameter replaces the view
+      url.setParameter(new PortalURLParameter("w1", "r", new String[] {"r4"}, PARAM_TYPE_RENDER));
+      Map<String, String[]> changed = factory.getParameterMap("w1");
+      assertNotSame(params, changed);
+      assertArrayEquals(new String[] {"r4"}, changed.get("r"));
+
+      factory.removePublicRenderParameter("w1", "prp");
+      assertNull(factory.getParameterMap("w1").get("prp"));
+      assertNull(factory.getMergedParameterValues("w1", "prp"));
+
+      // query parameters of a dispatch are added in front
+      queryParams = new HashMap<String, List<String>>();
+      queryParams.put("a", Arrays.asList("q1"));
+      queryParams.put("q", Collections.singletonList("q2"));
+      params = factory.getParameterMap("w1");
+      assertArrayEquals(new String[] {"q1", "a1", "r1", "r2"}, params.get("a"));
+      assertArrayEquals(new String[] {"q2"}, params.get("q"));
+      assertMergedValues(params);
+
+      try {
+         params.put("x", new String[0]);
+         fail("The parameter map can be modified.");
+      } catch (UnsupportedOperationException e) {
+      }
+   }
+
+   /**
+    * Test method for {@link PortletParameterFactory#getPrivateParameterMap(String)}
+    * with a version 2 portlet during the action phase.
+    */
+   @Test
+   public void testV2Action() throws Exception {
+      url.setVersion("w1", "2.0");
+      Map<String, String[]> params = factory.getPrivateParameterMap("w1");
+      assertEquals(1, params.size());
+      assertArrayEquals(new String[] {"a1"}, params.get("a"));
+      assertArrayEquals(new String[] {"a1"}, factory.getMergedParameterValues("w1", "a"));
+      assertNull(factory.getMergedParameterValues("w1", "r"));
+   }
+
+   private void assertMergedValues(Map<String, String[]> params) {
+      for (String name : params.keySet()) {
+         assertArrayEquals(params.get(name), factory.getMergedParameterValues("w1", name));
+      }
+      // computed without the cached map
+      url.setParameter(new PortalURLParameter("w2", "b", new String[] {"y"}, PARAM_TYPE_RENDER));
+      for (String name : params.keySet()) {
+         assertArrayEquals(params.get(name), factory.getMergedParameterValues("w1", name));
+      }
+   }
+
+   /**
+    * A mapper containing the public render parameter "prp" of window "w1".
+    */
+   private static class SinglePRPMapper implements PublicRenderParameterMapper {
+
+      private final PortalURLPublicParameter prp =
+            new PortalURLPublicParameter("w1", "prp", new QName("prp"), new String[] {"p1"});
+
+      public List<PortalURLPublicParameter> getPublicParameterGroup(int index) {
+         return Collections.singletonList(prp);
+      }
+
+      public int getNumberOfGroups() {
+         return 1;
+      }
+
+      public int getIndex(PortalURLPublicParameter p) {
+         return prp.equals(p) ? 0 : -1;
+      }
+
+      public int getIndex(String windowId, String identifier) {
+         return ("w1".equals(windowId) && "prp".equals(identifier)) ? 0 : -1;
+      }
+
+      public int getIndex(QName qname) {
+         return prp.getQName().equals(qname) ? 0 : -1;
+      }
+
+      public void setValues(int index, String[] values) {
+         prp.setValues(values);
+         prp.setRemoved(false);
+      }
+
+      public String[] getValues(int index) {
+         return prp.isRemoved() ? null : prp.getValues();
+      }
+
+      public void setRemoved(int index, boolean removed) {
+         prp.setRemoved(removed);
+      }
+
+      public boolean getRemoved(int index) {
+         return prp.isRemoved();
+      }
+
+      public List<Integer> getActiveIndexes() {
+         return prp.isRemoved() ? Collections.<Integer>emptyList() : Collections.singletonList(0);
+      }
+
+      public List<PortalURLPublicParameter> getPRPsForWindow(String wid, boolean onlyActive) {
+         if (!"w1".equals(wid) || (onlyActive && prp.isRemoved())) {
+            return Collections.emptyList();
+         }
+         return Collections.singletonList(prp);
+      }
+
+      public PublicRenderParameterMapper clone() {
+         return this;
+      }
+   }
+}
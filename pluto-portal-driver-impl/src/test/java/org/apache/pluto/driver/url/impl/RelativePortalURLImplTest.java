@@ -0,0 +1,224 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.url.impl;
+
+import static org.apache.pluto.driver.url.PortalURLParameter.PARAM_TYPE_RENDER;
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.portlet.PortletMode;
+import javax.portlet.WindowState;
+import javax.xml.namespace.QName;
+
+import org.apache.pluto.container.driver.PortletRegistryService;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.apache.pluto.container.om.portlet.impl.PortletApplicationDefinitionImpl;
+import org.apache.pluto.container.om.portlet.impl.PortletDefinitionImpl;
+import org.apache.pluto.container.om.portlet.impl.PublicRenderParameterImpl;
+import org.apache.pluto.driver.services.portal.PageConfig;
+import org.apache.pluto.driver.services.portal.PublicRenderParameterMapper;
+import org.apache.pluto.driver.services.portal.PublicRenderParameterQNameMapper;
+import org.apache.pluto.driver.url.PortalURL;
+import org.apache.pluto.driver.url.PortalURLParameter;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that portal URL clones, which share their state until it is modified,
+ * do not see each other's changes.
+ */
+public class RelativePortalURLImplTest {
+
+   private static final QName COLOR = new QName("urn:test", "color");
+   private static final String W1   = "app.p1!";
+   private static final String W2   = "app.p2!";
+
+   private RelativePortalURLImpl url;
+   private PublicRenderParameterQNameMapper prpm;
+   private int color;
+
+   @Before
+   public void setUp() {
+      final PortletApplicationDefinitionImpl app = new PortletApplicationDefinitionImpl();
+      app.setName("/app");
+      app.addPublicRenderParameter(new PublicRenderParameterImpl(COLOR, "color"));
+      for (String name : new String[] {"p1", "p2"}) {
+         PortletDefinition pd = new PortletDefinitionImpl(name, app);
+         pd.addSupportedPublicRenderParameter("color");
+         app.addPortlet(pd);
+      }
+      PortletRegistryService registry = (PortletRegistryService) Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class<?>[] {PortletRegistryService.class}, new InvocationHandler() {
+         public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getPortletApplication")) {
+               return app;
+            } else if (method.getName().equals("getPortlet")) {
+               return app.getPortlet((String) args[1]);
+            }
+            return null;
+         }
+      });
+      PageConfig page = new PageConfig();
+      page.setPortletIds(new ArrayList<String>(Arrays.asList(W1, W2)));
+      prpm = new PublicRenderParameterQNameMapper(page, registry);
+      color = prpm.getIndex(COLOR);
+      prpm.setValues(color, new String[] {"red"});
+
+      url = new RelativePortalURLImpl(null, "/pluto", "/portal", null, null);
+      url.setPublicRenderParameterMapper(prpm);
+      url.setParameter(new PortalURLParameter(W1, "a", new String[] {"1"}, PARAM_TYPE_RENDER));
+      url.setParameter(new PortalURLParameter(W2, "b", new String[] {"2"}, PARAM_TYPE_RENDER));
+      url.setPortletMode(W1, PortletMode.EDIT);
+      url.setWindowState(W2, WindowState.MAXIMIZED);
+      url.setPortletIds(Arrays.asList(W1, W2));
+      url.setVersion(W1, "3.0");
+   }
+
+   @Test
+   public void parameterTest() {
+      PortalURL clone = url.clone();
+      PortalURL sibling = url.clone();
+      assertEquals("1", value(clone, W1, "a"));
+
+      clone.setParameter(new PortalURLParameter(W1, "a", new String[] {"changed"}, PARAM_TYPE_RENDER));
+      clone.removeParameter(new PortalURLParameter(W2, "b", null, PARAM_TYPE_RENDER));
+      assertEquals("changed", value(clone, W1, "a"));
+      assertNull(value(clone, W2, "b"));
+      assertOriginalParameters(url);
+      assertOriginalParameters(sibling);
+
+      // and the reverse
+      clone = url.clone();
+      url.setParameter(new PortalURLParameter(W1, "c", new String[] {"3"}, PARAM_TYPE_RENDER));
+      url.clearParameters(W2, PARAM_TYPE_RENDER);
+      assertEquals("3", value(url, W1, "c"));
+      assertNull(value(url, W2, "b"));
+      assertNull(value(clone, W1, "c"));
+      assertOriginalParameters(clone);
+      assertEquals(2, clone.getParameters().size());
+   }
+
+   @Test
+   public void parameterCollectionTest() {
+      PortalURL clone = url.clone();
+      try {
+         clone.getParameters().clear();
+         fail("Expected UnsupportedOperationException");
+      } catch (UnsupportedOperationException e) {
+      }
+      assertOriginalParameters(clone);
+      assertOriginalParameters(url);
+   }
+
+   @Test
+   public void stateTest() {
+      PortalURL clone = url.clone();
+      PortalURL sibling = url.clone();
+
+      clone.setPortletMode(W1, PortletMode.HELP);
+      clone.setWindowState(W2, WindowState.MINIMIZED);
+      assertEquals(PortletMode.HELP, clone.getPortletMode(W1));
+      assertEquals(WindowState.MINIMIZED, clone.getWindowState(W2));
+      assertOriginalStates(url);
+      assertOriginalStates(sibling);
+
+      // and the reverse
+      clone = url.clone();
+      url.setPortletMode(W2, PortletMode.EDIT);
+      url.setWindowState(W1, WindowState.MAXIMIZED);
+      assertOriginalStates(clone);
+      assertEquals(PortletMode.VIEW, clone.getPortletMode(W2));
+      assertEquals(WindowState.NORMAL, clone.getWindowState(W1));
+   }
+
+   @Test
+   public void publicParameterTest() {
+      PortalURL clone = url.clone();
+      PortalURL sibling = url.clone();
+      PublicRenderParameterMapper cm = clone.getPublicRenderParameterMapper();
+      assertNotSame(prpm, cm);
+      assertArrayEquals(new String[] {"red"}, cm.getValues(color));
+
+      cm.setValues(color, new String[] {"blue"});
+      assertArrayEquals(new String[] {"blue"}, cm.getValues(color));
+      assertArrayEquals(new String[] {"red"}, prpm.getValues(color));
+      assertArrayEquals(new String[] {"red"}, sibling.getPublicRenderParameterMapper().getValues(color));
+
+      // removal
+      PortalURL other = url.clone();
+      other.clearParameters(W1, PortalURLParameter.PARAM_TYPE_PUBLIC);
+      assertTrue(other.getPublicRenderParameterMapper().getRemoved(color));
+      assertFalse(prpm.getRemoved(color));
+      assertArrayEquals(new String[] {"blue"}, cm.getValues(color));
+
+      // and the reverse
+      clone = url.clone();
+      prpm.setRemoved(color, true);
+      assertArrayEquals(new String[] {"red"}, clone.getPublicRenderParameterMapper().getValues(color));
+      prpm.setValues(color, new String[] {"green"});
+      assertArrayEquals(new String[] {"red"}, clone.getPublicRenderParameterMapper().getValues(color));
+      assertArrayEquals(new String[] {"red"}, sibling.getPublicRenderParameterMapper().getValues(color));
+
+      // a clone of a clone
+      PortalURL second = clone.clone();
+      second.getPublicRenderParameterMapper().setRemoved(color, true);
+      assertFalse(clone.getPublicRenderParameterMapper().getRemoved(color));
+   }
+
+   @Test
+   public void pageStateTest() {
+      PortalURL clone = url.clone();
+      clone.setPortletIds(Arrays.asList(W2));
+      clone.setVersion(W2, "2.0");
+      assertEquals(2, url.getPortletIds().size());
+      assertNull(url.getVersion(W2));
+      assertEquals("3.0", url.getVersion(W1));
+
+      // and the reverse
+      clone = url.clone();
+      url.setVersion(W1, "2.0");
+      assertEquals("3.0", clone.getVersion(W1));
+      assertTrue(clone.isVersion3(W1));
+   }
+
+   private void assertOriginalParameters(PortalURL portalURL) {
+      assertEquals("1", value(portalURL, W1, "a"));
+      assertEquals("2", value(portalURL, W2, "b"));
+   }
+
+   private void assertOriginalStates(PortalURL portalURL) {
+      assertEquals(PortletMode.EDIT, portalURL.getPortletMode(W1));
+      assertEquals(WindowState.MAXIMIZED, portalURL.getWindowState(W2));
+      assertEquals(PortletMode.VIEW, portalURL.getPortletMode(W2));
+      assertEquals(WindowState.NORMAL, portalURL.getWindowState(W1));
+   }
+
+   private String value(PortalURL portalURL, String windowId, String name) {
+      for (PortalURLParameter p : portalURL.getParameters()) {
+         if (windowId.equals(p.getWindowId()) && PARAM_TYPE_RENDER.equals(p.getType())
+               && name.equals(p.getName())) {
+            return p.getValues()[0];
+         }
+      }
+      return null;
+   }
+}
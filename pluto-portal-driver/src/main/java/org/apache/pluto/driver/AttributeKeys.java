@@ -63,6 +63,55 @@ public class AttributeKeys {
      */
     public static final String DYNAMIC_PAGE_RESOURCES = "dynamicResources";
 
+    /**
+     * For passing the portlets processed by parallel aggregation to the
+     * portlet tag.
+     */
+    public static final String AGGREGATED_PORTLETS =
+          "org.apache.pluto.driver.AggregatedPortlets";
+
+    /**
+     * Attribute Key used to bind the render markup cache to the
+     * ServletContext.
+     */
+    public static final String RENDER_CACHE =
+          "org.apache.pluto.driver.RenderCache";
+
+    /**
+     * For passing the ETag of the cached markup to the cache control of
+     * the render response.
+     */
+    public static final String RENDER_CACHE_ETAG =
+          "org.apache.pluto.driver.RenderCacheETag";
+
+    /**
+     * For passing the cache control set by the portlet during rendering
+     * back to the portal.
+     */
+    public static final String RENDER_CACHE_CONTROL =
+          "org.apache.pluto.driver.RenderCacheControl";
+
+    /**
+     * Attribute Key used to bind the resource response cache to the
+     * ServletContext.
+     */
+    public static final String RESOURCE_CACHE =
+          "org.apache.pluto.driver.ResourceCache";
+
+    /**
+     * For passing the ETag of the cached resource to the cache control of
+     * the resource response.
+     */
+    public static final String RESOURCE_CACHE_ETAG =
+          "org.apache.pluto.driver.ResourceCacheETag";
+
+    /**
+     * For passing the cache control set by the portlet while serving a
+     * resource back to the portal.
+     */
+    public static final String RESOURCE_CACHE_CONTROL =
+          "org.apache.pluto.driver.ResourceCacheControl";
+
     // Constructor -------------------------------------------------------------
 
     /**
@@ -41,11 +41,17 @@ import org.apache.pluto.container.om.portlet.ContainerRuntimeOption;
 import org.apache.pluto.container.om.portlet.Dependency;
 import org.apache.pluto.container.om.portlet.PortletDefinition;
 import org.apache.pluto.driver.config.DriverConfiguration;
+import org.apache.pluto.driver.core.AggregatedPortlet;
 import org.apache.pluto.driver.core.PortalRequestContext;
+import org.apache.pluto.driver.core.PortletAggregator;
+import org.apache.pluto.driver.core.PortletRenderCache;
 import org.apache.pluto.driver.core.PortletWindowImpl;
+import org.apache.pluto.driver.core.ResourceResponseCache;
 import org.apache.pluto.driver.services.portal.PageConfig;
+import org.apache.pluto.driver.services.portal.PageDependencies;
 import org.apache.pluto.driver.services.portal.PageResources;
 import org.apache.pluto.driver.services.portal.PortletWindowConfig;
+import org.apache.pluto.driver.services.portal.RenderConfigService;
 import org.apache.pluto.driver.url.PortalURL;
 import org.apache.pluto.driver.url.PortalURL.URLType;
 import org.apache.pluto.driver.util.PageState;
@@ -77,6 +83,25 @@ public class PortalDriverServlet extends HttpServlet {
    /** Character encoding and content type of the response */
    private String              contentType      = "";
 
+   /**
+    * Executes the portlets on a page concurrently. Parallel aggregation is enabled
+    * by setting the "aggregation-threads" init parameter to a positive value.
+    */
+   private PortletAggregator   aggregator       = null;
+
+   /**
+    * Caches the render markup of the portlets. The cache is enabled by setting the
+    * "render-cache-size" init parameter to the maximum size in kilobytes.
+    */
+   private PortletRenderCache  renderCache      = null;
+
+   /**
+    * Caches the responses of resource requests with cacheability FULL. The cache is
+    * enabled by setting the "resource-cache-size" init parameter to the maximum size
+    * in kilobytes.
+    */
+   private ResourceResponseCache resourceCache  = null;
+
    // HttpServlet Impl --------------------------------------------------------
 
    public String getServletInfo() {
@@ -96,6 +121,66 @@ public class PortalDriverServlet extends HttpServlet {
          contentType = "text/html; charset=" + charset;
       }
 
+      int cacheSize = getIntInitParameter("render-cache-size", 0);
+      if (cacheSize > 0) {
+         renderCache = new PortletRenderCache(cacheSize * 1024L);
+         servletContext.setAttribute(AttributeKeys.RENDER_CACHE, renderCache);
+      }
+
+      cacheSize = getIntInitParameter("resource-cache-size", 0);
+      if (cacheSize > 0) {
+         int entrySize = getIntInitParameter("resource-cache-entry-size", 256);
+         resourceCache = new ResourceResponseCache(cacheSize * 1024L, entrySize * 1024);
+         servletContext.setAttribute(AttributeKeys.RESOURCE_CACHE, resourceCache);
+      }
+
+      int threads = getIntInitParameter("aggregation-threads", 0);
+      if (threads > 0) {
+         int queueSize = getIntInitParameter("aggregation-queue-size", 256);
+         int timeout = getIntInitParameter("aggregation-timeout", 10000);
+         int cancelTimeout = getIntInitParameter("aggregation-cancel-timeout", 2000);
+         aggregator = new PortletAggregator(threads, queueSize, timeout, cancelTimeout);
+         aggregator.setRenderCache(renderCache);
+      }
+   }
+
+   /**
+    * Releases the aggregation worker threads and the caches.
+    */
+   public void destroy() {
+      if (aggregator != null) {
+         aggregator.shutdown();
+         aggregator = null;
+      }
+      if (renderCache != null) {
+         if (LOG.isInfoEnabled()) {
+            LOG.info("Render cache statistics: " + renderCache.getStatistics());
+         }
+         servletContext.removeAttribute(AttributeKeys.RENDER_CACHE);
+         renderCache.clear();
+         renderCache = null;
+      }
+      if (resourceCache != null) {
+         if (LOG.isInfoEnabled()) {
+            LOG.info("Resource cache statistics: " + resourceCache.getStatistics());
+         }
+         servletContext.removeAttribute(AttributeKeys.RESOURCE_CACHE);
+         resourceCache.clear();
+         resourceCache = null;
+      }
+      super.destroy();
+   }
+
+   private int getIntInitParameter(String name, int defaultValue) {
+      String val = getServletConfig().getInitParameter(name);
+      if (val != null && val.trim().length() > 0) {
+         try {
+            return Integer.parseInt(val.trim());
+         } catch (NumberFormatException e) {
+            LOG.warn("Invalid value for init parameter " + name + ": " + val);
+         }
+      }
+      return defaultValue;
    }
 
    /**
@@ -158,9 +243,13 @@ public class PortalDriverServlet extends HttpServlet {
                response.setContentType("application/json");
                ps = new PageState(request);
                Writer writer = response.getWriter();
-               jsondata = ps.toJSONString();
-               LOG.debug("Ajax Action: returning new page state to client: " + jsondata);
-               writer.write(jsondata);
+               if (LOG.isDebugEnabled()) {
+                  jsondata = ps.toJSONString();
+                  LOG.debug("Ajax Action: returning new page state to client: " + jsondata);
+                  writer.write(jsondata);
+               } else {
+                  ps.writeJSON(writer);
+               }
                break;
             case PartialAction:
                container.doAction(portletWindow, request, response, false);
@@ -180,7 +269,11 @@ public class PortalDriverServlet extends HttpServlet {
                container.doServeResource(portletWindow, request, response, jsondata);
                break;
             case Resource:
-               container.doServeResource(portletWindow, request, response, null);
+               if (resourceCache != null && resourceCache.isCacheable(request, portalURL)) {
+                  resourceCache.serveResource(container, portletWindow, request, response, portalURL);
+               } else {
+                  container.doServeResource(portletWindow, request, response, null);
+               }
                break;
             default:
                LOG.warn("Unknown request: " + reqType);
@@ -191,6 +284,16 @@ public class PortalDriverServlet extends HttpServlet {
          } catch (PortletException ex) {
             LOG.error(ex.getMessage(), ex);
             throw new ServletException(ex);
+         } finally {
+            if (portalURL.getType() != URLType.Resource) {
+               // actions may change the state the cached output is based upon
+               if (renderCache != null) {
+                  renderCache.invalidate(targetWindow);
+               }
+               if (resourceCache != null) {
+                  resourceCache.invalidate(targetWindow);
+               }
+            }
          }
          if (LOG.isDebugEnabled()) {
             LOG.debug(reqType + " request processed.\n");
@@ -222,15 +325,22 @@ public class PortalDriverServlet extends HttpServlet {
             LOG.debug("Executing header requests for target portlets.");
          }
 
-         doHeaders(request, response, portalURL);
+         try {
+            doHeaders(request, response, portalURL);
 
-         if (LOG.isDebugEnabled()) {
-            LOG.debug("Dispatching to: " + uri);
-         }
+            if (LOG.isDebugEnabled()) {
+               LOG.debug("Dispatching to: " + uri);
+            }
 
-         // Dispatch to the JSP that aggregates the page.
-         RequestDispatcher dispatcher = request.getRequestDispatcher(uri);
-         dispatcher.forward(request, response);
+            // Dispatch to the JSP that aggregates the page.
+            RequestDispatcher dispatcher = request.getRequestDispatcher(uri);
+            dispatcher.forward(request, response);
+         } finally {
+            if (aggregator != null) {
+               // make sure no portlet processing outlives the request
+               aggregator.cancelAll(request);
+            }
+         }
 
          if (LOG.isDebugEnabled()) {
             LOG.debug("Render request processed.\n");
@@ -264,6 +374,13 @@ public class PortalDriverServlet extends HttpServlet {
       List<PageResourceId> dynamicdeps = new ArrayList<PageResourceId>();
       Map<PageResourceId, String> dynamicResources = new HashMap<PageResourceId, String>();
 
+      // With parallel aggregation, header and render processing is started for all
+      // portlets at once. The header data is then collected here in page order.
+      Map<String, AggregatedPortlet> aggregated = null;
+      if (aggregator != null) {
+         aggregated = aggregator.start(container, req, resp, purl);
+      }
+
       for (String pid : purl.getPortletIds()) {
 
          PortletWindowConfig wcfg = PortletWindowConfig.fromId(pid);
@@ -277,7 +394,23 @@ public class PortalDriverServlet extends HttpServlet {
             PortletDefinition pd = dc.getPortletRegistryService().getPortletApplication(appName)
                   .getPortlet(portletName);
 
-            if (purl.isVersion3(pid)) {
+            if (aggregated != null) {
+               hd = getAggregatedHeaderData(aggregated.get(pid));
+               if (purl.isVersion3(pid)) {
+                  for (Dependency dep : pd.getDependencies()) {
+                     portletdeps.add(new PageResourceId(dep.getName(), dep.getScope(), dep.getVersion()));
+                  }
+                  if (hd != null) {
+                     Map<PageResourceId, String> resources = hd.getDynamicResources();
+                     for (PageResourceId id : resources.keySet()) {
+                        dynamicdeps.add(id);
+                        if (resources.get(id) != null) {
+                           dynamicResources.put(id, resources.get(id));
+                        }
+                     }
+                  }
+               }
+            } else if (purl.isVersion3(pid)) {
                hd = container.doHeader(pwin, req, resp);
 
                // collect the page dependencies
@@ -339,41 +472,25 @@ public class PortalDriverServlet extends HttpServlet {
 
       // Now generate the markup for the configured page resources
       markup.setLength(0);
-      PageResources pageres = dc.getRenderConfigService().getPageResources();
-      if (!dynamicResources.isEmpty()) {
+      RenderConfigService rcs = dc.getRenderConfigService();
+      PageResources pageres = rcs.getPageResources();
 
-         // the dynamically added resources are only valid for this rendering, so
-         // avoid modifying the original configured resources.
+      // start with the resolved default and page-specific resources. The dynamically added 
+      // resources are only valid for this rendering, so they are passed along separately
+      // in order to avoid modifying the original configured resources.
+      PageDependencies pagedeps = rcs.getPageDependencies(purl.getPageConfig(req.getServletContext()));
 
-         pageres = new PageResources(pageres);
-         for (PageResourceId id : dynamicResources.keySet()) {
-            pageres.addResource(id, PageResources.Type.MARKUP, dynamicResources.get(id));
-         }
-      }
-
-      // start with the default page resources
-      List<PageResourceId> deps = new ArrayList<PageResourceId>(dc.getRenderConfigService()
-            .getDefaultPageDependencies());
-      int defDespSize = deps.size();
-
-      // add in the page-specific resources
-      List<PageResourceId> pagedeps = purl.getPageConfig(req.getServletContext()).getPageResources();
-      deps.addAll(pagedeps);
-
-      // and the portlet dependencies
-      deps.addAll(portletdeps);
-
-      // and finally the dynamic portlet dependencies
+      // add the portlet dependencies and finally the dynamic portlet dependencies
+      List<PageResourceId> deps = new ArrayList<PageResourceId>(portletdeps);
       deps.addAll(dynamicdeps);
 
       if (LOG.isDebugEnabled()) {
          StringBuilder txt = new StringBuilder(128);
          txt.append("Page dependency list.");
-         txt.append(" total deps: ").append(deps.size());
-         txt.append(", default deps: ").append(defDespSize);
-         txt.append(", page deps: ").append(pagedeps.size());
+         txt.append(" page deps: ").append(pagedeps.size());
          txt.append(", portlet deps: ").append(portletdeps.size());
          txt.append(", dynamic deps: ").append(dynamicdeps.size());
+         txt.append("\n").append(pagedeps.toString());
          for (PageResourceId id : deps) {
             txt.append("\n   ").append(id.toString());
          }
@@ -382,9 +499,35 @@ public class PortalDriverServlet extends HttpServlet {
 
       // Set the markup resulting from the specified page resources as an attribute
       // The main rendering JSP uses this when rendering the head section.
-      markup.append(pageres.getMarkup(deps, req.getContextPath()));
+      markup.append(pageres.getMarkup(pagedeps, deps, dynamicResources, req.getContextPath()));
       req.setAttribute(AttributeKeys.DYNAMIC_PAGE_RESOURCES, markup.toString());
 
       return;
    }
+
+   /**
+    * Waits for the header phase of a portlet processed through parallel aggregation.
+    * A portlet whose header phase does not complete in time contributes no header data.
+    */
+   private HeaderData getAggregatedHeaderData(AggregatedPortlet ap) throws PortletException, ServletException {
+      if (ap == null) {
+         return null;
+      }
+      try {
+         if (!ap.awaitHeader()) {
+            LOG.warn("Header phase timed out for portlet window: " + ap.getWindow().getId().getStringId());
+            return null;
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new ServletException(e);
+      }
+      Throwable t = ap.getHeaderError();
+      if (t instanceof PortletException) {
+         throw (PortletException) t;
+      } else if (t != null) {
+         throw new ServletException(t);
+      }
+      return ap.getHeaderData();
+   }
 }
@@ -0,0 +1,305 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.container;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.portlet.PortletRequest;
+import javax.portlet.PreferencesValidator;
+import javax.portlet.ValidatorException;
+
+import org.apache.pluto.container.PortletContainerException;
+import org.apache.pluto.container.PortletPreference;
+import org.apache.pluto.container.PortletPreferencesService;
+import org.apache.pluto.container.PortletWindow;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Portlet preferences service that caches the stored preferences of another
+ * service per portlet and user.
+ * <p>
+ * The cache holds up to the configured number of preference sets and evicts
+ * the least recently used set when it is full. The cached maps are shared by
+ * all requests and cannot be modified; the portlet container copies them
+ * before applying changes.
+ * <p>
+ * Storing preferences removes the entry from the cache and publishes the key
+ * on the invalidation channel, if one is configured, so that the other nodes
+ * of a cluster discard their copies and reload the preferences from the
+ * shared store. The service must be initialized with {@link #init()} to
+ * receive invalidations, and should be shut down with {@link #destroy()}.
+ *
+ * @see PreferencesInvalidationChannel
+ */
+public class CachingPortletPreferencesService
+implements PortletPreferencesService, PreferencesInvalidationChannel.Listener {
+
+    /** Logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(CachingPortletPreferencesService.class);
+
+
+    // Private Member Variables ------------------------------------------------
+
+    private final PortletPreferencesService delegate;
+
+    private int maxEntries = 1000;
+
+    private PreferencesInvalidationChannel invalidationChannel;
+
+    /** The cached preferences in access order, guarded by itself. */
+    private final Map<String,Map<String,PortletPreference>> cache =
+            new LinkedHashMap<String,Map<String,PortletPreference>>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String,Map<String,PortletPreference>> eldest) {
+            if (size() > maxEntries) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * Incremented by each invalidation. Preferences loaded while an
+     * invalidation took place are not cached, as they may be outdated.
+     */
+    private long generation;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidationsPublished = new AtomicLong();
+    private final AtomicLong invalidationsReceived = new AtomicLong();
+
+
+    // Constructor -------------------------------------------------------------
+
+    /**
+     * Creates a cache for the preferences stored by the given service.
+     * @param delegate  the service that stores the preferences.
+     */
+    public CachingPortletPreferencesService(PortletPreferencesService delegate) {
+        this.delegate = delegate;
+    }
+
+
+    // Configuration -----------------------------------------------------------
+
+    /**
+     * Sets the maximum number of cached preference sets.
+     * @param maxEntries  the maximum number of entries. Default 1000.
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Sets the channel that distributes invalidations between the nodes.
+     * @param invalidationChannel  the channel, or <code>null</code> for a
+     *        single node.
+     */
+    public void setInvalidationChannel(PreferencesInvalidationChannel invalidationChannel) {
+        this.invalidationChannel = invalidationChannel;
+    }
+
+
+    // Lifecycle ---------------------------------------------------------------
+
+    /**
+     * Starts receiving invalidations from the other nodes.
+     * @throws IOException  if the invalidation channel cannot be opened.
+     */
+    public void init() throws IOException {
+        if (invalidationChannel != null) {
+            invalidationChannel.start(this);
+        }
+    }
+
+    /**
+     * Closes the invalidation channel and clears the cache.
+     */
+    public void destroy() {
+        if (invalidationChannel != null) {
+            invalidationChannel.close();
+        }
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Preferences cache statistics: " + getStatistics());
+        }
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+
+    // PortletPreferencesService Impl ------------------------------------------
+
+    public Map<String,PortletPreference> getDefaultPreferences(PortletWindow portletWindow,
+                                                               PortletRequest request)
+    throws PortletContainerException {
+        return delegate.getDefaultPreferences(portletWindow, request);
+    }
+
+    /**
+     * Returns the cached preferences, loading them from the underlying
+     * service if necessary.
+     *
+     * @param portletWindow  the portlet window.
+     * @param request  the portlet request from which the remote user is retrieved.
+     * @return an unmodifiable map of the stored portlet preferences.
+     * @throws PortletContainerException
+     */
+    public Map<String,PortletPreference> getStoredPreferences(PortletWindow portletWindow,
+                                                              PortletRequest request)
+    throws PortletContainerException {
+        String key = DefaultPortletPreferencesService.getFormattedKey(portletWindow, request);
+        long loadGeneration;
+        synchronized (cache) {
+            Map<String,PortletPreference> preferences = cache.get(key);
+            if (preferences != null) {
+                hits.incrementAndGet();
+                return preferences;
+            }
+            loadGeneration = generation;
+        }
+        misses.incrementAndGet();
+
+        Map<String,PortletPreference> preferences = delegate.getStoredPreferences(portletWindow, request);
+        preferences = preferences == null || preferences.isEmpty()
+                ? Collections.<String,PortletPreference>emptyMap()
+                : Collections.unmodifiableMap(preferences);
+        synchronized (cache) {
+            if (generation == loadGeneration) {
+                cache.put(key, preferences);
+            }
+        }
+        return preferences;
+    }
+
+    /**
+     * Stores the preferences with the underlying service and invalidates the
+     * cached copies on all nodes.
+     *
+     * @param portletWindow  the portlet window
+     * @param request  the portlet request from which the remote user is retrieved.
+     * @param preferences  the portlet preferences to store.
+     * @throws PortletContainerException
+     */
+    public void store(PortletWindow portletWindow,
+                      PortletRequest request,
+                      Map<String,PortletPreference> preferences)
+    throws PortletContainerException {
+        String key = DefaultPortletPreferencesService.getFormattedKey(portletWindow, request);
+        try {
+            delegate.store(portletWindow, request, preferences);
+        } finally {
+            evict(key);
+        }
+        if (invalidationChannel != null) {
+            invalidationChannel.publish(key);
+            invalidationsPublished.incrementAndGet();
+        }
+    }
+
+    public PreferencesValidator getPreferencesValidator(PortletDefinition portletDD)
+    throws ValidatorException {
+        return delegate.getPreferencesValidator(portletDD);
+    }
+
+
+    // PreferencesInvalidationChannel.Listener Impl ----------------------------
+
+    public void invalidated(String key) {
+        invalidationsReceived.incrementAndGet();
+        evict(key);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Cached preferences invalidated for: " + key);
+        }
+    }
+
+
+    // Statistics --------------------------------------------------------------
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of entries that were removed because the cache was full.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getInvalidationsPublished() {
+        return invalidationsPublished.get();
+    }
+
+    public long getInvalidationsReceived() {
+        return invalidationsReceived.get();
+    }
+
+    /**
+     * Returns the fraction of lookups that were served from the cache.
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    public int getSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * Returns the statistics in a form suitable for logging.
+     */
+    public String getStatistics() {
+        StringBuilder txt = new StringBuilder(128);
+        txt.append("size=").append(getSize())
+           .append(", hits=").append(getHits())
+           .append(", misses=").append(getMisses())
+           .append(", hitRate=").append(Math.round(getHitRate() * 1000) / 10.0).append('%')
+           .append(", evictions=").append(getEvictions())
+           .append(", invalidationsPublished=").append(getInvalidationsPublished())
+           .append(", invalidationsReceived=").append(getInvalidationsReceived());
+        return txt.toString();
+    }
+
+
+    // Private Methods ---------------------------------------------------------
+
+    private void evict(String key) {
+        synchronized (cache) {
+            generation++;
+            cache.remove(key);
+        }
+    }
+}
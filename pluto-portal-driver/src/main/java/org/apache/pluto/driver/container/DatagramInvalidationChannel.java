@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.container;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Invalidation channel that sends a UDP datagram to each configured peer.
+ * <p>
+ * Every node listens on the configured port and lists the other nodes as
+ * peers, for example <code>node2:4712,node3:4712</code>. A datagram contains
+ * the id of the sending node and the preferences key. Datagrams may be lost,
+ * so a node may serve stale preferences until the entry is evicted from its
+ * cache. Messages sent by the node itself are ignored, so the peer list may
+ * be identical on all nodes.
+ */
+public class DatagramInvalidationChannel implements PreferencesInvalidationChannel {
+
+    /** Logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(DatagramInvalidationChannel.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAX_PACKET = 8192;
+
+
+    // Private Member Variables ------------------------------------------------
+
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private int port = 4712;
+    private String peers = "";
+
+    private final List<InetSocketAddress> peerAddresses = new ArrayList<InetSocketAddress>();
+
+    private DatagramSocket socket;
+
+    private Thread receiver;
+
+    private volatile boolean running = false;
+
+
+    // Configuration -----------------------------------------------------------
+
+    /**
+     * Sets the local port on which invalidations are received.
+     * @param port  the port, or 0 for any free port. Default 4712.
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Sets the nodes that are notified when preferences are stored.
+     * @param peers  comma-separated list of <code>host:port</code> addresses.
+     */
+    public void setPeers(String peers) {
+        this.peers = peers;
+    }
+
+    /**
+     * Returns the port on which the channel receives invalidations.
+     * @return the local port, or -1 if the channel has not been started.
+     */
+    public synchronized int getLocalPort() {
+        return socket == null ? -1 : socket.getLocalPort();
+    }
+
+
+    // PreferencesInvalidationChannel Impl -------------------------------------
+
+    public synchronized void start(Listener listener) throws IOException {
+        if (running) {
+            return;
+        }
+        peerAddresses.clear();
+        for (String peer : peers.split(",")) {
+            peer = peer.trim();
+            if (peer.length() == 0) {
+                continue;
+            }
+            int colon = peer.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Peer address without port: " + peer);
+            }
+            peerAddresses.add(new InetSocketAddress(peer.substring(0, colon),
+                    Integer.parseInt(peer.substring(colon + 1))));
+        }
+
+        socket = new DatagramSocket(port);
+        running = true;
+        receiver = new Thread(new Receiver(socket, listener), "pluto-preferences-invalidation");
+        receiver.setDaemon(true);
+        receiver.start();
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Receiving preference invalidations on port " + socket.getLocalPort()
+                    + ", peers: " + peerAddresses);
+        }
+    }
+
+    public void publish(String key) {
+        DatagramSocket sock;
+        synchronized (this) {
+            sock = socket;
+        }
+        if (sock == null || peerAddresses.isEmpty()) {
+            return;
+        }
+        byte[] data = (nodeId + '\n' + key).getBytes(UTF8);
+        if (data.length > MAX_PACKET) {
+            LOG.warn("Preferences key too long to publish: " + key);
+            return;
+        }
+        for (InetSocketAddress address : peerAddresses) {
+            try {
+                sock.send(new DatagramPacket(data, data.length, address));
+            } catch (IOException e) {
+                LOG.warn("Could not send preference invalidation to " + address + ": " + e);
+            }
+        }
+    }
+
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        socket.close();
+        try {
+            receiver.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        socket = null;
+        receiver = null;
+    }
+
+
+    // Receiver ----------------------------------------------------------------
+
+    private class Receiver implements Runnable {
+
+        private final DatagramSocket socket;
+        private final Listener listener;
+
+        Receiver(DatagramSocket socket, Listener listener) {
+            this.socket = socket;
+            this.listener = listener;
+        }
+
+        public void run() {
+            byte[] buf = new byte[MAX_PACKET];
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            while (running) {
+                try {
+                    packet.setLength(buf.length);
+                    socket.receive(packet);
+                } catch (IOException e) {
+                    if (running) {
+                        LOG.warn("Error receiving preference invalidation.", e);
+                    }
+                    continue;
+                }
+                String msg = new String(buf, 0, packet.getLength(), UTF8);
+                int sep = msg.indexOf('\n');
+                if (sep < 0) {
+                    LOG.warn("Ignoring malformed preference invalidation from " + packet.getSocketAddress());
+                } else if (!nodeId.equals(msg.substring(0, sep))) {
+                    try {
+                        listener.invalidated(msg.substring(sep + 1));
+                    } catch (RuntimeException e) {
+                        LOG.error("Error processing preference invalidation.", e);
+                    }
+                }
+            }
+        }
+    }
+}
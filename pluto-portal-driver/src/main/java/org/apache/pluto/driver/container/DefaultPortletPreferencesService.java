@@ -19,6 +19,9 @@ package org.apache.pluto.driver.container;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.portlet.PortletRequest;
 import javax.portlet.PreferencesValidator;
@@ -38,6 +41,8 @@ import org.apache.pluto.container.om.portlet.Preferences;
 /**
  * Default implementation of the portlet preferences service. The portlet
  * preferences service is a singleton held by the pluto portlet container.
+ * The preferences are kept in memory only and are lost when the portal is
+ * stopped.
  *
  * @see javax.portlet.PortletPreferences
  * @see org.apache.pluto.container.impl.PortletPreferencesImpl
@@ -55,16 +60,26 @@ implements PortletPreferencesService {
 	// Private Member Variables ------------------------------------------------
 
 	/**
-	 * The in-memory portlet preferences storage: key is the preference name as
-	 * a string, value is an array of PortletPreference objects.
+	 * The in-memory portlet preferences storage: key is the formatted user and
+	 * portlet name, value is the map of PortletPreference objects by name.
 	 */
-	private Map<String,Map<String,PortletPreference>> storage = new HashMap<String,Map<String,PortletPreference>>();
+	private final ConcurrentMap<String,Map<String,PortletPreference>> storage =
+	      new ConcurrentHashMap<String,Map<String,PortletPreference>>();
 
    /**
      * The preferences validator cache: key is the portlet definition, value is
      * the portlet preferences validator instance.
      */
-    private Map<PortletDefinition, PreferencesValidator> cache = new HashMap<PortletDefinition, PreferencesValidator>();
+    private final ConcurrentMap<PortletDefinition, PreferencesValidator> cache =
+          new ConcurrentHashMap<PortletDefinition, PreferencesValidator>();
+
+    /**
+     * The default preferences cache: key is the portlet definition, value is
+     * the unmodifiable map of default preferences. The entries are removed
+     * when the portlet definition is discarded.
+     */
+    private final Map<PortletDefinition, Map<String,PortletPreference>> defaults =
+          Collections.synchronizedMap(new WeakHashMap<PortletDefinition, Map<String,PortletPreference>>());
 
 
 	// Constructor -------------------------------------------------------------
@@ -97,6 +112,10 @@ implements PortletPreferencesService {
      * This method never returns null, but the values held by PortletPreference
      * may be null.
      * </p>
+     * <p>
+     * The default preferences are computed once per portlet definition. The
+     * returned map and the preferences it contains cannot be modified.
+     * </p>
      * @return the default preferences set
      * 
      * @see org.apache.pluto.container.om.portlet20.impl.PreferenceType
@@ -104,30 +123,36 @@ implements PortletPreferencesService {
     public Map<String,PortletPreference> getDefaultPreferences( PortletWindow portletWindow,
                                                               PortletRequest request )
       throws PortletContainerException {
-        Map<String,PortletPreference> preferences = null;
         PortletDefinition portlet = portletWindow.getPortletDefinition();
-        Preferences prefs = portlet.getPortletPreferences();
-        if (prefs != null && prefs.getPortletPreferences() != null) {
-            preferences = new HashMap<String,PortletPreference>(prefs.getPortletPreferences().size());
-            for (Preference pref : prefs.getPortletPreferences()) {
-                String[] values = null;
-                if (pref.getValues() != null && pref.getValues().size() > 0) {
-                    values = pref.getValues().toArray(new String[pref.getValues().size()]);
+        Map<String,PortletPreference> preferences = defaults.get(portlet);
+        if (preferences == null) {
+            Preferences prefs = portlet.getPortletPreferences();
+            if (prefs != null && prefs.getPortletPreferences() != null) {
+                preferences = new HashMap<String,PortletPreference>(prefs.getPortletPreferences().size());
+                for (Preference pref : prefs.getPortletPreferences()) {
+                    String[] values = null;
+                    if (pref.getValues() != null && pref.getValues().size() > 0) {
+                        values = pref.getValues().toArray(new String[pref.getValues().size()]);
+                    }
+                    preferences.put(pref.getName(), new SharedPreference(pref.getName(), values, pref.isReadOnly()));
                 }
-                preferences.put(pref.getName(), new PortletPreferenceImpl(pref.getName(), values, pref.isReadOnly()));
+                preferences = Collections.unmodifiableMap(preferences);
+            } else {
+                preferences = Collections.emptyMap();
             }
+            defaults.put(portlet, preferences);
         }
         return preferences;
     }
 
 	/**
-	 * Returns the stored portlet preferences map. The preferences managed by
-	 * this service should be protected from being directly accessed, so this
-	 * method returns a cloned copy of the stored preferences.
+	 * Returns the stored portlet preferences map. The stored preferences are
+	 * shared by all requests, so this method returns an unmodifiable view of
+	 * the stored map. The preferences it contains cannot be modified either.
 	 *
 	 * @param portletWindow  the portlet window.
 	 * @param request  the portlet request from which the remote user is retrieved.
-	 * @return a copy of the stored portlet preferences map.
+	 * @return an unmodifiable view of the stored portlet preferences map.
 	 * @throws PortletContainerException
 	 */
 	public Map<String,PortletPreference> getStoredPreferences(
@@ -145,7 +170,7 @@ implements PortletPreferencesService {
         	if (LOG.isDebugEnabled()) {
         		LOG.debug("Got " + preferences.size() + " stored preferences.");
         	}
-        	return clonePreferences(preferences);
+        	return Collections.unmodifiableMap(preferences);
         }
     }
 
@@ -155,8 +180,8 @@ implements PortletPreferencesService {
 	 * preference validator (if defined).
 	 * <p>
 	 * The preferences managed by this service should be protected from being
-	 * directly accessed, so this method clones the passed-in preferences map
-	 * and saves it.
+	 * directly accessed, so this method saves a copy of the passed-in
+	 * preferences map that cannot be modified.
 	 * </p>
 	 *
 	 * @see javax.portlet.PortletPreferences#store()
@@ -171,13 +196,42 @@ implements PortletPreferencesService {
                       Map<String,PortletPreference> preferences)
     throws PortletContainerException {
         String key = getFormattedKey(portletWindow, request);
-        storage.put(key, clonePreferences(preferences));
+        Map<String,PortletPreference> copy = clonePreferences(preferences);
+        storage.put(key, copy);
+        preferencesStored(key, copy);
         if (LOG.isDebugEnabled()) {
             LOG.debug("Portlet preferences stored for: " + key);
         }
     }
 
 
+    // Protected Methods -------------------------------------------------------
+
+    /**
+     * Called after the preferences have been stored in memory. Subclasses
+     * that persist the preferences override this method. The map must not be
+     * modified.
+     *
+     * @param key  the formatted preferences key.
+     * @param preferences  the stored preferences.
+     * @throws PortletContainerException  if the preferences cannot be stored.
+     */
+    protected void preferencesStored(String key, Map<String,PortletPreference> preferences)
+    throws PortletContainerException {
+        // Do nothing.
+    }
+
+    /**
+     * Returns the in-memory storage. Subclasses use it to restore persisted
+     * preferences and to take snapshots.
+     *
+     * @return the storage: key is the formatted preferences key.
+     */
+    protected ConcurrentMap<String,Map<String,PortletPreference>> getStorage() {
+        return storage;
+    }
+
+
     // Private Methods ---------------------------------------------------------
 
     /**
@@ -186,19 +240,20 @@ implements PortletPreferencesService {
      * @param portletWindow  the portlet window.
      * @param request  the remote request.
      */
-    private String getFormattedKey(PortletWindow portletWindow,
-                                   PortletRequest request) {
-    	StringBuffer buffer = new StringBuffer();
-    	buffer.append("user=").append(request.getRemoteUser()).append(";");
-    	buffer.append("portletName=").append(portletWindow.getPortletDefinition().getPortletName());
+    static String getFormattedKey(PortletWindow portletWindow,
+                                  PortletRequest request) {
+    	String user = request.getRemoteUser();
+    	String portletName = portletWindow.getPortletDefinition().getPortletName();
+    	StringBuilder buffer = new StringBuilder(24 + portletName.length() + (user == null ? 4 : user.length()));
+    	buffer.append("user=").append(user).append(";");
+    	buffer.append("portletName=").append(portletName);
     	return buffer.toString();
     }
 
     /**
      * Clones a PortletPreference map. This method performs a deep clone on
      * the passed-in portlet preferences map. Every PortletPreference object
-     * in the map are cloned (via the <code>PortletPreference.clone()</code>
-     * method) and injected into the new map.
+     * in the map is copied into a preference that cannot be modified.
      *
      * @param preferences  the portlet preferences map to clone.
      * @return a deep-cloned copy of the portlet preferences map.
@@ -211,7 +266,9 @@ implements PortletPreferencesService {
     	Map <String,PortletPreference> copy =
     			new HashMap<String,PortletPreference>(preferences.size());
     	for (PortletPreference p : preferences.values()) {
-    	    copy.put(p.getName(), p.clone());
+    	    String[] values = p.getValues();
+    	    copy.put(p.getName(), new SharedPreference(p.getName(),
+    	            (values == null) ? null : values.clone(), p.isReadOnly()));
     	}
     	return copy;
     }
@@ -238,7 +295,10 @@ implements PortletPreferencesService {
                 try {
                     Class<?> clazz = loader.loadClass(className);
                     validator = (PreferencesValidator) clazz.newInstance();
-                    cache.put(portletDD, validator);
+                    PreferencesValidator cached = cache.putIfAbsent(portletDD, validator);
+                    if (cached != null) {
+                        validator = cached;
+                    }
                 } catch (InstantiationException ex) {
                     LOG.error("Error instantiating validator.", ex);
                     throw new ValidatorException(ex, null);
@@ -257,4 +317,43 @@ implements PortletPreferencesService {
         return validator;
     }
     
+    
+    // Nested Classes ----------------------------------------------------------
+
+    /**
+     * A default or stored preference, which is shared by all requests and
+     * cannot be modified. Clones can be modified.
+     */
+    static final class SharedPreference implements PortletPreference {
+
+        private final String name;
+        private final String[] values;
+        private final boolean readOnly;
+
+        SharedPreference(String name, String[] values, boolean readOnly) {
+            this.name = name;
+            this.values = values;
+            this.readOnly = readOnly;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String[] getValues() {
+            return values;
+        }
+
+        public void setValues(String[] values) {
+            throw new UnsupportedOperationException("Shared preferences cannot be modified.");
+        }
+
+        public boolean isReadOnly() {
+            return readOnly;
+        }
+
+        public PortletPreference clone() {
+            return new PortletPreferenceImpl(name, (values == null) ? null : values.clone(), readOnly);
+        }
+    }
 }
@@ -0,0 +1,569 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.container;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.pluto.container.PortletContainerException;
+import org.apache.pluto.container.PortletPreference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Portlet preferences service that keeps the stored preferences in memory and
+ * persists them to an append-only log in a local directory.
+ * <p>
+ * Stored preferences are visible to all requests immediately. The keys of the
+ * changed preferences are passed to a background writer, which appends the
+ * current preferences for each key to the log. The writer collects all changes
+ * that arrived while the previous batch was being written, and forces the
+ * batch to disk with a single sync (group commit). The preferences stored
+ * within the last batch may be lost if the portal terminates abnormally.
+ * <p>
+ * If a batch cannot be written, the log is truncated to the end of the last
+ * synced batch, and the changes of the failed batch are written again with the
+ * next batch, or after a delay if no more changes arrive.
+ * <p>
+ * At startup the log is replayed into memory. A record that was only partly
+ * written is detected by its checksum and removed from the log. When the log
+ * contains considerably more records than there are stored preference sets,
+ * the writer replaces it with a snapshot of the stored preferences.
+ * <p>
+ * The service must be initialized with {@link #init()} before use and should
+ * be shut down with {@link #destroy()}.
+ *
+ * @see DefaultPortletPreferencesService
+ */
+public class PersistentPortletPreferencesService extends DefaultPortletPreferencesService {
+
+    /** Logger. */
+    private static final Logger LOG = LoggerFactory.getLogger(PersistentPortletPreferencesService.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String LOG_FILE = "preferences.log";
+    private static final String SNAPSHOT_FILE = "preferences.snapshot";
+
+    /** Queued by destroy() to stop the writer. */
+    private static final String STOP = new String("stop");
+
+    /** Records with a larger payload are considered to be corrupt. */
+    private static final int MAX_RECORD = 64 * 1024 * 1024;
+
+    /** Milliseconds to wait before a failed batch is written again. */
+    private static final long RETRY_DELAY = 5000;
+
+
+    // Configuration -----------------------------------------------------------
+
+    private File directory;
+    private int queueSize = 1024;
+    private int compactionThreshold = 10000;
+
+
+    // Private Member Variables ------------------------------------------------
+
+    /** The keys of the changed preferences, in the order they were stored. */
+    private BlockingQueue<String> queue;
+
+    private Thread writer;
+
+    private volatile boolean running = false;
+
+    // only accessed by the writer thread once the service is initialized
+    private FileOutputStream logStream;
+    private DataOutputStream logOut;
+    private long records;
+
+    // the log length and number of records after the last successful sync
+    private long synced;
+    private long syncedRecords;
+
+
+    // Constructor -------------------------------------------------------------
+
+    /**
+     * Default no-arg constructor.
+     */
+    public PersistentPortletPreferencesService() {
+        // Do nothing.
+    }
+
+
+    // Configuration -----------------------------------------------------------
+
+    /**
+     * Sets the directory that contains the preferences log.
+     * @param directory  the directory path. It is created if necessary.
+     */
+    public void setDirectory(String directory) {
+        this.directory = new File(directory);
+    }
+
+    /**
+     * Sets the maximum number of changes waiting to be written. Storing
+     * preferences blocks when the limit is reached.
+     * @param queueSize  the maximum number of waiting changes. Default 1024.
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Sets the number of log records above which the log is compacted once it
+     * holds more than twice as many records as there are stored preference sets.
+     * @param compactionThreshold  the minimum number of records. Default 10000.
+     */
+    public void setCompactionThreshold(int compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+
+    // Lifecycle ---------------------------------------------------------------
+
+    /**
+     * Restores the preferences from the log and starts the writer.
+     * @throws IOException  if the log cannot be read or opened for writing.
+     */
+    public synchronized void init() throws IOException {
+        if (running) {
+            return;
+        }
+        if (directory == null) {
+            throw new IllegalStateException("The preferences directory has not been set.");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create preferences directory: " + directory);
+        }
+
+        // A snapshot that was not moved into place is incomplete
+        File snapshot = new File(directory, SNAPSHOT_FILE);
+        if (snapshot.exists() && !snapshot.delete()) {
+            LOG.warn("Could not delete incomplete snapshot: " + snapshot);
+        }
+
+        long start = System.currentTimeMillis();
+        File file = new File(directory, LOG_FILE);
+        records = recover(file);
+        syncedRecords = records;
+        openLog(file);
+
+        queue = new ArrayBlockingQueue<String>(queueSize);
+        running = true;
+        writer = new Thread(new Writer(), "pluto-preferences-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        if (LOG.isInfoEnabled()) {
+            StringBuilder txt = new StringBuilder(128);
+            txt.append("Restored ").append(getStorage().size()).append(" preference sets from ")
+               .append(records).append(" log records in ")
+               .append(System.currentTimeMillis() - start).append("ms. Log: ").append(file);
+            LOG.info(txt.toString());
+        }
+    }
+
+    /**
+     * Writes the pending changes and stops the writer.
+     */
+    public synchronized void destroy() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            queue.put(STOP);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while writing the pending preferences.");
+        }
+        closeLog();
+    }
+
+
+    // DefaultPortletPreferencesService Overrides ------------------------------
+
+    @Override
+    protected void preferencesStored(String key, Map<String, PortletPreference> preferences)
+    throws PortletContainerException {
+        if (!running) {
+            throw new PortletContainerException("The preferences store is not running.");
+        }
+        try {
+            queue.put(key);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PortletContainerException("Interrupted while storing preferences for: " + key);
+        }
+    }
+
+
+    // Private Methods ---------------------------------------------------------
+
+    /**
+     * Reads the log into the storage. A partly written record at the end of the
+     * log is removed.
+     * @return the number of records in the log.
+     */
+    private long recover(File file) throws IOException {
+        synced = 0;
+        if (!file.exists()) {
+            return 0;
+        }
+
+        long count = 0;
+        long valid = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            byte[] buf = new byte[4096];
+            CRC32 crc = new CRC32();
+            while (true) {
+                int len;
+                int checksum;
+                try {
+                    len = in.readInt();
+                    checksum = in.readInt();
+                    if (len < 0 || len > MAX_RECORD) {
+                        LOG.warn("Invalid record length in preferences log at offset: " + valid);
+                        break;
+                    }
+                    if (len > buf.length) {
+                        buf = new byte[len];
+                    }
+                    in.readFully(buf, 0, len);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                crc.reset();
+                crc.update(buf, 0, len);
+                if ((int) crc.getValue() != checksum) {
+                    LOG.warn("Checksum mismatch in preferences log at offset: " + valid);
+                    break;
+                }
+
+                readRecord(new DataInputStream(new ByteArrayInputStream(buf, 0, len)));
+                valid += 8 + len;
+                count++;
+            }
+        } finally {
+            in.close();
+        }
+
+        if (valid < file.length()) {
+            LOG.warn("Discarding " + (file.length() - valid) + " bytes at the end of the preferences log.");
+            truncateLog(file, valid);
+        }
+        synced = valid;
+        return count;
+    }
+
+    /**
+     * Truncates the log to the given length, if it is longer.
+     */
+    private void truncateLog(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() > length) {
+                raf.setLength(length);
+                raf.getChannel().force(true);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void readRecord(DataInputStream in) throws IOException {
+        String key = readString(in);
+        int count = in.readInt();
+        Map<String, PortletPreference> prefs = new HashMap<String, PortletPreference>(count * 2);
+        for (int ii = 0; ii < count; ii++) {
+            String name = readString(in);
+            boolean readOnly = in.readBoolean();
+            int nvals = in.readInt();
+            String[] values = null;
+            if (nvals >= 0) {
+                values = new String[nvals];
+                for (int jj = 0; jj < nvals; jj++) {
+                    values[jj] = in.readBoolean() ? readString(in) : null;
+                }
+            }
+            prefs.put(name, new SharedPreference(name, values, readOnly));
+        }
+        getStorage().put(key, prefs);
+    }
+
+    private String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private void openLog(File file) throws IOException {
+        logStream = new FileOutputStream(file, true);
+        logOut = new DataOutputStream(new BufferedOutputStream(logStream, 64 * 1024));
+    }
+
+    private void closeLog() {
+        if (logStream != null) {
+            try {
+                logOut.flush();
+                logStream.getChannel().force(false);
+                logOut.close();
+            } catch (IOException e) {
+                LOG.error("Error closing preferences log.", e);
+            }
+            logStream = null;
+            logOut = null;
+        }
+    }
+
+    /**
+     * Closes the log after a write error, discarding the buffered data. The
+     * log is truncated to the last synced batch before it is opened again.
+     */
+    private void discardLog() {
+        if (logStream != null) {
+            try {
+                logStream.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing preferences log.", e);
+            }
+            logStream = null;
+            logOut = null;
+        }
+        records = syncedRecords;
+    }
+
+    /**
+     * Appends a record with the current preferences for the key.
+     */
+    void appendRecord(DataOutputStream out, Record rec, String key, Map<String, PortletPreference> prefs)
+    throws IOException {
+        rec.reset();
+        writeString(rec.data, key);
+        rec.data.writeInt(prefs.size());
+        for (PortletPreference pref : prefs.values()) {
+            writeString(rec.data, pref.getName());
+            rec.data.writeBoolean(pref.isReadOnly());
+            String[] values = pref.getValues();
+            if (values == null) {
+                rec.data.writeInt(-1);
+            } else {
+                rec.data.writeInt(values.length);
+                for (String value : values) {
+                    rec.data.writeBoolean(value != null);
+                    if (value != null) {
+                        writeString(rec.data, value);
+                    }
+                }
+            }
+        }
+        rec.data.flush();
+
+        rec.crc.reset();
+        rec.crc.update(rec.bytes.buffer(), 0, rec.bytes.size());
+        out.writeInt(rec.bytes.size());
+        out.writeInt((int) rec.crc.getValue());
+        out.write(rec.bytes.buffer(), 0, rec.bytes.size());
+    }
+
+    private void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Replaces the log with a snapshot of the stored preferences. The snapshot
+     * is written to a separate file that replaces the log once it is complete.
+     */
+    private void compact(Record rec) throws IOException {
+        long start = System.currentTimeMillis();
+        File file = new File(directory, LOG_FILE);
+        File snapshot = new File(directory, SNAPSHOT_FILE);
+
+        long count = 0;
+        FileOutputStream fos = new FileOutputStream(snapshot);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+            for (Map.Entry<String, Map<String, PortletPreference>> entry : getStorage().entrySet()) {
+                appendRecord(out, rec, entry.getKey(), entry.getValue());
+                count++;
+            }
+            out.flush();
+            fos.getChannel().force(true);
+        } finally {
+            fos.close();
+        }
+
+        closeLog();
+        try {
+            Files.move(snapshot.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            openLog(file);
+        }
+
+        if (LOG.isDebugEnabled()) {
+            StringBuilder txt = new StringBuilder(128);
+            txt.append("Compacted preferences log from ").append(records).append(" to ").append(count)
+               .append(" records in ").append(System.currentTimeMillis() - start).append("ms.");
+            LOG.debug(txt.toString());
+        }
+        records = count;
+    }
+
+
+    // Nested Classes ----------------------------------------------------------
+
+    /**
+     * Buffers for encoding a record, reused by the writer.
+     */
+    static class Record {
+        final Buffer bytes = new Buffer();
+        final DataOutputStream data = new DataOutputStream(bytes);
+        final CRC32 crc = new CRC32();
+
+        void reset() {
+            bytes.reset();
+        }
+    }
+
+    /**
+     * Provides access to the internal buffer to avoid copying.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(1024);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    /**
+     * Appends the changed preferences to the log. Each batch consists of the
+     * changes that arrived while the previous batch was written.
+     */
+    private class Writer implements Runnable {
+
+        public void run() {
+            Record rec = new Record();
+            List<String> batch = new ArrayList<String>();
+            Set<String> keys = new LinkedHashSet<String>();
+            boolean stop = false;
+            while (!stop) {
+                try {
+                    if (keys.isEmpty()) {
+                        batch.add(queue.take());
+                    } else {
+                        // the previous batch failed, retry after a delay at the latest
+                        String key = queue.poll(RETRY_DELAY, TimeUnit.MILLISECONDS);
+                        if (key != null) {
+                            batch.add(key);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    LOG.warn("Preferences writer interrupted. Pending preferences are not written.");
+                    return;
+                }
+                queue.drainTo(batch);
+
+                // write each key once, with the current preferences
+                for (String key : batch) {
+                    if (key == STOP) {
+                        stop = true;
+                    } else {
+                        keys.add(key);
+                    }
+                }
+                batch.clear();
+
+                try {
+                    if (logOut == null) {
+                        File file = new File(directory, LOG_FILE);
+                        truncateLog(file, synced);
+                        openLog(file);
+                    }
+                    for (String key : keys) {
+                        Map<String, PortletPreference> prefs = getStorage().get(key);
+                        if (prefs != null) {
+                            appendRecord(logOut, rec, key, prefs);
+                            records++;
+                        }
+                    }
+                    logOut.flush();
+                    logStream.getChannel().force(false);
+                    synced = logStream.getChannel().size();
+                    syncedRecords = records;
+                } catch (IOException e) {
+                    discardLog();
+                    if (stop) {
+                        LOG.error("Error writing preferences log. Preferences for " + keys.size()
+                                + " keys were not persisted.", e);
+                    } else {
+                        LOG.error("Error writing preferences log. Preferences for " + keys.size()
+                                + " keys will be written again.", e);
+                    }
+                    continue;
+                }
+
+                if (LOG.isTraceEnabled()) {
+                    LOG.trace("Committed " + keys.size() + " preference sets.");
+                }
+                keys.clear();
+
+                if (records > compactionThreshold && records > 2L * getStorage().size()) {
+                    try {
+                        compact(rec);
+                    } catch (IOException e) {
+                        LOG.error("Error compacting preferences log.", e);
+                    }
+                    synced = new File(directory, LOG_FILE).length();
+                    syncedRecords = records;
+                }
+            }
+        }
+    }
+}
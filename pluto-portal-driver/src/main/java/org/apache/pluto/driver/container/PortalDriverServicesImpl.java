@@ -195,6 +195,16 @@ public class PortalDriverServicesImpl implements RequiredContainerServices, Opti
         return this.portletPreferencesService;
     }
 
+    /**
+     * Replaces the PortletPreferencesService, for example with one that
+     * persists the preferences.
+     * @param portletPreferencesService the PortletPreferencesService to use.
+     */
+    public void setPortletPreferencesService(PortletPreferencesService portletPreferencesService)
+    {
+        this.portletPreferencesService = portletPreferencesService;
+    }
+
     /**
      * Returns null to use pluto's default
      */
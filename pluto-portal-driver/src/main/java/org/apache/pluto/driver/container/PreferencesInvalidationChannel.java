@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.container;
+
+import java.io.IOException;
+
+/**
+ * Distributes preference invalidations between the portal nodes of a cluster.
+ * When preferences are stored on one node, the cached copies on the other
+ * nodes are discarded.
+ *
+ * @see CachingPortletPreferencesService
+ */
+public interface PreferencesInvalidationChannel {
+
+    /**
+     * Receives the invalidations published by other nodes.
+     */
+    interface Listener {
+
+        /**
+         * Called when the preferences for the key were stored on another node.
+         * @param key  the formatted preferences key.
+         */
+        void invalidated(String key);
+    }
+
+    /**
+     * Starts receiving invalidations.
+     * @param listener  the listener to notify.
+     * @throws IOException  if the channel cannot be opened.
+     */
+    void start(Listener listener) throws IOException;
+
+    /**
+     * Notifies the other nodes that the preferences for the key were stored.
+     * @param key  the formatted preferences key.
+     */
+    void publish(String key);
+
+    /**
+     * Stops receiving invalidations and releases the channel.
+     */
+    void close();
+}
@@ -0,0 +1,279 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.portlet.PortletRequest;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.pluto.container.HeaderData;
+import org.apache.pluto.container.PortletContainer;
+import org.apache.pluto.container.PortletWindow;
+import org.apache.pluto.driver.url.PortalURL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Header and render processing for a single portlet window that is executed on an
+ * aggregation worker thread. The header phase result becomes available as soon as
+ * the header phase completes, so that the portal can assemble the document head
+ * section while the render phase is still running. The render output is buffered
+ * in a dedicated {@link PortalServletResponse}.
+ * <p>
+ * The portlet accesses the portal request and response through delegates that
+ * are detached by {@link #join(long)} if the processing is still running when the
+ * portal request completes, so that an abandoned portlet can never reach request
+ * and response objects that the servlet container has recycled.
+ *
+ * @see PortletAggregator
+ */
+public class AggregatedPortlet implements Runnable {
+
+   /** Logger. */
+   private static final Logger       LOG          = LoggerFactory.getLogger(AggregatedPortlet.class);
+
+   /** Processing states */
+   private static final int          NEW          = 0;
+   private static final int          RUNNING      = 1;
+   private static final int          DONE         = 2;
+   private static final int          ABANDONED    = 3;
+
+   private final PortletContainer    container;
+   private final PortletRenderCache  renderCache;
+   private final PortletWindow       window;
+   private final PortletAggregationRequest request;
+   private final PortalServletResponse headerResponse;
+   private final PortalServletResponse response;
+   private final boolean             version3;
+   private final boolean             renderHeaders;
+   private final boolean             render;
+   private final PortalURL           portalURL;
+   private final long                deadline;
+
+   private final DetachableDelegate  requestDelegate;
+   private final DetachableDelegate  responseDelegate;
+
+   private final AtomicInteger       state        = new AtomicInteger(NEW);
+
+   private final CountDownLatch      headerDone   = new CountDownLatch(1);
+   private final CountDownLatch      renderDone   = new CountDownLatch(1);
+
+   private volatile HeaderData       headerData;
+   private volatile Throwable        headerError;
+   private volatile Throwable        renderError;
+   private volatile Future<?>        future;
+
+   /**
+    * Creates the unit of work for one portlet window.
+    *
+    * @param container
+    *           the portlet container
+    * @param renderCache
+    *           the render markup cache, or <code>null</code>
+    * @param window
+    *           the portlet window to process
+    * @param request
+    *           the portal request
+    * @param response
+    *           the portal response
+    * @param version3
+    *           <code>true</code> if the header phase is to be executed
+    * @param renderHeaders
+    *           <code>true</code> if a V2.0 portlet uses the two-part render request
+    * @param render
+    *           <code>false</code> if only the header phase is to be executed
+    * @param portalURL
+    *           the requested portal URL
+    * @param timeout
+    *           timeout in milliseconds measured from the time of creation
+    */
+   public AggregatedPortlet(PortletContainer container, PortletRenderCache renderCache, PortletWindow window,
+         HttpServletRequest request, HttpServletResponse response, boolean version3, boolean renderHeaders,
+         boolean render, PortalURL portalURL, long timeout) {
+      this.container = container;
+      this.renderCache = renderCache;
+      this.window = window;
+      this.requestDelegate = new DetachableDelegate(request);
+      this.responseDelegate = new DetachableDelegate(response);
+      this.request = new PortletAggregationRequest(requestDelegate.proxy(HttpServletRequest.class));
+      HttpServletResponse detachable = responseDelegate.proxy(HttpServletResponse.class);
+      this.headerResponse = new PortalServletResponse(detachable);
+      this.response = new PortalServletResponse(detachable);
+      this.version3 = version3;
+      this.renderHeaders = renderHeaders;
+      this.render = render;
+      this.portalURL = portalURL;
+      this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+   }
+
+   void setFuture(Future<?> future) {
+      this.future = future;
+   }
+
+   @Override
+   public void run() {
+      if (!state.compareAndSet(NEW, RUNNING)) {
+         // cancelled before it was started
+         return;
+      }
+      try {
+         try {
+            if (version3) {
+               headerData = container.doHeader(window, request, headerResponse);
+            } else if (renderHeaders) {
+               headerData = container.doRender(window, request, headerResponse, PortletRequest.RENDER_HEADERS);
+            }
+         } catch (Throwable t) {
+            headerError = t;
+         } finally {
+            headerDone.countDown();
+         }
+
+         if (render && headerError == null) {
+            try {
+               String part = renderHeaders ? PortletRequest.RENDER_MARKUP : null;
+               if (renderCache != null) {
+                  renderCache.render(container, window, request, response, part, portalURL);
+               } else {
+                  container.doRender(window, request, response, part);
+               }
+            } catch (Throwable t) {
+               renderError = t;
+            }
+         }
+      } finally {
+         state.set(DONE);
+         renderDone.countDown();
+      }
+   }
+
+   /**
+    * Waits for the header phase to complete.
+    *
+    * @return <code>true</code> if the header phase completed before the timeout expired
+    * @throws InterruptedException
+    *            if the calling thread is interrupted while waiting
+    */
+   public boolean awaitHeader() throws InterruptedException {
+      return await(headerDone);
+   }
+
+   /**
+    * Waits for the render phase to complete. If the timeout expires, the processing
+    * is cancelled.
+    *
+    * @return <code>true</code> if rendering completed before the timeout expired
+    * @throws InterruptedException
+    *            if the calling thread is interrupted while waiting
+    */
+   public boolean awaitRender() throws InterruptedException {
+      boolean done = await(renderDone);
+      if (!done) {
+         cancel();
+      }
+      return done;
+   }
+
+   /**
+    * Cancels processing if it is still in progress.
+    */
+   public void cancel() {
+      Future<?> f = future;
+      if (f != null && f.cancel(true) && LOG.isDebugEnabled()) {
+         LOG.debug("Cancelled processing for portlet window: " + window.getId().getStringId());
+      }
+   }
+
+   /**
+    * Waits for processing to finish after it has been cancelled. Processing that
+    * has not started yet is prevented from starting. If the processing is still
+    * running when the timeout expires, the request and response delegates are
+    * detached, so that any further access by the portlet fails.
+    *
+    * @param timeout
+    *           maximum time to wait in milliseconds
+    * @return <code>true</code> if processing finished or never started
+    * @throws InterruptedException
+    *            if the calling thread is interrupted while waiting
+    */
+   public boolean join(long timeout) throws InterruptedException {
+      boolean finished = false;
+      try {
+         finished = state.compareAndSet(NEW, ABANDONED) || state.get() == ABANDONED
+               || renderDone.await(timeout, TimeUnit.MILLISECONDS);
+      } finally {
+         if (!finished) {
+            requestDelegate.detach();
+            responseDelegate.detach();
+         }
+      }
+      return finished;
+   }
+
+   private boolean await(CountDownLatch latch) throws InterruptedException {
+      long remaining = deadline - System.nanoTime();
+      return latch.await(Math.max(remaining, 0L), TimeUnit.NANOSECONDS);
+   }
+
+   public PortletWindow getWindow() {
+      return window;
+   }
+
+   /**
+    * @return the header data, or <code>null</code> if no header phase was executed
+    */
+   public HeaderData getHeaderData() {
+      return headerData;
+   }
+
+   public Throwable getHeaderError() {
+      return headerError;
+   }
+
+   /**
+    * @return the error that occurred during the header or render phase, or <code>null</code>
+    */
+   public Throwable getRenderError() {
+      return (headerError != null) ? headerError : renderError;
+   }
+
+   /**
+    * @return the response buffering the render output
+    */
+   public PortalServletResponse getResponse() {
+      return response;
+   }
+
+   /**
+    * @return the request used to process the portlet
+    */
+   public PortletAggregationRequest getRequest() {
+      return request;
+   }
+
+   /**
+    * @return <code>true</code> if the render phase is to be executed
+    */
+   public boolean isRender() {
+      return render;
+   }
+}
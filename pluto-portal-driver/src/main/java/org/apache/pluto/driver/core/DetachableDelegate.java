@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.core;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Forwards calls to a servlet request or response of the portal request until
+ * it is detached. Processing that is still running on a worker thread after the
+ * portal request has completed must not touch the request and response objects,
+ * since the servlet container recycles them for other requests. Once detached,
+ * every call fails with an <code>IllegalStateException</code>.
+ *
+ * @see PortletAggregator
+ */
+public class DetachableDelegate implements InvocationHandler {
+
+   private volatile Object target;
+
+   /**
+    * @param target
+    *           the object the calls are forwarded to
+    */
+   public DetachableDelegate(Object target) {
+      this.target = target;
+   }
+
+   /**
+    * Creates a proxy that forwards to the target object until this delegate is
+    * detached.
+    *
+    * @param type
+    *           the interface to be implemented by the proxy
+    * @return the proxy
+    */
+   public <T> T proxy(Class<T> type) {
+      return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, this));
+   }
+
+   /**
+    * Stops forwarding calls to the target object.
+    */
+   public void detach() {
+      target = null;
+   }
+
+   public boolean isDetached() {
+      return target == null;
+   }
+
+   @Override
+   public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      Object t = target;
+      if (t == null) {
+         if (method.getDeclaringClass() == Object.class) {
+            // keep the proxy usable in log statements and collections
+            String name = method.getName();
+            if (name.equals("equals")) {
+               return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+               return System.identityHashCode(proxy);
+            }
+            return "detached portal request object";
+         }
+         throw new IllegalStateException("The portal request has completed.");
+      }
+      try {
+         return method.invoke(t, args);
+      } catch (InvocationTargetException e) {
+         throw e.getCause();
+      }
+   }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unsynchronized writer that captures portlet output in fixed size chunks.
+ * <p>
+ * Unlike a <code>StringWriter</code>, the buffer never copies the captured
+ * characters when it grows, and {@link #writeTo(Writer)} streams the chunks
+ * directly to the page output. The chunks are taken from a pool shared by
+ * all requests and returned to it by {@link #reset()}.
+ * <p>
+ * A buffer must only be used by one thread at a time.
+ */
+public class PooledCharBuffer extends Writer {
+
+   /** The chunk size in characters. */
+   static final int                    CHUNK_SIZE = 4096;
+
+   /** The maximum number of idle chunks kept in the pool. */
+   static final int                    MAX_POOLED = 256;
+
+   private static final Queue<char[]>  pool       = new ConcurrentLinkedQueue<char[]>();
+   private static final AtomicInteger  pooled     = new AtomicInteger();
+
+   private final List<char[]>          chunks     = new ArrayList<char[]>(4);
+
+   /** The last chunk, or <code>null</code> if the buffer is empty. */
+   private char[]                      current;
+
+   /** The number of characters in the last chunk. */
+   private int                         pos;
+
+   /**
+    * Returns the number of captured characters.
+    */
+   public int length() {
+      return (current == null) ? 0 : (chunks.size() - 1) * CHUNK_SIZE + pos;
+   }
+
+   /**
+    * Writes the captured characters to the given writer.
+    *
+    * @param out
+    *           the writer, usually the JSP writer of the page
+    * @throws IOException
+    */
+   public void writeTo(Writer out) throws IOException {
+      int last = chunks.size() - 1;
+      for (int ii = 0; ii < last; ii++) {
+         out.write(chunks.get(ii), 0, CHUNK_SIZE);
+      }
+      if (current != null) {
+         out.write(current, 0, pos);
+      }
+   }
+
+   /**
+    * Discards the captured characters and returns the chunks to the pool.
+    */
+   public void reset() {
+      for (char[] chunk : chunks) {
+         recycle(chunk);
+      }
+      chunks.clear();
+      current = null;
+      pos = 0;
+   }
+
+   @Override
+   public void write(int c) {
+      if (current == null || pos == CHUNK_SIZE) {
+         nextChunk();
+      }
+      current[pos++] = (char) c;
+   }
+
+   @Override
+   public void write(char[] cbuf, int off, int len) {
+      while (len > 0) {
+         if (current == null || pos == CHUNK_SIZE) {
+            nextChunk();
+         }
+         int count = Math.min(len, CHUNK_SIZE - pos);
+         System.arraycopy(cbuf, off, current, pos, count);
+         pos += count;
+         off += count;
+         len -= count;
+      }
+   }
+
+   @Override
+   public void write(String str, int off, int len) {
+      while (len > 0) {
+         if (current == null || pos == CHUNK_SIZE) {
+            nextChunk();
+         }
+         int count = Math.min(len, CHUNK_SIZE - pos);
+         str.getChars(off, off + count, current, pos);
+         pos += count;
+         off += count;
+         len -= count;
+      }
+   }
+
+   @Override
+   public void flush() {
+   }
+
+   @Override
+   public void close() {
+   }
+
+   @Override
+   public String toString() {
+      StringBuilder txt = new StringBuilder(length());
+      int last = chunks.size() - 1;
+      for (int ii = 0; ii < last; ii++) {
+         txt.append(chunks.get(ii), 0, CHUNK_SIZE);
+      }
+      if (current != null) {
+         txt.append(current, 0, pos);
+      }
+      return txt.toString();
+   }
+
+   private void nextChunk() {
+      char[] chunk = pool.poll();
+      if (chunk != null) {
+         pooled.decrementAndGet();
+      } else {
+         chunk = new char[CHUNK_SIZE];
+      }
+      chunks.add(chunk);
+      current = chunk;
+      pos = 0;
+   }
+
+   private static void recycle(char[] chunk) {
+      if (pooled.incrementAndGet() <= MAX_POOLED) {
+         pool.offer(chunk);
+      } else {
+         pooled.decrementAndGet();
+      }
+   }
+
+   /**
+    * Returns the number of idle chunks in the pool.
+    */
+   static int getPooledChunks() {
+      return pooled.get();
+   }
+}
@@ -16,6 +16,13 @@
  */
 package org.apache.pluto.driver.core;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.portlet.PortletMode;
+import javax.portlet.WindowState;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -24,7 +31,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.pluto.driver.AttributeKeys;
 import org.apache.pluto.driver.config.DriverConfiguration;
+import org.apache.pluto.driver.services.portal.PublicRenderParameterMapper;
 import org.apache.pluto.driver.url.PortalURL;
+import org.apache.pluto.driver.url.PortalURLParameter;
 import org.apache.pluto.driver.url.PortalURLParser;
 
 /**
@@ -60,6 +69,12 @@ public class PortalRequestContext {
     /** The requested portal URL. */
     private PortalURL requestedPortalURL;
 
+    /** The portal URL state from which a forked context started, or null. */
+    private PortalURL baseURL;
+
+    /** The windows whose state was merged into a forked context. */
+    private Set<String> mergedWindows;
+
 
     // Constructor -------------------------------------------------------------
 
@@ -79,6 +94,20 @@ public class PortalRequestContext {
         request.setAttribute(REQUEST_KEY, this);
     }
 
+    /**
+     * Creates a forked context that works on a private copy of the portal URL.
+     */
+    private PortalRequestContext(PortalRequestContext parent, HttpServletRequest request) {
+        this.servletContext = parent.servletContext;
+        this.request = request;
+        this.response = parent.response;
+        this.baseURL = parent.getRequestedPortalURL().clone();
+        this.requestedPortalURL = baseURL.clone();
+        this.mergedWindows = new HashSet<String>();
+
+        request.setAttribute(REQUEST_KEY, this);
+    }
+
     /**
      * Returns the portal environment from the servlet request. The portal
      * envirionment instance is saved in the request scope.
@@ -132,6 +161,89 @@ public class PortalRequestContext {
 
     public synchronized void mergePortalURL(PortalURL portalURL, String windowId){
        requestedPortalURL = portalURL;
+       if (mergedWindows != null) {
+          mergedWindows.add(windowId);
+       }
+    }
+
+    /**
+     * Forks the request context for processing a portlet window on another thread.
+     * The forked context is bound to the given request, which must isolate its
+     * request attributes from the portal request, and works on a copy of the
+     * requested portal URL. The state changes made through the forked context are
+     * applied to this context by {@link #join(PortalRequestContext)}.
+     *
+     * @param request  the request wrapper for the portlet window
+     * @return the forked context
+     */
+    public PortalRequestContext fork(HttpServletRequest request) {
+       synchronized (this) {
+          // process the servlet request parameters before copying the URL
+          getRequestedPortalURL().getParameters();
+       }
+       return new PortalRequestContext(this, request);
+    }
+
+    /**
+     * Applies the state changes made through a forked context to this context.
+     * The private parameters, portlet modes, and window states of the windows
+     * processed in the forked context replace the corresponding values, and the
+     * public render parameters that were changed are updated.
+     *
+     * @param forked  a context created through {@link #fork(HttpServletRequest)}
+     */
+    public synchronized void join(PortalRequestContext forked) {
+       PortalURL target = getRequestedPortalURL();
+       PortalURL source;
+       Set<String> windows;
+       synchronized (forked) {
+          source = forked.requestedPortalURL;
+          windows = new HashSet<String>(forked.mergedWindows);
+       }
+       if (windows.isEmpty()) {
+          return;
+       }
+
+       for (String windowId : windows) {
+          for (PortalURLParameter p : new ArrayList<PortalURLParameter>(target.getParameters())) {
+             if (p.getWindowId().equals(windowId)) {
+                target.removeParameter(p);
+             }
+          }
+          for (PortalURLParameter p : source.getParameters()) {
+             if (p.getWindowId().equals(windowId)) {
+                target.setParameter(p.clone());
+             }
+          }
+          PortletMode mode = source.getPortletModes().get(windowId);
+          if (mode != null) {
+             target.setPortletMode(windowId, mode);
+          }
+          WindowState state = source.getWindowStates().get(windowId);
+          if (state != null) {
+             target.setWindowState(windowId, state);
+          }
+       }
+
+       PublicRenderParameterMapper base = forked.baseURL.getPublicRenderParameterMapper();
+       PublicRenderParameterMapper changed = source.getPublicRenderParameterMapper();
+       PublicRenderParameterMapper prpm = target.getPublicRenderParameterMapper();
+       if (base != null && changed != null && prpm != null) {
+          for (int ii = 0; ii < changed.getNumberOfGroups(); ii++) {
+             boolean removed = changed.getRemoved(ii);
+             String[] values = changed.getValues(ii);
+             if (removed != base.getRemoved(ii) || !Arrays.equals(values, base.getValues(ii))) {
+                if (!removed) {
+                   prpm.setValues(ii, values);
+                }
+                prpm.setRemoved(ii, removed);
+             }
+          }
+       }
+
+       if (LOG.isDebugEnabled()) {
+          LOG.debug("Joined portal URL state for windows: " + windows);
+       }
     }
 
 	public ServletContext getServletContext() {
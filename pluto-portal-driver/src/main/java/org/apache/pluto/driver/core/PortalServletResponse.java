@@ -18,19 +18,18 @@ package org.apache.pluto.driver.core;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.StringWriter;
 
 import javax.servlet.http.HttpServletResponse;
 
 public class PortalServletResponse
     extends javax.servlet.http.HttpServletResponseWrapper {
 
-    private StringWriter buffer = null;
-    private PrintWriter writer = null;
+    private final PooledCharBuffer buffer;
+    private final PrintWriter writer;
 
     public PortalServletResponse(HttpServletResponse response) {
         super(response);
-        buffer = new StringWriter();
+        buffer = new PooledCharBuffer();
         writer = new PrintWriter(buffer);
     }
 
@@ -38,10 +37,18 @@ public class PortalServletResponse
         return writer;
     }
 
-    public StringWriter getInternalBuffer() {
+    public PooledCharBuffer getInternalBuffer() {
         return buffer;
     }
 
+    /**
+     * Returns the buffer memory to the pool once the captured output has been
+     * written to the page. The captured output is discarded.
+     */
+    public void release() {
+        buffer.reset();
+    }
+
     public PrintWriter getInternalResponseWriter()
         throws IOException {
         return super.getWriter();
@@ -73,7 +80,7 @@ public class PortalServletResponse
     @Override
     public void resetBuffer()
     {
-        buffer.getBuffer().setLength(0);
+        buffer.reset();
     }
 
     @Override
@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.core;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * Request wrapper used when a portlet is rendered on an aggregation worker thread.
+ * Attributes set or removed while the portlet is processed are kept in a private
+ * overlay so that portlets rendered concurrently on the same page cannot see or
+ * overwrite each other's request attributes. Reads fall through to the wrapped
+ * portal request for attributes that have not been touched.
+ *
+ * @see PortletAggregator
+ */
+public class PortletAggregationRequest extends HttpServletRequestWrapper {
+
+   /** Sentinel marking an attribute that was removed in the overlay. */
+   private static final Object REMOVED = new Object();
+
+   private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+   public PortletAggregationRequest(HttpServletRequest request) {
+      super(request);
+   }
+
+   @Override
+   public synchronized Object getAttribute(String name) {
+      Object value = attributes.get(name);
+      if (value == null) {
+         return super.getAttribute(name);
+      }
+      return (value == REMOVED) ? null : value;
+   }
+
+   @Override
+   public synchronized Enumeration<String> getAttributeNames() {
+      Set<String> names = new HashSet<String>();
+      Enumeration<String> parent = super.getAttributeNames();
+      while (parent.hasMoreElements()) {
+         names.add(parent.nextElement());
+      }
+      for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+         if (entry.getValue() == REMOVED) {
+            names.remove(entry.getKey());
+         } else {
+            names.add(entry.getKey());
+         }
+      }
+      return Collections.enumeration(names);
+   }
+
+   @Override
+   public synchronized void setAttribute(String name, Object value) {
+      if (value == null) {
+         removeAttribute(name);
+      } else {
+         attributes.put(name, value);
+      }
+   }
+
+   @Override
+   public synchronized void removeAttribute(String name) {
+      attributes.put(name, REMOVED);
+   }
+
+   /**
+    * Returns an attribute value that was set by the portlet while it was processed,
+    * ignoring the attributes of the wrapped portal request.
+    *
+    * @param name
+    *           the attribute name
+    * @return the locally set value, or <code>null</code> if the attribute was not set
+    */
+   public synchronized Object getLocalAttribute(String name) {
+      Object value = attributes.get(name);
+      return (value == REMOVED) ? null : value;
+   }
+}
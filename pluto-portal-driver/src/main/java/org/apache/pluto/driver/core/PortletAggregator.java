@@ -0,0 +1,246 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.core;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.portlet.WindowState;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.pluto.container.PortletContainer;
+import org.apache.pluto.container.om.portlet.ContainerRuntimeOption;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.apache.pluto.driver.AttributeKeys;
+import org.apache.pluto.driver.services.portal.PortletWindowConfig;
+import org.apache.pluto.driver.url.PortalURL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes the header and render phases for all portlets on a page concurrently
+ * on a bounded thread pool. The portal driver servlet starts processing for all
+ * portlets before the header section is assembled, and the portlet tag then picks
+ * up the buffered render output in page order. The page latency thus becomes the
+ * latency of the slowest portlet rather than the sum of all portlet latencies.
+ * <p>
+ * When the work queue is full, the portlet is processed on the request thread.
+ * Portlets that do not complete within the configured timeout are cancelled and
+ * replaced by fallback markup. Before the portal request completes, the aggregator
+ * waits for cancelled portlets to finish for at most the configured cancel timeout.
+ * Portlets still running after that are cut off from the portal request and
+ * response, since the servlet container recycles these objects once the request
+ * has completed.
+ *
+ * @see AggregatedPortlet
+ * @see org.apache.pluto.driver.tags.PortletTag
+ */
+public class PortletAggregator {
+
+   /** Logger. */
+   private static final Logger      LOG = LoggerFactory.getLogger(PortletAggregator.class);
+
+   private final ThreadPoolExecutor executor;
+   private final long               timeout;
+   private final long               cancelTimeout;
+   private PortletRenderCache       renderCache;
+
+   /**
+    * Creates the aggregator.
+    *
+    * @param threads
+    *           maximum number of worker threads
+    * @param queueSize
+    *           maximum number of portlets waiting for a worker thread
+    * @param timeout
+    *           per-portlet timeout in milliseconds
+    * @param cancelTimeout
+    *           maximum time in milliseconds to wait for cancelled portlets to finish
+    *           before the request completes
+    */
+   public PortletAggregator(int threads, int queueSize, long timeout, long cancelTimeout) {
+      this.timeout = timeout;
+      this.cancelTimeout = cancelTimeout;
+      final ClassLoader cl = Thread.currentThread().getContextClassLoader();
+      ThreadFactory factory = new ThreadFactory() {
+         private final AtomicInteger count = new AtomicInteger();
+
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "pluto-aggregation-" + count.incrementAndGet());
+            t.setDaemon(true);
+            t.setContextClassLoader(cl);
+            return t;
+         }
+      };
+      executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize), factory, new ThreadPoolExecutor.CallerRunsPolicy());
+      executor.allowCoreThreadTimeOut(true);
+
+      if (LOG.isDebugEnabled()) {
+         LOG.debug("Parallel aggregation enabled. threads: " + threads + ", queue size: " + queueSize
+               + ", timeout: " + timeout + "ms, cancel timeout: " + cancelTimeout + "ms");
+      }
+   }
+
+   /**
+    * Sets the cache used to render the portlet markup.
+    *
+    * @param renderCache
+    *           the render markup cache, or <code>null</code> to always invoke the portlets
+    */
+   public void setRenderCache(PortletRenderCache renderCache) {
+      this.renderCache = renderCache;
+   }
+
+   /**
+    * Starts header and render processing for all portlets on the page. The result
+    * map is in page order and is bound to the request so that the portlet tag can
+    * retrieve the render output.
+    *
+    * @param container
+    *           the portlet container
+    * @param request
+    *           the portal request
+    * @param response
+    *           the portal response
+    * @param portalURL
+    *           the requested portal URL
+    * @return map of portlet ID to the corresponding processing unit
+    */
+   public Map<String, AggregatedPortlet> start(PortletContainer container, HttpServletRequest request,
+         HttpServletResponse response, PortalURL portalURL) {
+
+      // The query and POST parameters are merged into the portal URL when the
+      // parameters are first read. Merge them before the workers share the URL.
+      portalURL.getParameters();
+
+      // If a portlet is maximized, only its header phase is executed for the others
+      String maximized = null;
+      for (Map.Entry<String, WindowState> entry : portalURL.getWindowStates().entrySet()) {
+         if (WindowState.MAXIMIZED.equals(entry.getValue())) {
+            maximized = entry.getKey();
+         }
+      }
+
+      Map<String, AggregatedPortlet> portlets = new LinkedHashMap<String, AggregatedPortlet>();
+      for (String pid : portalURL.getPortletIds()) {
+         PortletWindowConfig wcfg = PortletWindowConfig.fromId(pid);
+         PortletWindowImpl pwin;
+         try {
+            pwin = new PortletWindowImpl(container, wcfg, portalURL);
+         } catch (RuntimeException e) {
+            if (LOG.isDebugEnabled()) {
+               LOG.debug("The portlet " + wcfg.getPortletName() + " is not available. Is already deployed?");
+            }
+            continue;
+         }
+
+         boolean version3 = portalURL.isVersion3(pid);
+         boolean renderHeaders = !version3 && portalURL.getVersion(pid).equalsIgnoreCase("2.0")
+               && isRenderHeaders(pwin.getPortletDefinition());
+         boolean render = (maximized == null || maximized.equals(pid));
+
+         AggregatedPortlet ap = new AggregatedPortlet(container, renderCache, pwin, request, response, version3,
+               renderHeaders, render, portalURL, timeout);
+         portlets.put(pid, ap);
+      }
+
+      submit(request, portlets);
+      return portlets;
+   }
+
+   /**
+    * Binds the portlets to the request and submits them for processing.
+    *
+    * @param request
+    *           the portal request
+    * @param portlets
+    *           map of portlet ID to processing unit in page order
+    */
+   void submit(HttpServletRequest request, Map<String, AggregatedPortlet> portlets) {
+      request.setAttribute(AttributeKeys.AGGREGATED_PORTLETS, portlets);
+      for (AggregatedPortlet ap : portlets.values()) {
+         Future<?> f = executor.submit(ap);
+         ap.setFuture(f);
+      }
+   }
+
+   /**
+    * Cancels all processing still in progress for the request and waits for it to
+    * finish. Must be called before the portal request completes.
+    *
+    * @param request
+    *           the portal request
+    */
+   public void cancelAll(HttpServletRequest request) {
+      @SuppressWarnings("unchecked")
+      Map<String, AggregatedPortlet> portlets = (Map<String, AggregatedPortlet>) request
+            .getAttribute(AttributeKeys.AGGREGATED_PORTLETS);
+      if (portlets == null) {
+         return;
+      }
+      for (AggregatedPortlet ap : portlets.values()) {
+         ap.cancel();
+      }
+
+      boolean interrupted = false;
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(cancelTimeout);
+      for (AggregatedPortlet ap : portlets.values()) {
+         long remaining = interrupted ? 0L : TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+         boolean finished;
+         try {
+            finished = ap.join(Math.max(remaining, 0L));
+         } catch (InterruptedException e) {
+            // detach the remaining portlets without waiting
+            interrupted = true;
+            finished = false;
+         }
+         if (!finished) {
+            LOG.warn("Portlet processing did not finish before the request completed. "
+                  + "Detached portlet window: " + ap.getWindow().getId().getStringId());
+         }
+      }
+      if (interrupted) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * Releases the worker threads.
+    */
+   public void shutdown() {
+      executor.shutdownNow();
+   }
+
+   private boolean isRenderHeaders(PortletDefinition pd) {
+      ContainerRuntimeOption crt = pd.getContainerRuntimeOption("javax.portlet.renderHeaders");
+      if (crt != null) {
+         List<String> headers = crt.getValues();
+         return headers.size() == 1 && headers.get(0).equalsIgnoreCase("true");
+      }
+      return false;
+   }
+}
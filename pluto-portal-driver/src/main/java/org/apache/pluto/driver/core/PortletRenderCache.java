@@ -0,0 +1,437 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.core;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.portlet.CacheControl;
+import javax.portlet.PortletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.apache.pluto.container.PortletContainer;
+import org.apache.pluto.container.PortletContainerException;
+import org.apache.pluto.container.PortletWindow;
+import org.apache.pluto.driver.AttributeKeys;
+import org.apache.pluto.driver.services.portal.PublicRenderParameterMapper;
+import org.apache.pluto.driver.url.PortalURL;
+import org.apache.pluto.driver.url.PortalURLParameter;
+import org.apache.pluto.driver.url.PortalURLPublicParameter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the render markup of portlet windows according to the cache control
+ * set by the portlet.
+ * <p>
+ * The markup is cached per portlet window, portlet mode, window state, render
+ * parameters and locale. Markup in private scope is additionally cached per
+ * user, or per session for unauthenticated users. A cached fragment is
+ * written without invoking the portlet until the expiration time has passed.
+ * When an expired fragment carries an ETag, the ETag is made available to the
+ * portlet through the cache control of the render response, and the cached
+ * markup is reused if the portlet sets <code>useCachedContent</code>.
+ * <p>
+ * The markup is held in UTF-8 encoded form. The least recently used fragments
+ * are evicted when the total size exceeds the configured maximum. Processing
+ * an action or an event for a window discards all fragments of the window.
+ * <p>
+ * The cache is bound to the servlet context by the portal driver servlet when
+ * the "render-cache-size" init parameter is set.
+ *
+ * @see AttributeKeys#RENDER_CACHE
+ */
+public class PortletRenderCache {
+
+   /** Logger. */
+   private static final Logger  LOG     = LoggerFactory.getLogger(PortletRenderCache.class);
+
+   private static final Charset UTF8    = Charset.forName("UTF-8");
+
+   /** Approximate per-entry overhead in bytes, added to the markup size. */
+   private static final int     OVERHEAD = 128;
+
+   private final long           maxSize;
+
+   /** The cached fragments in access order, guarded by itself. */
+   private final LinkedHashMap<String, Fragment> fragments = new LinkedHashMap<String, Fragment>(64, 0.75f, true);
+
+   /** Total size of the cached fragments, guarded by <code>fragments</code>. */
+   private long                 size;
+
+   /**
+    * Incremented by each invalidation. Markup rendered while an invalidation
+    * took place is not cached, as it may be outdated.
+    */
+   private long                 generation;
+
+   private final AtomicLong     hits        = new AtomicLong();
+   private final AtomicLong     misses      = new AtomicLong();
+   private final AtomicLong     validations = new AtomicLong();
+   private final AtomicLong     evictions   = new AtomicLong();
+
+   /**
+    * Creates the cache.
+    *
+    * @param maxSize
+    *           maximum total size of the cached markup in bytes
+    */
+   public PortletRenderCache(long maxSize) {
+      this.maxSize = maxSize;
+   }
+
+   /**
+    * Renders the markup of the portlet window into the response, using the
+    * cached markup if it is still valid.
+    *
+    * @param container
+    *           the portlet container
+    * @param window
+    *           the portlet window to render
+    * @param request
+    *           the portal request
+    * @param response
+    *           the response buffering the markup. Must not contain other output.
+    * @param renderHeaders
+    *           the render part for V2.0 portlets using the two-part render request
+    * @param portalURL
+    *           the requested portal URL
+    */
+   public void render(PortletContainer container, PortletWindow window, HttpServletRequest request,
+         PortalServletResponse response, String renderHeaders, PortalURL portalURL) throws PortletException,
+         IOException, PortletContainerException {
+
+      String windowId = window.getId().getStringId();
+      String publicKey = getKey(window, request, portalURL);
+      String user = getUserKey(request);
+      String privateKey = (user == null) ? null : publicKey + user;
+
+      Fragment cached;
+      long renderGeneration;
+      synchronized (fragments) {
+         cached = (privateKey == null) ? null : fragments.get(privateKey);
+         if (cached == null) {
+            cached = fragments.get(publicKey);
+         }
+         renderGeneration = generation;
+      }
+
+      long now = System.currentTimeMillis();
+      if (cached != null && now < cached.expires) {
+         hits.incrementAndGet();
+         cached.write(request, response);
+         return;
+      }
+      misses.incrementAndGet();
+
+      // Render with the cached ETag, so that the portlet can validate the markup
+      Object title = request.getAttribute(AttributeKeys.PORTLET_TITLE);
+      request.removeAttribute(AttributeKeys.PORTLET_TITLE);
+      if (cached != null && cached.eTag != null) {
+         request.setAttribute(AttributeKeys.RENDER_CACHE_ETAG, cached.eTag);
+      }
+      CacheControl cacheControl;
+      try {
+         container.doRender(window, request, response, renderHeaders);
+         cacheControl = (CacheControl) request.getAttribute(AttributeKeys.RENDER_CACHE_CONTROL);
+      } finally {
+         request.removeAttribute(AttributeKeys.RENDER_CACHE_ETAG);
+         request.removeAttribute(AttributeKeys.RENDER_CACHE_CONTROL);
+      }
+
+      Fragment fragment = null;
+      if (cacheControl != null) {
+         if (cacheControl.useCachedContent() && cached != null) {
+            validations.incrementAndGet();
+            response.resetBuffer();
+            cached.write(request, response);
+            fragment = new Fragment(cached, cacheControl, now);
+         } else {
+            fragment = new Fragment(windowId, response, (String) request.getAttribute(AttributeKeys.PORTLET_TITLE),
+                  cacheControl, now);
+         }
+      }
+      if (request.getAttribute(AttributeKeys.PORTLET_TITLE) == null && title != null) {
+         request.setAttribute(AttributeKeys.PORTLET_TITLE, title);
+      }
+
+      String key = (fragment == null) ? null : (fragment.publicScope ? publicKey : privateKey);
+      synchronized (fragments) {
+         if (renderGeneration != generation) {
+            return;
+         }
+         if (cached != null) {
+            remove(cached.key);
+         }
+         if (key != null && fragment.isCacheable() && fragment.size <= maxSize) {
+            fragment.key = key;
+            remove(key);
+            fragments.put(key, fragment);
+            size += fragment.size;
+            evict();
+         }
+      }
+   }
+
+   /**
+    * Discards all cached markup of the portlet window.
+    *
+    * @param windowId
+    *           the portlet window ID
+    */
+   public void invalidate(String windowId) {
+      synchronized (fragments) {
+         generation++;
+         for (Iterator<Fragment> i = fragments.values().iterator(); i.hasNext();) {
+            Fragment fragment = i.next();
+            if (fragment.windowId.equals(windowId)) {
+               size -= fragment.size;
+               i.remove();
+            }
+         }
+      }
+      if (LOG.isDebugEnabled()) {
+         LOG.debug("Cached markup invalidated for portlet window: " + windowId);
+      }
+   }
+
+   /**
+    * Discards all cached markup.
+    */
+   public void clear() {
+      synchronized (fragments) {
+         generation++;
+         fragments.clear();
+         size = 0;
+      }
+   }
+
+   // Statistics --------------------------------------------------------------
+
+   public long getHits() {
+      return hits.get();
+   }
+
+   public long getMisses() {
+      return misses.get();
+   }
+
+   /**
+    * Returns the number of expired fragments that the portlet has validated.
+    */
+   public long getValidations() {
+      return validations.get();
+   }
+
+   /**
+    * Returns the number of fragments that were removed because the cache was full.
+    */
+   public long getEvictions() {
+      return evictions.get();
+   }
+
+   /**
+    * Returns the fraction of renders that were served from the cache without
+    * invoking the portlet.
+    */
+   public double getHitRate() {
+      long h = hits.get();
+      long total = h + misses.get();
+      return total == 0 ? 0.0 : (double) h / total;
+   }
+
+   /**
+    * Returns the total size of the cached fragments in bytes.
+    */
+   public long getSize() {
+      synchronized (fragments) {
+         return size;
+      }
+   }
+
+   public int getFragmentCount() {
+      synchronized (fragments) {
+         return fragments.size();
+      }
+   }
+
+   /**
+    * Returns the statistics in a form suitable for logging.
+    */
+   public String getStatistics() {
+      StringBuilder txt = new StringBuilder(128);
+      txt.append("fragments=").append(getFragmentCount())
+         .append(", size=").append(getSize())
+         .append(", hits=").append(getHits())
+         .append(", misses=").append(getMisses())
+         .append(", hitRate=").append(Math.round(getHitRate() * 1000) / 10.0).append('%')
+         .append(", validations=").append(getValidations())
+         .append(", evictions=").append(getEvictions());
+      return txt.toString();
+   }
+
+   // Private Methods ---------------------------------------------------------
+
+   private void remove(String key) {
+      Fragment old = fragments.remove(key);
+      if (old != null) {
+         size -= old.size;
+      }
+   }
+
+   private void evict() {
+      for (Iterator<Fragment> i = fragments.values().iterator(); size > maxSize && i.hasNext();) {
+         size -= i.next().size;
+         i.remove();
+         evictions.incrementAndGet();
+      }
+   }
+
+   /**
+    * Builds the key for the markup in public scope. Parameters are sorted by
+    * name, and names and values are prefixed by their length so that
+    * different parameter sets cannot produce the same key.
+    */
+   private static String getKey(PortletWindow window, HttpServletRequest request, PortalURL portalURL) {
+      String windowId = window.getId().getStringId();
+
+      Map<String, String[]> params = new TreeMap<String, String[]>();
+      for (PortalURLParameter param : portalURL.getParameters(windowId, PortalURLParameter.PARAM_TYPE_RENDER)
+            .values()) {
+         params.put(param.getName(), param.getValues());
+      }
+      StringBuilder key = new StringBuilder(128);
+      append(key, windowId);
+      append(key, String.valueOf(window.getPortletMode()));
+      append(key, String.valueOf(window.getWindowState()));
+      append(key, String.valueOf(request.getLocale()));
+      appendParameters(key, params);
+
+      PublicRenderParameterMapper mapper = portalURL.getPublicRenderParameterMapper();
+      if (mapper != null) {
+         params.clear();
+         for (PortalURLPublicParameter prp : mapper.getPRPsForWindow(windowId, true)) {
+            params.put(prp.getName(), prp.getValues());
+         }
+         appendParameters(key, params);
+      }
+      return key.toString();
+   }
+
+   private static void appendParameters(StringBuilder key, Map<String, String[]> params) {
+      key.append(params.size()).append(';');
+      for (Map.Entry<String, String[]> param : params.entrySet()) {
+         append(key, param.getKey());
+         String[] values = param.getValue();
+         key.append((values == null) ? 0 : values.length).append(';');
+         if (values != null) {
+            for (String value : values) {
+               append(key, value);
+            }
+         }
+      }
+   }
+
+   private static void append(StringBuilder key, String value) {
+      if (value == null) {
+         key.append("-;");
+      } else {
+         key.append(value.length()).append(':').append(value);
+      }
+   }
+
+   /**
+    * Returns the key suffix identifying the user for markup in private scope,
+    * or <code>null</code> if an unauthenticated user has no session.
+    */
+   static String getUserKey(HttpServletRequest request) {
+      String user = request.getRemoteUser();
+      if (user != null) {
+         return "u:" + user;
+      }
+      HttpSession session = request.getSession(false);
+      return (session == null) ? null : "s:" + session.getId();
+   }
+
+   /**
+    * The cached markup of a portlet window.
+    */
+   private static class Fragment {
+
+      private final String windowId;
+      private final byte[] markup;
+      private final String title;
+      private final String eTag;
+      private final boolean publicScope;
+      private final long   expires;
+      private final int    size;
+      private String       key;
+
+      Fragment(String windowId, PortalServletResponse response, String title, CacheControl cacheControl,
+            long now) {
+         this.windowId = windowId;
+         this.markup = response.getInternalBuffer().toString().getBytes(UTF8);
+         this.title = title;
+         this.eTag = cacheControl.getETag();
+         this.publicScope = cacheControl.isPublicScope();
+         this.expires = getExpires(cacheControl, now);
+         this.size = markup.length + OVERHEAD;
+      }
+
+      /**
+       * Creates a fragment that reuses the validated markup with the new
+       * cache control settings.
+       */
+      Fragment(Fragment cached, CacheControl cacheControl, long now) {
+         this.windowId = cached.windowId;
+         this.markup = cached.markup;
+         this.title = cached.title;
+         this.eTag = (cacheControl.getETag() != null) ? cacheControl.getETag() : cached.eTag;
+         this.publicScope = cacheControl.isPublicScope();
+         this.expires = getExpires(cacheControl, now);
+         this.size = cached.size;
+      }
+
+      private static long getExpires(CacheControl cacheControl, long now) {
+         int expirationTime = cacheControl.getExpirationTime();
+         if (expirationTime < 0) {
+            return Long.MAX_VALUE;
+         }
+         return now + expirationTime * 1000L;
+      }
+
+      /**
+       * Markup that expires immediately is kept only if it can be validated.
+       */
+      boolean isCacheable() {
+         return eTag != null || expires > System.currentTimeMillis();
+      }
+
+      void write(HttpServletRequest request, PortalServletResponse response) {
+         response.getWriter().write(new String(markup, UTF8));
+         if (title != null) {
+            request.setAttribute(AttributeKeys.PORTLET_TITLE, title);
+         }
+      }
+   }
+}
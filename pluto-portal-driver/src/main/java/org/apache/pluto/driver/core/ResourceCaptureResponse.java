@@ -0,0 +1,366 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response wrapper that holds back the body of a resource response so that it
+ * can be stored by the {@link ResourceResponseCache}. Headers are passed on
+ * to the wrapped response and recorded for replay.
+ * <p>
+ * When the body exceeds the maximum size, or the response is committed by
+ * the portlet, the buffered body is written to the wrapped response and the
+ * wrapper passes all further output through. Such a response is not cached.
+ */
+class ResourceCaptureResponse extends HttpServletResponseWrapper {
+
+   /** Headers set by the cache from the portlet cache control. */
+   private static final Set<String> CACHE_HEADERS = new HashSet<String>(Arrays.asList(new String[] {
+         "CACHE-CONTROL", "ETAG", "EXPIRES", "LAST-MODIFIED", "PRAGMA", "CONTENT-LENGTH" }));
+
+   /**
+    * A response header set by the portlet. The value is a String, or a Long
+    * for date headers.
+    */
+   static class Header {
+      final String  name;
+      final Object  value;
+      final boolean add;
+
+      Header(String name, Object value, boolean add) {
+         this.name = name;
+         this.value = value;
+         this.add = add;
+      }
+   }
+
+   private final int                  maxSize;
+
+   /** The buffered body, or <code>null</code> after the body was released. */
+   private ByteArrayOutputStream      body      = new ByteArrayOutputStream(1024);
+
+   private final List<Header>         headers   = new ArrayList<Header>();
+   private int                        status    = SC_OK;
+   private long                       contentLength = -1;
+   private boolean                    cookies;
+
+   private ServletOutputStream        stream;
+   private PrintWriter                writer;
+
+   // Set while the writer is flushed internally, which does not commit the response
+   private boolean                    capturing;
+
+   /**
+    * @param response
+    *           the portal response
+    * @param maxSize
+    *           the maximum size of the body to hold back in bytes
+    */
+   ResourceCaptureResponse(HttpServletResponse response, int maxSize) {
+      super(response);
+      this.maxSize = maxSize;
+   }
+
+   /**
+    * Returns <code>true</code> if the complete response was captured and can
+    * be stored.
+    */
+   boolean isCaptured() {
+      flushWriter();
+      return body != null && status == SC_OK && !cookies;
+   }
+
+   byte[] getBody() {
+      return body.toByteArray();
+   }
+
+   List<Header> getHeaders() {
+      return headers;
+   }
+
+   /**
+    * Writes the buffered body to the wrapped response and passes all further
+    * output through.
+    */
+   void release() throws IOException {
+      releaseBody();
+      if (writer != null) {
+         writer.flush();
+      }
+   }
+
+   /**
+    * Writes the characters buffered by the writer to the captured body without
+    * committing the response.
+    */
+   private void flushWriter() {
+      if (writer != null) {
+         capturing = true;
+         try {
+            writer.flush();
+         } finally {
+            capturing = false;
+         }
+      }
+   }
+
+   private void releaseBody() throws IOException {
+      if (body != null) {
+         ByteArrayOutputStream buffered = body;
+         body = null;
+         if (contentLength >= 0) {
+            super.setContentLengthLong(contentLength);
+         }
+         if (buffered.size() > 0) {
+            buffered.writeTo(super.getOutputStream());
+         }
+      }
+   }
+
+   // Body --------------------------------------------------------------------
+
+   @Override
+   public ServletOutputStream getOutputStream() throws IOException {
+      if (writer != null) {
+         throw new IllegalStateException("getWriter() has already been called.");
+      }
+      if (stream == null) {
+         stream = new CaptureStream();
+      }
+      return stream;
+   }
+
+   @Override
+   public PrintWriter getWriter() throws IOException {
+      if (stream != null) {
+         throw new IllegalStateException("getOutputStream() has already been called.");
+      }
+      if (writer == null) {
+         writer = new PrintWriter(new OutputStreamWriter(new CaptureStream(), getCharacterEncoding()));
+      }
+      return writer;
+   }
+
+   @Override
+   public void flushBuffer() throws IOException {
+      // the portlet commits the response, so the output is passed through from now on
+      flushWriter();
+      releaseBody();
+      super.flushBuffer();
+   }
+
+   @Override
+   public void resetBuffer() {
+      if (body != null) {
+         flushWriter();
+         body.reset();
+      } else {
+         super.resetBuffer();
+      }
+   }
+
+   @Override
+   public void reset() {
+      super.reset();
+      resetBuffer();
+      headers.clear();
+      status = SC_OK;
+      contentLength = -1;
+      cookies = false;
+   }
+
+   @Override
+   public boolean isCommitted() {
+      return (body == null) ? super.isCommitted() : false;
+   }
+
+   @Override
+   public int getBufferSize() {
+      return (body == null) ? super.getBufferSize() : maxSize;
+   }
+
+   @Override
+   public void setBufferSize(int size) {
+      if (body == null) {
+         super.setBufferSize(size);
+      }
+   }
+
+   @Override
+   public void setContentLength(int len) {
+      setContentLengthLong(len);
+   }
+
+   @Override
+   public void setContentLengthLong(long len) {
+      if (body == null) {
+         super.setContentLengthLong(len);
+      } else {
+         contentLength = len;
+      }
+   }
+
+   // Status and headers ------------------------------------------------------
+
+   @Override
+   public void setStatus(int sc) {
+      status = sc;
+      super.setStatus(sc);
+   }
+
+   @Override
+   public int getStatus() {
+      return status;
+   }
+
+   @Override
+   public void sendError(int sc) throws IOException {
+      status = sc;
+      body = null;
+      super.sendError(sc);
+   }
+
+   @Override
+   public void sendError(int sc, String msg) throws IOException {
+      status = sc;
+      body = null;
+      super.sendError(sc, msg);
+   }
+
+   @Override
+   public void sendRedirect(String location) throws IOException {
+      status = SC_FOUND;
+      body = null;
+      super.sendRedirect(location);
+   }
+
+   @Override
+   public void addCookie(Cookie cookie) {
+      cookies = true;
+      super.addCookie(cookie);
+   }
+
+   @Override
+   public void setHeader(String name, String value) {
+      record(name, value, false);
+      super.setHeader(name, value);
+   }
+
+   @Override
+   public void addHeader(String name, String value) {
+      record(name, value, true);
+      super.addHeader(name, value);
+   }
+
+   @Override
+   public void setIntHeader(String name, int value) {
+      record(name, String.valueOf(value), false);
+      super.setIntHeader(name, value);
+   }
+
+   @Override
+   public void addIntHeader(String name, int value) {
+      record(name, String.valueOf(value), true);
+      super.addIntHeader(name, value);
+   }
+
+   @Override
+   public void setDateHeader(String name, long date) {
+      record(name, Long.valueOf(date), false);
+      super.setDateHeader(name, date);
+   }
+
+   @Override
+   public void addDateHeader(String name, long date) {
+      record(name, Long.valueOf(date), true);
+      super.addDateHeader(name, date);
+   }
+
+   private void record(String name, Object value, boolean add) {
+      if (name == null) {
+         return;
+      }
+      String key = name.toUpperCase(Locale.ENGLISH);
+      if (key.equals("SET-COOKIE") || key.equals("SET-COOKIE2")) {
+         // cookies set as headers are never cached, as with addCookie
+         cookies = true;
+      } else if (!CACHE_HEADERS.contains(key)) {
+         headers.add(new Header(name, value, add));
+      }
+   }
+
+   /**
+    * Collects the body until it exceeds the maximum size.
+    */
+   private class CaptureStream extends ServletOutputStream {
+
+      @Override
+      public void write(int b) throws IOException {
+         if (body != null && body.size() < maxSize) {
+            body.write(b);
+         } else {
+            releaseBody();
+            ResourceCaptureResponse.super.getOutputStream().write(b);
+         }
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+         if (body != null && body.size() + len <= maxSize) {
+            body.write(b, off, len);
+         } else {
+            releaseBody();
+            ResourceCaptureResponse.super.getOutputStream().write(b, off, len);
+         }
+      }
+
+      @Override
+      public void flush() throws IOException {
+         if (!capturing) {
+            // flushing by the portlet commits the response
+            releaseBody();
+            ResourceCaptureResponse.super.getOutputStream().flush();
+         }
+      }
+
+      @Override
+      public boolean isReady() {
+         return true;
+      }
+
+      @Override
+      public void setWriteListener(WriteListener listener) {
+         throw new UnsupportedOperationException("Non-blocking output is not supported for cached resources.");
+      }
+   }
+}
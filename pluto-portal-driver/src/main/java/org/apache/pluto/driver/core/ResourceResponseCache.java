@@ -0,0 +1,518 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.core;
+
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.portlet.CacheControl;
+import javax.portlet.PortletException;
+import javax.portlet.ResourceURL;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.pluto.container.PortletContainer;
+import org.apache.pluto.container.PortletContainerException;
+import org.apache.pluto.container.PortletWindow;
+import org.apache.pluto.driver.AttributeKeys;
+import org.apache.pluto.driver.url.PortalURL;
+import org.apache.pluto.driver.url.PortalURL.URLType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the responses of resource requests with cacheability
+ * {@link ResourceURL#FULL}. As the URL of such a resource does not contain
+ * the page state, the canonical resource URL identifies the response.
+ * <p>
+ * A response is stored when the portlet completes it with status 200, sets
+ * no cookies, and either declares an expiration time or sets an ETag through
+ * its cache control. Responses in private scope are additionally cached per
+ * user, or per session for unauthenticated users. The cache answers requests
+ * without dispatching to the portlet until the expiration time has passed,
+ * including conditional requests through <code>If-None-Match</code> and
+ * <code>If-Modified-Since</code>. An expired response carrying an ETag is
+ * validated by the portlet, which can reuse it by setting
+ * <code>useCachedContent</code>.
+ * <p>
+ * The <code>Cache-Control</code>, <code>ETag</code> and
+ * <code>Last-Modified</code> headers are derived from the cache control, so
+ * that browsers and shared caches can store public responses as well.
+ * <p>
+ * The least recently used responses are evicted when the total size exceeds
+ * the configured maximum. Processing an action or an event for a window
+ * discards all responses of the window.
+ *
+ * @see AttributeKeys#RESOURCE_CACHE
+ */
+public class ResourceResponseCache {
+
+   /** Logger. */
+   private static final Logger LOG      = LoggerFactory.getLogger(ResourceResponseCache.class);
+
+   /** Approximate per-entry overhead in bytes, added to the body size. */
+   private static final int    OVERHEAD = 256;
+
+   /** Maximum age for responses that never expire: one year. */
+   private static final int    MAX_AGE  = 31536000;
+
+   private final long          maxSize;
+   private final int           maxEntrySize;
+
+   /** The cached responses in access order, guarded by itself. */
+   private final LinkedHashMap<String, CachedResource> resources =
+         new LinkedHashMap<String, CachedResource>(64, 0.75f, true);
+
+   /** Total size of the cached responses, guarded by <code>resources</code>. */
+   private long                size;
+
+   /**
+    * Incremented by each invalidation. Responses created while an
+    * invalidation took place are not cached, as they may be outdated.
+    */
+   private long                generation;
+
+   private final AtomicLong    hits        = new AtomicLong();
+   private final AtomicLong    misses      = new AtomicLong();
+   private final AtomicLong    notModified = new AtomicLong();
+   private final AtomicLong    validations = new AtomicLong();
+   private final AtomicLong    evictions   = new AtomicLong();
+
+   /**
+    * Creates the cache.
+    *
+    * @param maxSize
+    *           maximum total size of the cached responses in bytes
+    * @param maxEntrySize
+    *           maximum size of a single response body in bytes
+    */
+   public ResourceResponseCache(long maxSize, int maxEntrySize) {
+      this.maxSize = maxSize;
+      this.maxEntrySize = maxEntrySize;
+   }
+
+   /**
+    * Returns <code>true</code> if the response to the resource request can be
+    * taken from the cache.
+    *
+    * @param request
+    *           the portal request
+    * @param portalURL
+    *           the requested portal URL
+    */
+   public boolean isCacheable(HttpServletRequest request, PortalURL portalURL) {
+      return portalURL.getType() == URLType.Resource && ResourceURL.FULL.equals(portalURL.getCacheability())
+            && "GET".equals(request.getMethod());
+   }
+
+   /**
+    * Serves the resource request from the cache, dispatching to the portlet
+    * only if no valid response is cached.
+    *
+    * @param container
+    *           the portlet container
+    * @param window
+    *           the target portlet window
+    * @param request
+    *           the portal request
+    * @param response
+    *           the portal response
+    * @param portalURL
+    *           the requested portal URL
+    */
+   public void serveResource(PortletContainer container, PortletWindow window, HttpServletRequest request,
+         HttpServletResponse response, PortalURL portalURL) throws PortletException, IOException,
+         PortletContainerException {
+
+      String publicKey = getKey(request, portalURL);
+      String user = PortletRenderCache.getUserKey(request);
+      String privateKey = (user == null) ? null : publicKey + user;
+
+      CachedResource cached;
+      long requestGeneration;
+      synchronized (resources) {
+         cached = (privateKey == null) ? null : resources.get(privateKey);
+         if (cached == null) {
+            cached = resources.get(publicKey);
+         }
+         requestGeneration = generation;
+      }
+
+      long now = System.currentTimeMillis();
+      if (cached != null && now < cached.expires) {
+         hits.incrementAndGet();
+         write(cached, request, response, true, now);
+         return;
+      }
+      misses.incrementAndGet();
+
+      // Let the portlet validate the cached response, or the one held by the client
+      String eTag = (cached != null) ? cached.eTag : getRequestETag(request);
+      if (eTag != null) {
+         request.setAttribute(AttributeKeys.RESOURCE_CACHE_ETAG, eTag);
+      }
+      ResourceCaptureResponse capture = new ResourceCaptureResponse(response, maxEntrySize);
+      CacheControl cacheControl;
+      try {
+         container.doServeResource(window, request, capture, null);
+         cacheControl = (CacheControl) request.getAttribute(AttributeKeys.RESOURCE_CACHE_CONTROL);
+      } finally {
+         request.removeAttribute(AttributeKeys.RESOURCE_CACHE_ETAG);
+         request.removeAttribute(AttributeKeys.RESOURCE_CACHE_CONTROL);
+      }
+
+      CachedResource resource = null;
+      if (cacheControl != null && !request.isAsyncStarted() && capture.isCaptured()) {
+         if (!cacheControl.useCachedContent()) {
+            resource = new CachedResource(window.getId().getStringId(), capture, cacheControl, now);
+         } else if (cached != null) {
+            validations.incrementAndGet();
+            resource = new CachedResource(cached, cacheControl, now);
+         } else if (eTag != null) {
+            // the portlet has validated the client copy
+            notModified.incrementAndGet();
+            response.setHeader("ETag", quote(eTag));
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+         }
+      }
+      if (resource == null || !resource.isCacheable(now)) {
+         capture.release();
+         return;
+      }
+
+      String key = resource.publicScope ? publicKey : privateKey;
+      synchronized (resources) {
+         if (requestGeneration == generation) {
+            if (cached != null) {
+               remove(cached.key);
+            }
+            if (key != null && resource.size <= maxSize) {
+               resource.key = key;
+               remove(key);
+               resources.put(key, resource);
+               size += resource.size;
+               evict();
+            }
+         }
+      }
+      // the headers of a new response have already been passed on by the capture
+      write(resource, request, response, cached != null && resource.body == cached.body, now);
+   }
+
+   /**
+    * Discards all cached responses of the portlet window.
+    *
+    * @param windowId
+    *           the portlet window ID
+    */
+   public void invalidate(String windowId) {
+      synchronized (resources) {
+         generation++;
+         for (Iterator<CachedResource> i = resources.values().iterator(); i.hasNext();) {
+            CachedResource resource = i.next();
+            if (resource.windowId.equals(windowId)) {
+               size -= resource.size;
+               i.remove();
+            }
+         }
+      }
+      if (LOG.isDebugEnabled()) {
+         LOG.debug("Cached resources invalidated for portlet window: " + windowId);
+      }
+   }
+
+   /**
+    * Discards all cached responses.
+    */
+   public void clear() {
+      synchronized (resources) {
+         generation++;
+         resources.clear();
+         size = 0;
+      }
+   }
+
+   // Statistics --------------------------------------------------------------
+
+   public long getHits() {
+      return hits.get();
+   }
+
+   public long getMisses() {
+      return misses.get();
+   }
+
+   /**
+    * Returns the number of requests answered with status 304.
+    */
+   public long getNotModified() {
+      return notModified.get();
+   }
+
+   /**
+    * Returns the number of expired responses that the portlet has validated.
+    */
+   public long getValidations() {
+      return validations.get();
+   }
+
+   /**
+    * Returns the number of responses that were removed because the cache was full.
+    */
+   public long getEvictions() {
+      return evictions.get();
+   }
+
+   /**
+    * Returns the fraction of requests that were served without dispatching
+    * to the portlet.
+    */
+   public double getHitRate() {
+      long h = hits.get();
+      long total = h + misses.get();
+      return total == 0 ? 0.0 : (double) h / total;
+   }
+
+   /**
+    * Returns the total size of the cached responses in bytes.
+    */
+   public long getSize() {
+      synchronized (resources) {
+         return size;
+      }
+   }
+
+   public int getResourceCount() {
+      synchronized (resources) {
+         return resources.size();
+      }
+   }
+
+   /**
+    * Returns the statistics in a form suitable for logging.
+    */
+   public String getStatistics() {
+      StringBuilder txt = new StringBuilder(128);
+      txt.append("resources=").append(getResourceCount())
+         .append(", size=").append(getSize())
+         .append(", hits=").append(getHits())
+         .append(", misses=").append(getMisses())
+         .append(", hitRate=").append(Math.round(getHitRate() * 1000) / 10.0).append('%')
+         .append(", notModified=").append(getNotModified())
+         .append(", validations=").append(getValidations())
+         .append(", evictions=").append(getEvictions());
+      return txt.toString();
+   }
+
+   // Private Methods ---------------------------------------------------------
+
+   private void remove(String key) {
+      CachedResource old = resources.remove(key);
+      if (old != null) {
+         size -= old.size;
+      }
+   }
+
+   private void evict() {
+      for (Iterator<CachedResource> i = resources.values().iterator(); size > maxSize && i.hasNext();) {
+         size -= i.next().size;
+         i.remove();
+         evictions.incrementAndGet();
+      }
+   }
+
+   /**
+    * Writes the cached response, or status 304 if the client copy is current.
+    *
+    * @param replay
+    *           <code>true</code> if the headers set by the portlet are to be
+    *           written as well
+    */
+   private void write(CachedResource resource, HttpServletRequest request, HttpServletResponse response,
+         boolean replay, long now) throws IOException {
+      response.setHeader("Cache-Control", resource.getCacheControl(now));
+      if (resource.eTag != null) {
+         response.setHeader("ETag", quote(resource.eTag));
+      }
+      response.setDateHeader("Last-Modified", resource.lastModified);
+
+      if (isNotModified(resource, request)) {
+         notModified.incrementAndGet();
+         response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+         return;
+      }
+
+      if (replay) {
+         if (resource.contentType != null) {
+            response.setContentType(resource.contentType);
+         }
+         for (ResourceCaptureResponse.Header header : resource.headers) {
+            if (header.value instanceof Long) {
+               if (header.add) {
+                  response.addDateHeader(header.name, (Long) header.value);
+               } else {
+                  response.setDateHeader(header.name, (Long) header.value);
+               }
+            } else if (header.add) {
+               response.addHeader(header.name, (String) header.value);
+            } else {
+               response.setHeader(header.name, (String) header.value);
+            }
+         }
+      }
+      response.setContentLength(resource.body.length);
+      response.getOutputStream().write(resource.body);
+   }
+
+   private static boolean isNotModified(CachedResource resource, HttpServletRequest request) {
+      Enumeration<String> ifNoneMatch = request.getHeaders("If-None-Match");
+      if (ifNoneMatch != null && ifNoneMatch.hasMoreElements()) {
+         if (resource.eTag == null) {
+            return false;
+         }
+         while (ifNoneMatch.hasMoreElements()) {
+            for (String tag : ifNoneMatch.nextElement().split(",")) {
+               tag = tag.trim();
+               if (tag.equals("*") || resource.eTag.equals(unquote(tag))) {
+                  return true;
+               }
+            }
+         }
+         return false;
+      }
+      long since;
+      try {
+         since = request.getDateHeader("If-Modified-Since");
+      } catch (IllegalArgumentException e) {
+         return false;
+      }
+      return since >= 0 && resource.lastModified <= since;
+   }
+
+   /**
+    * Returns the first entity tag of the <code>If-None-Match</code> header.
+    */
+   private static String getRequestETag(HttpServletRequest request) {
+      String header = request.getHeader("If-None-Match");
+      if (header == null) {
+         return null;
+      }
+      String tag = header.split(",")[0].trim();
+      return (tag.length() == 0 || tag.equals("*")) ? null : unquote(tag);
+   }
+
+   private static String quote(String eTag) {
+      return '"' + eTag + '"';
+   }
+
+   private static String unquote(String tag) {
+      if (tag.startsWith("W/")) {
+         tag = tag.substring(2);
+      }
+      if (tag.length() >= 2 && tag.charAt(0) == '"' && tag.charAt(tag.length() - 1) == '"') {
+         tag = tag.substring(1, tag.length() - 1);
+      }
+      return tag;
+   }
+
+   /**
+    * Builds the key from the canonical resource URL, which contains the target
+    * window, the resource ID and the resource parameters, and the query string.
+    */
+   private static String getKey(HttpServletRequest request, PortalURL portalURL) {
+      String url = portalURL.toURL(false);
+      String query = request.getQueryString();
+      return (query == null) ? url : url + '?' + query;
+   }
+
+   /**
+    * A response stored in the cache.
+    */
+   private static class CachedResource {
+
+      private final String windowId;
+      private final byte[] body;
+      private final String contentType;
+      private final List<ResourceCaptureResponse.Header> headers;
+      private final String eTag;
+      private final boolean publicScope;
+      private final int    expirationTime;
+      private final long   expires;
+      private final long   lastModified;
+      private final int    size;
+      private String       key;
+
+      CachedResource(String windowId, ResourceCaptureResponse capture, CacheControl cacheControl, long now) {
+         this.windowId = windowId;
+         this.body = capture.getBody();
+         this.contentType = capture.getContentType();
+         this.headers = capture.getHeaders();
+         this.eTag = cacheControl.getETag();
+         this.publicScope = cacheControl.isPublicScope();
+         this.expirationTime = cacheControl.getExpirationTime();
+         this.expires = getExpires(expirationTime, now);
+         // HTTP dates have a resolution of one second
+         this.lastModified = now - now % 1000;
+         this.size = body.length + OVERHEAD;
+      }
+
+      /**
+       * Creates a response that reuses the validated body with the new cache
+       * control settings.
+       */
+      CachedResource(CachedResource cached, CacheControl cacheControl, long now) {
+         this.windowId = cached.windowId;
+         this.body = cached.body;
+         this.contentType = cached.contentType;
+         this.headers = cached.headers;
+         this.eTag = (cacheControl.getETag() != null) ? cacheControl.getETag() : cached.eTag;
+         this.publicScope = cacheControl.isPublicScope();
+         this.expirationTime = cacheControl.getExpirationTime();
+         this.expires = getExpires(expirationTime, now);
+         this.lastModified = cached.lastModified;
+         this.size = cached.size;
+      }
+
+      private static long getExpires(int expirationTime, long now) {
+         return (expirationTime < 0) ? Long.MAX_VALUE : now + expirationTime * 1000L;
+      }
+
+      /**
+       * A response that expires immediately is kept only if it can be validated.
+       */
+      boolean isCacheable(long now) {
+         return eTag != null || expires > now;
+      }
+
+      String getCacheControl(long now) {
+         StringBuilder value = new StringBuilder(32);
+         value.append(publicScope ? "public" : "private");
+         if (expirationTime == 0) {
+            value.append(", no-cache");
+         } else {
+            long maxAge = (expirationTime < 0) ? MAX_AGE : Math.max(0L, (expires - now) / 1000);
+            value.append(", max-age=").append(maxAge);
+         }
+         return value.toString();
+      }
+   }
+}
@@ -35,6 +35,8 @@ public class PageConfig {
    private Collection<String> portletIds;
    private int orderNumber;
    private List<PageResourceId> pageResources = new ArrayList<PageResourceId>();
+   private volatile PageDependencies dependencies;
+   private RenderConfig renderConfig;
 
    public PageConfig() {
       this.portletIds = new ArrayList<String>();
@@ -51,6 +53,7 @@ public class PageConfig {
       if (name != null) {
          PageResourceId resid = new PageResourceId(name, scope, version);
          pageResources.add(resid);
+         dependencies = null;
       } else {
          LOG.warn("Resource name cannot be null.");
       }
@@ -65,6 +68,20 @@ public class PageConfig {
       }
    }
 
+   /**
+    * Returns the resolved default and page-level dependencies.
+    * 
+    * @return  the page dependencies, or <code>null</code> if not yet resolved
+    * @see RenderConfigService#getPageDependencies(PageConfig)
+    */
+   public PageDependencies getDependencies() {
+      return dependencies;
+   }
+
+   public void setDependencies(PageDependencies dependencies) {
+      this.dependencies = dependencies;
+   }
+
    public String getName() {
       return name;
    }
@@ -90,6 +107,7 @@ public class PageConfig {
 
    public void setPortletIds(Collection<String> ids) {
       this.portletIds = ids;
+      modified();
    }
 
    public void addPortlet(String contextPath, String portletName) {
@@ -100,10 +118,23 @@ public class PageConfig {
       synchronized(portletIds) {
          portletIds.add(pid);
       }
+      modified();
    }
 
    public void removePortlet(String portletId) {
       portletIds.remove(portletId);
+      modified();
+   }
+
+   void setRenderConfig(RenderConfig renderConfig) {
+      this.renderConfig = renderConfig;
+   }
+
+   private void modified() {
+      RenderConfig rc = renderConfig;
+      if (rc != null) {
+         rc.modified();
+      }
    }
 
    void setOrderNumber(int number) {
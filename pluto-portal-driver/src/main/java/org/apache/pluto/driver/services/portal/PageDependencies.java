@@ -0,0 +1,171 @@
+/*  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+
+package org.apache.pluto.driver.services.portal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pluto.container.PageResourceId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An ordered list of page resource IDs without duplicates.
+ * <p>
+ * If resource IDs differ only by version, the resource ID with the highest version
+ * number is kept at the position of the first ID added. The IDs are indexed by
+ * resource name and scope.
+ * <p>
+ * The dependencies of a page that result from the default page dependencies and the
+ * page-level dependencies are resolved once by the {@link RenderConfigService}. The
+ * resolved list is shared between requests and must not be modified, but can be copied
+ * in order to add the portlet dependencies.
+ *
+ * @see PageResources#getMarkup(PageDependencies, List, Map, String)
+ */
+public class PageDependencies {
+   private static final Logger LOG = LoggerFactory.getLogger(PageDependencies.class);
+   private static final boolean isDebug = LOG.isDebugEnabled();
+
+   /**
+    * The markup generated for the page resource IDs, valid for a context path and
+    * the page resources used to generate it.
+    */
+   static class Markup {
+      final PageResources resources;
+      final String contextPath;
+      final String[] entries;
+      final String markup;
+
+      Markup(PageResources resources, String contextPath, String[] entries) {
+         this.resources = resources;
+         this.contextPath = contextPath;
+         this.entries = entries;
+         StringBuilder txt = new StringBuilder(128);
+         for (String entry : entries) {
+            txt.append(entry).append("\n");
+         }
+         this.markup = txt.toString();
+      }
+   }
+
+   private final List<PageResourceId> ids;
+
+   // maps the resource ID without version to the position in the list
+   private final Map<PageResourceId, Integer> index;
+
+   private volatile Markup markup;
+
+   public PageDependencies() {
+      ids = new ArrayList<PageResourceId>();
+      index = new HashMap<PageResourceId, Integer>();
+   }
+
+   /**
+    * Creates the dependencies from a list that can potentially contain duplicates.
+    *
+    * @param prids   the page resource IDs
+    */
+   public PageDependencies(Collection<PageResourceId> prids) {
+      this();
+      addAll(prids);
+   }
+
+   /**
+    * copy constructor
+    *
+    * @param other   the other page dependencies
+    */
+   public PageDependencies(PageDependencies other) {
+      ids = new ArrayList<PageResourceId>(other.ids);
+      index = new HashMap<PageResourceId, Integer>(other.index);
+   }
+
+   /**
+    * Adds a page resource ID. The ID is ignored if an ID for the same resource with the
+    * same or a higher version is already present. If the new ID has a higher version,
+    * it replaces the present one at its original position.
+    *
+    * @param newid   the page resource ID
+    */
+   public void add(PageResourceId newid) {
+      PageResourceId key = new PageResourceId(newid.getName(), newid.getScope(), null);
+      Integer pos = index.get(key);
+      if (pos == null) {
+         index.put(key, ids.size());
+         ids.add(newid);
+      } else {
+         PageResourceId currid = ids.get(pos);
+         if (currid.isSupersededBy(newid)) {
+
+            if (isDebug) {
+               StringBuilder txt = new StringBuilder();
+               txt.append("Replacing page resource id.");
+               txt.append(" old: ").append(currid.toString());
+               txt.append(", new: ").append(newid.toString());
+               txt.append(", index: ").append(pos);
+               txt.append(", total length: ").append(ids.size());
+               LOG.debug(txt.toString());
+            }
+
+            ids.set(pos, newid);
+         }
+      }
+   }
+
+   public void addAll(Collection<PageResourceId> prids) {
+      for (PageResourceId id : prids) {
+         add(id);
+      }
+   }
+
+   /**
+    * @return  the page resource IDs in inclusion order
+    */
+   public List<PageResourceId> getIds() {
+      return Collections.unmodifiableList(ids);
+   }
+
+   public int size() {
+      return ids.size();
+   }
+
+   Markup getMarkup() {
+      return markup;
+   }
+
+   void setMarkup(Markup markup) {
+      this.markup = markup;
+   }
+
+   @Override
+   public String toString() {
+      StringBuilder txt = new StringBuilder(128);
+      txt.append("Page dependencies:");
+      for (PageResourceId id : ids) {
+         txt.append("\n   ").append(id.toString());
+      }
+      return txt.toString();
+   }
+}
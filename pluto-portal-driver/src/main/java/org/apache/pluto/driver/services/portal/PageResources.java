@@ -20,11 +20,12 @@
 package org.apache.pluto.driver.services.portal;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.pluto.container.PageResourceId;
 import org.slf4j.Logger;
@@ -72,6 +73,9 @@ public class PageResources {
    
    private Map<PageResourceId, Source> resources = new HashMap<PageResourceId, Source>();
    
+   // maps the resource ID without version to the available versions in sorted order
+   private Map<PageResourceId, List<PageResourceId>> versions = new HashMap<PageResourceId, List<PageResourceId>>();
+   
    public PageResources() {
    }
    
@@ -84,12 +88,24 @@ public class PageResources {
       for (PageResourceId id : other.resources.keySet()) {
          this.resources.put(new PageResourceId(id), new Source(other.resources.get(id)));
       }
+      for (PageResourceId key : other.versions.keySet()) {
+         this.versions.put(key, new ArrayList<PageResourceId>(other.versions.get(key)));
+      }
    }
    
    public void addResource(PageResourceId id, Type type, String source) {
       if (id.getName() != null && id.getScope() != null  && type != null && 
             id.getVersion() != null && source != null) {
-         resources.put(id, new Source(type, source));
+         if (resources.put(id, new Source(type, source)) == null) {
+            PageResourceId key = new PageResourceId(id.getName(), id.getScope(), null);
+            List<PageResourceId> ids = versions.get(key);
+            if (ids == null) {
+               ids = new ArrayList<PageResourceId>(2);
+               versions.put(key, ids);
+            }
+            ids.add(id);
+            Collections.sort(ids);
+         }
       } else {
          StringBuilder txt = new StringBuilder(128);
          txt.append("Required value null when adding page Resource");
@@ -112,25 +128,38 @@ public class PageResources {
    /**
     * Implements a fuzzy matching to identify best available resource.
     * 
-    * @param resid   The desired resource resource ID
-    * @return        The best match page resource ID
+    * @param resid      The desired resource resource ID
+    * @param dynamic    Resources dynamically added for the current rendering, 
+    *                   or <code>null</code>
+    * @return           The best match page resource ID
     */
-   private Source getBestMatch(PageResourceId resid) {
+   private Source getBestMatch(PageResourceId resid, Map<PageResourceId, String> dynamic) {
+      if (dynamic != null && dynamic.containsKey(resid)) {
+         return new Source(Type.MARKUP, dynamic.get(resid));
+      }
       if (resources.containsKey(resid)) {
          return resources.get(resid);
       }
       
       // has to at least match on name, and if the scope is provided, on scope
       
-      List<PageResourceId> candidates = new ArrayList<PageResourceId>();
-      for (PageResourceId id : resources.keySet()) {
-         if (resid.resourceMatches(id)) {
-            candidates.add(id);
+      List<PageResourceId> candidates = versions.get(new PageResourceId(resid.getName(), resid.getScope(), null));
+      if (dynamic != null && !dynamic.isEmpty()) {
+         List<PageResourceId> all = new ArrayList<PageResourceId>();
+         if (candidates != null) {
+            all.addAll(candidates);
+         }
+         for (PageResourceId id : dynamic.keySet()) {
+            if (resid.resourceMatches(id)) {
+               all.add(id);
+            }
          }
+         Collections.sort(all);
+         candidates = all;
       }
       
       PageResourceId effectiveId = null;
-      if (candidates.size() > 0) {
+      if (candidates != null && candidates.size() > 0) {
          if (candidates.size() == 1) {
             effectiveId = candidates.get(0);
          } else {
@@ -138,7 +167,6 @@ public class PageResources {
             // There are more than one candidates that differ in version.
             // Choose the first one greater than the requested or the highest available.
             
-            Collections.sort(candidates);
             for (PageResourceId id : candidates) {
                if (resid.compareTo(id) <= 0) {
                   effectiveId = id;
@@ -160,6 +188,9 @@ public class PageResources {
       }
       
       if (effectiveId != null) {
+         if (dynamic != null && dynamic.containsKey(effectiveId)) {
+            return new Source(Type.MARKUP, dynamic.get(effectiveId));
+         }
          return resources.get(effectiveId);
       }
       
@@ -175,9 +206,13 @@ public class PageResources {
     * @return              the markup for the page resource, or <code>null</code> if ID not found
     */
    public String getMarkup(PageResourceId resid, String contextPath) {
+      return getMarkup(resid, null, contextPath);
+   }
+   
+   private String getMarkup(PageResourceId resid, Map<PageResourceId, String> dynamic, String contextPath) {
       String markup = "";
       
-      Source src = getBestMatch(resid);
+      Source src = getBestMatch(resid, dynamic);
       if (src != null) {
          StringBuilder txt = new StringBuilder(128);
          switch (src.type) {
@@ -217,140 +252,21 @@ public class PageResources {
     * @param prids        List of page resource IDs
     * @param contextPath   The context path 
     * @return              Markup string that can be added to the document head section
+    * @see PageDependencies
     */
    public String getMarkup(List<PageResourceId> prids, String contextPath) {
-      List<PageResourceId> resultids = new ArrayList<PageResourceId>();
-      
-      // build the resulting page resource ID list by examining each ID from the
-      // input list, comparing it to IDs already in the result list.
-
-      for (PageResourceId newid : prids) {
-         
-         // look for page resource id match (without version)
-         
-         int index = -1;
-         for (int ii = 0; ii < resultids.size(); ii++) {
-            if (resultids.get(ii).resourceMatches(newid)) {
-               index = ii;
-               break;
-            }
-         }
-         
-         if (index == -1) {
-            
-            // no match, so just add new element
-            resultids.add(newid);
-            
-         } else {
-            PageResourceId currid = resultids.get(index);
-            
-            // ignore exact match (throw away exact duplicates)
-            if (!currid.equals(newid)) {
-               
-               // The Id in the list differs from the new ID only in the version. 
-               // The version will be compared assuming a format similar to that 
-               // described by the semantic versioning spec (see http://semver.org/).
-               // Format: MAJOR.MINOR.PATCH with decimal numbers
-               // If, after truncating leading and trailing characters, the result does
-               // not match this format, a simple string compare is used.
-               // The latest version will be kept in the list at the original index.
-               
-               boolean replaceId = false;
-               
-               if (currid.getVersion() == null) {
-                  // a specified version replaces a null version
-                  replaceId = true;
-               }
-
-               // place vars here to allow debug data collection
-               String currVersion = null;
-               String newVersion  = null;
-               String[] currDecimals = new String[0];
-               String[] newDecimals  = new String[0];
-
-               if (!replaceId && newid.getVersion() != null) {
-                  
-                  // Extract the dotted decimal version numbers
-                  String regex = "^[vV=]{0,1}(\\d+(?:\\.\\d+){0,2}).*$";
-                  currVersion = currid.getVersion().replaceFirst(regex, "$1");
-                  newVersion  = newid.getVersion().replaceFirst(regex, "$1");
-                  
-                  String dottedDecimalRegex = "^\\d+(?:\\.\\d+)*$";
-                  if (currVersion.matches(dottedDecimalRegex)) {
-                     
-                     // the current version is conforming dotted decimal. 
-                     // If the new version is also conforming, compare version numbers.
-                     // otherwise ignore.
-                     
-                     if (newVersion.matches(dottedDecimalRegex)) {
-                        currDecimals = currVersion.split("\\.");
-                        newDecimals  = newVersion.split("\\.");
-                        for (int ii=0; (ii < currDecimals.length) && (ii < newDecimals.length); ii++) {
-                           int currDigit = Integer.parseInt(currDecimals[ii]);
-                           int newDigit = Integer.parseInt(newDecimals[ii]);
-                           if (newDigit > currDigit) {
-                              replaceId = true;
-                              break;
-                           }
-                        }
-                        if (!replaceId) {
-                           // if the new id is identical, but with more digits, replace
-                           if (newDecimals.length > currDecimals.length) {
-                              replaceId = true;
-                           }
-                        }
-                     } 
-                     
-                  } else {
-                     
-                     // If new version conforms, use it, otherwise string compare
-                     
-                     if (newVersion.matches(dottedDecimalRegex)) {
-                        replaceId = true;
-                     } else {
-                        replaceId = currid.getVersion().compareTo(newid.getVersion()) > 0;
-                     }
-                     
-                  }
-               }
-               
-               if (replaceId) {
-                  
-                  if (isDebug) {
-                     StringBuilder txt = new StringBuilder();
-                     txt.append("Replacing page resource id.");
-                     txt.append(" old: ").append(currid.toString());
-                     txt.append(", new: ").append(newid.toString());
-                     txt.append(", index: ").append(index);
-                     txt.append(", total length: ").append(resultids.size());
-                     txt.append("\n   Current version string: ").append(currVersion);
-                     txt.append(", New version string: ").append(newVersion);
-                     txt.append(", Current digits: ").append(Arrays.asList(currDecimals));
-                     txt.append(", New digits: ").append(Arrays.asList(newDecimals));
-                     LOG.debug(txt.toString());
-                  }
-                  
-                  // replace the current item in the list with the new item, as it
-                  // has a later version.
-                  resultids.add(index, newid);
-                  resultids.remove(index+1);
-                  
-               }
-            }
-         }
-         
-      }
+      PageDependencies deps = new PageDependencies(prids);
       
       // generate the markup
       StringBuilder markup = new StringBuilder(128);
-      for (PageResourceId resid : resultids) {
+      for (PageResourceId resid : deps.getIds()) {
          markup.append(getMarkup(resid, contextPath)).append("\n");
       }
       
       if (isDebug) {
          StringBuilder txt = new StringBuilder();
          txt.append("\nConsolidated page resource IDs:");
-         for (PageResourceId id : resultids) {
+         for (PageResourceId id : deps.getIds()) {
             txt.append("\n").append(id.toString());
          }
          txt.append("\n\nResulting markup:\n").append(markup.toString());
@@ -359,6 +275,75 @@ public class PageResources {
       
       return (markup.length() == 0) ? null : markup.toString();
    }
+   
+   /**
+    * Returns the head section markup for the resolved dependencies of a page combined 
+    * with the dependencies of the portlets on the page.
+    * <p>
+    * The markup for the page dependencies is generated once and reused. Only the
+    * portlet dependencies and the page dependencies they affect are resolved for
+    * each rendering.
+    * 
+    * @param pagedeps            The resolved default and page-level dependencies
+    * @param deps                The portlet dependencies, may contain duplicates
+    * @param dynamicResources    The resources added by the portlets for this rendering 
+    * @param contextPath         The context path 
+    * @return                    Markup string that can be added to the document head section, 
+    *                            or the empty string if there are no dependencies
+    */
+   public String getMarkup(PageDependencies pagedeps, List<PageResourceId> deps, 
+         Map<PageResourceId, String> dynamicResources, String contextPath) {
+      
+      PageDependencies.Markup pagemarkup = pagedeps.getMarkup();
+      if (pagemarkup == null || pagemarkup.resources != this || !pagemarkup.contextPath.equals(contextPath)) {
+         List<PageResourceId> ids = pagedeps.getIds();
+         String[] entries = new String[ids.size()];
+         for (int ii = 0; ii < entries.length; ii++) {
+            entries[ii] = getMarkup(ids.get(ii), contextPath);
+         }
+         pagemarkup = new PageDependencies.Markup(this, contextPath, entries);
+         pagedeps.setMarkup(pagemarkup);
+      }
+      
+      if (deps.isEmpty() && dynamicResources.isEmpty()) {
+         return pagemarkup.markup;
+      }
+      
+      // the resources whose resolution is affected by the dynamically added resources
+      Set<PageResourceId> dynamicNames = new HashSet<PageResourceId>();
+      for (PageResourceId id : dynamicResources.keySet()) {
+         dynamicNames.add(new PageResourceId(id.getName(), id.getScope(), null));
+      }
+      
+      PageDependencies merged = new PageDependencies(pagedeps);
+      merged.addAll(deps);
+      
+      List<PageResourceId> pageids = pagedeps.getIds();
+      List<PageResourceId> ids = merged.getIds();
+      StringBuilder markup = new StringBuilder(pagemarkup.markup.length() + 128);
+      for (int ii = 0; ii < ids.size(); ii++) {
+         PageResourceId id = ids.get(ii);
+         if (ii < pageids.size() && pageids.get(ii) == id && 
+               !dynamicNames.contains(new PageResourceId(id.getName(), id.getScope(), null))) {
+            markup.append(pagemarkup.entries[ii]);
+         } else {
+            markup.append(getMarkup(id, dynamicResources, contextPath));
+         }
+         markup.append("\n");
+      }
+      
+      if (isDebug) {
+         StringBuilder txt = new StringBuilder();
+         txt.append("\nConsolidated page resource IDs:");
+         for (PageResourceId id : ids) {
+            txt.append("\n").append(id.toString());
+         }
+         txt.append("\n\nResulting markup:\n").append(markup.toString());
+         LOG.debug(txt.toString());
+      }
+      
+      return markup.toString();
+   }
 
    @Override
    public String toString() {
@@ -43,21 +43,29 @@ import org.apache.pluto.container.om.portlet.PublicRenderParameter;
  * If two PRPs have the same QName, they are considered to refer to the same 
  * public render parameter. The mapping is limited to the current page.
  * 
+ * <p>
+ * Clones share the parameter state with the original mapper. The state is
+ * copied when the values of a shared mapper are modified.
+ * 
  * @author msnicklous
  * @since  16/01/2015
  */
 public class PublicRenderParameterQNameMapper implements PublicRenderParameterMapper {
-   private final Logger LOGGER = LoggerFactory.getLogger(PublicRenderParameterQNameMapper.class);
-   private final boolean isTrace = LOGGER.isTraceEnabled();
+   private static final Logger LOGGER = LoggerFactory.getLogger(PublicRenderParameterQNameMapper.class);
+   private static final boolean isTrace = LOGGER.isTraceEnabled();
  
    // Set of all public render parameters on the page
-   private final ArrayList<PortalURLPublicParameter> prpList = new ArrayList<PortalURLPublicParameter>();
+   private ArrayList<PortalURLPublicParameter> prpList = new ArrayList<PortalURLPublicParameter>();
    
    // Maps the PRP QName to a set of public render parameters
-   private final Map<QName, List<PortalURLPublicParameter>> qn2PRP =
+   private Map<QName, List<PortalURLPublicParameter>> qn2PRP =
                      new HashMap<QName, List<PortalURLPublicParameter>>();
 
-   private final ArrayList<QName> qnList = new ArrayList<QName>();
+   // The QNames are not modified after construction, so the list is always shared by clones
+   private ArrayList<QName> qnList = new ArrayList<QName>();
+   
+   // true if the parameters are shared with a clone and must be copied before modification
+   private boolean shared = false;
    
    public PublicRenderParameterQNameMapper(PageConfig paco, PortletRegistryService pore) {
       
@@ -201,6 +209,7 @@ public class PublicRenderParameterQNameMapper implements PublicRenderParameterMa
    }
 
    public void setValues(int index, String[] values) {
+      unshare();
       List<PortalURLPublicParameter> oprps = qn2PRP.get(qnList.get(index));
       for (PortalURLPublicParameter prp : oprps) {
          prp.setValues(values.clone());
@@ -217,6 +226,7 @@ public class PublicRenderParameterQNameMapper implements PublicRenderParameterMa
    }
 
    public void setRemoved(int index, boolean removed) {
+      unshare();
       List<PortalURLPublicParameter> oprps = qn2PRP.get(qnList.get(index));
       for (PortalURLPublicParameter prp : oprps) {
          prp.setRemoved(removed);
@@ -239,35 +249,39 @@ public class PublicRenderParameterQNameMapper implements PublicRenderParameterMa
       return inds; 
    }
    
-   public PublicRenderParameterQNameMapper clone() {
+   public synchronized PublicRenderParameterQNameMapper clone() {
       PublicRenderParameterQNameMapper prpm = new PublicRenderParameterQNameMapper();
+      prpm.qnList = qnList;
+      prpm.qn2PRP = qn2PRP;
+      prpm.prpList = prpList;
+      prpm.shared = true;
+      shared = true;
+      return prpm;
+   }
+
+   /**
+    * Copies the parameters before they are modified, if they are shared with a clone.
+    */
+   private synchronized void unshare() {
+      if (!shared) {
+         return;
+      }
       // Note that the QNames don't need to be cloned, as the internal fields are set thru constructor and cannot be changed.
-      StringBuilder dbgstr = new StringBuilder("Cloning QNames: ");
-      String prefix = "";
+      Map<QName, List<PortalURLPublicParameter>> map = new HashMap<QName, List<PortalURLPublicParameter>>();
       for (QName qn : qnList) {
-         prpm.qnList.add(qn);
-         prpm.qn2PRP.put(qn, new ArrayList<PortalURLPublicParameter>());
-         dbgstr.append(prefix + qn.toString());
-         prefix = ", ";
+         map.put(qn, new ArrayList<PortalURLPublicParameter>());
       }
 
-      dbgstr.append(" / window IDs: ");
-      prefix = "";
-      
+      ArrayList<PortalURLPublicParameter> list = new ArrayList<PortalURLPublicParameter>(prpList.size());
       for (PortalURLPublicParameter prp : prpList) {
          PortalURLPublicParameter newPrp = prp.clone();
-         prpm.prpList.add(newPrp);
-         prpm.qn2PRP.get(newPrp.getQName()).add(newPrp);
-         
-         dbgstr.append(prefix + prp.getWindowId());
-         prefix = ", ";
-      }
-      
-      if (isTrace) {
-//          LOGGER.trace(dbgstr.toString());       // fills log with entries.
+         list.add(newPrp);
+         map.get(newPrp.getQName()).add(newPrp);
       }
-      
-      return prpm;
+
+      qn2PRP = map;
+      prpList = list;
+      shared = false;
    }
 
    public List<PortalURLPublicParameter> getPRPsForWindow(String wid, boolean onlyActive) {
@@ -21,6 +21,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,6 +38,9 @@ public class RenderConfig {
    private int                     orderNumberCounter = 0;
    private Comparator<PageConfig>  pageComparator;
 
+   /** incremented whenever a page or the portlets on a page change */
+   private final AtomicLong        version            = new AtomicLong();
+
    public RenderConfig() {
       this.pages = new java.util.HashMap<String, PageConfig>();
       this.pageComparator = new Comparator<PageConfig>() {
@@ -106,11 +110,30 @@ public class RenderConfig {
 
    public void addPage(PageConfig config) {
       config.setOrderNumber(orderNumberCounter++);
+      config.setRenderConfig(this);
       pages.put(config.getName(), config);
+      modified();
    }
 
    public void removePage(PageConfig config) {
       pages.remove(config.getName());
+      config.setRenderConfig(null);
+      modified();
+   }
+
+   /**
+    * Returns the configuration version. The version changes whenever pages are
+    * added or removed, or when the portlets on a page change. It allows data
+    * derived from the page configuration to be cached.
+    * 
+    * @return the configuration version
+    */
+   public long getVersion() {
+      return version.get();
+   }
+
+   void modified() {
+      version.incrementAndGet();
    }
 
 }
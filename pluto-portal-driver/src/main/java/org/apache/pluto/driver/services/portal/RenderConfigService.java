@@ -54,8 +54,23 @@ public interface RenderConfigService {
     void addPage(PageConfig pageConfig);
     void removePage(PageConfig pageConfig);
 
+    /**
+     * Returns the page configuration version. The version changes whenever
+     * pages are added or removed, or when the portlets on a page change.
+     * @return the page configuration version
+     */
+    long getVersion();
+
     // For handling the available page resources and default dependencies
     PageResources getPageResources();
     List<PageResourceId> getDefaultPageDependencies();
+
+    /**
+     * Returns the default page dependencies combined with the dependencies
+     * declared for the given page. The dependencies are resolved once per page.
+     * @param pageConfig the page
+     * @return the resolved page dependencies
+     */
+    PageDependencies getPageDependencies(PageConfig pageConfig);
         
 }
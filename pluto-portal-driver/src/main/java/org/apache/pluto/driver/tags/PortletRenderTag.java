@@ -18,10 +18,14 @@ package org.apache.pluto.driver.tags;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.text.MessageFormat;
+import java.util.Locale;
+import java.util.ResourceBundle;
 
 import javax.servlet.jsp.JspException;
 import javax.servlet.jsp.tagext.TagSupport;
 
+import org.apache.pluto.driver.core.PortalServletResponse;
 import org.apache.pluto.driver.services.portal.PortletWindowConfig;
 
 /**
@@ -33,6 +37,23 @@ import org.apache.pluto.driver.services.portal.PortletWindowConfig;
  */
 public class PortletRenderTag extends TagSupport {
 	
+	/** The resource bundle holding the default messages. */
+	private static final String BUNDLE_NAME = "org.apache.pluto.driver.tags.LocalStrings";
+	
+	/**
+	 * The message printed if the portlet did not respond in time. The portlet
+	 * name is passed as argument {0}.
+	 */
+	private String timeoutMessage = null;
+	
+	public String getTimeoutMessage() {
+		return timeoutMessage;
+	}
+	
+	public void setTimeoutMessage(String timeoutMessage) {
+		this.timeoutMessage = timeoutMessage;
+	}
+	
 	// TagSupport Impl ---------------------------------------------------------
 	
 	/**
@@ -51,10 +72,23 @@ public class PortletRenderTag extends TagSupport {
         
         // If the portlet is rendered successfully, print the rendering result.
         if (parentTag.getStatus() == PortletTag.SUCCESS) {
+            PortalServletResponse response = parentTag.getPortalServletResponse();
             try {
-                StringBuffer buffer = parentTag.getPortalServletResponse()
-                		.getInternalBuffer().getBuffer();
-                pageContext.getOut().print(buffer.toString());
+                response.getInternalBuffer().writeTo(pageContext.getOut());
+            } catch (IOException ex) {
+                throw new JspException(ex);
+            } finally {
+                response.release();
+            }
+        }
+        // If the portlet did not respond in time, print the fallback markup.
+        else if (parentTag.getStatus() == PortletTag.TIMEOUT) {
+            try {
+            	PortletWindowConfig windowConfig =
+                    PortletWindowConfig.fromId(parentTag.getEvaluatedPortletId());
+            	
+                pageContext.getOut().print(getTimeoutText(windowConfig.getPortletName(),
+                		pageContext.getRequest().getLocale()));
             } catch (IOException ex) {
                 throw new JspException(ex);
             }
@@ -78,6 +112,26 @@ public class PortletRenderTag extends TagSupport {
         // Return.
         return SKIP_BODY;
     }
+    
+    /**
+     * Returns the text printed in place of a portlet that did not respond in time.
+     * 
+     * @param portletName  the portlet name
+     * @param locale       the locale of the portal request
+     * @return the text
+     */
+    String getTimeoutText(String portletName, Locale locale) {
+        String pattern = timeoutMessage;
+        if (pattern == null) {
+            pattern = ResourceBundle.getBundle(BUNDLE_NAME, locale).getString("portlet.timeout");
+        }
+        return MessageFormat.format(pattern, portletName);
+    }
+    
+    public void release() {
+    	super.release();
+    	timeoutMessage = null;
+    }
 
 
 }
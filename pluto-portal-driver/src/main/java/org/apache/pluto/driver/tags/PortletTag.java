@@ -36,8 +36,10 @@ import org.apache.pluto.container.om.portlet.ContainerRuntimeOption;
 import org.apache.pluto.container.om.portlet.PortletDefinition;
 import org.apache.pluto.driver.AttributeKeys;
 import org.apache.pluto.driver.config.DriverConfiguration;
+import org.apache.pluto.driver.core.AggregatedPortlet;
 import org.apache.pluto.driver.core.PortalRequestContext;
 import org.apache.pluto.driver.core.PortalServletResponse;
+import org.apache.pluto.driver.core.PortletRenderCache;
 import org.apache.pluto.driver.core.PortletWindowImpl;
 import org.apache.pluto.driver.services.portal.PortletWindowConfig;
 import org.apache.pluto.driver.url.PortalURL;
@@ -62,6 +64,9 @@ public class PortletTag extends BodyTagSupport {
    /** Status constant for successful rendering. */
    public static final int       SUCCESS          = 1;
 
+   /** Status constant for rendering that did not complete in time. */
+   public static final int       TIMEOUT          = 2;
+
    // Private Member Variables ------------------------------------------------
 
    /** The portlet ID attribute passed into this tag. */
@@ -158,6 +163,13 @@ public class PortletTag extends BodyTagSupport {
 
       }
 
+      // If the portlet was processed through parallel aggregation, pick up the result.
+      AggregatedPortlet aggregated = getAggregatedPortlet();
+      if (aggregated != null && aggregated.isRender()) {
+         collectAggregatedResult(aggregated);
+         return EVAL_BODY_INCLUDE;
+      }
+
       // Render the portlet and cache the response.
       try {
          String renderHeaders = null;
@@ -177,7 +189,13 @@ public class PortletTag extends BodyTagSupport {
             }
          }
 
-         container.doRender(window, (HttpServletRequest) pageContext.getRequest(), portalResponse, renderHeaders);
+         HttpServletRequest request = (HttpServletRequest) pageContext.getRequest();
+         PortletRenderCache renderCache = (PortletRenderCache) servletContext.getAttribute(AttributeKeys.RENDER_CACHE);
+         if (renderCache != null) {
+            renderCache.render(container, window, request, portalResponse, renderHeaders, portalURL);
+         } else {
+            container.doRender(window, request, portalResponse, renderHeaders);
+         }
          response = portalResponse;
          status = SUCCESS;
       } catch (Throwable th) {
@@ -229,6 +247,47 @@ public class PortletTag extends BodyTagSupport {
 
    // Private Methods ---------------------------------------------------------
 
+   /**
+    * Returns the portlet processed through parallel aggregation for the evaluated
+    * portlet ID, or <code>null</code> if parallel aggregation is not active.
+    */
+   private AggregatedPortlet getAggregatedPortlet() {
+      @SuppressWarnings("unchecked")
+      Map<String, AggregatedPortlet> portlets = (Map<String, AggregatedPortlet>) pageContext.getRequest()
+            .getAttribute(AttributeKeys.AGGREGATED_PORTLETS);
+      return (portlets == null) ? null : portlets.get(evaluatedPortletId);
+   }
+
+   /**
+    * Waits for the parallel render to complete and caches its result. The portlet
+    * title set during processing is made available to the title tag.
+    */
+   private void collectAggregatedResult(AggregatedPortlet aggregated) throws JspException {
+      try {
+         if (!aggregated.awaitRender()) {
+            LOG.warn("Rendering timed out for portlet window: " + evaluatedPortletId);
+            status = TIMEOUT;
+            return;
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new JspException(e);
+      }
+
+      Object title = aggregated.getRequest().getLocalAttribute(AttributeKeys.PORTLET_TITLE);
+      if (title != null) {
+         pageContext.getRequest().setAttribute(AttributeKeys.PORTLET_TITLE, title);
+      }
+
+      throwable = aggregated.getRenderError();
+      if (throwable == null) {
+         response = aggregated.getResponse();
+         status = SUCCESS;
+      } else {
+         status = FAILED;
+      }
+   }
+
    /**
     * Evaluates the portlet ID attribute passed into this tag. This method evaluates the member variable
     * <code>portletId</code> and saves the evaluated result to <code>evaluatedPortletId</code>
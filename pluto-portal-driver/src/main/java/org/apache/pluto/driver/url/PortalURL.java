@@ -16,6 +16,7 @@
  */
 package org.apache.pluto.driver.url;
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Map;
 
@@ -132,6 +133,25 @@ public interface PortalURL extends Cloneable {
 
    Collection<PortalURLParameter> getParameters();
 
+   /**
+    * Returns the private parameters of the given type for the window.
+    *
+    * @param windowId   the window ID
+    * @param type       the parameter type
+    * @return           an unmodifiable map from parameter name to parameter.
+    *                   Empty if the window has no parameters of the given type.
+    */
+   Map<String, PortalURLParameter> getParameters(String windowId, String type);
+
+   /**
+    * Returns a number that changes whenever the private parameters or the
+    * public render parameters are changed through this URL. Public render
+    * parameters set directly through the mapper are not counted.
+    *
+    * @return  the modification count
+    */
+   int getParameterModCount();
+
    Map<String, PortletMode> getPortletModes();
 
    PortletMode getPortletMode(String windowId);
@@ -152,6 +172,19 @@ public interface PortalURL extends Cloneable {
 
    String toURL(boolean absolute);
 
+   /**
+    * Writes the relative URL to the output without creating an intermediate
+    * string.
+    * 
+    * @param out
+    *           the output
+    * @param escapeXML
+    *           <code>true</code> if XML special characters are to be escaped
+    * @throws IOException
+    *            if the output cannot be written
+    */
+   void write(Appendable out, boolean escapeXML) throws IOException;
+
    String getServerURI();
 
    String getServletPath();
@@ -29,7 +29,7 @@ import org.slf4j.LoggerFactory;
  * @since Sep 30, 2004
  */
 public class PortalURLParameter {
-   private final Logger LOGGER = LoggerFactory.getLogger(PortalURLParameter.class);
+   private static final Logger LOGGER = LoggerFactory.getLogger(PortalURLParameter.class);
 
    public final static String PARAM_TYPE_RENDER = "rp";
    public final static String PARAM_TYPE_ACTION = "ap";
@@ -16,6 +16,8 @@
  */
 package org.apache.pluto.driver.url;
 
+import java.io.IOException;
+
 import javax.servlet.http.HttpServletRequest;
 
 /**
@@ -28,4 +30,5 @@ import javax.servlet.http.HttpServletRequest;
 public interface PortalURLParser {
     PortalURL parse(HttpServletRequest request);
     String toString(PortalURL portalURL);
+    void write(PortalURL portalURL, Appendable out, boolean escapeXML) throws IOException;
 }
@@ -24,6 +24,7 @@ import static org.apache.pluto.driver.url.PortalURLParameter.PARAM_TYPE_RESOURCE
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -70,6 +71,19 @@ public class PortletParameterFactory {
    
    private final PortletRequestContext reqctx;
    
+   // The merged parameter views handed out by this factory, by window ID.
+   // They remain valid as long as the URL parameters, the URL type and the
+   // query parameters of the request dispatch are unchanged.
+   private final Map<String, Map<String, String[]>> parameterMaps = 
+         new HashMap<String, Map<String, String[]>>(4);
+   private final Map<String, Map<String, String[]>> privateParameterMaps = 
+         new HashMap<String, Map<String, String[]>>(4);
+   private final Map<String, Map<String, String[]>> publicParameterMaps = 
+         new HashMap<String, Map<String, String[]>>(4);
+   private int viewModCount = -1;
+   private URLType viewType = null;
+   private Map<String, List<String>> viewQueryParams = null;
+   
    public PortletParameterFactory(PortalURL url, PortletRequestContext reqctx) {
       this.url = url;
       this.reqctx = reqctx;
@@ -86,73 +100,27 @@ public class PortletParameterFactory {
     * parameters taking precedence.
     * 
     * Note that the  latter circumstance will only occur with V3.0 portlets.
+    * 
+    * The returned map cannot be modified. It is reused until the parameters change.
     *  
     * @param windowId
     * @return
     */
    public Map<String, String[]> getParameterMap(String windowId) {
-      HashMap<String, String[]> parameters = new HashMap<String, String[]>();
-      
-      boolean isV3 = url.isVersion3(windowId);
-      
-      // add the query parameters, if any
-      
-      Map<String, List<String>> queryParams = reqctx.getQueryParams();
-      if (queryParams != null) {
-         for (String name : queryParams.keySet()) {
-            parameters.put(name, queryParams.get(name).toArray(new String[0]));
-         }
+      checkViews();
+      Map<String, String[]> parameters = parameterMaps.get(windowId);
+      if (parameters != null) {
+         return parameters;
       }
-
-      // get the action or resource parameters
       
-      for (PortalURLParameter pup : url.getParameters()) {
-         if (pup.getWindowId().equals(windowId)) { 
-            if (pup.getType().equals(PARAM_TYPE_ACTION) || pup.getType().equals(PARAM_TYPE_RESOURCE)) {
-               if (parameters.containsKey(pup.getName())) {
-                  ArrayList<String> vals = 
-                        new ArrayList<String>(Arrays.asList(parameters.get(pup.getName())));
-                  vals.addAll(Arrays.asList(pup.getValues()));
-                  parameters.put(pup.getName(), vals.toArray(new String[0]));
-               } else {
-                  parameters.put(pup.getName(), pup.getValues().clone());
-               }
-            }
-         }
-      }
-      
-      // Now merge in the render parameters if we're not dealing with a V2 action
+      parameters = getPrivateParameters(windowId);
 
-      if (isV3 || !actionTypes.contains(url.getType())) {
-         for (PortalURLParameter pup : url.getParameters()) {
-            if (pup.getWindowId().equals(windowId)) {
-               if (pup.getType().equals(PARAM_TYPE_RENDER)) {
-                  if (parameters.containsKey(pup.getName())) {
-                     ArrayList<String> vals = 
-                           new ArrayList<String>(Arrays.asList(parameters.get(pup.getName())));
-                     vals.addAll(Arrays.asList(pup.getValues()));
-                     parameters.put(pup.getName(), vals.toArray(new String[0]));
-                  } else {
-                     parameters.put(pup.getName(), pup.getValues().clone());
-                  }
-               }
-            }
-         }
-      }
-      
       // merge in the public render parameters
       
       PublicRenderParameterMapper mapper = url.getPublicRenderParameterMapper();
       List<PortalURLPublicParameter> prps = mapper.getPRPsForWindow(windowId, true);
       for (PortalURLPublicParameter prp : prps) {
-         if (parameters.containsKey(prp.getName())) {
-            ArrayList<String> vals = 
-                  new ArrayList<String>(Arrays.asList(parameters.get(prp.getName())));
-            vals.addAll(Arrays.asList(prp.getValues()));
-            parameters.put(prp.getName(), vals.toArray(new String[0]));
-         } else {
-            parameters.put(prp.getName(), prp.getValues().clone());
-         }
+         merge(parameters, prp.getName(), prp.getValues());
       }
 
       if (isTrace) {
@@ -168,9 +136,47 @@ public class PortletParameterFactory {
          }
          LOGGER.trace(sb.toString());
       }
+      
+      parameters = Collections.unmodifiableMap(parameters);
+      parameterMaps.put(windowId, parameters);
       return parameters;
    }
 
+   /**
+    * Returns the values of the parameter as contained in the map returned by
+    * {@link #getParameterMap(String)}, without building the map. The returned
+    * array must not be modified.
+    * 
+    * @param windowId
+    * @param name
+    * @return  the values, or <code>null</code> if the parameter is not set.
+    */
+   public String[] getMergedParameterValues(String windowId, String name) {
+      checkViews();
+      Map<String, String[]> parameters = parameterMaps.get(windowId);
+      if (parameters != null) {
+         return parameters.get(name);
+      }
+      
+      String[] vals = null;
+      Map<String, List<String>> queryParams = reqctx.getQueryParams();
+      if (queryParams != null && queryParams.containsKey(name)) {
+         vals = queryParams.get(name).toArray(new String[0]);
+      }
+      vals = concat(vals, url.getParameters(windowId, PARAM_TYPE_ACTION).get(name));
+      vals = concat(vals, url.getParameters(windowId, PARAM_TYPE_RESOURCE).get(name));
+      if (url.isVersion3(windowId) || !actionTypes.contains(url.getType())) {
+         vals = concat(vals, url.getParameters(windowId, PARAM_TYPE_RENDER).get(name));
+      }
+      
+      PublicRenderParameterMapper mapper = url.getPublicRenderParameterMapper();
+      int index = mapper.getIndex(windowId, name);
+      if (index >= 0 && !mapper.getRemoved(index)) {
+         vals = concat(vals, mapper.getValues(index));
+      }
+      return vals;
+   }
+
    /**
     * This V2.0 method returns the private parameters for the given window ID.
     * In the case of a render URL, it returns only the private render parameters.
@@ -180,59 +186,20 @@ public class PortletParameterFactory {
     * parameters taking precedence.
     * 
     * Note that the  latter circumstance will only occur with V3.0 portlets.
+    * 
+    * The returned map cannot be modified. It is reused until the parameters change.
     *  
     * @param windowId
     * @return
     */
    public Map<String, String[]> getPrivateParameterMap(String windowId) {
-      HashMap<String, String[]> parameters = new HashMap<String, String[]>();
-      
-      boolean isV3 = url.isVersion3(windowId);
-      
-      // add the query parameters, if any
-      
-      Map<String, List<String>> queryParams = reqctx.getQueryParams();
-      if (queryParams != null) {
-         for (String name : queryParams.keySet()) {
-            parameters.put(name, queryParams.get(name).toArray(new String[0]));
-         }
-      }
-
-      // get the action or resource parameters
-      
-      for (PortalURLParameter pup : url.getParameters()) {
-         if (pup.getWindowId().equals(windowId)) { 
-            if (pup.getType().equals(PARAM_TYPE_ACTION) || pup.getType().equals(PARAM_TYPE_RESOURCE)) {
-               if (parameters.containsKey(pup.getName())) {
-                  ArrayList<String> vals = 
-                        new ArrayList<String>(Arrays.asList(parameters.get(pup.getName())));
-                  vals.addAll(Arrays.asList(pup.getValues()));
-                  parameters.put(pup.getName(), vals.toArray(new String[0]));
-               } else {
-                  parameters.put(pup.getName(), pup.getValues().clone());
-               }
-            }
-         }
+      checkViews();
+      Map<String, String[]> parameters = privateParameterMaps.get(windowId);
+      if (parameters != null) {
+         return parameters;
       }
       
-      // Now merge in the render parameters if we're not dealing with a V2 action
-
-      if (isV3 || !actionTypes.contains(url.getType())) {
-         for (PortalURLParameter pup : url.getParameters()) {
-            if (pup.getWindowId().equals(windowId)) {
-               if (pup.getType().equals(PARAM_TYPE_RENDER)) {
-                  if (parameters.containsKey(pup.getName())) {
-                     ArrayList<String> vals = 
-                           new ArrayList<String>(Arrays.asList(parameters.get(pup.getName())));
-                     vals.addAll(Arrays.asList(pup.getValues()));
-                     parameters.put(pup.getName(), vals.toArray(new String[0]));
-                  } else {
-                     parameters.put(pup.getName(), pup.getValues().clone());
-                  }
-               }
-            }
-         }
-      }
+      parameters = getPrivateParameters(windowId);
 
       if (isTrace) {
          StringBuffer sb = new StringBuffer();
@@ -247,18 +214,29 @@ public class PortletParameterFactory {
          }
          LOGGER.trace(sb.toString());
       }
+      
+      parameters = Collections.unmodifiableMap(parameters);
+      privateParameterMaps.put(windowId, parameters);
       return parameters;
    }
    
    /**
     * Returns the active (= have been set) public render parameters for the
     * given window ID.
+    * 
+    * The returned map cannot be modified. It is reused until the parameters change.
     *  
     * @param windowId
     * @return
     */
    public Map<String, String[]> getPublicParameterMap(String windowId) {
-      HashMap<String, String[]> parameters = new HashMap<String, String[]>();
+      checkViews();
+      Map<String, String[]> parameters = publicParameterMaps.get(windowId);
+      if (parameters != null) {
+         return parameters;
+      }
+      
+      parameters = new HashMap<String, String[]>();
 
       PublicRenderParameterMapper mapper = url.getPublicRenderParameterMapper();
       
@@ -273,6 +251,8 @@ public class PortletParameterFactory {
          LOGGER.debug("getPublicParameterMap returning " + parameters.size() + " parameters.");
       }
       
+      parameters = Collections.unmodifiableMap(parameters);
+      publicParameterMaps.put(windowId, parameters);
       return parameters;
    }
 
@@ -285,12 +265,8 @@ public class PortletParameterFactory {
    public Map<String, String[]> getResourceRenderParameterMap(String windowId) {
       HashMap<String, String[]> parameters = new HashMap<String, String[]>();
 
-      for (PortalURLParameter pup : url.getParameters()) {
-         if (pup.getWindowId().equals(windowId)) {
-            if (pup.getType().equals(PARAM_TYPE_RENDER)) {
-               parameters.put(pup.getName(), pup.getValues().clone());
-            }
-         }
+      for (PortalURLParameter pup : url.getParameters(windowId, PARAM_TYPE_RENDER).values()) {
+         parameters.put(pup.getName(), pup.getValues().clone());
       }
       
       return parameters;
@@ -307,6 +283,7 @@ public class PortletParameterFactory {
       int index = prpMapper.getIndex(windowId, name);
       if (index >= 0) {
          prpMapper.setValues(index, values);
+         clearViews();
       } else {
          StringBuilder txt = new StringBuilder(
                "Public render parameter for window: ");
@@ -326,6 +303,7 @@ public class PortletParameterFactory {
       int index = prpMapper.getIndex(windowId, name);
       if (index >= 0) {
          prpMapper.setRemoved(index, true);
+         clearViews();
       } else {
          StringBuilder txt = new StringBuilder("Public render parameter for window: ");
          txt.append(windowId).append(", name: ").append(name)
@@ -361,10 +339,8 @@ public class PortletParameterFactory {
       
       // add the portlet parameter names
       
-      for (PortalURLParameter p : url.getParameters()) {
-         if (p.getWindowId().equals(windowId) && p.getType().equals(type)) {
-            names.add(p.getName());
-         }
+      if (type != null) {
+         names.addAll(url.getParameters(windowId, type).keySet());
       }
 
       if (isTrace) {
@@ -401,12 +377,10 @@ public class PortletParameterFactory {
          } else {
             LOGGER.debug("Public render parameter name not found in index.");
          }
-      } else {
-         for (PortalURLParameter p : url.getParameters()) {
-            if (p.getWindowId().equals(windowId)
-               && p.getName().equals(name) && p.getType().equals(type)) {
-               vals = p.getValues().clone();
-            }
+      } else if (type != null) {
+         PortalURLParameter p = url.getParameters(windowId, type).get(name);
+         if (p != null) {
+            vals = p.getValues().clone();
          }
       }
       
@@ -514,19 +488,8 @@ public class PortletParameterFactory {
       }
 
       
-      for (PortalURLParameter pup : url.getParameters()) {
-         if (pup.getWindowId().equals(windowId)) {
-            if (pup.getType().equals(type)) {
-               if (params.containsKey(pup.getName())) {
-                  ArrayList<String> vals = 
-                        new ArrayList<String>(Arrays.asList(params.get(pup.getName())));
-                  vals.addAll(Arrays.asList(pup.getValues()));
-                  params.put(pup.getName(), vals.toArray(new String[0]));
-               } else {
-                  params.put(pup.getName(), pup.getValues().clone());
-               }
-            }
-         }
+      for (PortalURLParameter pup : url.getParameters(windowId, type).values()) {
+         merge(params, pup.getName(), pup.getValues());
       }
 
       if (type.equals(PARAM_TYPE_RENDER)) {
@@ -535,14 +498,7 @@ public class PortletParameterFactory {
 
          // Get only the active (= set) PRPs for the window
          for (PortalURLPublicParameter prp : mapper.getPRPsForWindow(windowId, true)) {
-            if (params.containsKey(prp.getName())) {
-               ArrayList<String> vals = 
-                     new ArrayList<String>(Arrays.asList(params.get(prp.getName())));
-               vals.addAll(Arrays.asList(prp.getValues()));
-               params.put(prp.getName(), vals.toArray(new String[0]));
-            } else {
-               params.put(prp.getName(), prp.getValues().clone());
-            }
+            merge(params, prp.getName(), prp.getValues());
          }
       }
       
@@ -575,6 +531,7 @@ public class PortletParameterFactory {
       
       if (type.equals(PARAM_TYPE_RENDER) && (index >= 0)) {
          mapper.setValues(index, values);
+         clearViews();
       } else {
          PortalURLParameter pup = new PortalURLParameter(windowId, name, values, type);
          url.setParameter(pup);
@@ -606,6 +563,7 @@ public class PortletParameterFactory {
       
       if (type.equals(PARAM_TYPE_RENDER) && (index >= 0)) {
          mapper.setRemoved(index, true);
+         clearViews();
       } else {
          PortalURLParameter pup = new PortalURLParameter(windowId, name, null, type);
          url.removeParameter(pup);
@@ -647,4 +605,89 @@ public class PortletParameterFactory {
 
       return names;
    }
+
+   /**
+    * Returns a new map containing the query parameters and the private
+    * parameters of the window that are visible in the current phase.
+    */
+   private Map<String, String[]> getPrivateParameters(String windowId) {
+      HashMap<String, String[]> parameters = new HashMap<String, String[]>();
+      
+      // add the query parameters, if any
+      
+      Map<String, List<String>> queryParams = reqctx.getQueryParams();
+      if (queryParams != null) {
+         for (String name : queryParams.keySet()) {
+            parameters.put(name, queryParams.get(name).toArray(new String[0]));
+         }
+      }
+
+      // get the action or resource parameters
+      
+      for (PortalURLParameter pup : url.getParameters(windowId, PARAM_TYPE_ACTION).values()) {
+         merge(parameters, pup.getName(), pup.getValues());
+      }
+      for (PortalURLParameter pup : url.getParameters(windowId, PARAM_TYPE_RESOURCE).values()) {
+         merge(parameters, pup.getName(), pup.getValues());
+      }
+      
+      // Now merge in the render parameters if we're not dealing with a V2 action
+
+      if (url.isVersion3(windowId) || !actionTypes.contains(url.getType())) {
+         for (PortalURLParameter pup : url.getParameters(windowId, PARAM_TYPE_RENDER).values()) {
+            merge(parameters, pup.getName(), pup.getValues());
+         }
+      }
+      return parameters;
+   }
+
+   /**
+    * Discards the merged parameter views if the URL parameters, the URL type
+    * or the query parameters have changed since they were built.
+    */
+   private void checkViews() {
+      int modCount = url.getParameterModCount();
+      URLType type = url.getType();
+      Map<String, List<String>> queryParams = reqctx.getQueryParams();
+      if (modCount != viewModCount || type != viewType || queryParams != viewQueryParams) {
+         clearViews();
+         viewModCount = modCount;
+         viewType = type;
+         viewQueryParams = queryParams;
+      }
+   }
+
+   private void clearViews() {
+      parameterMaps.clear();
+      privateParameterMaps.clear();
+      publicParameterMaps.clear();
+   }
+
+   /**
+    * Adds a copy of the values to the map, appending them to any values
+    * already contained in the map.
+    */
+   private static void merge(Map<String, String[]> params, String name, String[] values) {
+      String[] vals = params.get(name);
+      params.put(name, (vals == null) ? values.clone() : concat(vals, values));
+   }
+
+   private static String[] concat(String[] vals, PortalURLParameter pup) {
+      return (pup == null) ? vals : concat(vals, pup.getValues());
+   }
+
+   /**
+    * Returns an array containing both sets of values. Returns one of the
+    * arrays if the other is <code>null</code>.
+    */
+   private static String[] concat(String[] vals, String[] more) {
+      if (vals == null) {
+         return more;
+      } else if (more == null) {
+         return vals;
+      }
+      String[] res = Arrays.copyOf(vals, vals.length + more.length);
+      System.arraycopy(more, 0, res, vals.length, more.length);
+      return res;
+   }
 }
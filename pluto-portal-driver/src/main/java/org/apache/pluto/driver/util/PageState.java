@@ -21,18 +21,16 @@ package org.apache.pluto.driver.util;
 
 import static java.util.logging.Level.*;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.Collection;
-import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 
-import javax.portlet.PortletConfig;
-import javax.portlet.PortletMode;
 import javax.portlet.PortletURL;
-import javax.portlet.WindowState;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 
@@ -56,6 +54,10 @@ import org.apache.pluto.driver.url.PortalURLPublicParameter;
 public class PageState {
    private static final String LOG_CLASS = PageState.class.getName();
    private final Logger        LOGGER    = Logger.getLogger(LOG_CLASS);
+   
+   // the allowed portlet modes, window states, and public render parameter names
+   // only change when portlets are deployed
+   private static final PortletInfoCache portletInfo = new PortletInfoCache();
 
    private DriverConfiguration   drvrConfig;
    private PageConfig            pageConfig;
@@ -137,18 +139,7 @@ public class PageState {
     * @return  Set of string public render parameter names
     */
    public Set<String> getPRPNames(String portletId) {
-      Set<String> prpnames = new HashSet<String>();
-      PortletConfig pc = null;
-
-      try {
-         pc = drvrConfig.getPortletConfig(portletId);
-         Enumeration<String> prps = pc.getPublicRenderParameterNames();
-         while (prps.hasMoreElements()) {
-            String prp = prps.nextElement();
-            prpnames.add(prp);
-         }
-      } catch (Exception e) {}
-      return prpnames;
+      return portletInfo.get(drvrConfig, portletId).prpNames;
    }
    
    /**
@@ -158,20 +149,7 @@ public class PageState {
     * @return  Delimited string of public render parameter names
     */
    public String getPRPNamesAsString(String portletId) {
-      PortletConfig pc = null;
-      StringBuffer prpstring = new StringBuffer();;
-
-      String sep = "";
-      try {
-         pc = drvrConfig.getPortletConfig(portletId);
-         Enumeration<String> prps = pc.getPublicRenderParameterNames();
-         while (prps.hasMoreElements()) {
-            String prp = prps.nextElement();
-            prpstring.append(sep + "\"" + prp + "\"");
-            sep = ", ";
-         }
-      } catch (Exception e) {}
-      return prpstring.toString();
+      return toJSONArrayContent(getPRPNames(portletId));
    }
    
    
@@ -182,16 +160,7 @@ public class PageState {
     * @return  Delimited string of portlet mode names
     */
    public String getPortletModesAsString(String portletId) {
-      StringBuffer pmstring = new StringBuffer();
-      try {
-         Set<PortletMode> allowedPMs = drvrConfig.getSupportedPortletModes(portletId);
-         String sep = "";
-         for (PortletMode pm : allowedPMs) {
-            pmstring.append(sep + "\"" + pm.toString() + "\"");
-            sep = ", ";
-         }
-      } catch (Exception e) {}
-      return pmstring.toString();
+      return toJSONArrayContent(portletInfo.get(drvrConfig, portletId).portletModes);
    }
    
    
@@ -202,16 +171,17 @@ public class PageState {
     * @return  Delimited string of window state names
     */
    public String getWindowStatesAsString(String portletId) {
-      StringBuffer wsstring = new StringBuffer();
+      return toJSONArrayContent(portletInfo.get(drvrConfig, portletId).windowStates);
+   }
+   
+   private static String toJSONArrayContent(Collection<String> vals) {
+      StringWriter sw = new StringWriter();
       try {
-         Set<WindowState> allowedWSs = drvrConfig.getSupportedWindowStates(portletId, "text/html");
-         String sep = "";
-         for (WindowState ws : allowedWSs) {
-            wsstring.append(sep + "\"" + ws.toString() + "\"");
-            sep = ", ";
-         }
-      } catch (Exception e) {}
-      return wsstring.toString();
+         writeArrayContent(sw, vals);
+      } catch (IOException e) {
+         // cannot happen with a StringWriter
+      }
+      return sw.toString();
    }
    
    /**
@@ -255,113 +225,197 @@ public class PageState {
     * @return  JSON string representing the current page state
     */
    public String toJSONString() {
-      StringBuffer json = new StringBuffer(1024);
-      json.append("{\"portlets\" : {\n");
+      StringWriter sw = new StringWriter(1024);
+      try {
+         writeJSON(sw);
+      } catch (IOException e) {
+         // cannot happen with a StringWriter
+      }
+      return sw.toString();
+   }
+   
+   /**
+    * Writes the page state needed by the portlet hub as JSON to the given writer.
+    * 
+    * @param json    the writer, usually the response writer
+    * @throws IOException
+    */
+   public void writeJSON(Writer json) throws IOException {
+      json.write("{\"portlets\" : {\n");
       
       Collection<PortalURLParameter> pups = getParameters();
-      Map<String, String[]> pubparms = getPublicParameters();
       PublicRenderParameterMapper mapper = portalUrl.getPublicRenderParameterMapper();
-      int numGroups = mapper.getNumberOfGroups();
       
       boolean sep = false;
       for (String pid : getPortletIds()) {
          if (sep) {
-            json.append(",\n");
+            json.write(",\n");
          }
          sep = true;
-         json.append("   \"" + getNameSpace(pid) + "\" : {\n");
-         json.append("      \"state\" : {\n");
-         json.append("         \"parameters\" : {\n");
+         json.write("   ");
+         writeString(json, getNameSpace(pid));
+         json.write(" : {\n");
+         json.write("      \"state\" : {\n");
+         json.write("         \"parameters\" : {\n");
 
          // Add the portlet parameters
-         String c1 = "            \"";
+         String c1 = "            ";
          for (PortalURLParameter pup : pups){
             if (pup.getWindowId().equals(pid)){
-               json.append(c1  + pup.getName() + "\" : [");
-               String c2 = "";
-               for (String val : pup.getValues()) {
-                  json.append(c2 + " \"" + val + "\"");
-                  c2 = ",";
-               }
-               json.append("]");
-               c1 = ",\n            \"";
+               json.write(c1);
+               writeString(json, pup.getName());
+               json.write(" : [");
+               writeArrayContent(json, pup.getValues());
+               json.write("]");
+               c1 = ",\n            ";
             }
          }
          
          // Add the public render parameter values for this portlet
          
          for (PortalURLPublicParameter prp : mapper.getPRPsForWindow(pid, true)) {
-            json.append(c1 + prp.getName() + "\" : [");
-            String c2 = "";
-            for (String val : prp.getValues()) {
-               json.append(c2 + " \"" + val + "\"");
-               c2 = ",";
-            }
-            json.append("]");
-            c1 = ",\n            \"";
+            json.write(c1);
+            writeString(json, prp.getName());
+            json.write(" : [");
+            writeArrayContent(json, prp.getValues());
+            json.write("]");
+            c1 = ",\n            ";
          }
-         
-//          Set<String> prpnames = getPRPNames(pid);
-//          for (String prp : pubparms.keySet()) {
-//             if (prpnames.contains(prp)) {
-//                json.append(c1 + prp + "\" : [");
-//                String c2 = "";
-//                for (String val : (String[])pubparms.get(prp)) {
-//                   json.append(c2 + " \"" + val + "\"");
-//                   c2 = ",";
-//                }
-//                json.append("]");
-//                c1 = ",\n            \"";
-//             }
-//          }
 
-         json.append("         }, \n");
-         json.append("         \"portletMode\" : \"" + getPortletMode(pid) + "\", \n");
-         json.append("         \"windowState\" : \"" + getWindowState(pid) + "\"\n");
-         json.append("      },\n");
-//          json.append("      \"pubParms\" : [" + getPRPNamesAsString(pid) + "],\n");
+         json.write("         }, \n");
+         json.write("         \"portletMode\" : ");
+         writeString(json, getPortletMode(pid));
+         json.write(", \n");
+         json.write("         \"windowState\" : ");
+         writeString(json, getWindowState(pid));
+         json.write("\n");
+         json.write("      },\n");
          
-         json.append("      \"pubParms\" : {");
+         json.write("      \"pubParms\" : {");
          String c2 = "";
          for (PortalURLPublicParameter prp : mapper.getPRPsForWindow(pid, false)) {
             int group = mapper.getIndex(prp);
-            json.append(c2);
-            json.append("\"");
-            json.append(prp.getName());
-            json.append("\" : \"");
-            json.append(String.valueOf(group));
-            json.append("\"");
+            json.write(c2);
+            writeString(json, prp.getName());
+            json.write(" : \"");
+            json.write(String.valueOf(group));
+            json.write("\"");
             c2 = ", ";
          }
-         json.append("},\n");
+         json.write("},\n");
          
-         json.append("      \"allowedPM\" : [" + getPortletModesAsString(pid) + "],\n");
-         json.append("      \"allowedWS\" : [" + getWindowStatesAsString(pid) + "],\n");
-         json.append("      \"renderData\" : {\n");
-         json.append("         \"renderData\" : null,\n");
-         json.append("         \"mimeType\" : \"text/plain\"\n");
-         json.append("      },\n");
-         json.append("      \"urlpid\" : \"" + pid + "\"\n");
-         json.append("   }");
+         PortletInfoCache.PortletInfo info = portletInfo.get(drvrConfig, pid);
+         json.write("      \"allowedPM\" : [");
+         writeArrayContent(json, info.portletModes);
+         json.write("],\n");
+         json.write("      \"allowedWS\" : [");
+         writeArrayContent(json, info.windowStates);
+         json.write("],\n");
+         json.write("      \"renderData\" : {\n");
+         json.write("         \"renderData\" : null,\n");
+         json.write("         \"mimeType\" : \"text/plain\"\n");
+         json.write("      },\n");
+         json.write("      \"urlpid\" : ");
+         writeString(json, pid);
+         json.write("\n");
+         json.write("   }");
       }
       
-      json.append("\n},\n\"prpMap\" : {");
+      json.write("\n},\n\"prpMap\" : {");
       String sep1 = "";
       for (int ii=0; ii < mapper.getNumberOfGroups(); ii++) {
-         json.append(sep1).append("\n   \"").append(String.valueOf(ii)).append("\" : {");
+         json.write(sep1);
+         json.write("\n   \"");
+         json.write(String.valueOf(ii));
+         json.write("\" : {");
          sep1 = ",";
          String sep2 = "";
          for (PortalURLPublicParameter prp : mapper.getPublicParameterGroup(ii)) {
-            json.append(sep2).append("\n      \"")
-                .append(getNameSpace(prp.getWindowId()))
-                .append("\" : \"")
-                .append(prp.getName()).append("\"");
+            json.write(sep2);
+            json.write("\n      ");
+            writeString(json, getNameSpace(prp.getWindowId()));
+            json.write(" : ");
+            writeString(json, prp.getName());
             sep2 = ", ";
          }
-         json.append("   }");
+         json.write("   }");
       }
-      json.append("\n}}");
-
-      return json.toString();
+      json.write("\n}}");
+   }
+   
+   private static void writeArrayContent(Writer json, String[] vals) throws IOException {
+      String sep = "";
+      for (String val : vals) {
+         json.write(sep);
+         writeString(json, val);
+         sep = ", ";
+      }
+   }
+   
+   private static void writeArrayContent(Writer json, Collection<String> vals) throws IOException {
+      String sep = "";
+      for (String val : vals) {
+         json.write(sep);
+         writeString(json, val);
+         sep = ", ";
+      }
+   }
+   
+   /**
+    * Writes a JSON string literal. Besides the characters that must be escaped in JSON,
+    * the slash in "&lt;/" and the line and paragraph separators are escaped, as the
+    * page state is also embedded in a script element of the page.
+    * 
+    * @param json    the writer
+    * @param str     the string, may be <code>null</code>
+    * @throws IOException
+    */
+   static void writeString(Writer json, String str) throws IOException {
+      if (str == null) {
+         json.write("null");
+         return;
+      }
+      json.write('"');
+      int len = str.length();
+      int start = 0;
+      for (int ii = 0; ii < len; ii++) {
+         char c = str.charAt(ii);
+         String esc = null;
+         if (c == '"') {
+            esc = "\\\"";
+         } else if (c == '\\') {
+            esc = "\\\\";
+         } else if (c == '/' && ii > 0 && str.charAt(ii - 1) == '<') {
+            esc = "\\/";
+         } else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+            switch (c) {
+            case '\n':
+               esc = "\\n";
+               break;
+            case '\r':
+               esc = "\\r";
+               break;
+            case '\t':
+               esc = "\\t";
+               break;
+            case '\b':
+               esc = "\\b";
+               break;
+            case '\f':
+               esc = "\\f";
+               break;
+            default:
+               String hex = Integer.toHexString(c);
+               esc = "\\u0000".substring(0, 6 - hex.length()) + hex;
+            }
+         }
+         if (esc != null) {
+            json.write(str, start, ii - start);
+            json.write(esc);
+            start = ii + 1;
+         }
+      }
+      json.write(str, start, len - start);
+      json.write('"');
    }
 }
@@ -0,0 +1,127 @@
+/*  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+
+
+package org.apache.pluto.driver.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.portlet.PortletConfig;
+import javax.portlet.PortletMode;
+import javax.portlet.WindowState;
+
+import org.apache.pluto.container.driver.PortletRegistryEvent;
+import org.apache.pluto.container.driver.PortletRegistryListener;
+import org.apache.pluto.container.driver.PortletRegistryService;
+import org.apache.pluto.driver.config.DriverConfiguration;
+
+/**
+ * Caches the portlet data needed by the portlet hub that only changes when
+ * portlet applications are deployed: the allowed portlet modes and window states,
+ * and the public render parameter names.
+ * <p>
+ * The cache registers itself with the portlet registry and is cleared whenever
+ * a portlet application is registered or removed.
+ */
+class PortletInfoCache implements PortletRegistryListener {
+
+   /**
+    * The cached data for a portlet.
+    */
+   static class PortletInfo {
+      final List<String> portletModes;
+      final List<String> windowStates;
+      final Set<String>  prpNames;
+
+      PortletInfo(DriverConfiguration dc, String portletId) {
+         List<String> pms = new ArrayList<String>();
+         try {
+            for (PortletMode pm : dc.getSupportedPortletModes(portletId)) {
+               pms.add(pm.toString());
+            }
+         } catch (Exception e) {}
+         portletModes = Collections.unmodifiableList(pms);
+
+         List<String> wss = new ArrayList<String>();
+         try {
+            for (WindowState ws : dc.getSupportedWindowStates(portletId, "text/html")) {
+               wss.add(ws.toString());
+            }
+         } catch (Exception e) {}
+         windowStates = Collections.unmodifiableList(wss);
+
+         Set<String> prps = new LinkedHashSet<String>();
+         try {
+            PortletConfig pc = dc.getPortletConfig(portletId);
+            Enumeration<String> names = pc.getPublicRenderParameterNames();
+            while (names.hasMoreElements()) {
+               prps.add(names.nextElement());
+            }
+         } catch (Exception e) {}
+         prpNames = Collections.unmodifiableSet(prps);
+      }
+   }
+
+   // replaced rather than cleared, so that data computed concurrently with a
+   // registry change is not kept
+   private volatile ConcurrentMap<String, PortletInfo> infos = new ConcurrentHashMap<String, PortletInfo>();
+   private volatile PortletRegistryService             registeredWith;
+
+   /**
+    * Returns the cached data for the portlet, computing it if necessary.
+    *
+    * @param dc         the driver configuration
+    * @param portletId  the portlet ID
+    * @return           the portlet data
+    */
+   PortletInfo get(DriverConfiguration dc, String portletId) {
+      PortletRegistryService registry = dc.getPortletRegistryService();
+      if (registry != registeredWith) {
+         synchronized (this) {
+            if (registry != registeredWith) {
+               registry.addPortletRegistryListener(this);
+               registeredWith = registry;
+               infos = new ConcurrentHashMap<String, PortletInfo>();
+            }
+         }
+      }
+
+      ConcurrentMap<String, PortletInfo> map = infos;
+      PortletInfo info = map.get(portletId);
+      if (info == null) {
+         info = new PortletInfo(dc, portletId);
+         map.put(portletId, info);
+      }
+      return info;
+   }
+
+   public void portletApplicationRegistered(PortletRegistryEvent event) {
+      infos = new ConcurrentHashMap<String, PortletInfo>();
+   }
+
+   public void portletApplicationRemoved(PortletRegistryEvent event) {
+      infos = new ConcurrentHashMap<String, PortletInfo>();
+   }
+}
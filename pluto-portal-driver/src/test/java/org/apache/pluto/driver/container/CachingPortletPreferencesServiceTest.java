@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.container;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.portlet.PortletRequest;
+
+import org.apache.pluto.container.PortletPreference;
+import org.apache.pluto.container.PortletWindow;
+import org.apache.pluto.container.impl.PortletPreferenceImpl;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.jmock.Mock;
+
+/**
+ * Test Class
+ */
+public class CachingPortletPreferencesServiceTest extends PlutoTestCase {
+
+    private PortletWindow window;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        Mock portlet = mock(PortletDefinition.class);
+        portlet.stubs().method("getPortletName").will(returnValue("TestPortlet"));
+        Mock win = mock(PortletWindow.class);
+        win.stubs().method("getPortletDefinition").will(returnValue(portlet.proxy()));
+        window = (PortletWindow) win.proxy();
+    }
+
+    public void testHitsAndEviction() throws Exception {
+        DefaultPortletPreferencesService store = new DefaultPortletPreferencesService();
+        CachingPortletPreferencesService service = new CachingPortletPreferencesService(store);
+        service.setMaxEntries(2);
+        service.init();
+
+        store.store(window, request("user1"), single("one"));
+        assertEquals("one", value(service, "user1"));
+        assertEquals("one", value(service, "user1"));
+        assertEquals(1, service.getHits());
+        assertEquals(1, service.getMisses());
+
+        // the stale value is served until the entry is evicted
+        store.store(window, request("user1"), single("two"));
+        assertEquals("one", value(service, "user1"));
+        value(service, "user2");
+        value(service, "user3");
+        assertEquals(2, service.getSize());
+        assertEquals(1, service.getEvictions());
+        assertEquals("two", value(service, "user1"));
+
+        // storing through the cache invalidates the entry
+        service.store(window, request("user1"), single("three"));
+        assertEquals("three", value(service, "user1"));
+        assertEquals(2, service.getHits());
+        assertEquals(5, service.getMisses());
+        assertEquals(2.0 / 7, service.getHitRate(), 0.001);
+        service.destroy();
+    }
+
+    public void testClusterInvalidation() throws Exception {
+        DefaultPortletPreferencesService store = new DefaultPortletPreferencesService();
+
+        DatagramInvalidationChannel channelB = new DatagramInvalidationChannel();
+        channelB.setPort(0);
+        CachingPortletPreferencesService nodeB = new CachingPortletPreferencesService(store);
+        nodeB.setInvalidationChannel(channelB);
+        nodeB.init();
+
+        DatagramInvalidationChannel channelA = new DatagramInvalidationChannel();
+        channelA.setPort(0);
+        channelA.setPeers("127.0.0.1:" + channelB.getLocalPort());
+        CachingPortletPreferencesService nodeA = new CachingPortletPreferencesService(store);
+        nodeA.setInvalidationChannel(channelA);
+        nodeA.init();
+
+        try {
+            nodeA.store(window, request("user1"), single("one"));
+            awaitInvalidations(nodeB, 1);
+            assertEquals("one", value(nodeB, "user1"));
+            assertEquals(1, nodeB.getSize());
+
+            nodeA.store(window, request("user1"), single("two"));
+            assertEquals(2, nodeA.getInvalidationsPublished());
+            awaitInvalidations(nodeB, 2);
+            assertEquals(0, nodeB.getSize());
+            assertEquals("two", value(nodeB, "user1"));
+        } finally {
+            nodeA.destroy();
+            nodeB.destroy();
+        }
+    }
+
+    private void awaitInvalidations(CachingPortletPreferencesService service, long count)
+    throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (service.getInvalidationsReceived() < count && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, service.getInvalidationsReceived());
+    }
+
+    private PortletRequest request(String user) {
+        Mock req = mock(PortletRequest.class);
+        req.stubs().method("getRemoteUser").will(returnValue(user));
+        return (PortletRequest) req.proxy();
+    }
+
+    private String value(CachingPortletPreferencesService service, String user) throws Exception {
+        PortletPreference pref = service.getStoredPreferences(window, request(user)).get("name");
+        return pref == null ? null : pref.getValues()[0];
+    }
+
+    private Map<String, PortletPreference> single(String value) {
+        Map<String, PortletPreference> prefs = new HashMap<String, PortletPreference>();
+        prefs.put("name", new PortletPreferenceImpl("name", new String[] {value}));
+        return prefs;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.container;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.portlet.PortletRequest;
+
+import org.apache.pluto.container.PortletPreference;
+import org.apache.pluto.container.PortletWindow;
+import org.apache.pluto.container.impl.PortletPreferenceImpl;
+import org.apache.pluto.container.om.portlet.PortletDefinition;
+import org.jmock.Mock;
+
+/**
+ * Test Class
+ */
+public class PersistentPortletPreferencesServiceTest extends PlutoTestCase {
+
+    private File directory;
+    private PortletWindow window;
+    private PortletRequest request;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        directory = File.createTempFile("pluto-prefs", "");
+        directory.delete();
+
+        Mock portlet = mock(PortletDefinition.class);
+        portlet.stubs().method("getPortletName").will(returnValue("TestPortlet"));
+        Mock win = mock(PortletWindow.class);
+        win.stubs().method("getPortletDefinition").will(returnValue(portlet.proxy()));
+        window = (PortletWindow) win.proxy();
+        Mock req = mock(PortletRequest.class);
+        req.stubs().method("getRemoteUser").will(returnValue("user1"));
+        request = (PortletRequest) req.proxy();
+    }
+
+    public void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    public void testStoreAndRecover() throws Exception {
+        PersistentPortletPreferencesService service = createService();
+        Map<String, PortletPreference> prefs = new HashMap<String, PortletPreference>();
+        prefs.put("a", new PortletPreferenceImpl("a", new String[] {"x", null, "\u20ac"}));
+        prefs.put("b", new PortletPreferenceImpl("b", null, true));
+        prefs.put("c", new PortletPreferenceImpl("c", new String[0]));
+        service.store(window, request, prefs);
+        service.destroy();
+
+        service = createService();
+        Map<String, PortletPreference> stored = service.getStoredPreferences(window, request);
+        service.destroy();
+        assertEquals(3, stored.size());
+        assertTrue(Arrays.equals(new String[] {"x", null, "\u20ac"}, stored.get("a").getValues()));
+        assertFalse(stored.get("a").isReadOnly());
+        assertNull(stored.get("b").getValues());
+        assertTrue(stored.get("b").isReadOnly());
+        assertEquals(0, stored.get("c").getValues().length);
+    }
+
+    public void testPartialRecordDiscarded() throws Exception {
+        PersistentPortletPreferencesService service = createService();
+        service.store(window, request, single("value"));
+        service.destroy();
+
+        File log = new File(directory, "preferences.log");
+        long length = log.length();
+        FileOutputStream out = new FileOutputStream(log, true);
+        out.write(new byte[] {0, 0, 0, 20, 1, 2, 3});
+        out.close();
+
+        service = createService();
+        Map<String, PortletPreference> stored = service.getStoredPreferences(window, request);
+        assertEquals("value", stored.get("name").getValues()[0]);
+        assertEquals(length, log.length());
+
+        // the log can still be appended to
+        service.store(window, request, single("new value"));
+        service.destroy();
+        service = createService();
+        stored = service.getStoredPreferences(window, request);
+        service.destroy();
+        assertEquals("new value", stored.get("name").getValues()[0]);
+    }
+
+    public void testCompaction() throws Exception {
+        PersistentPortletPreferencesService service = createService();
+        service.store(window, request, single("value00"));
+        service.destroy();
+        File log = new File(directory, "preferences.log");
+        long length = log.length();
+
+        service = createService();
+        for (int ii = 1; ii < 50; ii++) {
+            service.store(window, request, single("value" + (ii < 10 ? "0" : "") + ii));
+        }
+        service.destroy();
+        assertTrue("Log not compacted: " + log.length(), log.length() <= 6 * length);
+
+        service = createService();
+        Map<String, PortletPreference> stored = service.getStoredPreferences(window, request);
+        service.destroy();
+        assertEquals("value49", stored.get("name").getValues()[0]);
+    }
+
+    public void testWriteFailure() throws Exception {
+        final CountDownLatch failed = new CountDownLatch(1);
+        PersistentPortletPreferencesService service = new PersistentPortletPreferencesService() {
+            void appendRecord(DataOutputStream out, Record rec, String key, Map<String, PortletPreference> prefs)
+            throws IOException {
+                if (failed.getCount() > 0) {
+                    // a partial record reaches the log before the failure
+                    out.write(new byte[] {0, 0, 0, 20, 1, 2, 3});
+                    out.flush();
+                    failed.countDown();
+                    throw new IOException("Test failure");
+                }
+                super.appendRecord(out, rec, key, prefs);
+            }
+        };
+        initService(service);
+        service.store(window, request, single("value1"));
+        assertTrue(failed.await(10, TimeUnit.SECONDS));
+
+        // the next batch writes the failed preferences again
+        Mock req = mock(PortletRequest.class);
+        req.stubs().method("getRemoteUser").will(returnValue("user2"));
+        PortletRequest request2 = (PortletRequest) req.proxy();
+        service.store(window, request2, single("value2"));
+        service.destroy();
+
+        service = createService();
+        Map<String, PortletPreference> stored1 = service.getStoredPreferences(window, request);
+        Map<String, PortletPreference> stored2 = service.getStoredPreferences(window, request2);
+        service.destroy();
+        assertEquals("value1", stored1.get("name").getValues()[0]);
+        assertEquals("value2", stored2.get("name").getValues()[0]);
+    }
+
+    public void testStoredPreferencesUnmodifiable() throws Exception {
+        PersistentPortletPreferencesService service = createService();
+        service.store(window, request, single("value"));
+        Map<String, PortletPreference> stored = service.getStoredPreferences(window, request);
+        service.destroy();
+        try {
+            stored.remove("name");
+            fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+        }
+        try {
+            stored.get("name").setValues(new String[] {"changed"});
+            fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+        }
+        assertEquals("value", stored.get("name").getValues()[0]);
+    }
+
+    private PersistentPortletPreferencesService createService() throws Exception {
+        return initService(new PersistentPortletPreferencesService());
+    }
+
+    private PersistentPortletPreferencesService initService(PersistentPortletPreferencesService service)
+    throws Exception {
+        service.setDirectory(directory.getPath());
+        service.setCompactionThreshold(5);
+        service.init();
+        return service;
+    }
+
+    private Map<String, PortletPreference> single(String value) {
+        Map<String, PortletPreference> prefs = new HashMap<String, PortletPreference>();
+        prefs.put("name", new PortletPreferenceImpl("name", new String[] {value}));
+        return prefs;
+    }
+}
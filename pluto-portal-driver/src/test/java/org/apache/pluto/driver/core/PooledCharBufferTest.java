@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.core;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Test Class
+ */
+public class PooledCharBufferTest extends TestCase {
+
+    public void testWrite() throws Exception {
+        PooledCharBuffer buffer = new PooledCharBuffer();
+        assertEquals(0, buffer.length());
+        assertEquals("", buffer.toString());
+
+        StringBuilder expected = new StringBuilder();
+        PrintWriter writer = new PrintWriter(buffer);
+        for (int ii = 0; ii < 2000; ii++) {
+            writer.print("line " + ii);
+            writer.write('\n');
+            expected.append("line ").append(ii).append('\n');
+        }
+        char[] chars = new char[PooledCharBuffer.CHUNK_SIZE + 10];
+        Arrays.fill(chars, 'x');
+        writer.write(chars, 5, PooledCharBuffer.CHUNK_SIZE + 3);
+        expected.append(chars, 5, PooledCharBuffer.CHUNK_SIZE + 3);
+
+        assertTrue(buffer.length() > 3 * PooledCharBuffer.CHUNK_SIZE);
+        assertEquals(expected.length(), buffer.length());
+        assertEquals(expected.toString(), buffer.toString());
+
+        StringWriter out = new StringWriter();
+        buffer.writeTo(out);
+        assertEquals(expected.toString(), out.toString());
+    }
+
+    public void testRecycle() throws Exception {
+        PooledCharBuffer buffer = new PooledCharBuffer();
+        char[] chars = new char[3 * PooledCharBuffer.CHUNK_SIZE];
+        buffer.write(chars, 0, chars.length);
+        int pooled = PooledCharBuffer.getPooledChunks();
+
+        buffer.reset();
+        assertEquals(0, buffer.length());
+        assertEquals(pooled + 3, PooledCharBuffer.getPooledChunks());
+
+        // the next buffer reuses the chunks
+        PooledCharBuffer next = new PooledCharBuffer();
+        next.write("abc");
+        assertEquals(pooled + 2, PooledCharBuffer.getPooledChunks());
+        assertEquals("abc", next.toString());
+        next.reset();
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.core;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.apache.pluto.container.PortletContainer;
+import org.apache.pluto.container.PortletWindow;
+import org.apache.pluto.container.PortletWindowID;
+import org.apache.pluto.driver.AttributeKeys;
+import org.apache.pluto.driver.url.PortalURL;
+
+/**
+ * Test Class
+ */
+public class PortletAggregatorTest extends TestCase {
+
+    /** The render behavior of the stub container, by window ID. */
+    private interface Renderer {
+        void render(HttpServletRequest request, PortalServletResponse response) throws Exception;
+    }
+
+    private final Map<String, Renderer> renderers = new HashMap<String, Renderer>();
+    private Map<String, Object> attributes;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private List<String> headers;
+    private PortletContainer container;
+    private PortletAggregator aggregator;
+
+    public void setUp() throws Exception {
+        attributes = Collections.synchronizedMap(new HashMap<String, Object>());
+        request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getAttribute")) {
+                    return attributes.get(args[0]);
+                } else if (name.equals("setAttribute")) {
+                    attributes.put((String) args[0], args[1]);
+                } else if (name.equals("removeAttribute")) {
+                    attributes.remove(args[0]);
+                } else if (name.equals("getAttributeNames")) {
+                    return Collections.enumeration(new ArrayList<String>(attributes.keySet()));
+                }
+                return null;
+            }
+        });
+        headers = Collections.synchronizedList(new ArrayList<String>());
+        response = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {HttpServletResponse.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("setHeader")) {
+                    headers.add(args[0] + ": " + args[1]);
+                }
+                return null;
+            }
+        });
+        container = (PortletContainer) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {PortletContainer.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+                PortletWindow window = (PortletWindow) args[0];
+                renderers.get(window.getId().getStringId()).render((HttpServletRequest) args[1],
+                        (PortalServletResponse) args[2]);
+                return null;
+            }
+        });
+        aggregator = new PortletAggregator(4, 16, 10000, 200);
+    }
+
+    public void tearDown() {
+        aggregator.shutdown();
+    }
+
+    public void testPageOrder() throws Exception {
+        // all three portlets must be rendering at the same time to pass the barrier
+        final CyclicBarrier barrier = new CyclicBarrier(3);
+        for (int ii = 1; ii <= 3; ii++) {
+            final String markup = "markup " + ii;
+            final long delay = (3 - ii) * 50L;
+            renderers.put("w" + ii, new Renderer() {
+                public void render(HttpServletRequest req, PortalServletResponse resp) throws Exception {
+                    barrier.await(5, TimeUnit.SECONDS);
+                    Thread.sleep(delay);
+                    resp.getWriter().write(markup);
+                }
+            });
+        }
+
+        Map<String, AggregatedPortlet> portlets = start(10000, "w1", "w2", "w3");
+        assertSame(portlets, attributes.get(AttributeKeys.AGGREGATED_PORTLETS));
+
+        List<String> ids = new ArrayList<String>();
+        for (Map.Entry<String, AggregatedPortlet> entry : portlets.entrySet()) {
+            AggregatedPortlet ap = entry.getValue();
+            assertTrue(ap.awaitRender());
+            assertNull(ap.getRenderError());
+            ids.add(entry.getKey());
+            assertEquals("markup " + entry.getKey().substring(1), ap.getResponse().getInternalBuffer().toString());
+        }
+        assertEquals("[w1, w2, w3]", ids.toString());
+
+        aggregator.cancelAll(request);
+    }
+
+    public void testTimeout() throws Exception {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        renderers.put("w1", new Renderer() {
+            public void render(HttpServletRequest req, PortalServletResponse resp) throws Exception {
+                resp.getWriter().write("fast");
+            }
+        });
+        renderers.put("w2", new Renderer() {
+            public void render(HttpServletRequest req, PortalServletResponse resp) throws Exception {
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw e;
+                }
+            }
+        });
+
+        Map<String, AggregatedPortlet> portlets = start(200, "w1", "w2");
+        assertTrue(portlets.get("w1").awaitRender());
+        assertEquals("fast", portlets.get("w1").getResponse().getInternalBuffer().toString());
+
+        // the portlet tag shows the fallback markup and the processing is cancelled
+        assertFalse(portlets.get("w2").awaitRender());
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertTrue(portlets.get("w2").join(5000));
+        aggregator.cancelAll(request);
+    }
+
+    public void testDetach() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        renderers.put("w1", new Renderer() {
+            public void render(HttpServletRequest req, PortalServletResponse resp) throws Exception {
+                started.countDown();
+                // ignores the interrupt
+                while (true) {
+                    try {
+                        release.await();
+                        break;
+                    } catch (InterruptedException e) {
+                    }
+                }
+                try {
+                    req.getAttribute("a");
+                } catch (Throwable t) {
+                    errors.add(t);
+                }
+                try {
+                    resp.setHeader("Set-Cookie", "x=y");
+                } catch (Throwable t) {
+                    errors.add(t);
+                }
+                finished.countDown();
+            }
+        });
+
+        start(100, "w1");
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        long start = System.nanoTime();
+        aggregator.cancelAll(request);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 150);
+
+        // the abandoned portlet can no longer reach the recycled request and response
+        release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(2, errors.size());
+        assertTrue(errors.get(0) instanceof IllegalStateException);
+        assertTrue(errors.get(1) instanceof IllegalStateException);
+        assertTrue(headers.isEmpty());
+    }
+
+    public void testNotStarted() throws Exception {
+        PortletAggregator single = new PortletAggregator(1, 16, 10000, 5000);
+        try {
+            final CountDownLatch release = new CountDownLatch(1);
+            final List<String> rendered = Collections.synchronizedList(new ArrayList<String>());
+            renderers.put("w1", new Renderer() {
+                public void render(HttpServletRequest req, PortalServletResponse resp) throws Exception {
+                    release.await();
+                }
+            });
+            renderers.put("w2", new Renderer() {
+                public void render(HttpServletRequest req, PortalServletResponse resp) {
+                    rendered.add("w2");
+                }
+            });
+
+            Map<String, AggregatedPortlet> portlets = new LinkedHashMap<String, AggregatedPortlet>();
+            portlets.put("w1", portlet("w1", 10000));
+            portlets.put("w2", portlet("w2", 10000));
+            single.submit(request, portlets);
+
+            // w2 is still queued behind w1 and never runs
+            single.cancelAll(request);
+            assertTrue(portlets.get("w2").join(0));
+            release.countDown();
+            Thread.sleep(100);
+            assertTrue(rendered.isEmpty());
+        } finally {
+            single.shutdown();
+        }
+    }
+
+    public void testAttributeOverlay() throws Exception {
+        attributes.put("shared", "portal");
+        attributes.put("removed", "portal");
+        PortletAggregationRequest req = new PortletAggregationRequest(request);
+
+        assertEquals("portal", req.getAttribute("shared"));
+        req.setAttribute("shared", "portlet");
+        req.setAttribute("local", "portlet");
+        req.removeAttribute("removed");
+
+        assertEquals("portlet", req.getAttribute("shared"));
+        assertEquals("portlet", req.getAttribute("local"));
+        assertNull(req.getAttribute("removed"));
+        assertEquals("portlet", req.getLocalAttribute("local"));
+        assertNull(req.getLocalAttribute("removed"));
+
+        List<String> names = Collections.list(req.getAttributeNames());
+        Collections.sort(names);
+        assertEquals("[local, shared]", names.toString());
+
+        // the portal request is not changed
+        assertEquals("portal", attributes.get("shared"));
+        assertEquals("portal", attributes.get("removed"));
+        assertFalse(attributes.containsKey("local"));
+
+        // setting null removes the attribute in the overlay only
+        req.setAttribute("shared", null);
+        assertNull(req.getAttribute("shared"));
+        assertEquals("portal", attributes.get("shared"));
+    }
+
+    public void testRequestParametersMerged() throws Exception {
+        final List<String> calls = new ArrayList<String>();
+        PortalURL url = (PortalURL) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {PortalURL.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                calls.add(name);
+                if (name.equals("getWindowStates")) {
+                    return Collections.emptyMap();
+                } else if (name.equals("getPortletIds")) {
+                    return Collections.emptySet();
+                } else if (name.equals("getParameters")) {
+                    return Collections.emptySet();
+                }
+                return null;
+            }
+        });
+
+        // the parameters are read on the request thread before the URL is shared
+        assertTrue(aggregator.start(container, request, response, url).isEmpty());
+        assertEquals("getParameters", calls.get(0));
+    }
+
+    private Map<String, AggregatedPortlet> start(long timeout, String... ids) {
+        Map<String, AggregatedPortlet> portlets = new LinkedHashMap<String, AggregatedPortlet>();
+        for (String id : ids) {
+            portlets.put(id, portlet(id, timeout));
+        }
+        aggregator.submit(request, portlets);
+        return portlets;
+    }
+
+    private AggregatedPortlet portlet(final String id, long timeout) {
+        final PortletWindowID wid = (PortletWindowID) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {PortletWindowID.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return id;
+            }
+        });
+        PortletWindow window = (PortletWindow) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {PortletWindow.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return method.getName().equals("getId") ? wid : null;
+            }
+        });
+        return new AggregatedPortlet(container, null, window, request, response, false, false, true,
+                null, timeout);
+    }
+}
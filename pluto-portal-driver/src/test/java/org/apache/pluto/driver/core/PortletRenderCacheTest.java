@@ -0,0 +1,260 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.core;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.portlet.CacheControl;
+import javax.portlet.PortletMode;
+import javax.portlet.WindowState;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.pluto.container.PortletContainer;
+import org.apache.pluto.container.PortletWindow;
+import org.apache.pluto.container.PortletWindowID;
+import org.apache.pluto.driver.AttributeKeys;
+import org.apache.pluto.driver.container.PlutoTestCase;
+import org.apache.pluto.driver.url.PortalURL;
+import org.apache.pluto.driver.url.PortalURLParameter;
+
+/**
+ * Test Class
+ */
+public class PortletRenderCacheTest extends PlutoTestCase {
+
+    private PortletWindow window;
+    private PortalURL portalURL;
+    private Map<String, PortalURLParameter> renderParams;
+    private PortletContainer container;
+
+    /** The cache control the portlet sets during rendering. */
+    private CacheControlStub cacheControl;
+
+    /** The ETag the portlet received with the last render request. */
+    private String receivedETag;
+
+    private int renders;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        final PortletWindowID id = (PortletWindowID) proxy(PortletWindowID.class, "getStringId", "w1");
+        window = (PortletWindow) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {PortletWindow.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getId")) {
+                    return id;
+                } else if (method.getName().equals("getPortletMode")) {
+                    return PortletMode.VIEW;
+                }
+                return WindowState.NORMAL;
+            }
+        });
+        renderParams = new HashMap<String, PortalURLParameter>();
+        portalURL = (PortalURL) proxy(PortalURL.class, "getParameters", renderParams);
+
+        cacheControl = new CacheControlStub();
+        container = (PortletContainer) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {PortletContainer.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                HttpServletRequest request = (HttpServletRequest) args[1];
+                receivedETag = (String) request.getAttribute(AttributeKeys.RENDER_CACHE_ETAG);
+                renders++;
+                CacheControlStub cc = cacheControl.copy();
+                if (cc.eTag != null && cc.eTag.equals(receivedETag)) {
+                    cc.cachedContent = true;
+                } else {
+                    ((PortalServletResponse) args[2]).getWriter().write("markup " + renders);
+                    request.setAttribute(AttributeKeys.PORTLET_TITLE, "title " + renders);
+                }
+                request.setAttribute(AttributeKeys.RENDER_CACHE_CONTROL, cc);
+                return null;
+            }
+        });
+    }
+
+    public void testExpiration() throws Exception {
+        PortletRenderCache cache = new PortletRenderCache(1024 * 1024);
+        cacheControl.expirationTime = 60;
+
+        assertEquals("markup 1", render(cache, "user1"));
+        HttpServletRequest request = request("user1");
+        assertEquals("markup 1", render(cache, request));
+        assertEquals("title 1", request.getAttribute(AttributeKeys.PORTLET_TITLE));
+        assertEquals(1, renders);
+
+        // private markup is not shared between users
+        assertEquals("markup 2", render(cache, "user2"));
+        assertEquals(2, cache.getFragmentCount());
+
+        renderParams.put("p", new PortalURLParameter("w1", "p", new String[] {"1"}));
+        assertEquals("markup 3", render(cache, "user1"));
+        renderParams.clear();
+        assertEquals("markup 1", render(cache, "user1"));
+
+        // an action discards the markup of the window
+        cache.invalidate("w1");
+        assertEquals(0, cache.getFragmentCount());
+        assertEquals("markup 4", render(cache, "user1"));
+
+        // public markup is shared
+        cacheControl.publicScope = true;
+        renderParams.put("p", new PortalURLParameter("w1", "p", new String[] {"2"}));
+        assertEquals("markup 5", render(cache, "user1"));
+        assertEquals("markup 5", render(cache, "user2"));
+        assertEquals(5, renders);
+        assertEquals(3, cache.getHits());
+
+        // markup without expiration is not cached
+        cacheControl.expirationTime = 0;
+        renderParams.clear();
+        cache.invalidate("w1");
+        render(cache, "user1");
+        assertEquals(0, cache.getFragmentCount());
+    }
+
+    public void testValidation() throws Exception {
+        PortletRenderCache cache = new PortletRenderCache(1024 * 1024);
+        cacheControl.eTag = "v1";
+
+        assertEquals("markup 1", render(cache, "user1"));
+        assertNull(receivedETag);
+        HttpServletRequest request = request("user1");
+        assertEquals("markup 1", render(cache, request));
+        assertEquals("v1", receivedETag);
+        assertEquals("title 1", request.getAttribute(AttributeKeys.PORTLET_TITLE));
+        assertEquals(1, cache.getValidations());
+
+        cacheControl.eTag = "v2";
+        assertEquals("markup 3", render(cache, "user1"));
+        assertEquals(3, renders);
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getFragmentCount());
+    }
+
+    public void testEviction() throws Exception {
+        PortletRenderCache cache = new PortletRenderCache(300);
+        cacheControl.expirationTime = -1;
+
+        render(cache, "user1");
+        render(cache, "user2");
+        render(cache, "user1");
+        render(cache, "user3");
+        assertEquals(2, cache.getFragmentCount());
+        assertEquals(1, cache.getEvictions());
+        assertTrue(cache.getSize() <= 300);
+
+        // the least recently used fragment was evicted
+        assertEquals("markup 1", render(cache, "user1"));
+        assertEquals("markup 4", render(cache, "user2"));
+    }
+
+    private String render(PortletRenderCache cache, String user) throws Exception {
+        return render(cache, request(user));
+    }
+
+    private String render(PortletRenderCache cache, HttpServletRequest request) throws Exception {
+        PortalServletResponse response = new PortalServletResponse(
+                (HttpServletResponse) proxy(HttpServletResponse.class, null, null));
+        cache.render(container, window, request, response, null, portalURL);
+        return response.getInternalBuffer().toString();
+    }
+
+    private HttpServletRequest request(final String user) {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getRemoteUser")) {
+                    return user;
+                } else if (name.equals("getLocale")) {
+                    return Locale.ENGLISH;
+                } else if (name.equals("getAttribute")) {
+                    return attributes.get(args[0]);
+                } else if (name.equals("setAttribute")) {
+                    attributes.put((String) args[0], args[1]);
+                } else if (name.equals("removeAttribute")) {
+                    attributes.remove(args[0]);
+                }
+                return null;
+            }
+        });
+    }
+
+    private Object proxy(Class<?> type, final String methodName, final Object value) {
+        return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {type},
+                new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return method.getName().equals(methodName) ? value : null;
+            }
+        });
+    }
+
+    private static class CacheControlStub implements CacheControl {
+
+        private int expirationTime;
+        private boolean publicScope;
+        private String eTag;
+        private boolean cachedContent;
+
+        CacheControlStub copy() {
+            CacheControlStub cc = new CacheControlStub();
+            cc.expirationTime = expirationTime;
+            cc.publicScope = publicScope;
+            cc.eTag = eTag;
+            return cc;
+        }
+
+        public int getExpirationTime() {
+            return expirationTime;
+        }
+
+        public void setExpirationTime(int time) {
+            expirationTime = time;
+        }
+
+        public boolean isPublicScope() {
+            return publicScope;
+        }
+
+        public void setPublicScope(boolean publicScope) {
+            this.publicScope = publicScope;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        public void setETag(String token) {
+            eTag = token;
+        }
+
+        public boolean useCachedContent() {
+            return cachedContent;
+        }
+
+        public void setUseCachedContent(boolean useCachedContent) {
+            cachedContent = useCachedContent;
+        }
+    }
+}
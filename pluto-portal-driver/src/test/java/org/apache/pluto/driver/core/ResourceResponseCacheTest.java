@@ -0,0 +1,407 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.portlet.CacheControl;
+import javax.portlet.ResourceURL;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.pluto.container.PortletContainer;
+import org.apache.pluto.container.PortletWindow;
+import org.apache.pluto.container.PortletWindowID;
+import org.apache.pluto.driver.AttributeKeys;
+import org.apache.pluto.driver.container.PlutoTestCase;
+import org.apache.pluto.driver.url.PortalURL;
+import org.apache.pluto.driver.url.PortalURL.URLType;
+
+/**
+ * Test Class
+ */
+public class ResourceResponseCacheTest extends PlutoTestCase {
+
+    private PortletWindow window;
+    private PortalURL portalURL;
+    private PortletContainer container;
+
+    /** The cache control the portlet sets while serving the resource. */
+    private CacheControlStub cacheControl;
+
+    /** The ETag the portlet received with the last resource request. */
+    private String receivedETag;
+
+    private int dispatches;
+
+    /** The name of the header the portlet sets a cookie with, if any. */
+    private String cookieHeader;
+
+    /** How the portlet flushes the response: 0 not at all, 1 the writer, 2 the buffer. */
+    private int flush;
+
+    /** The response being served and the body it had received after the flush. */
+    private ResponseStub current;
+    private String flushed;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        final PortletWindowID id = (PortletWindowID) proxy(PortletWindowID.class, "getStringId", "w1");
+        window = (PortletWindow) proxy(PortletWindow.class, "getId", id);
+        portalURL = (PortalURL) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {PortalURL.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("toURL")) {
+                    return "/pluto/portal/__rpw1";
+                } else if (name.equals("getType")) {
+                    return URLType.Resource;
+                } else if (name.equals("getCacheability")) {
+                    return ResourceURL.FULL;
+                }
+                return null;
+            }
+        });
+
+        cacheControl = new CacheControlStub();
+        container = (PortletContainer) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {PortletContainer.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+                HttpServletRequest request = (HttpServletRequest) args[1];
+                HttpServletResponse response = (HttpServletResponse) args[2];
+                receivedETag = (String) request.getAttribute(AttributeKeys.RESOURCE_CACHE_ETAG);
+                dispatches++;
+                CacheControlStub cc = cacheControl.copy();
+                if (cc.eTag != null && cc.eTag.equals(receivedETag)) {
+                    cc.cachedContent = true;
+                } else {
+                    response.setContentType("text/plain");
+                    response.setHeader("X-Resource", "r" + dispatches);
+                    if (cookieHeader != null) {
+                        response.addHeader(cookieHeader, "id=" + dispatches);
+                    }
+                    PrintWriter writer = response.getWriter();
+                    writer.write("data " + dispatches);
+                    for (int i = 0; i < cacheControl.padding; i++) {
+                        writer.write('.');
+                    }
+                    if (flush != 0) {
+                        if (flush == 1) {
+                            writer.flush();
+                        } else {
+                            response.flushBuffer();
+                        }
+                        flushed = current.getBody();
+                        writer.write(" done");
+                    }
+                }
+                request.setAttribute(AttributeKeys.RESOURCE_CACHE_CONTROL, cc);
+                return null;
+            }
+        });
+    }
+
+    public void testExpiration() throws Exception {
+        ResourceResponseCache cache = new ResourceResponseCache(1024 * 1024, 1024);
+        cacheControl.expirationTime = 60;
+        cacheControl.publicScope = true;
+
+        ResponseStub first = serve(cache, Collections.<String, String>emptyMap());
+        assertEquals("data 1", first.getBody());
+        assertEquals("public, max-age=60", first.headers.get("Cache-Control"));
+        assertNotNull(first.headers.get("Last-Modified"));
+
+        ResponseStub second = serve(cache, Collections.<String, String>emptyMap());
+        assertEquals(1, dispatches);
+        assertEquals("data 1", second.getBody());
+        assertEquals("text/plain", second.contentType);
+        assertEquals("r1", second.headers.get("X-Resource"));
+        assertEquals(1, cache.getHits());
+
+        // the client copy is current
+        Map<String, String> conditional = new HashMap<String, String>();
+        conditional.put("If-Modified-Since", first.headers.get("Last-Modified"));
+        ResponseStub notModified = serve(cache, conditional);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, notModified.status);
+        assertEquals("", notModified.getBody());
+        assertEquals(1, dispatches);
+
+        // an action discards the responses of the window
+        cache.invalidate("w1");
+        assertEquals("data 2", serve(cache, Collections.<String, String>emptyMap()).getBody());
+
+        // responses without expiration or ETag are passed through
+        cache.clear();
+        cacheControl.expirationTime = 0;
+        ResponseStub uncached = serve(cache, Collections.<String, String>emptyMap());
+        assertEquals("data 3", uncached.getBody());
+        assertNull(uncached.headers.get("Cache-Control"));
+        assertEquals(0, cache.getResourceCount());
+    }
+
+    public void testValidation() throws Exception {
+        ResourceResponseCache cache = new ResourceResponseCache(1024 * 1024, 1024);
+        cacheControl.eTag = "e1";
+
+        ResponseStub first = serve(cache, Collections.<String, String>emptyMap());
+        assertEquals("data 1", first.getBody());
+        assertEquals("\"e1\"", first.headers.get("ETag"));
+        assertEquals("private, no-cache", first.headers.get("Cache-Control"));
+        assertNull(receivedETag);
+
+        // the portlet validates the cached response
+        ResponseStub second = serve(cache, Collections.<String, String>emptyMap());
+        assertEquals("e1", receivedETag);
+        assertEquals("data 1", second.getBody());
+        assertEquals("r1", second.headers.get("X-Resource"));
+        assertEquals(1, cache.getValidations());
+
+        Map<String, String> conditional = new HashMap<String, String>();
+        conditional.put("If-None-Match", "\"e0\", W/\"e1\"");
+        ResponseStub notModified = serve(cache, conditional);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, notModified.status);
+        assertEquals(3, dispatches);
+
+        // the portlet validates the client copy of a response that is not cached
+        cache.clear();
+        conditional.put("If-None-Match", "\"e1\"");
+        notModified = serve(cache, conditional);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, notModified.status);
+        assertEquals("e1", receivedETag);
+        assertEquals(0, cache.getResourceCount());
+    }
+
+    public void testLargeResponse() throws Exception {
+        ResourceResponseCache cache = new ResourceResponseCache(1024 * 1024, 16);
+        cacheControl.expirationTime = -1;
+        cacheControl.padding = 20;
+
+        ResponseStub response = serve(cache, Collections.<String, String>emptyMap());
+        assertEquals("data 1....................", response.getBody());
+        assertNull(response.headers.get("Cache-Control"));
+        assertEquals(0, cache.getResourceCount());
+
+        cacheControl.padding = 0;
+        serve(cache, Collections.<String, String>emptyMap());
+        assertEquals(1, cache.getResourceCount());
+        assertEquals("private, max-age=31536000",
+                serve(cache, Collections.<String, String>emptyMap()).headers.get("Cache-Control"));
+    }
+
+    public void testCookieHeader() throws Exception {
+        ResourceResponseCache cache = new ResourceResponseCache(1024 * 1024, 1024);
+        cacheControl.expirationTime = 60;
+
+        // a cookie set as a header is treated like one added with addCookie
+        for (String name : new String[] {"Set-Cookie", "set-cookie", "SET-COOKIE2"}) {
+            cookieHeader = name;
+            ResponseStub response = serve(cache, Collections.<String, String>emptyMap());
+            assertEquals("data " + dispatches, response.getBody());
+            assertEquals("id=" + dispatches, response.headers.get(name));
+            assertEquals(0, cache.getResourceCount());
+        }
+
+        cookieHeader = null;
+        serve(cache, Collections.<String, String>emptyMap());
+        assertEquals(1, cache.getResourceCount());
+        ResponseStub cached = serve(cache, Collections.<String, String>emptyMap());
+        assertEquals("data 4", cached.getBody());
+        assertEquals(4, dispatches);
+    }
+
+    public void testFlush() throws Exception {
+        ResourceResponseCache cache = new ResourceResponseCache(1024 * 1024, 1024);
+        cacheControl.expirationTime = 60;
+
+        // a response the portlet commits is written out at once and not cached
+        for (flush = 1; flush <= 2; flush++) {
+            ResponseStub response = serve(cache, Collections.<String, String>emptyMap());
+            assertEquals("data " + dispatches, flushed);
+            assertEquals("data " + dispatches + " done", response.getBody());
+            assertEquals(0, cache.getResourceCount());
+        }
+
+        flush = 0;
+        serve(cache, Collections.<String, String>emptyMap());
+        assertEquals(1, cache.getResourceCount());
+        assertEquals("data 3", serve(cache, Collections.<String, String>emptyMap()).getBody());
+        assertEquals(3, dispatches);
+    }
+
+    private ResponseStub serve(ResourceResponseCache cache, Map<String, String> headers) throws Exception {
+        HttpServletRequest request = request(headers);
+        assertTrue(cache.isCacheable(request, portalURL));
+        ResponseStub stub = new ResponseStub();
+        current = stub;
+        cache.serveResource(container, window, request, stub.response, portalURL);
+        return stub;
+    }
+
+    private HttpServletRequest request(final Map<String, String> headers) {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getMethod")) {
+                    return "GET";
+                } else if (name.equals("getRemoteUser")) {
+                    return "user1";
+                } else if (name.equals("isAsyncStarted")) {
+                    return Boolean.FALSE;
+                } else if (name.equals("getHeader")) {
+                    return headers.get(args[0]);
+                } else if (name.equals("getHeaders")) {
+                    String value = headers.get(args[0]);
+                    return Collections.enumeration(value == null
+                            ? Collections.<String>emptyList() : Collections.singletonList(value));
+                } else if (name.equals("getDateHeader")) {
+                    String value = headers.get(args[0]);
+                    return (value == null) ? -1L : Long.parseLong(value);
+                } else if (name.equals("getAttribute")) {
+                    return attributes.get(args[0]);
+                } else if (name.equals("setAttribute")) {
+                    attributes.put((String) args[0], args[1]);
+                } else if (name.equals("removeAttribute")) {
+                    attributes.remove(args[0]);
+                }
+                return null;
+            }
+        });
+    }
+
+    private Object proxy(Class<?> type, final String methodName, final Object value) {
+        return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {type},
+                new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return method.getName().equals(methodName) ? value : null;
+            }
+        });
+    }
+
+    /**
+     * Records the status, headers and body written to the servlet response.
+     * Date headers are recorded as the number of milliseconds.
+     */
+    private class ResponseStub {
+
+        private int status = HttpServletResponse.SC_OK;
+        private String contentType;
+        private final Map<String, String> headers = new HashMap<String, String>();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        private final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] {HttpServletResponse.class},
+                new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("setStatus")) {
+                    status = (Integer) args[0];
+                } else if (name.equals("setContentType")) {
+                    contentType = (String) args[0];
+                } else if (name.equals("getContentType")) {
+                    return contentType;
+                } else if (name.equals("getCharacterEncoding")) {
+                    return "UTF-8";
+                } else if (name.equals("setHeader") || name.equals("addHeader")
+                        || name.equals("setDateHeader")) {
+                    headers.put((String) args[0], String.valueOf(args[1]));
+                } else if (name.equals("getOutputStream")) {
+                    return new ServletOutputStream() {
+                        public void write(int b) {
+                            body.write(b);
+                        }
+
+                        public boolean isReady() {
+                            return true;
+                        }
+
+                        public void setWriteListener(WriteListener listener) {
+                        }
+                    };
+                } else if (name.equals("isCommitted")) {
+                    return Boolean.FALSE;
+                }
+                return null;
+            }
+        });
+
+        String getBody() throws Exception {
+            return body.toString("UTF-8");
+        }
+    }
+
+    private static class CacheControlStub implements CacheControl {
+
+        private int expirationTime;
+        private boolean publicScope;
+        private String eTag;
+        private boolean cachedContent;
+
+        /** Number of additional bytes in the response body. */
+        private int padding;
+
+        CacheControlStub copy() {
+            CacheControlStub cc = new CacheControlStub();
+            cc.expirationTime = expirationTime;
+            cc.publicScope = publicScope;
+            cc.eTag = eTag;
+            return cc;
+        }
+
+        public int getExpirationTime() {
+            return expirationTime;
+        }
+
+        public void setExpirationTime(int time) {
+            expirationTime = time;
+        }
+
+        public boolean isPublicScope() {
+            return publicScope;
+        }
+
+        public void setPublicScope(boolean publicScope) {
+            this.publicScope = publicScope;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        public void setETag(String token) {
+            eTag = token;
+        }
+
+        public boolean useCachedContent() {
+            return cachedContent;
+        }
+
+        public void setUseCachedContent(boolean useCachedContent) {
+            cachedContent = useCachedContent;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.services.portal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.pluto.container.PageResourceId;
+
+/**
+ * Test Class
+ */
+public class PageResourcesTest extends TestCase {
+
+    private PageResources resources;
+
+    public void setUp() {
+        resources = new PageResources();
+        resources.addResource(id("jquery", "1.4.0"), PageResources.Type.SCRIPT, "/js/jquery-1.4.js");
+        resources.addResource(id("jquery", "2.1.4"), PageResources.Type.SCRIPT, "/js/jquery-2.1.js");
+        resources.addResource(id("pluto", "1.0"), PageResources.Type.CSS, "/css/pluto.css");
+        resources.addResource(id("hub", "3.0.0"), PageResources.Type.MARKUP, "<script src='hub.js'></script>");
+    }
+
+    public void testDependencies() {
+        PageDependencies deps = new PageDependencies(Arrays.asList(new PageResourceId[] {
+                id("pluto", null), id("jquery", "1.4.0"), id("pluto", "1.0"),
+                id("jquery", "v2.0.0-beta"), id("jquery", "1.9"), id("jquery", "1.4.0") }));
+        assertEquals(Arrays.asList(new PageResourceId[] {id("pluto", "1.0"), id("jquery", "v2.0.0-beta")}),
+                deps.getIds());
+
+        // numeric compare, not digit by digit
+        deps = new PageDependencies(Arrays.asList(new PageResourceId[] {id("a", "2.0"), id("a", "1.5")}));
+        assertEquals("2.0", deps.getIds().get(0).getVersion());
+        deps.add(id("a", "10.0"));
+        assertEquals("10.0", deps.getIds().get(0).getVersion());
+    }
+
+    public void testVersionOrder() {
+        List<PageResourceId> ids = new ArrayList<PageResourceId>(Arrays.asList(new PageResourceId[] {
+                id("a", "1.2"), id("a", "v1.10"), id("a", "1.2.1"), id("a", "=0.9") }));
+        Collections.sort(ids);
+        assertEquals("v1.10", ids.get(0).getVersion());
+        assertEquals("1.2.1", ids.get(1).getVersion());
+        assertEquals("1.2", ids.get(2).getVersion());
+        assertEquals("=0.9", ids.get(3).getVersion());
+    }
+
+    public void testPageMarkup() {
+        PageDependencies pagedeps = new PageDependencies(Arrays.asList(new PageResourceId[] {
+                id("jquery", "1.4.0"), id("pluto", "1.0") }));
+        List<PageResourceId> deps = new ArrayList<PageResourceId>();
+        Map<PageResourceId, String> dynamic = new HashMap<PageResourceId, String>();
+
+        String markup = resources.getMarkup(pagedeps, deps, dynamic, "/pluto");
+        assertEquals(resources.getMarkup(pagedeps.getIds(), "/pluto"), markup);
+        assertSame(markup, resources.getMarkup(pagedeps, deps, dynamic, "/pluto"));
+
+        // a portlet dependency with a higher version replaces the page dependency
+        deps.add(id("jquery", "2.1.4"));
+        deps.add(id("hub", null));
+        List<PageResourceId> all = new ArrayList<PageResourceId>(pagedeps.getIds());
+        all.addAll(deps);
+        assertEquals(resources.getMarkup(all, "/pluto"), resources.getMarkup(pagedeps, deps, dynamic, "/pluto"));
+        assertTrue(resources.getMarkup(pagedeps, deps, dynamic, "/pluto").startsWith(
+                "<script type='text/javascript' src='/pluto/js/jquery-2.1.js'></script>\n"));
+
+        // dynamic resources are only used for this rendering
+        deps.clear();
+        dynamic.put(id("pluto", "1.0"), "<link rel='stylesheet' href='dyn.css'>");
+        assertTrue(resources.getMarkup(pagedeps, deps, dynamic, "/pluto").endsWith(
+                "<link rel='stylesheet' href='dyn.css'>\n"));
+        assertEquals(markup, resources.getMarkup(pagedeps, deps, new HashMap<PageResourceId, String>(), "/pluto"));
+    }
+
+    private PageResourceId id(String name, String version) {
+        return new PageResourceId(name, "scope", version);
+    }
+}
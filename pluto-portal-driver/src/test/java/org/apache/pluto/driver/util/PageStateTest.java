@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.pluto.driver.util;
+
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+/**
+ * Test Class
+ */
+public class PageStateTest extends TestCase {
+
+    public void testWriteString() throws Exception {
+        assertEquals("null", write(null));
+        assertEquals("\"\"", write(""));
+        assertEquals("\"plain value\"", write("plain value"));
+        assertEquals("\"a\\\"b\\\\c\"", write("a\"b\\c"));
+        assertEquals("\"\\n\\r\\t\\b\\f\\u0001\\u001f\"", write("\n\r\t\b\f\u0001\u001f"));
+        assertEquals("\"<\\/script>a/b\"", write("</script>a/b"));
+        // unicode escapes for the separators would end the line in the source
+        assertEquals("\"x\\u2028y\\u2029\"", write("x" + (char) 0x2028 + "y" + (char) 0x2029));
+    }
+
+    private String write(String str) throws Exception {
+        StringWriter sw = new StringWriter();
+        PageState.writeString(sw, str);
+        return sw.toString();
+    }
+}